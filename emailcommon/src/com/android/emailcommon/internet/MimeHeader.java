@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
 public class MimeHeader {
     /**
@@ -53,22 +55,51 @@ public class MimeHeader {
         HEADER_ANDROID_ATTACHMENT_STORE_DATA
     };
 
+    /** All fields, in the order they were added */
     protected final ArrayList<Field> mFields = new ArrayList<Field>();
 
+    /**
+     * Lower-cased name to the first field of that name (later ones are chained through
+     * {@link Field#mNextSameName}).  Built on the first lookup and maintained from then on, so
+     * that parsing a header doesn't pay for it and repeated lookups don't scan {@link #mFields}.
+     */
+    private HashMap<String, Field> mIndex;
+
     public void clear() {
         mFields.clear();
+        mIndex = null;
     }
 
     public String getFirstHeader(String name) throws MessagingException {
-        String[] header = getHeader(name);
-        if (header == null) {
+        Field field = getIndex().get(toKey(name));
+        if (field == null) {
             return null;
         }
-        return header[0];
+        return field.getValue();
     }
 
     public void addHeader(String name, String value) throws MessagingException {
-        mFields.add(new Field(name, value));
+        addField(new Field(name, value));
+    }
+
+    /**
+     * Add a field from its unparsed "Name: value" form, as found in a message.  The field is
+     * only split (and its value trimmed) when it's first read.  Lines without a colon are
+     * ignored.
+     */
+    public void addRawHeader(String fieldData) {
+        int colon = fieldData.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+        addField(new Field(fieldData, colon));
+    }
+
+    private void addField(Field field) {
+        mFields.add(field);
+        if (mIndex != null) {
+            indexField(field);
+        }
     }
 
     public void setHeader(String name, String value) throws MessagingException {
@@ -80,26 +111,79 @@ public class MimeHeader {
     }
 
     public String[] getHeader(String name) throws MessagingException {
-        ArrayList<String> values = new ArrayList<String>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                values.add(field.value);
-            }
-        }
-        if (values.size() == 0) {
+        Field first = getIndex().get(toKey(name));
+        if (first == null) {
             return null;
         }
-        return values.toArray(new String[] {});
+        int count = 0;
+        for (Field field = first; field != null; field = field.mNextSameName) {
+            count++;
+        }
+        String[] values = new String[count];
+        int i = 0;
+        for (Field field = first; field != null; field = field.mNextSameName) {
+            values[i++] = field.getValue();
+        }
+        return values;
     }
 
     public void removeHeader(String name) throws MessagingException {
-        ArrayList<Field> removeFields = new ArrayList<Field>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                removeFields.add(field);
+        String key = toKey(name);
+        if (getIndex().remove(key) == null) {
+            return;
+        }
+        Iterator<Field> fields = mFields.iterator();
+        while (fields.hasNext()) {
+            if (fields.next().mKey.equals(key)) {
+                fields.remove();
+            }
+        }
+    }
+
+    private HashMap<String, Field> getIndex() {
+        if (mIndex == null) {
+            mIndex = new HashMap<String, Field>();
+            for (Field field : mFields) {
+                field.mNextSameName = null;
+                indexField(field);
+            }
+        }
+        return mIndex;
+    }
+
+    private void indexField(Field field) {
+        field.mKey = toKey(field.getName());
+        Field existing = mIndex.get(field.mKey);
+        if (existing == null) {
+            mIndex.put(field.mKey, field);
+        } else {
+            while (existing.mNextSameName != null) {
+                existing = existing.mNextSameName;
+            }
+            existing.mNextSameName = field;
+        }
+    }
+
+    /**
+     * Header names are ASCII, so this avoids locale issues (e.g. Turkish dotless i) of
+     * {@link String#toLowerCase()}, and doesn't allocate if the name is lower case already.
+     */
+    private static String toKey(String name) {
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = name.toCharArray();
+                for (int j = i; j < length; j++) {
+                    c = chars[j];
+                    if (c >= 'A' && c <= 'Z') {
+                        chars[j] = (char) (c + ('a' - 'A'));
+                    }
+                }
+                return new String(chars);
             }
         }
-        mFields.removeAll(removeFields);
+        return name;
     }
 
     /**
@@ -114,8 +198,9 @@ public class MimeHeader {
         }
         StringBuilder builder = new StringBuilder();
         for (Field field : mFields) {
-            if (!Utility.arrayContains(WRITE_OMIT_FIELDS, field.name)) {
-                builder.append(field.name + ": " + field.value + "\r\n");
+            String fieldName = field.getName();
+            if (!Utility.arrayContains(WRITE_OMIT_FIELDS, fieldName)) {
+                builder.append(fieldName + ": " + field.getValue() + "\r\n");
             }
         }
         return builder.toString();
@@ -124,25 +209,55 @@ public class MimeHeader {
     public void writeTo(OutputStream out) throws IOException, MessagingException {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
         for (Field field : mFields) {
-            if (!Utility.arrayContains(WRITE_OMIT_FIELDS, field.name)) {
-                writer.write(field.name + ": " + field.value + "\r\n");
+            String fieldName = field.getName();
+            if (!Utility.arrayContains(WRITE_OMIT_FIELDS, fieldName)) {
+                writer.write(fieldName + ": " + field.getValue() + "\r\n");
             }
         }
         writer.flush();
     }
 
     private static class Field {
-        final String name;
-        final String value;
+        /** The unparsed "Name: value" text, until the field is split */
+        private String mRaw;
+        private int mColon;
+        private String mName;
+        private String mValue;
+
+        /** Lower-cased name, set when indexed */
+        String mKey;
+        /** The next field with the same name, set when indexed */
+        Field mNextSameName;
 
         public Field(String name, String value) {
-            this.name = name;
-            this.value = value;
+            mName = name;
+            mValue = value;
+        }
+
+        public Field(String raw, int colon) {
+            mRaw = raw;
+            mColon = colon;
         }
-        
+
+        public String getName() {
+            if (mName == null) {
+                mName = mRaw.substring(0, mColon);
+            }
+            return mName;
+        }
+
+        public String getValue() {
+            if (mValue == null) {
+                getName();
+                mValue = mRaw.substring(mColon + 1).trim();
+                mRaw = null;
+            }
+            return mValue;
+        }
+
         @Override
         public String toString() {
-            return name + "=" + value;
+            return getName() + "=" + getValue();
         }
     }
 
@@ -28,8 +28,6 @@ import org.apache.james.mime4j.BodyDescriptor;
 import org.apache.james.mime4j.ContentHandler;
 import org.apache.james.mime4j.EOLConvertingInputStream;
 import org.apache.james.mime4j.MimeStreamParser;
-import org.apache.james.mime4j.field.DateTimeField;
-import org.apache.james.mime4j.field.Field;
 
 import android.text.TextUtils;
 
@@ -74,8 +72,7 @@ public class MimeMessage extends Message {
     // In MIME, en_US-like date format should be used. In other words "MMM" should be encoded to
     // "Jan", not the other localized format like "Ene" (meaning January in locale es).
     // This conversion is used when generating outgoing MIME messages. Incoming MIME date
-    // headers are parsed by org.apache.james.mime4j.field.DateTimeField which does not have any
-    // localization code.
+    // headers are parsed by Rfc5322DateParser which does not have any localization code.
     private static final SimpleDateFormat DATE_FORMAT =
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
 
@@ -156,13 +153,8 @@ public class MimeMessage extends Message {
     @Override
     public Date getSentDate() throws MessagingException {
         if (mSentDate == null) {
-            try {
-                DateTimeField field = (DateTimeField)Field.parse("Date: "
-                        + MimeUtility.unfoldAndDecode(getFirstHeader("Date")));
-                mSentDate = field.getDate();
-            } catch (Exception e) {
-
-            }
+            // No need to unfold; the parser treats folding whitespace like any other
+            mSentDate = Rfc5322DateParser.parseDate(getFirstHeader("Date"));
         }
         return mSentDate;
     }
@@ -539,11 +531,19 @@ public class MimeMessage extends Message {
 
         public void field(String fieldData) {
             expect(Part.class);
-            try {
-                String[] tokens = fieldData.split(":", 2);
-                ((Part)stack.peek()).addHeader(tokens[0], tokens[1].trim());
-            } catch (MessagingException me) {
-                throw new Error(me);
+            Object part = stack.peek();
+            // Our own parts keep the field unparsed until it's read
+            if (part instanceof MimeMessage) {
+                ((MimeMessage)part).getMimeHeaders().addRawHeader(fieldData);
+            } else if (part instanceof MimeBodyPart) {
+                ((MimeBodyPart)part).mHeader.addRawHeader(fieldData);
+            } else {
+                try {
+                    String[] tokens = fieldData.split(":", 2);
+                    ((Part)part).addHeader(tokens[0], tokens[1].trim());
+                } catch (MessagingException me) {
+                    throw new Error(me);
+                }
             }
         }
 
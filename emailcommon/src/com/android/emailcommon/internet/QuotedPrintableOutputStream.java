@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that encodes text written to it as quoted-printable (RFC 2045 section 6.7).
+ * Line breaks (LF or CR-LF) become hard line breaks, and longer lines are broken with soft line
+ * breaks, so no encoded line is longer than 76 characters.
+ *
+ * A '.' at the start of a line is encoded, so that the output can be sent over SMTP without
+ * dot-stuffing.  Closing the stream writes out the end of the encoded text, but doesn't close
+ * the underlying stream.
+ */
+/*package*/ class QuotedPrintableOutputStream extends FilterOutputStream {
+    /** Maximum length of an encoded line, not counting the soft line break's '=' */
+    private static final int MAX_LINE_LENGTH = 75;
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    private final byte[] mBuffer = new byte[4096];
+    private int mCount;
+    private int mLineLength;
+    // A space or tab that will have to be encoded if it turns out to end a line
+    private int mPendingWhitespace = -1;
+    // A CR that will be a line break if it turns out to be followed by a LF
+    private boolean mPendingCr;
+
+    public QuotedPrintableOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        oneByte &= 0xff;
+        if (mPendingCr) {
+            mPendingCr = false;
+            if (oneByte == '\n') {
+                writeLineBreak();
+                return;
+            }
+            writeByte('\r', true);
+        }
+        if (mPendingWhitespace >= 0) {
+            writeByte(mPendingWhitespace, oneByte == '\r' || oneByte == '\n');
+            mPendingWhitespace = -1;
+        }
+        if (oneByte == '\r') {
+            mPendingCr = true;
+        } else if (oneByte == '\n') {
+            writeLineBreak();
+        } else if (oneByte == ' ' || oneByte == '\t') {
+            mPendingWhitespace = oneByte;
+        } else {
+            writeByte(oneByte, oneByte < 33 || oneByte > 126 || oneByte == '=');
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            write(b[i]);
+        }
+    }
+
+    private void writeLineBreak() throws IOException {
+        ensureSpace(2);
+        mBuffer[mCount++] = '\r';
+        mBuffer[mCount++] = '\n';
+        mLineLength = 0;
+    }
+
+    private void writeByte(int b, boolean encode) throws IOException {
+        if (mLineLength + (encode ? 3 : 1) > MAX_LINE_LENGTH) {
+            ensureSpace(3);
+            mBuffer[mCount++] = '=';
+            mBuffer[mCount++] = '\r';
+            mBuffer[mCount++] = '\n';
+            mLineLength = 0;
+        }
+        if (b == '.' && mLineLength == 0) {
+            encode = true;
+        }
+        ensureSpace(3);
+        if (encode) {
+            mBuffer[mCount++] = '=';
+            mBuffer[mCount++] = HEX_DIGITS[b >> 4];
+            mBuffer[mCount++] = HEX_DIGITS[b & 0xf];
+            mLineLength += 3;
+        } else {
+            mBuffer[mCount++] = (byte) b;
+            mLineLength++;
+        }
+    }
+
+    private void ensureSpace(int length) throws IOException {
+        if (mCount + length > mBuffer.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            out.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Whatever is pending is at the end of the text, and so at the end of a line
+        if (mPendingCr) {
+            mPendingCr = false;
+            writeByte('\r', true);
+        }
+        if (mPendingWhitespace >= 0) {
+            writeByte(mPendingWhitespace, true);
+            mPendingWhitespace = -1;
+        }
+        flush();
+    }
+}
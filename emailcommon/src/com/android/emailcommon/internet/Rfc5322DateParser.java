@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import java.util.Date;
+
+/**
+ * A hand-written parser for the date-time values found in message headers (RFC 5322 section
+ * 3.3, including the obsolete syntax of section 4.3) and IMAP INTERNALDATE values.
+ *
+ * <p>It replaces both the generated mime4j DateTimeParser and SimpleDateFormat on the sync path.
+ * It allocates nothing but the result, doesn't depend on the default locale or time zone, and
+ * holds no shared state, so it's safe to call from any thread.
+ *
+ * <p>In addition to the standard syntax it accepts the malformed variants seen in the wild:
+ * <ul>
+ * <li>IMAP style "01-Jan-2009 11:20:39 -0800"
+ * <li>asctime style "Thu Dec 10 15:08:08 2009" (optionally with a zone before the year)
+ * <li>full day and month names, a missing day of week, missing seconds or a missing zone
+ * <li>"GMT-0700" / "UTC+01:00" (we've seen eBay send the former), and "+05:30" / "+530"
+ * <li>'.' instead of ':' as the time separator
+ * <li>comments and folding whitespace anywhere between tokens
+ * </ul>
+ * Zones it doesn't know are treated as "-0000" (i.e. UTC), as RFC 5322 suggests for military
+ * zones.  Anything after the zone is ignored.
+ */
+public final class Rfc5322DateParser {
+    /** Returned by {@link #parse} when the value can't be parsed */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private Rfc5322DateParser() {
+    }
+
+    /**
+     * @return the date, or null if it can't be parsed.
+     */
+    public static Date parseDate(String value) {
+        long time = parse(value);
+        return (time == INVALID) ? null : new Date(time);
+    }
+
+    /**
+     * @return the date in milliseconds since the epoch, or {@link #INVALID}.
+     */
+    public static long parse(String value) {
+        if (value == null) {
+            return INVALID;
+        }
+        final int length = value.length();
+        // Packed as (position << 32) | value by the helpers below, so we don't need a scanner
+        // object.  Each helper returns -1 on failure.
+        int pos = skipCfws(value, 0, length);
+
+        int month = -1;
+        boolean asctime = false;
+        if (pos < length && isLetter(value.charAt(pos))) {
+            int end = skipLetters(value, pos, length);
+            month = monthOf(value, pos, end);
+            pos = skipCfws(value, end, length);
+            if (month < 0) {
+                // Day of week; we don't check it.
+                if (pos < length && value.charAt(pos) == ',') {
+                    pos = skipCfws(value, pos + 1, length);
+                }
+                if (pos < length && isLetter(value.charAt(pos))) {
+                    end = skipLetters(value, pos, length);
+                    month = monthOf(value, pos, end);
+                    if (month < 0) {
+                        return INVALID;
+                    }
+                    pos = skipCfws(value, end, length);
+                }
+            }
+            asctime = (month >= 0);
+        }
+
+        // day
+        long packed = readNumber(value, pos, length, 2);
+        if (packed < 0) {
+            return INVALID;
+        }
+        int day = unpackValue(packed);
+        pos = unpackPosition(packed);
+
+        int year = -1;
+        if (!asctime) {
+            pos = skipDateSeparator(value, pos, length);
+            if (pos >= length || !isLetter(value.charAt(pos))) {
+                return INVALID;
+            }
+            int end = skipLetters(value, pos, length);
+            month = monthOf(value, pos, end);
+            if (month < 0) {
+                return INVALID;
+            }
+            pos = skipDateSeparator(value, end, length);
+            packed = readYear(value, pos, length);
+            if (packed < 0) {
+                return INVALID;
+            }
+            year = unpackValue(packed);
+            pos = unpackPosition(packed);
+        }
+
+        // time
+        pos = skipCfws(value, pos, length);
+        packed = readNumber(value, pos, length, 2);
+        if (packed < 0) {
+            return INVALID;
+        }
+        int hour = unpackValue(packed);
+        pos = skipCfws(value, unpackPosition(packed), length);
+        if (pos >= length || !isTimeSeparator(value.charAt(pos))) {
+            return INVALID;
+        }
+        packed = readNumber(value, skipCfws(value, pos + 1, length), length, 2);
+        if (packed < 0) {
+            return INVALID;
+        }
+        int minute = unpackValue(packed);
+        pos = unpackPosition(packed);
+        int second = 0;
+        int afterMinute = skipCfws(value, pos, length);
+        if (afterMinute < length && isTimeSeparator(value.charAt(afterMinute))) {
+            packed = readNumber(value, skipCfws(value, afterMinute + 1, length), length, 2);
+            if (packed < 0) {
+                return INVALID;
+            }
+            second = unpackValue(packed);
+            pos = unpackPosition(packed);
+        }
+        if (hour > 24 || minute > 59 || second > 60) {
+            return INVALID;
+        }
+
+        // zone, and (asctime only) the year
+        pos = skipCfws(value, pos, length);
+        int offsetMinutes = 0;
+        if (pos < length && !isDigit(value.charAt(pos))) {
+            packed = readZone(value, pos, length);
+            if (packed == -1) {
+                return INVALID;
+            }
+            offsetMinutes = unpackValue(packed);
+            pos = skipCfws(value, unpackPosition(packed), length);
+        }
+        if (asctime) {
+            packed = readYear(value, pos, length);
+            if (packed < 0) {
+                return INVALID;
+            }
+            year = unpackValue(packed);
+        }
+
+        if (day < 1 || day > 31) {
+            return INVALID;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60L + minute - offsetMinutes) * 60L + second) * 1000L;
+    }
+
+    private static long pack(int position, int value) {
+        return ((long) position << 32) | (value & 0xffffffffL);
+    }
+
+    private static int unpackPosition(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    private static int unpackValue(long packed) {
+        return (int) packed;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isTimeSeparator(char c) {
+        return c == ':' || c == '.';
+    }
+
+    private static int skipLetters(String s, int pos, int length) {
+        while (pos < length && isLetter(s.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Skip whitespace (including folding CRLFs) and comments, which may nest.
+     */
+    private static int skipCfws(String s, int pos, int length) {
+        int depth = 0;
+        while (pos < length) {
+            char c = s.charAt(pos);
+            if (c == '(') {
+                depth++;
+            } else if (depth > 0) {
+                if (c == ')') {
+                    depth--;
+                } else if (c == '\\') {
+                    pos++;
+                }
+            } else if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /** Between day, month and year we accept both whitespace and IMAP style dashes. */
+    private static int skipDateSeparator(String s, int pos, int length) {
+        pos = skipCfws(s, pos, length);
+        if (pos < length && s.charAt(pos) == '-') {
+            pos = skipCfws(s, pos + 1, length);
+        }
+        return pos;
+    }
+
+    /**
+     * Read 1 to {@code maxDigits} digits.
+     * @return the packed position and value, or -1 if there's no digit.
+     */
+    private static long readNumber(String s, int pos, int length, int maxDigits) {
+        int end = Math.min(length, pos + maxDigits);
+        int value = 0;
+        int start = pos;
+        while (pos < end && isDigit(s.charAt(pos))) {
+            value = value * 10 + (s.charAt(pos) - '0');
+            pos++;
+        }
+        if (pos == start || (pos < length && isDigit(s.charAt(pos)))) {
+            return -1;
+        }
+        return pack(pos, value);
+    }
+
+    /**
+     * Read a 2 to 4 digit year, applying the RFC 5322 rules for obsolete short years.
+     */
+    private static long readYear(String s, int pos, int length) {
+        int start = pos;
+        long packed = readNumber(s, pos, length, 4);
+        if (packed < 0) {
+            return -1;
+        }
+        int year = unpackValue(packed);
+        int digits = unpackPosition(packed) - start;
+        if (digits == 1 || digits == 2) {
+            year += (year < 50) ? 2000 : 1900;
+        } else if (digits == 3) {
+            year += 1900;
+        }
+        return pack(unpackPosition(packed), year);
+    }
+
+    /**
+     * @return the month (1-12) named by the given letters, or -1.  Only the first three letters
+     * are checked, so full names work too.
+     */
+    private static int monthOf(String s, int start, int end) {
+        if (end - start < 3) {
+            return -1;
+        }
+        char c0 = Character.toLowerCase(s.charAt(start));
+        char c1 = Character.toLowerCase(s.charAt(start + 1));
+        char c2 = Character.toLowerCase(s.charAt(start + 2));
+        switch (c0) {
+            case 'j':
+                if (c1 == 'a' && c2 == 'n') return 1;
+                if (c1 == 'u' && c2 == 'n') return 6;
+                if (c1 == 'u' && c2 == 'l') return 7;
+                break;
+            case 'f':
+                if (c1 == 'e' && c2 == 'b') return 2;
+                break;
+            case 'm':
+                if (c1 == 'a' && c2 == 'r') return 3;
+                if (c1 == 'a' && c2 == 'y') return 5;
+                break;
+            case 'a':
+                if (c1 == 'p' && c2 == 'r') return 4;
+                if (c1 == 'u' && c2 == 'g') return 8;
+                break;
+            case 's':
+                if (c1 == 'e' && c2 == 'p') return 9;
+                break;
+            case 'o':
+                if (c1 == 'c' && c2 == 't') return 10;
+                break;
+            case 'n':
+                if (c1 == 'o' && c2 == 'v') return 11;
+                break;
+            case 'd':
+                if (c1 == 'e' && c2 == 'c') return 12;
+                break;
+        }
+        return -1;
+    }
+
+    /**
+     * Read a numeric ("+hhmm", "+hh:mm", "+hh", "+hmm") or named zone.
+     * @return the packed position and offset in minutes east of UTC, or -1 if the zone is
+     * malformed.
+     */
+    private static long readZone(String s, int pos, int length) {
+        char c = s.charAt(pos);
+        if (c == '+' || c == '-') {
+            return readNumericZone(s, pos, length);
+        }
+        if (!isLetter(c)) {
+            return -1;
+        }
+        int end = skipLetters(s, pos, length);
+        int offset = namedZoneOffset(s, pos, end);
+        if (offset == 0 && end < length && (s.charAt(end) == '+' || s.charAt(end) == '-')) {
+            // "GMT-0700"
+            return readNumericZone(s, end, length);
+        }
+        return pack(end, offset);
+    }
+
+    private static long readNumericZone(String s, int pos, int length) {
+        int sign = (s.charAt(pos) == '-') ? -1 : 1;
+        pos++;
+        int start = pos;
+        int value = 0;
+        while (pos < length && pos - start < 4 && isDigit(s.charAt(pos))) {
+            value = value * 10 + (s.charAt(pos) - '0');
+            pos++;
+        }
+        int digits = pos - start;
+        int hours;
+        int minutes;
+        if (digits == 2 && pos < length && s.charAt(pos) == ':') {
+            long packed = readNumber(s, pos + 1, length, 2);
+            if (packed < 0) {
+                return -1;
+            }
+            hours = value;
+            minutes = unpackValue(packed);
+            pos = unpackPosition(packed);
+        } else if (digits == 1 || digits == 2) {
+            hours = value;
+            minutes = 0;
+        } else if (digits == 3 || digits == 4) {
+            hours = value / 100;
+            minutes = value % 100;
+        } else {
+            return -1;
+        }
+        if (hours > 23 || minutes > 59) {
+            return -1;
+        }
+        return pack(pos, sign * (hours * 60 + minutes));
+    }
+
+    /**
+     * @return the offset of an RFC 5322 named zone in minutes.  Unknown names (including the
+     * military zones) are treated as UTC.
+     */
+    private static int namedZoneOffset(String s, int start, int end) {
+        if (end - start != 3) {
+            return 0;
+        }
+        char c0 = Character.toUpperCase(s.charAt(start));
+        char c1 = Character.toUpperCase(s.charAt(start + 1));
+        char c2 = Character.toUpperCase(s.charAt(start + 2));
+        if (c2 != 'T') {
+            return 0;
+        }
+        int standard;
+        switch (c0) {
+            case 'E': standard = -5; break;
+            case 'C': standard = -6; break;
+            case 'M': standard = -7; break;
+            case 'P': standard = -8; break;
+            default: return 0;
+        }
+        if (c1 == 'S') {
+            return standard * 60;
+        } else if (c1 == 'D') {
+            return (standard + 1) * 60;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of days from 1970-01-01 to the given date of the proleptic Gregorian
+     * calendar.  Days past the end of the month roll over into the next one.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        long era = ((year >= 0) ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -52,8 +52,16 @@ import java.util.regex.Pattern;
  */
 public class Rfc822Output {
 
-    private static final Pattern PATTERN_START_OF_LINE = Pattern.compile("(?m)^");
-    private static final Pattern PATTERN_ENDLINE_CRLF = Pattern.compile("\r\n");
+    /** Size of the buffer the message is written through */
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    /** Number of characters of text encoded at a time */
+    private static final int TEXT_CHUNK_SIZE = 4 * 1024;
+    /** Maximum length of a line of 7bit text (RFC 5322 section 2.1.1), not counting CR-LF */
+    private static final int MAX_7BIT_LINE_LENGTH = 998;
+
+    /*package*/ static final String ENCODING_7BIT = "7bit";
+    /*package*/ static final String ENCODING_QUOTED_PRINTABLE = "quoted-printable";
+    /*package*/ static final String ENCODING_BASE64 = "base64";
 
     // In MIME, en_US-like date format should be used. In other words "MMM" should be encoded to
     // "Jan", not the other localized format like "Ene" (meaning January in locale es).
@@ -126,43 +134,36 @@ public class Rfc822Output {
         if (body == null) {
             return messageBody;
         }
-        String text = body.mTextContent;
         boolean isReply = (flags & Message.FLAG_TYPE_REPLY) != 0;
         boolean isForward = (flags & Message.FLAG_TYPE_FORWARD) != 0;
+        if (body.mTextContent == null && !isReply && !isForward) {
+            return messageBody;
+        }
+        StringBuilder text = new StringBuilder();
+        if (body.mTextContent != null) {
+            text.append(body.mTextContent);
+        }
         // For all forwards/replies, we add the intro text
-        if (isReply || isForward) {
-            String intro = body.mIntroText == null ? "" : body.mIntroText;
-            text += intro;
+        if ((isReply || isForward) && body.mIntroText != null) {
+            text.append(body.mIntroText);
         }
         if (useSmartReply) {
             // useSmartReply is set to true for use by SmartReply/SmartForward in EAS.
             // SmartForward doesn't put a break between the original and new text, so we add an LF
             if (isForward) {
-                text += "\n";
+                text.append('\n');
             }
-        } else {
+        } else if (isReply || isForward) {
             String quotedText = body.mTextReply;
             // If there is no plain-text body, use de-tagified HTML as the text body
             if (quotedText == null && body.mHtmlReply != null) {
                 quotedText = Html.fromHtml(body.mHtmlReply).toString();
             }
             if (quotedText != null) {
-                // fix CR-LF line endings to LF-only needed by EditText.
-                Matcher matcher = PATTERN_ENDLINE_CRLF.matcher(quotedText);
-                quotedText = matcher.replaceAll("\n");
-            }
-            if (isReply) {
-                if (quotedText != null) {
-                    Matcher matcher = PATTERN_START_OF_LINE.matcher(quotedText);
-                    text += matcher.replaceAll(">");
-                }
-            } else if (isForward) {
-                if (quotedText != null) {
-                    text += quotedText;
-                }
+                appendQuotedText(text, quotedText, isReply);
             }
         }
-        messageBody[INDEX_BODY_TEXT] = text;
+        messageBody[INDEX_BODY_TEXT] = text.toString();
         // Exchange 2003 doesn't seem to support multipart w/SmartReply and SmartForward, so
         // we'll skip this.  Really, it would only matter if we could compose HTML replies
         if (!useSmartReply) {
@@ -171,9 +172,40 @@ public class Rfc822Output {
         return messageBody;
     }
 
+    /**
+     * Appends the text being replied to or forwarded, fixing CR-LF line endings to LF-only (as
+     * needed by EditText), and for a reply, putting a '>' at the start of every line.  Lines
+     * are ended by the same characters as for a regular expression's "^" in multiline mode, and
+     * no '>' is added at the end of the text (after a final line ending, or to empty text).
+     */
+    /*package*/ static void appendQuotedText(StringBuilder sb, String text, boolean quote) {
+        final int length = text.length();
+        if (quote && length > 0) {
+            sb.append('>');
+        }
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') {
+                // CR-LF becomes LF
+                continue;
+            }
+            if (quote && isLineTerminator(previous) && !(previous == '\r' && c == '\n')) {
+                sb.append('>');
+            }
+            sb.append(c);
+            previous = c;
+        }
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
     /**
      * Write the entire message to an output stream.  This method provides buffering, so it is
-     * not necessary to pass in a buffered output stream here.
+     * not necessary to pass in a buffered output stream here.  The body text and attachments
+     * are encoded as they're written, so the memory used doesn't grow with their size.
      *
      * @param context system context for accessing the provider
      * @param messageId the message to write out
@@ -188,7 +220,7 @@ public class Rfc822Output {
             return;
         }
 
-        OutputStream stream = new BufferedOutputStream(out, 1024);
+        OutputStream stream = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
         Writer writer = new OutputStreamWriter(stream);
 
         // Write the fixed headers.  Ordering is arbitrary (the legacy code iterated through a
@@ -228,7 +260,7 @@ public class Rfc822Output {
 
             // Simplified case for no multipart - just emit text and be done.
             if (!multipart) {
-                writeTextWithHeaders(writer, stream, bodyText);
+                writeTextWithHeaders(writer, stream, bodyText, false);
             } else {
                 // continue with multipart headers, then into multipart body
                 multipartBoundary = getNextBoundary();
@@ -252,7 +284,7 @@ public class Rfc822Output {
                 // first multipart element is the body
                 if (bodyText[INDEX_BODY_TEXT] != null) {
                     writeBoundary(writer, multipartBoundary, false);
-                    writeTextWithHeaders(writer, stream, bodyText);
+                    writeTextWithHeaders(writer, stream, bodyText, true);
                 }
 
                 // Write out the attachments until we run out
@@ -402,16 +434,13 @@ public class Rfc822Output {
      * or HTML), the text is written directly. Otherwise, the plain text and HTML bodies
      * are both written with the appropriate headers.
      *
-     * Note this always uses base64, even when not required.  Slightly less efficient for
-     * US-ASCII text, but handles all formats even when non-ascii chars are involved.  A small
-     * optimization might be to prescan the string for safety and send raw if possible.
-     *
      * @param writer the output writer
      * @param out the output stream inside the writer (used for byte[] access)
      * @param bodyText Plain text and HTML versions of the original text of the message
+     * @param inMultipart whether the text is followed by a multipart boundary
      */
-    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText)
-            throws IOException {
+    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText,
+            boolean inMultipart) throws IOException {
         String text = bodyText[INDEX_BODY_TEXT];
         String html = bodyText[INDEX_BODY_HTML];
 
@@ -434,23 +463,13 @@ public class Rfc822Output {
             }
 
             // first multipart element is the body
-            writeHeader(writer, "Content-Type", "text/plain; charset=utf-8");
-            writeHeader(writer, "Content-Transfer-Encoding", "base64");
-            writer.write("\r\n");
-            byte[] textBytes = text.getBytes("UTF-8");
-            writer.flush();
-            out.write(Base64.encode(textBytes, Base64.CRLF));
+            writeText(writer, out, "text/plain", text, inMultipart || multipart);
 
             if (multipart) {
                 // next multipart section
                 writeBoundary(writer, multipartBoundary, false);
 
-                writeHeader(writer, "Content-Type", "text/html; charset=utf-8");
-                writeHeader(writer, "Content-Transfer-Encoding", "base64");
-                writer.write("\r\n");
-                byte[] htmlBytes = html.getBytes("UTF-8");
-                writer.flush();
-                out.write(Base64.encode(htmlBytes, Base64.CRLF));
+                writeText(writer, out, "text/html", html, true);
 
                 // end of multipart section
                 writeBoundary(writer, multipartBoundary, true);
@@ -458,6 +477,132 @@ public class Rfc822Output {
         }
     }
 
+    /**
+     * Write a text part, with its headers.  The text is sent as 7bit if it can be, otherwise as
+     * quoted-printable or base64, whichever is shorter.
+     *
+     * @param endLine whether to end the text with a line break (as needed before a boundary)
+     */
+    private static void writeText(Writer writer, OutputStream out, String mimeType, String text,
+            boolean endLine) throws IOException {
+        String encoding = getTextEncoding(text);
+        writeHeader(writer, "Content-Type", mimeType + "; charset=utf-8");
+        writeHeader(writer, "Content-Transfer-Encoding", encoding);
+        writer.write("\r\n");
+        writer.flush();
+        if (ENCODING_7BIT.equals(encoding)) {
+            writeSevenBit(text, out);
+        } else if (ENCODING_QUOTED_PRINTABLE.equals(encoding)) {
+            QuotedPrintableOutputStream qpOut = new QuotedPrintableOutputStream(out);
+            writeUtf8(text, qpOut);
+            qpOut.close();
+        } else {
+            Base64OutputStream base64Out = new Base64OutputStream(out,
+                    Base64.CRLF | Base64.NO_CLOSE);
+            writeUtf8(text, base64Out);
+            base64Out.close();
+            // Base64 always ends with a line break
+            endLine = false;
+        }
+        if (endLine) {
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Returns the Content-Transfer-Encoding to send text with.  7bit is used if the text is
+     * all ASCII, with no line too long, no bare CR and no line starting with '.' (so that it can
+     * be sent over SMTP without dot-stuffing).  Otherwise quoted-printable is used if it's
+     * shorter than base64, i.e. if few enough characters need to be escaped.
+     */
+    /*package*/ static String getTextEncoding(String text) {
+        final int length = text.length();
+        boolean sevenBit = true;
+        int lineLength = 0;
+        // The length of the text in UTF-8, and the number of those bytes that QP escapes
+        long bytes = 0;
+        long escaped = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // A surrogate pair is four bytes in UTF-8
+                int n = (c < 0x800 || (c >= 0xd800 && c <= 0xdfff)) ? 2 : 3;
+                bytes += n;
+                escaped += n;
+                sevenBit = false;
+                continue;
+            }
+            bytes++;
+            if (c == '\n') {
+                lineLength = 0;
+            } else if (c == '\r') {
+                if (i + 1 >= length || text.charAt(i + 1) != '\n') {
+                    sevenBit = false;
+                    escaped++;
+                }
+            } else {
+                if ((c < ' ' && c != '\t') || c == '=' || c == 0x7f) {
+                    escaped++;
+                    if (c != '=') {
+                        sevenBit = false;
+                    }
+                }
+                if (lineLength == 0 && c == '.') {
+                    sevenBit = false;
+                }
+                if (++lineLength > MAX_7BIT_LINE_LENGTH) {
+                    sevenBit = false;
+                }
+            }
+        }
+        if (sevenBit) {
+            return ENCODING_7BIT;
+        }
+        // Each escaped byte takes three characters in QP; base64 takes four for every three
+        return (escaped * 6 < bytes) ? ENCODING_QUOTED_PRINTABLE : ENCODING_BASE64;
+    }
+
+    /**
+     * Write 7bit text, with LF line endings changed to CR-LF.
+     */
+    private static void writeSevenBit(String text, OutputStream out) throws IOException {
+        final int length = text.length();
+        byte[] buffer = new byte[TEXT_CHUNK_SIZE];
+        int count = 0;
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            if (count >= buffer.length - 1) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+            char c = text.charAt(i);
+            if (c == '\n' && previous != '\r') {
+                buffer[count++] = '\r';
+            }
+            buffer[count++] = (byte) c;
+            previous = c;
+        }
+        out.write(buffer, 0, count);
+    }
+
+    /**
+     * Write text as UTF-8, a chunk at a time, so that the whole text is never copied at once.
+     */
+    private static void writeUtf8(String text, OutputStream out) throws IOException {
+        final int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(length, start + TEXT_CHUNK_SIZE);
+            // Don't split a surrogate pair between chunks
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            out.write(text.substring(start, end).getBytes("UTF-8"));
+            start = end;
+        }
+    }
+
     /**
      * Returns a unique boundary string.
      */
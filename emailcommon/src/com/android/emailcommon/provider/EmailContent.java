@@ -36,6 +36,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 
 /**
@@ -118,6 +119,105 @@ public abstract class EmailContent {
         return mId != NOT_SAVED;
     }
 
+    /**
+     * Makes the (empty) objects that rows are restored into.  This is much cheaper than making
+     * them by reflection, which adds up when many rows are restored.
+     */
+    public interface Factory<T extends EmailContent> {
+        public T newInstance();
+    }
+
+    // The factories for our subclasses; this is never changed after it's filled in
+    private static final HashMap<Class<?>, Factory<?>> sFactories =
+        new HashMap<Class<?>, Factory<?>>();
+    static {
+        sFactories.put(Account.class, new Factory<Account>() {
+            public Account newInstance() { return new Account(); }
+        });
+        sFactories.put(Attachment.class, new Factory<Attachment>() {
+            public Attachment newInstance() { return new Attachment(); }
+        });
+        sFactories.put(Body.class, new Factory<Body>() {
+            public Body newInstance() { return new Body(); }
+        });
+        sFactories.put(HostAuth.class, new Factory<HostAuth>() {
+            public HostAuth newInstance() { return new HostAuth(); }
+        });
+        sFactories.put(Mailbox.class, new Factory<Mailbox>() {
+            public Mailbox newInstance() { return new Mailbox(); }
+        });
+        sFactories.put(Message.class, new Factory<Message>() {
+            public Message newInstance() { return new Message(); }
+        });
+        sFactories.put(Policy.class, new Factory<Policy>() {
+            public Policy newInstance() { return new Policy(); }
+        });
+    }
+
+    /**
+     * Returns the factory for a subclass of EmailContent; subclasses we don't know of are made
+     * by reflection, and so must have a no-arg constructor.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends EmailContent> Factory<T> getFactory(final Class<T> klass) {
+        Factory<T> factory = (Factory<T>) sFactories.get(klass);
+        if (factory != null) {
+            return factory;
+        }
+        return new Factory<T>() {
+            public T newInstance() {
+                try {
+                    return klass.newInstance();
+                } catch (IllegalAccessException e) {
+                    e.printStackTrace();
+                } catch (InstantiationException e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        };
+    }
+
+    // Restores of single rows, and of many rows with one query, and the time they took; the
+    // time per row is what the batch restores save over restoring the rows one by one
+    private static int sSingleRestores;
+    private static long sSingleRestoreNanos;
+    private static int sBatchQueries;
+    private static int sBatchRows;
+    private static long sBatchNanos;
+
+    private static synchronized void recordSingleRestore(long nanos) {
+        sSingleRestores++;
+        sSingleRestoreNanos += nanos;
+    }
+
+    private static synchronized void recordBatchQuery(int rows, long nanos) {
+        sBatchQueries++;
+        sBatchRows += rows;
+        sBatchNanos += nanos;
+    }
+
+    /**
+     * Returns a one-line summary of the restores of single rows and of many rows with one query,
+     * with the average time each row took to restore.
+     */
+    public static synchronized String getBatchRestoreSummary() {
+        return sSingleRestores + " single restores ("
+                + ((sSingleRestores > 0) ? sSingleRestoreNanos / sSingleRestores / 1000 : 0)
+                + " us each), " + sBatchQueries + " batch queries of " + sBatchRows + " rows ("
+                + ((sBatchRows > 0) ? sBatchNanos / sBatchRows / 1000 : 0) + " us per row)";
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public static synchronized void resetBatchRestoreStats() {
+        sSingleRestores = 0;
+        sSingleRestoreNanos = 0;
+        sBatchQueries = 0;
+        sBatchRows = 0;
+        sBatchNanos = 0;
+    }
 
     /**
      * Restore a subclass of EmailContent from the database
@@ -130,6 +230,7 @@ public abstract class EmailContent {
      */
     public static <T extends EmailContent> T restoreContentWithId(Context context,
             Class<T> klass, Uri contentUri, String[] contentProjection, long id) {
+        long start = System.nanoTime();
         Uri u = ContentUris.withAppendedId(contentUri, id);
         Cursor c = context.getContentResolver().query(u, contentProjection, null, null, null);
         if (c == null) throw new ProviderUnavailableException();
@@ -141,23 +242,89 @@ public abstract class EmailContent {
             }
         } finally {
             c.close();
+            recordSingleRestore(System.nanoTime() - start);
         }
     }
 
 
-    // The Content sub class must have a no-arg constructor
+    /**
+     * The maximum number of ids in the selection of one query, when restoring rows by id
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Restore the rows of a subclass of EmailContent whose given column has one of the given
+     * values, with one query for every {@link #MAX_IDS_PER_QUERY} values.
+     * @param context the caller's context
+     * @param klass the class to restore
+     * @param contentUri the content uri of the EmailContent subclass
+     * @param contentProjection the content projection for the EmailContent subclass
+     * @param column the column to match, e.g. {@link #RECORD_ID}
+     * @param values the values to match
+     * @return the instantiated objects, in no particular order
+     */
+    public static <T extends EmailContent> ArrayList<T> restoreContentWithValues(
+            Context context, Class<T> klass, Uri contentUri, String[] contentProjection,
+            String column, long[] values) {
+        Factory<T> factory = getFactory(klass);
+        ArrayList<T> result = new ArrayList<T>(values.length);
+        ContentResolver resolver = context.getContentResolver();
+        for (int start = 0; start < values.length; start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(values.length, start + MAX_IDS_PER_QUERY);
+            StringBuilder selection = new StringBuilder(column).append(" in (");
+            for (int i = start; i < end; i++) {
+                selection.append(i > start ? "," : "").append(values[i]);
+            }
+            selection.append(')');
+            long queryStart = System.nanoTime();
+            Cursor c = resolver.query(contentUri, contentProjection, selection.toString(), null,
+                    null);
+            if (c == null) throw new ProviderUnavailableException();
+            try {
+                int rows = 0;
+                while (c.moveToNext()) {
+                    T content = getContent(c, factory);
+                    if (content != null) {
+                        result.add(content);
+                        rows++;
+                    }
+                }
+                recordBatchQuery(rows, System.nanoTime() - queryStart);
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Restore many rows of a subclass of EmailContent by id, with far fewer queries than
+     * restoring them one by one.
+     * @return the instantiated objects, by id; rows that don't exist aren't included
+     */
+    public static <T extends EmailContent> HashMap<Long, T> restoreContentWithIds(
+            Context context, Class<T> klass, Uri contentUri, String[] contentProjection,
+            long[] ids) {
+        HashMap<Long, T> result = new HashMap<Long, T>(ids.length);
+        for (T content : restoreContentWithValues(context, klass, contentUri, contentProjection,
+                RECORD_ID, ids)) {
+            result.put(content.mId, content);
+        }
+        return result;
+    }
+
+    // The Content sub class must have a no-arg constructor, unless it has a factory
     static public <T extends EmailContent> T getContent(Cursor cursor, Class<T> klass) {
-        try {
-            T content = klass.newInstance();
+        return getContent(cursor, getFactory(klass));
+    }
+
+    static public <T extends EmailContent> T getContent(Cursor cursor, Factory<T> factory) {
+        T content = factory.newInstance();
+        if (content != null) {
             content.mId = cursor.getLong(0);
             content.restore(cursor);
-            return content;
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
         }
-        return null;
+        return content;
     }
 
     public Uri save(Context context) {
@@ -503,6 +670,8 @@ public abstract class EmailContent {
         @SuppressWarnings("hiding")
         public static final Uri CONTENT_URI = Uri.parse(EmailContent.CONTENT_URI + "/message");
         public static final Uri CONTENT_URI_LIMIT_1 = uriWithLimit(CONTENT_URI, 1);
+        // Changes made by the UI, which are to be synced back to the server; to update or delete
+        // many messages at once, use this URI with a selection (without an id)
         public static final Uri SYNCED_CONTENT_URI =
             Uri.parse(EmailContent.CONTENT_URI + "/syncedMessage");
         public static final Uri DELETED_CONTENT_URI =
@@ -795,6 +964,22 @@ public abstract class EmailContent {
                     Message.CONTENT_URI, Message.CONTENT_PROJECTION, id);
         }
 
+        /**
+         * Restore many Messages from the database, with far fewer queries than restoring them
+         * one by one.
+         * @return the instantiated Messages, in the order of their ids; a Message that doesn't
+         * exist is null
+         */
+        public static Message[] restoreMessagesWithIds(Context context, long[] ids) {
+            HashMap<Long, Message> messages = restoreContentWithIds(context, Message.class,
+                    CONTENT_URI, CONTENT_PROJECTION, ids);
+            Message[] result = new Message[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                result[i] = messages.get(ids[i]);
+            }
+            return result;
+        }
+
         @Override
         public void restore(Cursor cursor) {
             mBaseUri = CONTENT_URI;
@@ -940,15 +1125,17 @@ public abstract class EmailContent {
          * @return number of favorite (starred) messages throughout all accounts.
          */
         public static int getFavoriteMessageCount(Context context) {
-            return count(context, Message.CONTENT_URI, ALL_FAVORITE_SELECTION, null);
+            return Mailbox.getSummaryCount(context, MailboxColumns.FAVORITE_COUNT,
+                    Mailbox.SUMMARY_FAVORITE_SELECTION, null);
         }
 
         /**
          * @return number of favorite (starred) messages for an account
          */
         public static int getFavoriteMessageCount(Context context, long accountId) {
-            return count(context, Message.CONTENT_URI, PER_ACCOUNT_FAVORITE_SELECTION,
-                    new String[]{Long.toString(accountId)});
+            return Mailbox.getSummaryCount(context, MailboxColumns.FAVORITE_COUNT,
+                    Mailbox.SUMMARY_ACCOUNT_FAVORITE_SELECTION,
+                    new String[] {Long.toString(accountId)});
         }
 
         public static long getKeyColumnLong(Context context, long messageId, String column) {
@@ -1106,6 +1293,9 @@ public abstract class EmailContent {
         public static final int FLAG_DOWNLOAD_FORWARD = 1<<2;
         // Indicates that the attachment download failed in a non-recoverable manner
         public static final int FLAG_DOWNLOAD_FAILED = 1<<3;
+        // Indicates that the attachment was prefetched, but removed (unopened) to make room for
+        // others; it won't be prefetched again
+        public static final int FLAG_DOWNLOAD_EVICTED = 1<<4;
         // Allow "room" for some additional download-related flags here
         // Indicates that the attachment will be smart-forwarded
         public static final int FLAG_SMART_FORWARD = 1<<8;
@@ -1383,6 +1573,8 @@ public abstract class EmailContent {
         public static final String SYNC_STATUS = "syncStatus";
         // Number of messages in the mailbox.
         public static final String MESSAGE_COUNT = "messageCount";
+        // Number of favorite (starred) messages in the mailbox that are at least partly loaded
+        public static final String FAVORITE_COUNT = "favoriteCount";
         // Message ID of the last 'seen' message
         public static final String LAST_SEEN_MESSAGE_KEY = "lastSeenMessageKey";
         // The last time a message in this mailbox has been read (in millis)
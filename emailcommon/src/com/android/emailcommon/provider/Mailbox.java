@@ -31,6 +31,8 @@ import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.utility.Utility;
 
+import java.util.ArrayList;
+
 public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns, Parcelable {
     public static final String TABLE_NAME = "Mailbox";
     @SuppressWarnings("hiding")
@@ -40,6 +42,17 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
     public static final Uri FROM_ACCOUNT_AND_TYPE_URI =
         Uri.parse(EmailContent.CONTENT_URI + "/mailboxIdFromAccountAndType");
 
+    /**
+     * The summary table has a row for each type of mailbox of each account, with the sums of
+     * the {@link MailboxColumns#MESSAGE_COUNT}, {@link MailboxColumns#UNREAD_COUNT} and
+     * {@link MailboxColumns#FAVORITE_COUNT} of those mailboxes (under the same names), kept up
+     * to date by triggers.  Its other columns are {@link MailboxColumns#ACCOUNT_KEY} and
+     * {@link MailboxColumns#TYPE}.  It's read only.
+     */
+    public static final String SUMMARY_TABLE_NAME = "MailboxSummary";
+    public static final Uri SUMMARY_CONTENT_URI =
+        Uri.parse(EmailContent.CONTENT_URI + "/mailboxSummary");
+
     public String mDisplayName;
     public String mServerId;
     public String mParentServerId;
@@ -100,14 +113,12 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
     public static final String PATH_AND_ACCOUNT_SELECTION =
         MailboxColumns.SERVER_ID + "=? and " + MailboxColumns.ACCOUNT_KEY + "=?";
 
-    private static final String[] MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION = new String [] {
-            "sum(" + MailboxColumns.UNREAD_COUNT + ")"
-            };
-    private static final int UNREAD_COUNT_COUNT_COLUMN = 0;
-    private static final String[] MAILBOX_SUM_OF_MESSAGE_COUNT_PROJECTION = new String [] {
-            "sum(" + MailboxColumns.MESSAGE_COUNT + ")"
-            };
-    private static final int MESSAGE_COUNT_COUNT_COLUMN = 0;
+    /** Selection of the summary of all mailboxes other than the trash, for favorite counts */
+    /*package*/ static final String SUMMARY_FAVORITE_SELECTION =
+            MailboxColumns.TYPE + "!=" + TYPE_TRASH;
+    /** The same as {@link #SUMMARY_FAVORITE_SELECTION}, for a given account */
+    /*package*/ static final String SUMMARY_ACCOUNT_FAVORITE_SELECTION =
+            MailboxColumns.ACCOUNT_KEY + "=? AND " + SUMMARY_FAVORITE_SELECTION;
 
     private static final String[] MAILBOX_TYPE_PROJECTION = new String [] {
             MailboxColumns.TYPE
@@ -222,6 +233,19 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
                 Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION, id);
     }
 
+    /**
+     * Restore all the Mailboxes of an account with one query
+     * @param context
+     * @param accountId the ID of the account
+     * @return the instantiated Mailboxes, in no particular order
+     */
+    public static Mailbox[] restoreMailboxesForAccount(Context context, long accountId) {
+        ArrayList<Mailbox> mailboxes = EmailContent.restoreContentWithValues(context,
+                Mailbox.class, Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
+                MailboxColumns.ACCOUNT_KEY, new long[] {accountId});
+        return mailboxes.toArray(new Mailbox[mailboxes.size()]);
+    }
+
     /**
      * Builds a new mailbox with "typical" settings for a system mailbox, such as a local "Drafts"
      * mailbox. This is useful for protocols like POP3 or IMAP who don't have certain local
@@ -379,27 +403,32 @@ public class Mailbox extends EmailContent implements SyncColumns, MailboxColumns
         return null;
     }
 
+    /**
+     * Returns the sum of one of the count columns of the summary table (see
+     * {@link #SUMMARY_TABLE_NAME}) over the rows matching a selection; this reads a row per
+     * account, rather than the mailboxes or messages themselves.
+     */
+    /*package*/ static int getSummaryCount(Context context, String column, String selection,
+            String[] selectionArgs) {
+        return Utility.getFirstRowInt(context, SUMMARY_CONTENT_URI,
+                new String[] {"sum(" + column + ")"}, selection, selectionArgs, null, 0, 0);
+    }
+
     public static int getUnreadCountByAccountAndMailboxType(Context context, long accountId,
             int type) {
-        return Utility.getFirstRowInt(context, Mailbox.CONTENT_URI,
-                MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION,
+        return getSummaryCount(context, MailboxColumns.UNREAD_COUNT,
                 ACCOUNT_AND_MAILBOX_TYPE_SELECTION,
-                new String[] { String.valueOf(accountId), String.valueOf(type) },
-                null, UNREAD_COUNT_COUNT_COLUMN, 0);
+                new String[] { String.valueOf(accountId), String.valueOf(type) });
     }
 
     public static int getUnreadCountByMailboxType(Context context, int type) {
-        return Utility.getFirstRowInt(context, Mailbox.CONTENT_URI,
-                MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION,
-                MAILBOX_TYPE_SELECTION,
-                new String[] { String.valueOf(type) }, null, UNREAD_COUNT_COUNT_COLUMN, 0);
+        return getSummaryCount(context, MailboxColumns.UNREAD_COUNT, MAILBOX_TYPE_SELECTION,
+                new String[] { String.valueOf(type) });
     }
 
     public static int getMessageCountByMailboxType(Context context, int type) {
-        return Utility.getFirstRowInt(context, Mailbox.CONTENT_URI,
-                MAILBOX_SUM_OF_MESSAGE_COUNT_PROJECTION,
-                MAILBOX_TYPE_SELECTION,
-                new String[] { String.valueOf(type) }, null, MESSAGE_COUNT_COUNT_COLUMN, 0);
+        return getSummaryCount(context, MailboxColumns.MESSAGE_COUNT, MAILBOX_TYPE_SELECTION,
+                new String[] { String.valueOf(type) });
     }
 
     /**
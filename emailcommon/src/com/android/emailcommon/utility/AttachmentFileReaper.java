@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes the attachment files of deleted messages, mailboxes and accounts in the background, so
+ * that the sync and UI threads don't wait for the file system.
+ *
+ * Callers hand over the attachments (looked up with a single query, while their rows still
+ * exist) before deleting the rows; each attachment, or whole account, becomes a "tombstone".
+ * Tombstones are appended to a file before they're queued, and the file is only cleared once
+ * every queued tombstone has been reaped, so files whose rows are gone are still deleted if the
+ * process dies first; {@link #resume} picks them up when the app starts.  Attachment ids aren't
+ * reused, so reaping a tombstone twice is harmless.  A tombstone only deletes files older than
+ * itself, since an attachment whose row is kept (or a wiped account) can download them again.
+ *
+ * The files and bytes reclaimed are counted for the whole process, see {@link #getSummary()}.
+ */
+public class AttachmentFileReaper {
+    @VisibleForTesting
+    static final String TOMBSTONE_FILE_NAME = "attachment_tombstones";
+    /** The attachment id of the tombstone for all of an account's files */
+    private static final long ALL_ATTACHMENTS = -1;
+    /** The most message ids in one attachment query */
+    private static final int MAX_QUERY_IDS = 500;
+
+    private static final String[] ATTACHMENT_ID_PROJECTION = new String[] {
+        EmailContent.RECORD_ID
+    };
+    private static final String MAILBOX_ATTACHMENTS_SELECTION = AttachmentColumns.MESSAGE_KEY
+            + " in (select " + EmailContent.RECORD_ID + " from " + Message.TABLE_NAME + " where "
+            + MessageColumns.MAILBOX_KEY + "=?)";
+
+    private static final class Tombstone {
+        final long mAccountId;
+        final long mAttachmentId;
+        final long mTime;
+
+        Tombstone(long accountId, long attachmentId, long time) {
+            mAccountId = accountId;
+            mAttachmentId = attachmentId;
+            mTime = time;
+        }
+
+        @Override
+        public String toString() {
+            return mAccountId + " " + mAttachmentId + " " + mTime;
+        }
+    }
+
+    // Tombstones not yet reaped (including any being reaped), in the order they were added
+    private static final ArrayList<Tombstone> sQueue = new ArrayList<Tombstone>();
+    private static boolean sLoaded;
+    private static boolean sScheduled;
+    // Held while reaping, so that there's only one reaper at a time
+    private static final Object sReapLock = new Object();
+
+    private static int sBatches;
+    private static int sFilesDeleted;
+    private static long sBytesReclaimed;
+    private static int sRecovered;
+
+    private AttachmentFileReaper() {
+    }
+
+    /**
+     * Queues the deletion of the attachment files of messages.  This must be called before the
+     * messages (and so their attachments) are deleted.
+     */
+    public static void deleteMessageFiles(Context context, long accountId, long[] messageIds) {
+        ArrayList<Tombstone> tombstones = new ArrayList<Tombstone>();
+        for (int start = 0; start < messageIds.length; start += MAX_QUERY_IDS) {
+            int end = Math.min(start + MAX_QUERY_IDS, messageIds.length);
+            ArrayList<Long> ids = new ArrayList<Long>(end - start);
+            for (int i = start; i < end; i++) {
+                ids.add(messageIds[i]);
+            }
+            addAttachments(context, accountId,
+                    Utility.buildInSelection(AttachmentColumns.MESSAGE_KEY, ids), null,
+                    tombstones);
+        }
+        add(context, tombstones);
+    }
+
+    /**
+     * Queues the deletion of the attachment files of the messages in a mailbox.  This must be
+     * called before the mailbox (or its messages) are deleted.
+     */
+    public static void deleteMailboxFiles(Context context, long accountId, long mailboxId) {
+        ArrayList<Tombstone> tombstones = new ArrayList<Tombstone>();
+        addAttachments(context, accountId, MAILBOX_ATTACHMENTS_SELECTION,
+                new String[] {Long.toString(mailboxId)}, tombstones);
+        add(context, tombstones);
+    }
+
+    /**
+     * Queues the deletion of the files of attachments whose ids are already known.  This must be
+     * called before the attachments are deleted.
+     */
+    public static void deleteAttachmentFiles(Context context, long accountId,
+            long[] attachmentIds) {
+        ArrayList<Tombstone> tombstones = new ArrayList<Tombstone>(attachmentIds.length);
+        long now = System.currentTimeMillis();
+        for (long attachmentId : attachmentIds) {
+            tombstones.add(new Tombstone(accountId, attachmentId, now));
+        }
+        add(context, tombstones);
+    }
+
+    /**
+     * Queues the deletion of all of an account's attachment files that exist now.
+     */
+    public static void deleteAccountFiles(Context context, long accountId) {
+        ArrayList<Tombstone> tombstones = new ArrayList<Tombstone>(1);
+        tombstones.add(new Tombstone(accountId, ALL_ATTACHMENTS, System.currentTimeMillis()));
+        add(context, tombstones);
+    }
+
+    /**
+     * Starts reaping the tombstones left by an earlier process, if there are any.
+     */
+    public static void resume(final Context context) {
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                reap(context);
+            }
+        });
+    }
+
+    private static void addAttachments(Context context, long accountId, String selection,
+            String[] selectionArgs, List<Tombstone> tombstones) {
+        Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                ATTACHMENT_ID_PROJECTION, selection, selectionArgs, null);
+        if (c == null) return;
+        try {
+            long now = System.currentTimeMillis();
+            while (c.moveToNext()) {
+                tombstones.add(new Tombstone(accountId, c.getLong(0), now));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static File getTombstoneFile(Context context) {
+        return context.getDatabasePath(TOMBSTONE_FILE_NAME);
+    }
+
+    /**
+     * Loads the tombstones left by an earlier process, the first time they're needed.
+     */
+    private static void loadTombstones(Context context) {
+        if (sLoaded) return;
+        sLoaded = true;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(getTombstoneFile(context)));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    try {
+                        sQueue.add(new Tombstone(Long.parseLong(fields[0]),
+                                Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                        sRecovered++;
+                    } catch (RuntimeException e) {
+                        // A line cut short by a crash, before its rows could be deleted
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing was left over
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Can't read attachment tombstones: " + e);
+        }
+    }
+
+    /**
+     * Writes tombstones to the end of the tombstone file, or replaces the file with them.
+     */
+    private static void writeTombstones(Context context, List<Tombstone> tombstones,
+            boolean append) {
+        File file = getTombstoneFile(context);
+        if (!append && tombstones.isEmpty()) {
+            file.delete();
+            return;
+        }
+        try {
+            Writer writer = new FileWriter(file, append);
+            try {
+                for (Tombstone tombstone : tombstones) {
+                    writer.write(tombstone.toString());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            // The files will still be deleted, unless the process dies first
+            Log.w(Logging.LOG_TAG, "Can't write attachment tombstones: " + e);
+        }
+    }
+
+    private static void add(final Context context, List<Tombstone> tombstones) {
+        if (tombstones.isEmpty()) return;
+        synchronized (AttachmentFileReaper.class) {
+            loadTombstones(context);
+            writeTombstones(context, tombstones, true);
+            sQueue.addAll(tombstones);
+            if (sScheduled) return;
+            sScheduled = true;
+        }
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                reap(context);
+            }
+        });
+    }
+
+    /**
+     * Deletes the files of all queued tombstones, in batches of whatever was queued when the
+     * last batch was done.
+     *
+     * @return the number of bytes reclaimed
+     */
+    @VisibleForTesting
+    static long reap(Context context) {
+        long reclaimed = 0;
+        synchronized (sReapLock) {
+            while (true) {
+                ArrayList<Tombstone> batch;
+                synchronized (AttachmentFileReaper.class) {
+                    loadTombstones(context);
+                    if (sQueue.isEmpty()) {
+                        sScheduled = false;
+                        break;
+                    }
+                    batch = new ArrayList<Tombstone>(sQueue);
+                }
+                int files = 0;
+                long bytes = 0;
+                for (Tombstone tombstone : batch) {
+                    if (tombstone.mAttachmentId == ALL_ATTACHMENTS) {
+                        File[] accountFiles = AttachmentUtilities.getAttachmentDirectory(
+                                context, tombstone.mAccountId).listFiles();
+                        if (accountFiles == null) continue;
+                        for (File file : accountFiles) {
+                            if (file.lastModified() > tombstone.mTime) continue;
+                            long size = file.length();
+                            if (file.delete()) {
+                                files++;
+                                bytes += size;
+                            }
+                        }
+                        AttachmentStorageLedger.onAccountDeleted(tombstone.mAccountId);
+                    } else {
+                        File file = AttachmentUtilities.getAttachmentFilename(context,
+                                tombstone.mAccountId, tombstone.mAttachmentId);
+                        // The attachment's row may have been kept (e.g. its message moved to
+                        // the trash), and its file downloaded again since
+                        if (file.lastModified() > tombstone.mTime) continue;
+                        long size = file.length();
+                        // Like File.delete(), this is best-effort; a file that's gone is fine
+                        if (file.delete()) {
+                            files++;
+                            bytes += size;
+                        }
+                        AttachmentStorageLedger.onFileDeleted(tombstone.mAccountId,
+                                tombstone.mAttachmentId);
+                    }
+                }
+                synchronized (AttachmentFileReaper.class) {
+                    // Tombstones added while this batch was reaped are still in the file
+                    sQueue.subList(0, batch.size()).clear();
+                    writeTombstones(context, sQueue, false);
+                    sBatches++;
+                    sFilesDeleted += files;
+                    sBytesReclaimed += bytes;
+                }
+                reclaimed += bytes;
+            }
+        }
+        if (reclaimed > 0) {
+            Log.d(Logging.LOG_TAG, "Reclaimed " + reclaimed + " bytes of attachment files");
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Returns a one-line summary of the files reaped, and the tombstones still queued.
+     */
+    public static synchronized String getSummary() {
+        return sFilesDeleted + " files (" + sBytesReclaimed + " bytes) reclaimed in " + sBatches
+                + " batches, " + sRecovered + " tombstones recovered, " + sQueue.size()
+                + " pending";
+    }
+
+    /**
+     * Forgets the queued tombstones (but not the tombstone file) and the counts.
+     */
+    @VisibleForTesting
+    static synchronized void clear() {
+        sQueue.clear();
+        sLoaded = false;
+        sScheduled = false;
+        sBatches = 0;
+        sFilesDeleted = 0;
+        sBytesReclaimed = 0;
+        sRecovered = 0;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the storage used by each account's attachment files, so that it doesn't have to
+ * be worked out by listing the account's attachment directory.
+ *
+ * The ledger is updated as attachment files are written, opened and deleted.  An account's
+ * entries are loaded from its attachment directory when they are first needed, and reconciled
+ * with the directory again every {@link #RECONCILE_INTERVAL}, which corrects for any change that
+ * was missed (e.g. files written or deleted by another process).
+ *
+ * Files are kept in least recently used order, along with whether they were prefetched (i.e.
+ * downloaded in the background) and haven't been opened since; those can be evicted when an
+ * account needs room to prefetch more.  That state is only kept in memory, so files found by
+ * loading or reconciling the ledger are never evicted.
+ */
+public class AttachmentStorageLedger {
+    @VisibleForTesting
+    static final long RECONCILE_INTERVAL = DateUtils.DAY_IN_MILLIS;
+
+    private static final class FileEntry {
+        long mSize;
+        boolean mEvictable;
+    }
+
+    private static final class AccountLedger {
+        // Attachment id to file, in least recently used order
+        final LinkedHashMap<Long, FileEntry> mFiles =
+            new LinkedHashMap<Long, FileEntry>(16, 0.75f, true);
+        long mBytes;
+        long mReconcileTime;
+        int mReconciliations;
+        long mReconcileDrift;
+        int mEvictions;
+        long mEvictedBytes;
+    }
+
+    private static final HashMap<Long, AccountLedger> sLedgers =
+        new HashMap<Long, AccountLedger>();
+
+    /**
+     * Returns the ledger for an account, loading or reconciling it from the attachment directory
+     * if it's missing or due for reconciliation.
+     */
+    private static AccountLedger getLedger(Context context, long accountId) {
+        AccountLedger ledger = sLedgers.get(accountId);
+        long now = System.currentTimeMillis();
+        if (ledger == null) {
+            ledger = new AccountLedger();
+            sLedgers.put(accountId, ledger);
+        } else if (now - ledger.mReconcileTime < RECONCILE_INTERVAL) {
+            return ledger;
+        }
+        reconcile(context, accountId, ledger);
+        ledger.mReconcileTime = now;
+        return ledger;
+    }
+
+    /**
+     * Bring the ledger into line with the files in the account's attachment directory, keeping
+     * the order and state of the entries for files that still exist.
+     */
+    private static void reconcile(Context context, long accountId, AccountLedger ledger) {
+        long bytes = 0;
+        File[] files = AttachmentUtilities.getAttachmentDirectory(context, accountId).listFiles();
+        HashMap<Long, Long> sizes = new HashMap<Long, Long>();
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    long size = file.length();
+                    sizes.put(Long.parseLong(file.getName()), size);
+                    bytes += size;
+                } catch (NumberFormatException e) {
+                    // Not an attachment file; ignore it
+                }
+            }
+        }
+        Iterator<Map.Entry<Long, FileEntry>> iterator = ledger.mFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, FileEntry> entry = iterator.next();
+            Long size = sizes.remove(entry.getKey());
+            if (size == null) {
+                iterator.remove();
+            } else {
+                entry.getValue().mSize = size;
+            }
+        }
+        for (Map.Entry<Long, Long> entry : sizes.entrySet()) {
+            FileEntry fileEntry = new FileEntry();
+            fileEntry.mSize = entry.getValue();
+            ledger.mFiles.put(entry.getKey(), fileEntry);
+        }
+        if (ledger.mReconciliations > 0 && ledger.mBytes != bytes) {
+            ledger.mReconcileDrift += Math.abs(ledger.mBytes - bytes);
+            Log.d(Logging.LOG_TAG, "Attachment storage for account " + accountId + " was "
+                    + ledger.mBytes + ", actually " + bytes);
+        }
+        ledger.mBytes = bytes;
+        ledger.mReconciliations++;
+    }
+
+    /**
+     * Returns the storage used by an account's attachment files, in bytes.
+     */
+    public static synchronized long getUsage(Context context, long accountId) {
+        return getLedger(context, accountId).mBytes;
+    }
+
+    /**
+     * Record that an attachment file was written (or rewritten).  The file's size is taken from
+     * the file itself.
+     *
+     * @param prefetched whether the attachment was downloaded in the background, rather than
+     * requested; prefetched attachments can be evicted until they are opened
+     */
+    public static synchronized void onFileWritten(Context context, long accountId,
+            long attachmentId, boolean prefetched) {
+        AccountLedger ledger = sLedgers.get(accountId);
+        // If the account's ledger isn't loaded, the file will be counted when it is
+        if (ledger == null) return;
+        File file = AttachmentUtilities.getAttachmentFilename(context, accountId, attachmentId);
+        FileEntry entry = ledger.mFiles.get(attachmentId);
+        if (entry == null) {
+            entry = new FileEntry();
+            ledger.mFiles.put(attachmentId, entry);
+        }
+        long size = file.length();
+        ledger.mBytes += size - entry.mSize;
+        entry.mSize = size;
+        entry.mEvictable = prefetched;
+    }
+
+    /**
+     * Record that an attachment file was opened, which makes it the most recently used and means
+     * that it can't be evicted.
+     */
+    public static synchronized void onFileOpened(long accountId, long attachmentId) {
+        AccountLedger ledger = sLedgers.get(accountId);
+        if (ledger == null) return;
+        FileEntry entry = ledger.mFiles.get(attachmentId);
+        if (entry != null) {
+            entry.mEvictable = false;
+        }
+    }
+
+    /**
+     * Record that an attachment file was deleted.
+     */
+    public static synchronized void onFileDeleted(long accountId, long attachmentId) {
+        AccountLedger ledger = sLedgers.get(accountId);
+        if (ledger == null) return;
+        FileEntry entry = ledger.mFiles.remove(attachmentId);
+        if (entry != null) {
+            ledger.mBytes -= entry.mSize;
+        }
+    }
+
+    /**
+     * Record that all of an account's attachment files were deleted.
+     */
+    public static synchronized void onAccountDeleted(long accountId) {
+        sLedgers.remove(accountId);
+    }
+
+    /**
+     * Evict prefetched attachments that were never opened, least recently used first, until at
+     * least the given number of bytes are freed (or there are none left).  The attachment files
+     * are deleted, and the attachments are marked as not loaded and
+     * {@link Attachment#FLAG_DOWNLOAD_EVICTED}, so they aren't prefetched again.
+     *
+     * @return the number of bytes freed
+     */
+    public static synchronized long evictUnopened(Context context, long accountId, long bytes) {
+        AccountLedger ledger = getLedger(context, accountId);
+        long freed = 0;
+        Iterator<Map.Entry<Long, FileEntry>> iterator = ledger.mFiles.entrySet().iterator();
+        while (freed < bytes && iterator.hasNext()) {
+            Map.Entry<Long, FileEntry> entry = iterator.next();
+            FileEntry fileEntry = entry.getValue();
+            if (!fileEntry.mEvictable) continue;
+            long attachmentId = entry.getKey();
+            Attachment attachment = Attachment.restoreAttachmentWithId(context, attachmentId);
+            if (attachment != null) {
+                ContentValues cv = new ContentValues();
+                cv.putNull(AttachmentColumns.CONTENT_URI);
+                cv.put(AttachmentColumns.FLAGS,
+                        attachment.mFlags | Attachment.FLAG_DOWNLOAD_EVICTED);
+                attachment.update(context, cv);
+            }
+            AttachmentUtilities.getAttachmentFilename(context, accountId, attachmentId).delete();
+            iterator.remove();
+            ledger.mBytes -= fileEntry.mSize;
+            ledger.mEvictions++;
+            ledger.mEvictedBytes += fileEntry.mSize;
+            freed += fileEntry.mSize;
+        }
+        if (freed > 0) {
+            Log.d(Logging.LOG_TAG, "Evicted " + freed + " bytes of attachments from account "
+                    + accountId);
+        }
+        return freed;
+    }
+
+    /**
+     * Returns a one-line summary of an account's attachment storage, or {@code null} if its
+     * ledger isn't loaded.
+     */
+    public static synchronized String getSummary(long accountId) {
+        AccountLedger ledger = sLedgers.get(accountId);
+        if (ledger == null) {
+            return null;
+        }
+        int evictable = 0;
+        for (FileEntry entry : ledger.mFiles.values()) {
+            if (entry.mEvictable) {
+                evictable++;
+            }
+        }
+        return ledger.mBytes + " bytes in " + ledger.mFiles.size() + " files (" + evictable
+                + " evictable), " + ledger.mEvictions + " evicted (" + ledger.mEvictedBytes
+                + " bytes), " + ledger.mReconciliations + " reconciliations (drift "
+                + ledger.mReconcileDrift + " bytes)";
+    }
+
+    @VisibleForTesting
+    static synchronized void clear() {
+        sLedgers.clear();
+    }
+
+    /**
+     * Make an account's ledger due for reconciliation.
+     */
+    @VisibleForTesting
+    static synchronized void expire(long accountId) {
+        AccountLedger ledger = sLedgers.get(accountId);
+        if (ledger != null) {
+            ledger.mReconcileTime = 0;
+        }
+    }
+}
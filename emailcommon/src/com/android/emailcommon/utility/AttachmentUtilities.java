@@ -305,6 +305,7 @@ public class AttachmentUtilities {
                 // it just returns false, which we ignore, and proceed to the next file.
                 // This entire loop is best-effort only.
                 attachmentFile.delete();
+                AttachmentStorageLedger.onFileDeleted(accountId, attachmentId);
             }
         } finally {
             c.close();
@@ -340,6 +341,7 @@ public class AttachmentUtilities {
      * @param accountId the account to scrub
      */
     public static void deleteAllAccountAttachmentFiles(Context context, long accountId) {
+        AttachmentStorageLedger.onAccountDeleted(accountId);
         File[] files = getAttachmentDirectory(context, accountId).listFiles();
         if (files == null) return;
         for (File file : files) {
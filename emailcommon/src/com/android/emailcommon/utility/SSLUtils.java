@@ -18,12 +18,15 @@ package com.android.emailcommon.utility;
 
 import android.content.Context;
 import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
 import android.security.KeyChain;
 import android.security.KeyChainException;
 import android.util.Log;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.Principal;
@@ -39,9 +42,42 @@ public class SSLUtils {
     private static SSLCertificateSocketFactory sInsecureFactory;
     private static SSLCertificateSocketFactory sSecureFactory;
 
+    /** Directory for the persistent TLS session caches; {@code null} if not set up */
+    private static File sSessionCacheDirectory;
+
     private static final boolean LOG_ENABLED = false;
     private static final String TAG = "Email.Ssl";
 
+    /**
+     * Sets up persistent TLS session caches, so that handshakes with a server can be resumed
+     * by later connections, even from another process.  Sessions are cached by host and port.
+     * Sessions established without certificate checks are kept apart from the others, since
+     * resuming a session skips the checks.  It is set up during application initialization.
+     */
+    public synchronized static void setSessionCacheDirectory(Context context) {
+        sSessionCacheDirectory = context.getCacheDir();
+        // Factories created so far don't use the cache
+        sInsecureFactory = null;
+        sSecureFactory = null;
+    }
+
+    /**
+     * Returns the persistent session cache for secure or insecure connections, or {@code null}
+     * if it can't be used.
+     */
+    private static SSLSessionCache getSessionCache(boolean insecure) {
+        if (sSessionCacheDirectory == null) {
+            return null;
+        }
+        try {
+            return new SSLSessionCache(new File(sSessionCacheDirectory,
+                    insecure ? "sslcache-insecure" : "sslcache"));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create TLS session cache: " + e);
+            return null;
+        }
+    }
+
     /**
      * Returns a {@link javax.net.ssl.SSLSocketFactory}.
      * Optionally bypass all SSL certificate checks.
@@ -53,13 +89,13 @@ public class SSLUtils {
         if (insecure) {
             if (sInsecureFactory == null) {
                 sInsecureFactory = (SSLCertificateSocketFactory)
-                        SSLCertificateSocketFactory.getInsecure(0, null);
+                        SSLCertificateSocketFactory.getInsecure(0, getSessionCache(true));
             }
             return sInsecureFactory;
         } else {
             if (sSecureFactory == null) {
                 sSecureFactory = (SSLCertificateSocketFactory)
-                        SSLCertificateSocketFactory.getDefault(0, null);
+                        SSLCertificateSocketFactory.getDefault(0, getSessionCache(false));
             }
             return sSecureFactory;
         }
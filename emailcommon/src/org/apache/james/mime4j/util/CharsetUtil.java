@@ -23,7 +23,6 @@ import java.io.UnsupportedEncodingException;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
-import java.util.TreeSet;
 
 //BEGIN android-changed: Stubbing out logging
 import org.apache.james.mime4j.Log;
@@ -797,6 +796,11 @@ public class CharsetUtil {
         private String canonical = null;
         private String mime = null;
         private String[] aliases = null;
+        //BEGIN android-changed
+        // Whether the VM can decode and encode this character set, once it's been tried
+        private volatile int decoding;
+        private volatile int encoding;
+        //END android-changed
 
         private Charset(String canonical, String mime, String[] aliases) {
             this.canonical = canonical;
@@ -998,64 +1002,113 @@ public class CharsetUtil {
         new Charset("UnicodeLittle", null, new String[] {})
     };
 
-    /**
-     * Contains the canonical names of character sets which can be used to
-     * decode bytes into Java chars.
+    //BEGIN android-changed: Probe each character set the first time it's asked about
+    /*
+     * Trying every known character set when this class was loaded took a noticeable share of
+     * the time to show the first message, and most of them are never used.  Instead, whether a
+     * character set can be used for decoding or encoding is found out when it's first asked
+     * about, and remembered in its Charset.  Two threads may both try a character set at once;
+     * they come to the same answer, so neither needs to wait for the other.
      */
-    private static TreeSet<String> decodingSupported = null;
+    private static final int UNKNOWN = 0;
+    private static final int SUPPORTED = 1;
+    private static final int UNSUPPORTED = 2;
 
-    /**
-     * Contains the canonical names of character sets which can be used to
-     * encode Java chars into bytes.
-     */
-    private static TreeSet<String> encodingSupported = null;
+    private static final byte[] DUMMY_BYTES = new byte[] {'d', 'u', 'm', 'm', 'y'};
 
     /**
-     * Maps character set names to Charset objects. All possible names of
-     * a charset will be mapped to the Charset.
+     * Holds the maps of character set names, which are built the first time a name is looked
+     * up rather than when this class is loaded (e.g. just for its constants).
      */
-    private static HashMap<String, Charset> charsetMap = null;
+    private static class Names {
+        /**
+         * Maps character set names to Charset objects. All possible names of
+         * a charset will be mapped to the Charset.
+         */
+        static final HashMap<String, Charset> charsetMap = new HashMap<String, Charset>();
 
-    static {
-        decodingSupported = new TreeSet<String>();
-        encodingSupported = new TreeSet<String>();
-        byte[] dummy = new byte[] {'d', 'u', 'm', 'm', 'y'};
-        for (int i = 0; i < JAVA_CHARSETS.length; i++) {
+        /**
+         * Maps the canonical names of character sets, which are the only names
+         * {@link CharsetUtil#isDecodingSupported} and {@link CharsetUtil#isEncodingSupported}
+         * accept, to Charset objects.
+         */
+        static final HashMap<String, Charset> canonicalMap = new HashMap<String, Charset>();
+
+        static {
+            for (int i = 0; i < JAVA_CHARSETS.length; i++) {
+                Charset c = JAVA_CHARSETS[i];
+                String canonical = c.canonical.toLowerCase();
+                charsetMap.put(canonical, c);
+                if (!canonicalMap.containsKey(canonical)) {
+                    canonicalMap.put(canonical, c);
+                }
+                if (c.mime != null) {
+                    charsetMap.put(c.mime.toLowerCase(), c);
+                }
+                if (c.aliases != null) {
+                    for (int j = 0; j < c.aliases.length; j++) {
+                        charsetMap.put(c.aliases[j].toLowerCase(), c);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean canDecode(Charset c) {
+        int state = c.decoding;
+        if (state == UNKNOWN) {
+            state = UNSUPPORTED;
             try {
-                String s = new String(dummy, JAVA_CHARSETS[i].canonical);
-                decodingSupported.add(JAVA_CHARSETS[i].canonical.toLowerCase());
+                new String(DUMMY_BYTES, c.canonical);
+                state = SUPPORTED;
             } catch (UnsupportedOperationException e) {
             } catch (UnsupportedEncodingException e) {
             }
+            c.decoding = state;
+            if (log.isDebugEnabled()) {
+                log.debug("Decoding " + c.canonical + " supported: " + (state == SUPPORTED));
+            }
+        }
+        return state == SUPPORTED;
+    }
+
+    private static boolean canEncode(Charset c) {
+        int state = c.encoding;
+        if (state == UNKNOWN) {
+            state = UNSUPPORTED;
             try {
-                "dummy".getBytes(JAVA_CHARSETS[i].canonical);
-                encodingSupported.add(JAVA_CHARSETS[i].canonical.toLowerCase());
+                "dummy".getBytes(c.canonical);
+                state = SUPPORTED;
             } catch (UnsupportedOperationException e) {
             } catch (UnsupportedEncodingException e) {
             }
+            c.encoding = state;
+            if (log.isDebugEnabled()) {
+                log.debug("Encoding " + c.canonical + " supported: " + (state == SUPPORTED));
+            }
         }
+        return state == SUPPORTED;
+    }
 
-        charsetMap = new HashMap<String, Charset>();
+    /**
+     * Finds out whether every known character set can be used for decoding and encoding, as
+     * this class used to do when it was loaded, and returns the number that can be decoded.
+     * Only for measuring what that costs.
+     */
+    static int probeAllCharsets() {
+        int decodable = 0;
         for (int i = 0; i < JAVA_CHARSETS.length; i++) {
             Charset c = JAVA_CHARSETS[i];
-            charsetMap.put(c.canonical.toLowerCase(), c);
-            if (c.mime != null) {
-                charsetMap.put(c.mime.toLowerCase(), c);
-            }
-            if (c.aliases != null) {
-                for (int j = 0; j < c.aliases.length; j++) {
-                    charsetMap.put(c.aliases[j].toLowerCase(), c);
-                }
+            c.decoding = UNKNOWN;
+            c.encoding = UNKNOWN;
+            if (canDecode(c)) {
+                decodable++;
             }
+            canEncode(c);
         }
-
-        if (log.isDebugEnabled()) {
-            log.debug("Character sets which support decoding: "
-                        + decodingSupported);
-            log.debug("Character sets which support encoding: "
-                        + encodingSupported);
-        }
+        return decodable;
     }
+    //END android-changed
 
     /**
      * ANDROID:  THE FOLLOWING SET OF STATIC STRINGS ARE COPIED FROM A NEWER VERSION OF MIME4J
@@ -1136,7 +1189,8 @@ public class CharsetUtil {
      *         otherwise.
      */
     public static boolean isEncodingSupported(String charsetName) {
-        return encodingSupported.contains(charsetName.toLowerCase());
+        Charset c = Names.canonicalMap.get(charsetName.toLowerCase());
+        return c != null && canEncode(c);
     }
 
     /**
@@ -1151,7 +1205,8 @@ public class CharsetUtil {
      *         otherwise.
      */
     public static boolean isDecodingSupported(String charsetName) {
-        return decodingSupported.contains(charsetName.toLowerCase());
+        Charset c = Names.canonicalMap.get(charsetName.toLowerCase());
+        return c != null && canDecode(c);
     }
 
     /**
@@ -1162,7 +1217,7 @@ public class CharsetUtil {
      * @return the MIME preferred name or <code>null</code> if not known.
      */
     public static String toMimeCharset(String charsetName) {
-        Charset c = charsetMap.get(charsetName.toLowerCase());
+        Charset c = Names.charsetMap.get(charsetName.toLowerCase());
         if (c != null) {
             return c.mime;
         }
@@ -1181,7 +1236,7 @@ public class CharsetUtil {
      * @return the canonical Java name or <code>null</code> if not known.
      */
     public static String toJavaCharset(String charsetName) {
-        Charset c = charsetMap.get(charsetName.toLowerCase());
+        Charset c = Names.charsetMap.get(charsetName.toLowerCase());
         if (c != null) {
             return c.canonical;
         }
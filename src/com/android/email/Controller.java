@@ -31,6 +31,7 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.email.mail.store.Pop3Store.Pop3Message;
+import com.android.email.mail.store.Pop3UidlIndex;
 import com.android.email.provider.AccountBackupRestore;
 import com.android.email.service.EmailServiceUtils;
 import com.android.email.service.MailService;
@@ -52,7 +53,7 @@ import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailService;
 import com.android.emailcommon.service.IEmailServiceCallback;
 import com.android.emailcommon.service.SearchParams;
-import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.AttachmentFileReaper;
 import com.android.emailcommon.utility.EmailAsyncTask;
 import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
@@ -64,6 +65,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -215,9 +217,8 @@ public class Controller {
                     WHERE_TYPE_ATTACHMENT, null, null);
             while (c.moveToNext()) {
                 long mailboxId = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
-                // Must delete attachments BEFORE messages
-                AttachmentUtilities.deleteAllMailboxAttachmentFiles(mProviderContext, 0,
-                        mailboxId);
+                // Must hand over attachments BEFORE deleting messages
+                AttachmentFileReaper.deleteMailboxFiles(mProviderContext, 0, mailboxId);
                 resolver.delete(Message.CONTENT_URI, WHERE_MAILBOX_KEY,
                         new String[] {Long.toString(mailboxId)});
            }
@@ -761,9 +762,7 @@ public class Controller {
         }
         EmailAsyncTask.runAsyncParallel(new Runnable() {
             public void run() {
-                for (long messageId: messageIds) {
-                    deleteMessageSync(messageId);
-                }
+                deleteMessagesSync(messageIds);
             }
         });
     }
@@ -778,40 +777,80 @@ public class Controller {
      * @param messageId The id of the message to "delete".
      */
     /* package */ void deleteMessageSync(long messageId) {
-        // 1. Get the message's account
-        Account account = Account.getAccountForMessageId(mProviderContext, messageId);
-
-        if (account == null) return;
-
-        // 2. Confirm that there is a trash mailbox available.  If not, create one
-        long trashMailboxId = findOrCreateMailboxOfType(account.mId, Mailbox.TYPE_TRASH);
-
-        // 3. Get the message's original mailbox
-        Mailbox mailbox = Mailbox.getMailboxForMessageId(mProviderContext, messageId);
-
-        if (mailbox == null) return;
+        deleteMessagesSync(new long[] {messageId});
+    }
 
-        // 4.  Drop non-essential data for the message (e.g. attachment files)
-        AttachmentUtilities.deleteAllAttachmentFiles(mProviderContext, account.mId,
-                messageId);
+    private static final String[] MESSAGE_MAILBOX_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, MessageColumns.MAILBOX_KEY
+    };
 
-        Uri uri = ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI,
-                messageId);
+    /**
+     * Batch version of {@link #deleteMessageSync}.  The messages in each mailbox are moved to the
+     * trash (or really deleted) together, with a single provider call.
+     *
+     * @param messageIds The ids of the messages to "delete"; they needn't be in the same mailbox,
+     * or even the same account
+     */
+    /* package */ void deleteMessagesSync(long[] messageIds) {
         ContentResolver resolver = mProviderContext.getContentResolver();
 
-        // 5. Perform "delete" as appropriate
-        if ((mailbox.mId == trashMailboxId) || (mailbox.mType == Mailbox.TYPE_DRAFTS)) {
-            // 5a. Really delete it
-            resolver.delete(uri, null, null);
-        } else {
-            // 5b. Move to trash
-            ContentValues cv = new ContentValues();
-            cv.put(EmailContent.MessageColumns.MAILBOX_KEY, trashMailboxId);
-            resolver.update(uri, cv, null, null);
+        // 1. Group the messages by mailbox
+        HashMap<Long, ArrayList<Long>> messagesByMailbox = new HashMap<Long, ArrayList<Long>>();
+        Cursor c = resolver.query(Message.CONTENT_URI, MESSAGE_MAILBOX_PROJECTION,
+                getIdSelection(messageIds), null, null);
+        if (c == null) return;
+        try {
+            while (c.moveToNext()) {
+                long mailboxId = c.getLong(1);
+                ArrayList<Long> ids = messagesByMailbox.get(mailboxId);
+                if (ids == null) {
+                    ids = new ArrayList<Long>();
+                    messagesByMailbox.put(mailboxId, ids);
+                }
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
         }
 
-        if (isMessagingController(account)) {
-            mLegacyController.processPendingActions(account.mId);
+        // 2. Get the mailboxes (with one query), and their accounts
+        HashMap<Long, Mailbox> mailboxes = EmailContent.restoreContentWithIds(mProviderContext,
+                Mailbox.class, Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
+                Utility.toPrimitiveLongArray(messagesByMailbox.keySet()));
+        HashSet<Long> accountIds = new HashSet<Long>();
+        for (Map.Entry<Long, ArrayList<Long>> entry : messagesByMailbox.entrySet()) {
+            Mailbox mailbox = mailboxes.get(entry.getKey());
+            if (mailbox == null) continue;
+            long accountId = mailbox.mAccountKey;
+            if (!accountIds.contains(accountId)) {
+                if (Account.restoreAccountWithId(mProviderContext, accountId) == null) continue;
+                accountIds.add(accountId);
+            }
+
+            // 3. Confirm that there is a trash mailbox available.  If not, create one
+            long trashMailboxId = findOrCreateMailboxOfType(accountId, Mailbox.TYPE_TRASH);
+
+            // 4.  Drop non-essential data for the messages (e.g. attachment files, which are
+            // deleted in the background)
+            long[] ids = Utility.toPrimitiveLongArray(entry.getValue());
+            AttachmentFileReaper.deleteMessageFiles(mProviderContext, accountId, ids);
+
+            // 5. Perform "delete" as appropriate
+            if ((mailbox.mId == trashMailboxId) || (mailbox.mType == Mailbox.TYPE_DRAFTS)) {
+                // 5a. Really delete them
+                changeSyncedMessages(ids, null);
+            } else {
+                // 5b. Move to trash
+                ContentValues cv = new ContentValues();
+                cv.put(EmailContent.MessageColumns.MAILBOX_KEY, trashMailboxId);
+                changeSyncedMessages(ids, cv);
+            }
+        }
+
+        for (long accountId : accountIds) {
+            if (isMessagingController(accountId)) {
+                mLegacyController.processPendingActions(accountId);
+            }
         }
     }
 
@@ -839,12 +878,7 @@ public class Controller {
                 if (account != null) {
                     ContentValues cv = new ContentValues();
                     cv.put(EmailContent.MessageColumns.MAILBOX_KEY, newMailboxId);
-                    ContentResolver resolver = mProviderContext.getContentResolver();
-                    for (long messageId : messageIds) {
-                        Uri uri = ContentUris.withAppendedId(
-                                EmailContent.Message.SYNCED_CONTENT_URI, messageId);
-                        resolver.update(uri, cv, null, null);
-                    }
+                    changeSyncedMessages(messageIds, cv);
                     if (isMessagingController(account)) {
                         mLegacyController.processPendingActions(account.mId);
                     }
@@ -853,6 +887,39 @@ public class Controller {
         });
     }
 
+    /**
+     * Returns a selection of the messages with the given ids.
+     */
+    private static String getIdSelection(long[] messageIds) {
+        return Utility.buildInSelection(EmailContent.RECORD_ID, Utility.toLongSet(messageIds));
+    }
+
+    /**
+     * Updates messages, or deletes them, such that the changes will be synced back to the server.
+     * Many messages are changed in a single provider call (and transaction); a single message is
+     * changed through its own URI, which keeps it in the provider's cache.
+     *
+     * @param messageIds the messages to change
+     * @param cv the values to update the messages with, or null to delete them
+     */
+    private void changeSyncedMessages(long[] messageIds, ContentValues cv) {
+        ContentResolver resolver = mProviderContext.getContentResolver();
+        Uri uri;
+        String selection;
+        if (messageIds.length == 1) {
+            uri = ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, messageIds[0]);
+            selection = null;
+        } else {
+            uri = Message.SYNCED_CONTENT_URI;
+            selection = getIdSelection(messageIds);
+        }
+        if (cv == null) {
+            resolver.delete(uri, selection, null);
+        } else {
+            resolver.update(uri, cv, selection, null);
+        }
+    }
+
     /**
      * Set/clear the unread status of a message
      *
@@ -863,6 +930,16 @@ public class Controller {
         setMessageBooleanSync(messageId, EmailContent.MessageColumns.FLAG_READ, isRead);
     }
 
+    /**
+     * Set/clear the unread status of many messages at once
+     *
+     * @param messageIds the messages to update
+     * @param isRead the new value for the isRead flag
+     */
+    public void setMessagesReadSync(long[] messageIds, boolean isRead) {
+        setMessagesBooleanSync(messageIds, EmailContent.MessageColumns.FLAG_READ, isRead);
+    }
+
     /**
      * Set/clear the unread status of a message from UI thread
      *
@@ -886,14 +963,45 @@ public class Controller {
      * @param cv the ContentValues used in the update
      */
     private void updateMessageSync(long messageId, ContentValues cv) {
-        Uri uri = ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI, messageId);
-        mProviderContext.getContentResolver().update(uri, cv, null, null);
+        updateMessagesSync(new long[] {messageId}, cv);
+    }
+
+    private static final String[] MESSAGE_ACCOUNT_PROJECTION = new String[] {
+        MessageColumns.ACCOUNT_KEY
+    };
+
+    /**
+     * Update message records, and ping MessagingController for each of their accounts, if
+     * necessary
+     *
+     * @param messageIds the messages to update
+     * @param cv the ContentValues used in the update
+     */
+    private void updateMessagesSync(long[] messageIds, ContentValues cv) {
+        changeSyncedMessages(messageIds, cv);
 
         // Service runs automatically, MessagingController needs a kick
-        long accountId = Account.getAccountIdForMessageId(mProviderContext, messageId);
-        if (accountId == Account.NO_ACCOUNT) return;
-        if (isMessagingController(accountId)) {
-            mLegacyController.processPendingActions(accountId);
+        HashSet<Long> accountIds = new HashSet<Long>();
+        if (messageIds.length == 1) {
+            long accountId = Account.getAccountIdForMessageId(mProviderContext, messageIds[0]);
+            if (accountId == Account.NO_ACCOUNT) return;
+            accountIds.add(accountId);
+        } else {
+            Cursor c = mProviderContext.getContentResolver().query(Message.CONTENT_URI,
+                    MESSAGE_ACCOUNT_PROJECTION, getIdSelection(messageIds), null, null);
+            if (c == null) return;
+            try {
+                while (c.moveToNext()) {
+                    accountIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        for (long accountId : accountIds) {
+            if (isMessagingController(accountId)) {
+                mLegacyController.processPendingActions(accountId);
+            }
         }
     }
 
@@ -945,6 +1053,17 @@ public class Controller {
         setMessageBooleanSync(messageId, EmailContent.MessageColumns.FLAG_FAVORITE, isFavorite);
     }
 
+    /**
+     * Set/clear the favorite status of many messages at once
+     *
+     * @param messageIds the messages to update
+     * @param isFavorite the new value for the isFavorite flag
+     */
+    public void setMessagesFavoriteSync(long[] messageIds, boolean isFavorite) {
+        setMessagesBooleanSync(messageIds, EmailContent.MessageColumns.FLAG_FAVORITE,
+                isFavorite);
+    }
+
     /**
      * Set/clear boolean columns of a message
      *
@@ -953,9 +1072,21 @@ public class Controller {
      * @param columnValue the new value for the column
      */
     private void setMessageBooleanSync(long messageId, String columnName, boolean columnValue) {
+        setMessagesBooleanSync(new long[] {messageId}, columnName, columnValue);
+    }
+
+    /**
+     * Set/clear boolean columns of many messages, with a single provider call
+     *
+     * @param messageIds the messages to update
+     * @param columnName the column to update
+     * @param columnValue the new value for the column
+     */
+    private void setMessagesBooleanSync(long[] messageIds, String columnName,
+            boolean columnValue) {
         ContentValues cv = new ContentValues();
         cv.put(columnName, columnValue);
-        updateMessageSync(messageId, cv);
+        updateMessagesSync(messageIds, cv);
     }
 
 
@@ -1153,6 +1284,7 @@ public class Controller {
 
             // Delete account data, attachments, PIM data, etc.
             deleteSyncedDataSync(accountId);
+            Pop3UidlIndex.delete(context, accountId);
 
             // Now delete the account itself
             Uri uri = ContentUris.withAppendedId(Account.CONTENT_URI, accountId);
@@ -1188,9 +1320,8 @@ public class Controller {
      */
     public void deleteSyncedDataSync(long accountId) {
         try {
-            // Delete synced attachments
-            AttachmentUtilities.deleteAllAccountAttachmentFiles(mProviderContext,
-                    accountId);
+            // Delete synced attachments (in the background)
+            AttachmentFileReaper.deleteAccountFiles(mProviderContext, accountId);
 
             // Delete synced email, leaving only an empty inbox.  We do this in two phases:
             // 1. Delete all non-inbox mailboxes (which will delete all of their messages)
@@ -33,7 +33,9 @@ import com.android.emailcommon.Logging;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.service.EmailServiceProxy;
+import com.android.emailcommon.utility.AttachmentFileReaper;
 import com.android.emailcommon.utility.EmailAsyncTask;
+import com.android.emailcommon.utility.SSLUtils;
 import com.android.emailcommon.utility.Utility;
 
 public class Email extends Application {
@@ -200,6 +202,7 @@ public class Email extends Application {
         sDebugInhibitGraphicsAcceleration = prefs.getInhibitGraphicsAcceleration();
         enableStrictMode(prefs.getEnableStrictMode());
         TempDirectory.setTempDirectory(this);
+        SSLUtils.setSessionCacheDirectory(this);
 
         // Tie MailRefreshManager to the Controller.
         RefreshManager.getInstance(this);
@@ -215,6 +218,9 @@ public class Email extends Application {
         // Make sure all required services are running when the app is started (can prevent
         // issues after an adb sync/install)
         setServicesEnabledAsync(this);
+
+        // Finish deleting any attachment files that the last process didn't get to
+        AttachmentFileReaper.resume(this);
     }
 
     /**
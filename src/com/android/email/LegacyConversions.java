@@ -40,6 +40,7 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
 import com.android.emailcommon.utility.AttachmentUtilities;
 
 import org.apache.commons.io.IOUtils;
@@ -57,9 +58,11 @@ public class LegacyConversions {
     /** DO NOT CHECK IN "TRUE" */
     private static final boolean DEBUG_ATTACHMENTS = false;
 
-    /** Used for mapping folder names to type codes (e.g. inbox, drafts, trash) */
-    private static final HashMap<String, Integer>
-            sServerMailboxNames = new HashMap<String, Integer>();
+    /**
+     * Used for mapping folder names to type codes (e.g. inbox, drafts, trash).  Built once, then
+     * only read, so lookups don't need to lock.
+     */
+    private static volatile HashMap<String, Integer> sServerMailboxNames;
 
     /**
      * Values for HEADER_ANDROID_BODY_QUOTED_PART to tag body parts
@@ -304,6 +307,7 @@ public class LegacyConversions {
             long copySize = IOUtils.copy(in, out);
             in.close();
             out.close();
+            AttachmentStorageLedger.onFileWritten(context, accountId, attachmentId, false);
 
             // update the attachment with the extra information we now know
             String contentUriString = AttachmentUtilities.getAttachmentUri(
@@ -438,33 +442,36 @@ public class LegacyConversions {
     /**
      * Infer mailbox type from mailbox name.  Used by MessagingController (for live folder sync).
      */
-    public static synchronized int inferMailboxTypeFromName(Context context, String mailboxName) {
-        if (sServerMailboxNames.size() == 0) {
-            // preload the hashmap, one time only
-            sServerMailboxNames.put(
+    public static int inferMailboxTypeFromName(Context context, String mailboxName) {
+        HashMap<String, Integer> serverMailboxNames = sServerMailboxNames;
+        if (serverMailboxNames == null) {
+            // preload the hashmap, one time only.  Racing threads build identical maps.
+            serverMailboxNames = new HashMap<String, Integer>();
+            serverMailboxNames.put(
                     context.getString(R.string.mailbox_name_server_inbox).toLowerCase(),
                     Mailbox.TYPE_INBOX);
-            sServerMailboxNames.put(
+            serverMailboxNames.put(
                     context.getString(R.string.mailbox_name_server_outbox).toLowerCase(),
                     Mailbox.TYPE_OUTBOX);
-            sServerMailboxNames.put(
+            serverMailboxNames.put(
                     context.getString(R.string.mailbox_name_server_drafts).toLowerCase(),
                     Mailbox.TYPE_DRAFTS);
-            sServerMailboxNames.put(
+            serverMailboxNames.put(
                     context.getString(R.string.mailbox_name_server_trash).toLowerCase(),
                     Mailbox.TYPE_TRASH);
-            sServerMailboxNames.put(
+            serverMailboxNames.put(
                     context.getString(R.string.mailbox_name_server_sent).toLowerCase(),
                     Mailbox.TYPE_SENT);
-            sServerMailboxNames.put(
+            serverMailboxNames.put(
                     context.getString(R.string.mailbox_name_server_junk).toLowerCase(),
                     Mailbox.TYPE_JUNK);
+            sServerMailboxNames = serverMailboxNames;
         }
         if (mailboxName == null || mailboxName.length() == 0) {
             return Mailbox.TYPE_MAIL;
         }
         String lowerCaseName = mailboxName.toLowerCase();
-        Integer type = sServerMailboxNames.get(lowerCaseName);
+        Integer type = serverMailboxNames.get(lowerCaseName);
         if (type != null) {
             return type;
         }
@@ -55,7 +55,7 @@ import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
-import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.AttachmentFileReaper;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.emailcommon.utility.Utility;
 
@@ -254,7 +254,8 @@ public class MessagingController implements Runnable {
         mListeners.listFoldersStarted(accountId);
         put("listFolders", listener, new Runnable() {
             // TODO For now, mailbox addition occurs in the server-dependent store implementation,
-            // but, mailbox removal occurs here. Instead, each store should be responsible for
+            // but, mailbox removal occurs here (except for IMAP, which removes mailboxes in the
+            // same batch as it adds them). Instead, each store should be responsible for
             // content synchronization (addition AND removal) since each store will likely need
             // to implement it's own, unique synchronization methodology.
             public void run() {
@@ -287,25 +288,16 @@ public class MessagingController implements Runnable {
 
                         int mailboxType = localFolderCursor.getInt(MAILBOX_COLUMN_TYPE);
                         long mailboxId = localFolderCursor.getLong(MAILBOX_COLUMN_ID);
-                        switch (mailboxType) {
-                            case Mailbox.TYPE_INBOX:
-                            case Mailbox.TYPE_DRAFTS:
-                            case Mailbox.TYPE_OUTBOX:
-                            case Mailbox.TYPE_SENT:
-                            case Mailbox.TYPE_TRASH:
-                            case Mailbox.TYPE_SEARCH:
-                                // Never, ever delete special mailboxes
-                                break;
-                            default:
-                                // Drop all attachment files related to this mailbox
-                                AttachmentUtilities.deleteAllMailboxAttachmentFiles(
-                                        mContext, accountId, mailboxId);
-                                // Delete the mailbox; database triggers take care of related
-                                // Message, Body and Attachment records
-                                Uri uri = ContentUris.withAppendedId(
-                                        Mailbox.CONTENT_URI, mailboxId);
-                                mContext.getContentResolver().delete(uri, null, null);
-                                break;
+                        // Never, ever delete special mailboxes
+                        if (Store.canRemoveMissingMailbox(mailboxType)) {
+                            // Drop all attachment files related to this mailbox
+                            AttachmentFileReaper.deleteMailboxFiles(
+                                    mContext, accountId, mailboxId);
+                            // Delete the mailbox; database triggers take care of related
+                            // Message, Body and Attachment records
+                            Uri uri = ContentUris.withAppendedId(
+                                    Mailbox.CONTENT_URI, mailboxId);
+                            mContext.getContentResolver().delete(uri, null, null);
                         }
                     }
                     mListeners.listFoldersFinished(accountId);
@@ -348,15 +340,16 @@ public class MessagingController implements Runnable {
      * TODO this should use ID's instead of fully-restored objects
      * @param account
      * @param folder
+     * @return whether the folder was synchronized successfully
      */
-    private void synchronizeMailboxSynchronous(final Account account,
+    private boolean synchronizeMailboxSynchronous(final Account account,
             final Mailbox folder) {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
         mListeners.synchronizeMailboxStarted(account.mId, folder.mId);
         if ((folder.mFlags & Mailbox.FLAG_HOLDS_MAIL) == 0) {
             // We don't hold messages, so, nothing to synchronize
             mListeners.synchronizeMailboxFinished(account.mId, folder.mId, 0, 0, null);
-            return;
+            return true;
         }
         NotificationController nc = NotificationController.getInstance(mContext);
         try {
@@ -365,13 +358,14 @@ public class MessagingController implements Runnable {
             // Select generic sync or store-specific sync
             SyncResults results = synchronizeMailboxGeneric(account, folder);
             // The account might have been deleted
-            if (results == null) return;
+            if (results == null) return false;
             mListeners.synchronizeMailboxFinished(account.mId, folder.mId,
                                                   results.mTotalMessages,
                                                   results.mAddedMessages.size(),
                                                   results.mAddedMessages);
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(account.mId);
+            return true;
         } catch (MessagingException e) {
             if (Logging.LOGD) {
                 Log.v(Logging.LOG_TAG, "synchronizeMailbox", e);
@@ -381,6 +375,82 @@ public class MessagingController implements Runnable {
                 nc.showLoginFailedNotification(account.mId);
             }
             mListeners.synchronizeMailboxFailed(account.mId, folder.mId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Synchronizes the account's recently used mailboxes (other than the inbox, which is
+     * always synchronized) whose remote status has changed since they were last synchronized
+     * here. The status of all of the mailboxes is checked with a single request, so keeping
+     * them current doesn't cost a SELECT per mailbox. The status is kept in the mailbox's
+     * sync key, which is otherwise unused by IMAP and POP3.
+     * @param account the account
+     * @param inboxId the inbox, which is skipped
+     */
+    private void synchronizeChangedMailboxesSynchronous(final Account account, long inboxId) {
+        HashMap<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+        Cursor c = mContext.getContentResolver().query(Mailbox.CONTENT_URI,
+                Mailbox.CONTENT_PROJECTION, MailboxColumns.ACCOUNT_KEY + "=? AND "
+                        + MailboxColumns.LAST_TOUCHED_TIME + ">0",
+                new String[] { String.valueOf(account.mId) }, null);
+        if (c == null) return;
+        try {
+            while (c.moveToNext()) {
+                Mailbox mailbox = new Mailbox();
+                mailbox.restore(c);
+                if (mailbox.mId == inboxId || mailbox.mServerId == null
+                        || (mailbox.mFlags & Mailbox.FLAG_HOLDS_MAIL) == 0) {
+                    continue;
+                }
+                switch (mailbox.mType) {
+                    case Mailbox.TYPE_DRAFTS:
+                    case Mailbox.TYPE_OUTBOX:
+                    case Mailbox.TYPE_SEARCH:
+                        // Never synchronized from the server
+                        continue;
+                }
+                mailboxes.put(mailbox.mServerId, mailbox);
+            }
+        } finally {
+            c.close();
+        }
+        if (mailboxes.isEmpty()) return;
+
+        HashMap<String, String> status;
+        try {
+            Store store = Store.getInstance(account, mContext);
+            if (store == null) return;
+            status = store.getFolderStatus(mailboxes.keySet());
+        } catch (MessagingException e) {
+            Log.d(Logging.LOG_TAG, "Unable to get folder status: " + e);
+            return;
+        }
+        // Not supported by the store
+        if (status == null) return;
+
+        int skipped = 0;
+        for (Mailbox mailbox : mailboxes.values()) {
+            String mailboxStatus = status.get(mailbox.mServerId);
+            if (mailboxStatus == null) {
+                // The folder is gone; it will be removed the next time we list folders
+                continue;
+            }
+            if (mailboxStatus.equals(mailbox.mSyncKey)) {
+                skipped++;
+                continue;
+            }
+            if (synchronizeMailboxSynchronous(account, mailbox)) {
+                ContentValues cv = new ContentValues();
+                cv.put(MailboxColumns.SYNC_KEY, mailboxStatus);
+                mContext.getContentResolver().update(
+                        ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId),
+                        cv, null, null);
+            }
+        }
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "Checked " + mailboxes.size() + " mailboxes, "
+                    + skipped + " unchanged");
         }
     }
 
@@ -917,13 +987,18 @@ public class MessagingController implements Runnable {
         // 10. Remove any messages that are in the local store but no longer on the remote store.
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
         localUidsToDelete.removeAll(remoteUidMap.keySet());
+
+        // Delete associated data (attachment files) in the background, in one batch
+        // Attachment & Body records are auto-deleted when we delete the Message record
+        long[] messageIdsToDelete = new long[localUidsToDelete.size()];
+        int index = 0;
         for (String uidToDelete : localUidsToDelete) {
-            LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
+            messageIdsToDelete[index++] = localMessageMap.get(uidToDelete).mId;
+        }
+        AttachmentFileReaper.deleteMessageFiles(mContext, account.mId, messageIdsToDelete);
 
-            // Delete associated data (attachment files)
-            // Attachment & Body records are auto-deleted when we delete the Message record
-            AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
-                    infoToDelete.mId);
+        for (String uidToDelete : localUidsToDelete) {
+            LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
 
             // Delete the message itself
             Uri uriToDelete = ContentUris.withAppendedId(
@@ -1329,6 +1404,8 @@ public class MessagingController implements Runnable {
             Store remoteStore = null;
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
+            // The account's mailboxes, loaded with one query when first needed
+            HashMap<Long, Mailbox> mailboxes = null;
             // loop through messages marked as needing updates
             while (updates.moveToNext()) {
                 boolean changeMoveToTrash = false;
@@ -1343,7 +1420,14 @@ public class MessagingController implements Runnable {
                 EmailContent.Message newMessage =
                     EmailContent.Message.restoreMessageWithId(mContext, oldMessage.mId);
                 if (newMessage != null) {
-                    mailbox = Mailbox.restoreMailboxWithId(mContext, newMessage.mMailboxKey);
+                    if (mailboxes == null) {
+                        mailboxes = new HashMap<Long, Mailbox>();
+                        for (Mailbox box :
+                                Mailbox.restoreMailboxesForAccount(mContext, account.mId)) {
+                            mailboxes.put(box.mId, box);
+                        }
+                    }
+                    mailbox = mailboxes.get(newMessage.mMailboxKey);
                     if (mailbox == null) {
                         continue; // Mailbox removed. Move to the next message.
                     }
@@ -2082,13 +2166,13 @@ public class MessagingController implements Runnable {
                         EmailContent.Message.restoreMessageWithId(mContext, messageId);
                     if (msg != null &&
                             ((msg.mFlags & EmailContent.Message.FLAG_TYPE_FORWARD) != 0)) {
-                        AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
-                                messageId);
+                        AttachmentFileReaper.deleteMessageFiles(mContext, account.mId,
+                                new long[] {messageId});
                     }
                     resolver.update(syncedUri, moveToSentValues, null, null);
                 } else {
-                    AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
-                            messageId);
+                    AttachmentFileReaper.deleteMessageFiles(mContext, account.mId,
+                            new long[] {messageId});
                     Uri uri =
                         ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, messageId);
                     resolver.delete(uri, null, null);
@@ -2149,6 +2233,8 @@ public class MessagingController implements Runnable {
                             synchronizeMailboxSynchronous(account, mailbox);
                         }
                     }
+                    // bring the other mailboxes the user has looked at up to date
+                    synchronizeChangedMailboxesSynchronous(account, inboxId);
                 }
                 mListeners.checkMailFinished(mContext, accountId, inboxId, tag);
             }
@@ -71,6 +71,7 @@ import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -914,8 +915,8 @@ public class MessageListFragment extends ListFragment
             }
 
             @Override
-            public void setField(long messageId, boolean newValue) {
-                mController.setMessageReadSync(messageId, !newValue);
+            public void setField(long[] messageIds, boolean newValue) {
+                mController.setMessagesReadSync(messageIds, !newValue);
             }
         });
     }
@@ -934,9 +935,9 @@ public class MessageListFragment extends ListFragment
             }
 
             @Override
-            public void setField(long messageId, boolean newValue) {
-                mController.setMessageFavoriteSync(messageId, newValue);
-             }
+            public void setField(long[] messageIds, boolean newValue) {
+                mController.setMessagesFavoriteSync(messageIds, newValue);
+            }
         });
     }
 
@@ -960,10 +961,10 @@ public class MessageListFragment extends ListFragment
 
         /**
          * Set or clear the field of interest; setField is called asynchronously via EmailAsyncTask
-         * @param messageId the message id of the current message
-         * @param newValue the new value to be set at this row
+         * @param messageIds the message ids of the messages to change
+         * @param newValue the new value to be set at these rows
          */
-        public void setField(long messageId, boolean newValue);
+        public void setField(long[] messageIds, boolean newValue);
     }
 
     /**
@@ -998,13 +999,18 @@ public class MessageListFragment extends ListFragment
             c.moveToPosition(-1);
             // TODO: we should probably put up a dialog or some other progress indicator for this.
             EmailAsyncTask.runAsyncParallel(new Runnable() {
-               @Override
+                @Override
                 public void run() {
-                   for (long id : setValues.keySet()) {
-                       if (setValues.get(id) != newValue) {
-                           helper.setField(id, newValue);
-                       }
-                   }
+                    // Change all of the messages that need it at once
+                    ArrayList<Long> ids = new ArrayList<Long>();
+                    for (long id : setValues.keySet()) {
+                        if (setValues.get(id) != newValue) {
+                            ids.add(id);
+                        }
+                    }
+                    if (!ids.isEmpty()) {
+                        helper.setField(Utility.toPrimitiveLongArray(ids), newValue);
+                    }
                 }});
         }
     }
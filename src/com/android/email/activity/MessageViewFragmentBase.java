@@ -42,7 +42,6 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
-import android.util.Patterns;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -63,6 +62,7 @@ import com.android.email.Preferences;
 import com.android.email.R;
 import com.android.email.Throttle;
 import com.android.email.mail.internet.EmailHtmlUtil;
+import com.android.email.mail.internet.PlainTextHtmlCache;
 import com.android.email.service.AttachmentDownloadService;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.Address;
@@ -85,8 +85,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Formatter;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 // TODO Better handling of config changes.
@@ -103,8 +103,6 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
 
     // Regex that matches start of img tag. '<(?i)img\s+'.
     private static final Pattern IMG_TAG_START_REGEX = Pattern.compile("<(?i)img\\s+");
-    // Regex that matches Web URL protocol part as case insensitive.
-    private static final Pattern WEB_URL_PROTOCOL = Pattern.compile("(?i)http|https://");
 
     private static int PREVIEW_ICON_WIDTH = 62;
     private static int PREVIEW_ICON_HEIGHT = 62;
@@ -145,10 +143,6 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
     private Controller mController;
     private ControllerResultUiThreadWrapper<ControllerResults> mControllerCallback;
 
-    // contains the HTML body. Is used by LoadAttachmentTask to display inline images.
-    // is null most of the time, is used transiently to pass info to LoadAttachementTask
-    private String mHtmlTextRaw;
-
     // contains the HTML content as set in WebView.
     private String mHtmlTextWebView;
 
@@ -1154,7 +1148,9 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
                 String text = null;
                 String html = Body.restoreBodyHtmlWithMessageId(mContext, mId);
                 if (html == null) {
-                    text = Body.restoreBodyTextWithMessageId(mContext, mId);
+                    // Convert the plain text to HTML here, unless it was converted before
+                    text = PlainTextHtmlCache.getHtml(mId,
+                            Body.restoreBodyTextWithMessageId(mContext, mId));
                 }
                 return new String[] { text, html };
             } catch (RuntimeException re) {
@@ -1175,7 +1171,8 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
                 resetView();
                 return;
             }
-            reloadUiFromBody(results[0], results[1], mAutoShowPictures);    // text, html
+            // text (as HTML), html
+            reloadUiFromBody(results[0], results[1], mAutoShowPictures);
             onPostLoadBody();
         }
     }
@@ -1189,13 +1186,33 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
      * partially loaded at this time.
      */
     private class LoadAttachmentsTask extends EmailAsyncTask<Long, Void, Attachment[]> {
-        public LoadAttachmentsTask() {
+        // The HTML body, in which inline images are replaced in the background; null for text
+        private String mHtml;
+        private boolean mHtmlChanged;
+
+        public LoadAttachmentsTask(String html) {
             super(mTaskTracker);
+            mHtml = html;
         }
 
         @Override
         protected Attachment[] doInBackground(Long... messageIds) {
-            return Attachment.restoreAttachmentsWithMessageId(mContext, messageIds[0]);
+            Attachment[] attachments =
+                    Attachment.restoreAttachmentsWithMessageId(mContext, messageIds[0]);
+            if (attachments != null && mHtml != null) {
+                // for html body, replace CID for inline images, all in one pass over the body
+                HashMap<String, String> contentUris = new HashMap<String, String>();
+                for (Attachment attachment : attachments) {
+                    if (attachment.mContentId != null && attachment.mContentUri != null
+                            && !contentUris.containsKey(attachment.mContentId)) {
+                        contentUris.put(attachment.mContentId, attachment.mContentUri);
+                    }
+                }
+                String html = EmailHtmlUtil.replaceInlineImages(mHtml, contentUris);
+                mHtmlChanged = html != mHtml;
+                mHtml = html;
+            }
+            return attachments;
         }
 
         @Override
@@ -1204,27 +1221,17 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
                 if (attachments == null) {
                     return;
                 }
-                boolean htmlChanged = false;
                 int numDisplayedAttachments = 0;
                 for (Attachment attachment : attachments) {
-                    if (mHtmlTextRaw != null && attachment.mContentId != null
-                            && attachment.mContentUri != null) {
-                        // for html body, replace CID for inline images
-                        // Regexp which matches ' src="cid:contentId"'.
-                        String contentIdRe =
-                            "\\s+(?i)src=\"cid(?-i):\\Q" + attachment.mContentId + "\\E\"";
-                        String srcContentUri = " src=\"" + attachment.mContentUri + "\"";
-                        mHtmlTextRaw = mHtmlTextRaw.replaceAll(contentIdRe, srcContentUri);
-                        htmlChanged = true;
-                    } else {
+                    if (mHtml == null || attachment.mContentId == null
+                            || attachment.mContentUri == null) {
                         addAttachment(attachment);
                         numDisplayedAttachments++;
                     }
                 }
                 setAttachmentCount(numDisplayedAttachments);
-                mHtmlTextWebView = mHtmlTextRaw;
-                mHtmlTextRaw = null;
-                if (htmlChanged) {
+                mHtmlTextWebView = mHtml;
+                if (mHtmlChanged) {
                     setMessageHtml(mHtmlTextWebView);
                 }
             } finally {
@@ -1640,61 +1647,21 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
     /**
      * Reload the body from the provider cursor.  This must only be called from the UI thread.
      *
-     * @param bodyText text part
+     * @param bodyText text part, already converted to HTML by {@link PlainTextHtmlCache}
      * @param bodyHtml html part
      *
      * TODO deal with html vs text and many other issues <- WHAT DOES IT MEAN??
      */
     private void reloadUiFromBody(String bodyText, String bodyHtml, boolean autoShowPictures) {
         String text = null;
-        mHtmlTextRaw = null;
+        String html = null;
         boolean hasImages = false;
 
         if (bodyHtml == null) {
             text = bodyText;
-            /*
-             * Convert the plain text to HTML
-             */
-            StringBuffer sb = new StringBuffer("<html><body>");
-            if (text != null) {
-                // Escape any inadvertent HTML in the text message
-                text = EmailHtmlUtil.escapeCharacterToDisplay(text);
-                // Find any embedded URL's and linkify
-                Matcher m = Patterns.WEB_URL.matcher(text);
-                while (m.find()) {
-                    int start = m.start();
-                    /*
-                     * WEB_URL_PATTERN may match domain part of email address. To detect
-                     * this false match, the character just before the matched string
-                     * should not be '@'.
-                     */
-                    if (start == 0 || text.charAt(start - 1) != '@') {
-                        String url = m.group();
-                        Matcher proto = WEB_URL_PROTOCOL.matcher(url);
-                        String link;
-                        if (proto.find()) {
-                            // This is work around to force URL protocol part be lower case,
-                            // because WebView could follow only lower case protocol link.
-                            link = proto.group().toLowerCase() + url.substring(proto.end());
-                        } else {
-                            // Patterns.WEB_URL matches URL without protocol part,
-                            // so added default protocol to link.
-                            link = "http://" + url;
-                        }
-                        String href = String.format("<a href=\"%s\">%s</a>", link, url);
-                        m.appendReplacement(sb, href);
-                    }
-                    else {
-                        m.appendReplacement(sb, "$0");
-                    }
-                }
-                m.appendTail(sb);
-            }
-            sb.append("</body></html>");
-            text = sb.toString();
         } else {
             text = bodyHtml;
-            mHtmlTextRaw = bodyHtml;
+            html = bodyHtml;
             hasImages = IMG_TAG_START_REGEX.matcher(text).find();
         }
 
@@ -1717,7 +1684,7 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         setMessageHtml(text);
 
         // Ask for attachments after body
-        new LoadAttachmentsTask().executeParallel(mMessage.mId);
+        new LoadAttachmentsTask(html).executeParallel(mMessage.mId);
 
         mIsMessageLoadedForTest = true;
     }
@@ -34,6 +34,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -161,6 +162,21 @@ public abstract class Store {
         return null;
     }
 
+    /**
+     * Returns the status of the given remote folders, in as few round trips as possible. A
+     * folder's status is an opaque string which changes whenever messages are added to or
+     * removed from the folder, or have their seen flag changed; if it is unchanged, there is
+     * no need to synchronize the folder.
+     * @param paths The paths of the folders to check
+     * @return The status of each folder, keyed by path. Folders which no longer exist are left
+     * out. Returns {@code null} if the store can't check folder status.
+     * @throws MessagingException If there was a problem connecting to the remote server
+     */
+    public HashMap<String, String> getFolderStatus(Collection<String> paths)
+            throws MessagingException {
+        return null;
+    }
+
     public abstract Bundle checkSettings() throws MessagingException;
 
     /**
@@ -176,6 +192,24 @@ public abstract class Store {
         return null;
     }
 
+    /**
+     * Returns whether a local mailbox of the given type may be removed once it is no longer on
+     * the server.  Special mailboxes are never, ever deleted.
+     */
+    public static boolean canRemoveMissingMailbox(int type) {
+        switch (type) {
+            case Mailbox.TYPE_INBOX:
+            case Mailbox.TYPE_DRAFTS:
+            case Mailbox.TYPE_OUTBOX:
+            case Mailbox.TYPE_SENT:
+            case Mailbox.TYPE_TRASH:
+            case Mailbox.TYPE_SEARCH:
+                return false;
+            default:
+                return true;
+        }
+    }
+
     /**
      * Updates the fields within the given mailbox. Only the fields that are important to
      * non-EAS accounts are modified.
@@ -16,6 +16,9 @@
 
 package com.android.email.mail.internet;
 
+import android.util.Patterns;
+
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -64,4 +67,187 @@ public class EmailHtmlUtil {
         }        
         return text;
     }
+
+    /**
+     * Convert a plain text body to html for display: escape it as
+     * {@link #escapeCharacterToDisplay} does, and turn web urls into links, in a single pass.
+     *
+     * A url is only linked if it isn't the domain part of an email address.  The protocol in the
+     * link is lower cased (WebView only follows lower case protocols), and urls without one get
+     * "http://".
+     *
+     * @param text the plain text body, or null
+     * @return the body as an html document
+     */
+    public static String plainTextToHtml(String text) {
+        if (text == null) {
+            return "<html><body></body></html>";
+        }
+        final int length = text.length();
+        StringBuilder out = new StringBuilder(length + (length >> 3) + 32);
+        out.append("<html><body>");
+        Matcher m = Patterns.WEB_URL.matcher(text);
+        int end = 0;
+        while (m.find()) {
+            final int start = m.start();
+            // WEB_URL may match the domain part of an email address; skip those
+            if (start > 0 && text.charAt(start - 1) == '@') {
+                continue;
+            }
+            escape(text, end, start, out);
+            end = m.end();
+            int protocolEnd = start;
+            while (protocolEnd < end && Character.isLetter(text.charAt(protocolEnd))) {
+                protocolEnd++;
+            }
+            out.append("<a href=\"");
+            if (protocolEnd > start && protocolEnd + 3 <= end
+                    && text.startsWith("://", protocolEnd)) {
+                for (int i = start; i < protocolEnd; i++) {
+                    out.append(Character.toLowerCase(text.charAt(i)));
+                }
+                escape(text, protocolEnd, end, out);
+            } else {
+                out.append("http://");
+                escape(text, start, end, out);
+            }
+            out.append("\">");
+            escape(text, start, end, out);
+            out.append("</a>");
+        }
+        escape(text, end, length, out);
+        out.append("</body></html>");
+        return out.toString();
+    }
+
+    /**
+     * Append {@code text[start, end)} to {@code out}, escaped as by
+     * {@link #escapeCharacterToDisplay}.
+     */
+    private static void escape(String text, int start, int end, StringBuilder out) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '\r':
+                    // "\r\n" is a single line break; a lone '\r' isn't one
+                    if (i + 1 < end && text.charAt(i + 1) == '\n') {
+                        i++;
+                        out.append("<br>");
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+                case '\n':
+                    out.append("<br>");
+                    break;
+                case ' ':
+                    // Escape successive spaces into series of "&nbsp;", ending with a space
+                    int spaces = 1;
+                    while (i + 1 < end && text.charAt(i + 1) == ' ') {
+                        spaces++;
+                        i++;
+                    }
+                    for (; spaces > 1; spaces--) {
+                        out.append("&nbsp;");
+                    }
+                    out.append(' ');
+                    break;
+                default:
+                    out.append(c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Replace the content ids of inline images ({@code src="cid:contentId"}) with the content
+     * uris of the attachments they refer to, in a single pass over the html.
+     *
+     * Matches what the regexp {@code \s+(?i)src="cid(?-i):\QcontentId\E"} did for each
+     * attachment: the attribute must follow whitespace, "src" and "cid" are case insensitive, and
+     * the attribute (and the whitespace before it) becomes {@code  src="contentUri"}.
+     *
+     * @param html the html body
+     * @param contentUris the content uri of each content id
+     * @return the html with the inline images replaced, or the same string if there were none
+     */
+    public static String replaceInlineImages(String html, Map<String, String> contentUris) {
+        if (html == null || contentUris.isEmpty()) {
+            return html;
+        }
+        final int length = html.length();
+        StringBuilder out = null;
+        // Everything before this has been copied to out
+        int copied = 0;
+        int from = 0;
+        int eq;
+        while ((eq = html.indexOf('=', from)) >= 0) {
+            from = eq + 1;
+            final int srcStart = eq - 3;
+            if (srcStart < copied + 1 || !regionMatchesLowerCase(html, srcStart, "src")
+                    || !isRegexSpace(html.charAt(srcStart - 1))
+                    || !regionMatchesLowerCase(html, eq + 1, "\"cid:")) {
+                continue;
+            }
+            final int idStart = eq + 6;
+            final int idEnd = html.indexOf('"', idStart);
+            if (idEnd < 0) {
+                break;
+            }
+            String contentUri = contentUris.get(html.substring(idStart, idEnd));
+            if (contentUri == null) {
+                continue;
+            }
+            from = idEnd + 1;
+            int spaceStart = srcStart - 1;
+            while (spaceStart > copied && isRegexSpace(html.charAt(spaceStart - 1))) {
+                spaceStart--;
+            }
+            if (out == null) {
+                out = new StringBuilder(length + contentUris.size() * 64);
+            }
+            out.append(html, copied, spaceStart).append(" src=\"").append(contentUri).append('"');
+            copied = from;
+        }
+        if (out == null) {
+            return html;
+        }
+        out.append(html, copied, length);
+        return out.toString();
+    }
+
+    /** Whether the character matches the regexp {@code \s} */
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Whether the string contains {@code lower} at {@code offset}, ignoring the case of ASCII
+     * letters only (like a regexp without UNICODE_CASE).
+     */
+    private static boolean regionMatchesLowerCase(String s, int offset, String lower) {
+        final int length = lower.length();
+        if (offset < 0 || offset + length > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(offset + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lower.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.internet;
+
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Caches the html that plain text message bodies are displayed as (see
+ * {@link EmailHtmlUtil#plainTextToHtml}), so reopening a message doesn't convert its body again.
+ *
+ * Entries are keyed by message id and keep the text they were made from; an entry is only used
+ * if the body text is unchanged, so a changed body (e.g. after the rest of a partially loaded
+ * message is fetched) is converted again.
+ */
+public class PlainTextHtmlCache {
+    /** Maximum size of the cache, in characters (of both text and html) */
+    @VisibleForTesting
+    static final int MAX_SIZE = 512 * 1024;
+
+    private static final class Entry {
+        final String mText;
+        final String mHtml;
+
+        Entry(String text, String html) {
+            mText = text;
+            mHtml = html;
+        }
+    }
+
+    private static final LruCache<Long, Entry> sCache = new LruCache<Long, Entry>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(Long messageId, Entry entry) {
+            return entry.mText.length() + entry.mHtml.length();
+        }
+    };
+
+    /**
+     * Returns the html to display a plain text body as, converting it only if it isn't cached.
+     * May be called on any thread.
+     *
+     * @param messageId the id of the message the body belongs to, or -1 if it isn't saved
+     * @param text the plain text body, or null
+     */
+    public static String getHtml(long messageId, String text) {
+        if (text == null || messageId < 0) {
+            return EmailHtmlUtil.plainTextToHtml(text);
+        }
+        Entry entry = sCache.get(messageId);
+        if (entry != null && entry.mText.equals(text)) {
+            return entry.mHtml;
+        }
+        String html = EmailHtmlUtil.plainTextToHtml(text);
+        sCache.put(messageId, new Entry(text, html));
+        return html;
+    }
+
+    @VisibleForTesting
+    static void clear() {
+        sCache.evictAll();
+    }
+}
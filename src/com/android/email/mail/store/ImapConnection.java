@@ -57,6 +57,8 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** LIST-STATUS capability per RFC 5819 */
+    public static final int CAPABILITY_LIST_STATUS = 1 << 4;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
@@ -178,9 +180,10 @@ class ImapConnection {
     }
 
     /**
-     * Returns whether or not the specified capability is supported by the server.
+     * Returns whether or not the specified capability is supported by the server. Only valid
+     * once the connection has been opened.
      */
-    private boolean isCapable(int capability) {
+    boolean isCapable(int capability) {
         return (mCapabilities & capability) != 0;
     }
 
@@ -202,6 +205,9 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        if (capabilities.contains(ImapConstants.LIST_STATUS)) {
+            mCapabilities |= CAPABILITY_LIST_STATUS;
+        }
     }
 
     /**
@@ -16,7 +16,6 @@
 
 package com.android.email.mail.store;
 
-import android.content.Context;
 import android.text.TextUtils;
 import android.util.Base64DataException;
 import android.util.Log;
@@ -55,7 +54,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -1050,25 +1048,6 @@ class ImapFolder extends Folder {
         }
     }
 
-    /**
-     * Persists this folder. We will always perform the proper database operation (e.g.
-     * 'save' or 'update'). As an optimization, if a folder has not been modified, no
-     * database operations are performed.
-     */
-    void save(Context context) {
-        final Mailbox mailbox = mMailbox;
-        if (!mailbox.isSaved()) {
-            mailbox.save(context);
-            mHash = mailbox.getHashes();
-        } else {
-            Object[] hash = mailbox.getHashes();
-            if (!Arrays.equals(mHash, hash)) {
-                mailbox.update(context, mailbox.toContentValues());
-                mHash = hash;  // Save updated hash
-            }
-        }
-    }
-
     /**
      * Selects the folder for use. Before performing any operations on this folder, it
      * must be selected.
@@ -16,20 +16,28 @@
 
 package com.android.email.mail.store;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import com.android.email.Email;
 import com.android.email.LegacyConversions;
 import com.android.email.Preferences;
 import com.android.email.VendorPolicyLoader;
 import com.android.email.mail.Store;
 import com.android.email.mail.Transport;
 import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.transport.MailTransport;
@@ -41,9 +49,13 @@ import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.provider.ProviderUnavailableException;
 import com.android.emailcommon.service.EmailServiceProxy;
+import com.android.emailcommon.utility.AttachmentFileReaper;
 import com.android.emailcommon.utility.Utility;
 import com.beetstra.jutf7.CharsetProvider;
 import com.google.common.annotations.VisibleForTesting;
@@ -54,7 +66,11 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
@@ -83,6 +99,16 @@ public class ImapStore extends Store {
     private static final Charset MODIFIED_UTF_7_CHARSET =
             new CharsetProvider().charsetForName("X-RFC-3501");
 
+    /** The STATUS data items which make up a folder's status; see {@link #getFolderStatus} */
+    private static final String STATUS_ITEMS = "(" + ImapConstants.MESSAGES + " "
+            + ImapConstants.UNSEEN + " " + ImapConstants.UIDNEXT + " "
+            + ImapConstants.UIDVALIDITY + ")";
+    /**
+     * The number of STATUS commands sent before reading their responses, when LIST-STATUS is
+     * not supported. Bounded so that neither side blocks writing while the other is not reading.
+     */
+    private static final int STATUS_PIPELINE_DEPTH = 20;
+
     @VisibleForTesting static String sImapId = null;
     @VisibleForTesting String mPathPrefix;
     @VisibleForTesting String mPathSeparator;
@@ -341,47 +367,181 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Creates a {@link Folder} and associated {@link Mailbox}. If the folder does not already
-     * exist in the local database, a new row will immediately be created in the mailbox table.
-     * Otherwise, the existing row will be used. Any changes to existing rows, will not be stored
-     * to the database immediately.
+     * Creates a {@link Folder} and associated {@link Mailbox}. If the folder already exists in
+     * the given set of local mailboxes, that mailbox will be used. Otherwise, a new, unsaved
+     * mailbox is created. No changes are written to the database; see {@link #saveMailboxList}.
      * @param accountId The ID of the account the mailbox is to be associated with
      * @param mailboxPath The path of the mailbox to add
      * @param delimiter A path delimiter. May be {@code null} if there is no delimiter.
      * @param selectable If {@code true}, the mailbox can be selected and used to store messages.
+     * @param localMailboxes The account's mailboxes in the database, keyed by path
      */
     private ImapFolder addMailbox(Context context, long accountId, String mailboxPath,
-            char delimiter, boolean selectable) {
+            char delimiter, boolean selectable, HashMap<String, Mailbox> localMailboxes) {
         ImapFolder folder = (ImapFolder) getFolder(mailboxPath);
-        Mailbox mailbox = Mailbox.getMailboxForPath(context, accountId, mailboxPath);
-        if (mailbox.isSaved()) {
+        Mailbox mailbox = localMailboxes.get(mailboxPath);
+        if (mailbox != null) {
             // existing mailbox
             // mailbox retrieved from database; save hash _before_ updating fields
             folder.mHash = mailbox.getHashes();
+        } else {
+            // new mailbox; inserted by #saveMailboxList()
+            mailbox = new Mailbox();
         }
         updateMailbox(mailbox, accountId, mailboxPath, delimiter, selectable,
                 LegacyConversions.inferMailboxTypeFromName(context, mailboxPath));
-        if (folder.mHash == null) {
-            // new mailbox
-            // save hash after updating. allows tracking changes if the mailbox is saved
-            // outside of #saveMailboxList()
-            folder.mHash = mailbox.getHashes();
-            // We must save this here to make sure we have a valid ID for later
-            mailbox.save(mContext);
-        }
         folder.mMailbox = mailbox;
         return folder;
     }
 
     /**
-     * Persists the folders in the given list.
+     * Loads all of the account's mailboxes with a single query.
+     * @return the mailboxes, keyed by path
      */
-    private static void saveMailboxList(Context context, HashMap<String, ImapFolder> folderMap) {
-        for (ImapFolder imapFolder : folderMap.values()) {
-            imapFolder.save(context);
+    private static HashMap<String, Mailbox> loadMailboxes(Context context, long accountId) {
+        Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
+                Mailbox.CONTENT_PROJECTION, MailboxColumns.ACCOUNT_KEY + "=?",
+                new String[] { Long.toString(accountId) }, null);
+        if (c == null) throw new ProviderUnavailableException();
+        try {
+            HashMap<String, Mailbox> mailboxes = new HashMap<String, Mailbox>(c.getCount());
+            while (c.moveToNext()) {
+                Mailbox mailbox = new Mailbox();
+                mailbox.restore(c);
+                if (mailboxes.containsKey(mailbox.mServerId)) {
+                    Log.w(Logging.LOG_TAG, "Multiple mailboxes named \"" + mailbox.mServerId
+                            + "\"");
+                    continue;
+                }
+                mailboxes.put(mailbox.mServerId, mailbox);
+            }
+            return mailboxes;
+        } finally {
+            c.close();
         }
     }
 
+    /**
+     * Returns the path of the given mailbox's parent, or {@code null} if it's a top level
+     * mailbox. Uses the same rule as {@link #createHierarchy}.
+     */
+    private static String getParentPath(Mailbox mailbox) {
+        int delimiterIdx = mailbox.mServerId.lastIndexOf(mailbox.mDelimiter);
+        return (delimiterIdx == -1) ? null : mailbox.mServerId.substring(0, delimiterIdx);
+    }
+
+    /**
+     * Persists the folders in the given list, and removes local mailboxes that are no longer on
+     * the server, in a single batch. New mailboxes are inserted first, parents before their
+     * children, so that parent keys of new mailboxes can be filled in with back references;
+     * existing mailboxes are only written if they changed.
+     * @param folderMap The folders on the server, keyed by path
+     * @param localMailboxes The account's mailboxes in the database, keyed by path
+     */
+    @VisibleForTesting
+    static void saveMailboxList(Context context, long accountId,
+            HashMap<String, ImapFolder> folderMap, HashMap<String, Mailbox> localMailboxes)
+            throws MessagingException {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+
+        // New mailboxes; shorter paths first, so that a parent is inserted before its children
+        ArrayList<ImapFolder> newFolders = new ArrayList<ImapFolder>();
+        for (ImapFolder folder : folderMap.values()) {
+            if (!folder.mMailbox.isSaved()) {
+                newFolders.add(folder);
+            }
+        }
+        Collections.sort(newFolders, new Comparator<ImapFolder>() {
+            @Override
+            public int compare(ImapFolder lhs, ImapFolder rhs) {
+                return lhs.mMailbox.mServerId.length() - rhs.mMailbox.mServerId.length();
+            }
+        });
+        // Index of the insert operation for each new mailbox, keyed by path
+        HashMap<String, Integer> insertIndexes = new HashMap<String, Integer>();
+        for (ImapFolder folder : newFolders) {
+            Mailbox mailbox = folder.mMailbox;
+            ContentProviderOperation.Builder b =
+                    ContentProviderOperation.newInsert(Mailbox.CONTENT_URI)
+                    .withValues(mailbox.toContentValues());
+            Integer parentIndex = insertIndexes.get(getParentPath(mailbox));
+            if (parentIndex != null) {
+                b.withValueBackReference(MailboxColumns.PARENT_KEY, parentIndex);
+            }
+            insertIndexes.put(mailbox.mServerId, ops.size());
+            ops.add(b.build());
+        }
+        final int insertCount = ops.size();
+
+        // Changed mailboxes
+        for (ImapFolder folder : folderMap.values()) {
+            Mailbox mailbox = folder.mMailbox;
+            if (!mailbox.isSaved()) {
+                continue;
+            }
+            Integer parentIndex = insertIndexes.get(getParentPath(mailbox));
+            if (parentIndex == null && Arrays.equals(folder.mHash, mailbox.getHashes())) {
+                continue;
+            }
+            ContentProviderOperation.Builder b = ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId))
+                    .withValues(mailbox.toContentValues());
+            if (parentIndex != null) {
+                b.withValueBackReference(MailboxColumns.PARENT_KEY, parentIndex);
+            }
+            ops.add(b.build());
+        }
+
+        // Mailboxes which are gone from the server
+        for (Mailbox mailbox : localMailboxes.values()) {
+            if (folderMap.containsKey(mailbox.mServerId)
+                    || !canRemoveMissingMailbox(mailbox.mType)) {
+                continue;
+            }
+            // Drop all attachment files related to this mailbox
+            AttachmentFileReaper.deleteMailboxFiles(context, accountId, mailbox.mId);
+            // Database triggers take care of related Message, Body and Attachment records
+            ops.add(ContentProviderOperation.newDelete(
+                    ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId)).build());
+        }
+
+        if (ops.isEmpty()) {
+            return;
+        }
+        ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new MessagingException("Unable to save folder list.", e);
+        } catch (OperationApplicationException e) {
+            throw new MessagingException("Unable to save folder list.", e);
+        }
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "Saved folder list: " + insertCount + " added, "
+                    + (ops.size() - insertCount) + " updated or removed");
+        }
+
+        // Pick up the new IDs, and make the in-memory copies match what was written
+        for (int i = 0; i < insertCount; i++) {
+            newFolders.get(i).mMailbox.mId = ContentUris.parseId(results[i].uri);
+        }
+        for (ImapFolder folder : folderMap.values()) {
+            Mailbox mailbox = folder.mMailbox;
+            ImapFolder parentFolder = folderMap.get(getParentPath(mailbox));
+            if (parentFolder != null && insertIndexes.containsKey(parentFolder.getName())) {
+                mailbox.mParentKey = parentFolder.mMailbox.mId;
+            }
+            folder.mHash = mailbox.getHashes();
+        }
+    }
+
+    /**
+     * Updates the local list of mailboxes according to what is located on the remote server.
+     * Unlike other stores, this also removes mailboxes that are no longer on the server. The
+     * local mailboxes are read with one query, and all changes are written in one batch.
+     * @return The set of remote folders
+     * @throws MessagingException If there was a problem connecting to the remote server
+     */
     @Override
     public Folder[] updateFolders() throws MessagingException {
         ImapConnection connection = getConnection();
@@ -395,6 +555,7 @@ public class ImapStore extends Store {
                 imapCommand = ImapConstants.LIST + " \"\" \"" + mPathPrefix + "*\"";
             }
             List<ImapResponse> responses = connection.executeSimpleCommand(imapCommand);
+            HashMap<String, Mailbox> localMailboxes = loadMailboxes(mContext, mAccount.mId);
             for (ImapResponse response : responses) {
                 // S: * LIST (\Noselect) "/" ~/Mail/foo
                 if (response.isDataResponse(0, ImapConstants.LIST)) {
@@ -413,16 +574,16 @@ public class ImapStore extends Store {
                     if (!TextUtils.isEmpty(delimiter)) {
                         delimiterChar = delimiter.charAt(0);
                     }
-                    ImapFolder folder =
-                        addMailbox(mContext, mAccount.mId, folderName, delimiterChar, selectable);
+                    ImapFolder folder = addMailbox(mContext, mAccount.mId, folderName,
+                            delimiterChar, selectable, localMailboxes);
                     mailboxes.put(folderName, folder);
                 }
             }
-            Folder newFolder =
-                addMailbox(mContext, mAccount.mId, ImapConstants.INBOX, '\0', true /*selectable*/);
+            Folder newFolder = addMailbox(mContext, mAccount.mId, ImapConstants.INBOX, '\0',
+                    true /*selectable*/, localMailboxes);
             mailboxes.put(ImapConstants.INBOX, (ImapFolder)newFolder);
             createHierarchy(mailboxes);
-            saveMailboxList(mContext, mailboxes);
+            saveMailboxList(mContext, mAccount.mId, mailboxes, localMailboxes);
             return mailboxes.values().toArray(new Folder[] {});
         } catch (IOException ioe) {
             connection.close();
@@ -440,6 +601,89 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * Returns the MESSAGES, UNSEEN, UIDNEXT and UIDVALIDITY of the given folders. If the
+     * server supports LIST-STATUS (RFC 5819), the status of all folders is returned with the
+     * folder list in one round trip. Otherwise, STATUS commands are pipelined.
+     */
+    @Override
+    public HashMap<String, String> getFolderStatus(Collection<String> paths)
+            throws MessagingException {
+        ImapConnection connection = getConnection();
+        try {
+            HashMap<String, String> status = new HashMap<String, String>();
+            connection.open();
+            if (connection.isCapable(ImapConnection.CAPABILITY_LIST_STATUS)) {
+                String imapCommand = ImapConstants.LIST + " \"\" \"*\"";
+                if (mPathPrefix != null) {
+                    imapCommand = ImapConstants.LIST + " \"\" \"" + mPathPrefix + "*\"";
+                }
+                imapCommand += " " + ImapConstants.RETURN + " (" + ImapConstants.STATUS + " "
+                        + STATUS_ITEMS + ")";
+                for (ImapResponse response : connection.executeSimpleCommand(imapCommand)) {
+                    parseStatusResponse(response, status);
+                }
+                status.keySet().retainAll(paths);
+            } else {
+                String[] pathArray = paths.toArray(new String[paths.size()]);
+                for (int start = 0; start < pathArray.length; start += STATUS_PIPELINE_DEPTH) {
+                    int end = Math.min(start + STATUS_PIPELINE_DEPTH, pathArray.length);
+                    for (int i = start; i < end; i++) {
+                        connection.sendCommand(String.format(ImapConstants.STATUS + " \"%s\" "
+                                + STATUS_ITEMS, encodeFolderName(pathArray[i], mPathPrefix)),
+                                false);
+                    }
+                    for (int i = start; i < end; i++) {
+                        try {
+                            for (ImapResponse response : connection.getCommandResponses()) {
+                                parseStatusResponse(response, status);
+                            }
+                        } catch (ImapException ie) {
+                            // The folder is gone; keep reading the other responses
+                            if (Email.DEBUG) {
+                                Log.d(Logging.LOG_TAG, ie.toString());
+                            }
+                        }
+                    }
+                }
+            }
+            return status;
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException("Unable to get folder status.", ioe);
+        } catch (AuthenticationFailedException afe) {
+            // We do NOT want this connection pooled, or we will continue to send NOOP and SELECT
+            // commands to the server
+            connection.destroyResponses();
+            connection = null;
+            throw afe;
+        } finally {
+            if (connection != null) {
+                poolConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * If the given response is a STATUS response, adds the folder's status to the given map.
+     */
+    private void parseStatusResponse(ImapResponse response, HashMap<String, String> status) {
+        // S: * STATUS blurdybloop (MESSAGES 231 UNSEEN 3 UIDNEXT 44292 UIDVALIDITY 3857529045)
+        if (!response.isDataResponse(0, ImapConstants.STATUS)) {
+            return;
+        }
+        ImapString encodedFolder = response.getStringOrEmpty(1);
+        if (encodedFolder.isEmpty()) {
+            return;
+        }
+        String folderName = decodeFolderName(encodedFolder.getString(), mPathPrefix);
+        ImapList items = response.getListOrEmpty(2);
+        status.put(folderName, items.getKeyedStringOrEmpty(ImapConstants.UIDVALIDITY).getString()
+                + "/" + items.getKeyedStringOrEmpty(ImapConstants.UIDNEXT).getString()
+                + "/" + items.getKeyedStringOrEmpty(ImapConstants.MESSAGES).getString()
+                + "/" + items.getKeyedStringOrEmpty(ImapConstants.UNSEEN).getString());
+    }
+
     @Override
     public Bundle checkSettings() throws MessagingException {
         int result = MessagingException.NO_ERROR;
@@ -24,6 +24,7 @@ import com.android.email.Controller;
 import com.android.email.Email;
 import com.android.email.mail.Store;
 import com.android.email.mail.Transport;
+import com.android.email.mail.transport.BufferedLineInputStream;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.MimeMessage;
@@ -55,10 +56,18 @@ public class Pop3Store extends Store {
     private static boolean DEBUG_FORCE_SINGLE_LINE_UIDL = false;
     private static boolean DEBUG_LOG_RAW_STREAM = false;
 
+    /** Maildrops with fewer messages than this are always indexed with a full UIDL listing */
+    private static final int UIDL_INDEX_MIN_MESSAGES = 1000;
+    /** The most new messages we'll look up one at a time on top of a saved UIDL index */
+    private static final int UIDL_INDEX_MAX_TAIL_PROBES = 50;
+
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
+    /** The UIDL index saved at the end of the last session; see {@link #getSavedUidlIndex} */
+    private Pop3UidlIndex mSavedUidlIndex;
+    private boolean mSavedUidlIndexRestored;
 
 //    /**
 //     * Detected latency, used for usage scaling.
@@ -205,6 +214,24 @@ public class Pop3Store extends Store {
         return bundle;
     }
 
+    /**
+     * @return the UIDL index saved for this account, or null if there's none.  It's read from
+     * disk only once, as the store instance outlives the individual sessions.
+     */
+    private synchronized Pop3UidlIndex getSavedUidlIndex() {
+        if (!mSavedUidlIndexRestored) {
+            mSavedUidlIndex = Pop3UidlIndex.restore(mContext, mAccount.mId);
+            mSavedUidlIndexRestored = true;
+        }
+        return mSavedUidlIndex;
+    }
+
+    private synchronized void setSavedUidlIndex(Pop3UidlIndex index) {
+        mSavedUidlIndex = index;
+        mSavedUidlIndexRestored = true;
+        index.save(mContext, mAccount.mId);
+    }
+
     class Pop3Folder extends Folder {
         private final HashMap<String, Pop3Message> mUidToMsgMap
                 = new HashMap<String, Pop3Message>();
@@ -214,6 +241,8 @@ public class Pop3Store extends Store {
         private final String mName;
         private int mMessageCount;
         private Pop3Capabilities mCapabilities;
+        /** The uids of every message in the maildrop, once known for this session */
+        private Pop3UidlIndex mSessionUidlIndex;
 
         public Pop3Folder(String name) {
             if (name.equalsIgnoreCase(POP3_MAILBOX_NAME)) {
@@ -328,6 +357,7 @@ public class Pop3Store extends Store {
             mUidToMsgMap.clear();
             mMsgNumToMsgMap.clear();
             mUidToMsgNumMap.clear();
+            mSessionUidlIndex = null;
         }
 
         @Override
@@ -386,16 +416,20 @@ public class Pop3Store extends Store {
 
         @Override
         public Message getMessage(String uid) throws MessagingException {
-            if (mUidToMsgNumMap.size() == 0) {
-                try {
+            try {
+                if (indexMaildrop()) {
+                    ArrayList<String> uids = new ArrayList<String>();
+                    uids.add(uid);
+                    indexUids(uids);
+                } else if (mUidToMsgNumMap.size() == 0) {
                     indexMsgNums(1, mMessageCount);
-                } catch (IOException ioe) {
-                    mTransport.close();
-                    if (Email.DEBUG) {
-                        Log.d(Logging.LOG_TAG, "Unable to index during getMessage " + ioe);
-                    }
-                    throw new MessagingException("getMessages", ioe);
                 }
+            } catch (IOException ioe) {
+                mTransport.close();
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, "Unable to index during getMessage " + ioe);
+                }
+                throw new MessagingException("getMessages", ioe);
             }
             Pop3Message message = mUidToMsgMap.get(uid);
             return message;
@@ -447,6 +481,15 @@ public class Pop3Store extends Store {
             if (unindexedMessageCount == 0) {
                 return;
             }
+            if (indexMaildrop()) {
+                for (int msgNum = start; msgNum <= end; msgNum++) {
+                    String uid = mSessionUidlIndex.getUid(msgNum);
+                    if (uid != null && mMsgNumToMsgMap.get(msgNum) == null) {
+                        indexMessage(msgNum, new Pop3Message(uid, this));
+                    }
+                }
+                return;
+            }
             UidlParser parser = new UidlParser();
             if (DEBUG_FORCE_SINGLE_LINE_UIDL ||
                     (unindexedMessageCount < 50 && mMessageCount > 5000)) {
@@ -497,10 +540,19 @@ public class Pop3Store extends Store {
             if (unindexedUids.size() == 0) {
                 return;
             }
+            if (indexMaildrop()) {
+                for (String uid : unindexedUids) {
+                    int msgNum = mSessionUidlIndex.getMessageNumber(uid);
+                    if (msgNum > 0) {
+                        indexMessage(msgNum, new Pop3Message(uid, this));
+                    }
+                }
+                return;
+            }
             /*
              * If we are missing uids in the cache the only sure way to
-             * get them is to do a full UIDL list. A possible optimization
-             * would be trying UIDL for the latest X messages and praying.
+             * get them is to do a full UIDL list.  (Large maildrops avoid this by way of
+             * the saved index; see indexMaildrop().)
              */
             UidlParser parser = new UidlParser();
             String response = executeSimpleCommand("UIDL");
@@ -519,6 +571,122 @@ public class Pop3Store extends Store {
             }
         }
 
+        /**
+         * For large maildrops, makes sure the uid of every message is known for this session,
+         * preferably without downloading the full UIDL listing.
+         *
+         * <p>The index saved at the end of the previous session is still valid if no message
+         * has been removed from the maildrop since, which we verify by asking for the uid of
+         * the last message we knew about: any removal renumbers the messages after it.  The
+         * uids of new messages are then looked up one at a time.  Only if the mapping has
+         * shifted (or there are too many new messages) do we fall back to the full listing,
+         * which then becomes the saved index for next time.
+         *
+         * @return true if {@link #mSessionUidlIndex} covers the maildrop, false if the maildrop
+         * is small enough that the caller should just index what it needs.
+         */
+        private boolean indexMaildrop() throws MessagingException, IOException {
+            if (mSessionUidlIndex != null) {
+                return true;
+            }
+            if (mMessageCount < UIDL_INDEX_MIN_MESSAGES) {
+                return false;
+            }
+            Pop3UidlIndex saved = getSavedUidlIndex();
+            Pop3UidlIndex index = null;
+            if (saved != null) {
+                index = extendUidlIndex(saved);
+            }
+            if (index == null) {
+                if (Email.DEBUG) {
+                    Log.d(Logging.LOG_TAG, "POP3 uid index out of date; reading full listing");
+                }
+                String[] uids = readFullUidlListing();
+                index = new Pop3UidlIndex(uids);
+                for (String uid : uids) {
+                    if (uid == null) {
+                        // The server skipped some message numbers; use it, but don't save it
+                        mSessionUidlIndex = index;
+                        return true;
+                    }
+                }
+            }
+            if (index != saved) {
+                setSavedUidlIndex(index);
+            }
+            mSessionUidlIndex = index;
+            return true;
+        }
+
+        /**
+         * Verify a saved UIDL index against the maildrop, and add the uids of any new messages.
+         *
+         * @return the (possibly extended) index, or null if the saved index can't be used.
+         */
+        private Pop3UidlIndex extendUidlIndex(Pop3UidlIndex saved)
+                throws MessagingException, IOException {
+            int savedCount = saved.size();
+            if (savedCount == 0 || savedCount > mMessageCount
+                    || mMessageCount - savedCount > UIDL_INDEX_MAX_TAIL_PROBES) {
+                return null;
+            }
+            if (!saved.getUid(savedCount).equals(readSingleUidl(savedCount))) {
+                return null;
+            }
+            if (savedCount == mMessageCount) {
+                return saved;
+            }
+            String[] uids = new String[mMessageCount];
+            for (int msgNum = 1; msgNum <= savedCount; msgNum++) {
+                uids[msgNum - 1] = saved.getUid(msgNum);
+            }
+            for (int msgNum = savedCount + 1; msgNum <= mMessageCount; msgNum++) {
+                String uid = readSingleUidl(msgNum);
+                if (uid == null) {
+                    return null;
+                }
+                uids[msgNum - 1] = uid;
+            }
+            return new Pop3UidlIndex(uids);
+        }
+
+        /**
+         * @return the uid of a single message, using "UIDL msg-num", or null if the response
+         * can't be parsed.
+         */
+        private String readSingleUidl(int msgNum) throws MessagingException, IOException {
+            UidlParser parser = new UidlParser();
+            String response = executeSimpleCommand("UIDL " + msgNum);
+            if (!parser.parseSingleLine(response) || parser.mErr
+                    || parser.mMessageNumber != msgNum) {
+                return null;
+            }
+            return parser.mUniqueId;
+        }
+
+        /**
+         * @return the uids of all messages, read from a full "UIDL" listing.  Entries for
+         * message numbers the server didn't list are null.
+         */
+        private String[] readFullUidlListing() throws MessagingException, IOException {
+            String[] uids = new String[mMessageCount];
+            UidlParser parser = new UidlParser();
+            String response = executeSimpleCommand("UIDL");
+            while ((response = mTransport.readLine()) != null) {
+                if (!parser.parseMultiLine(response)) {
+                    throw new IOException();
+                }
+                if (parser.mEndOfMessage) {
+                    break;
+                }
+                int msgNum = parser.mMessageNumber;
+                if (msgNum >= 1 && msgNum <= mMessageCount) {
+                    uids[msgNum - 1] = parser.mUniqueId;
+                }
+            }
+            return uids;
+        }
+
         /**
          * Simple parser class for UIDL messages.
          *
@@ -1017,34 +1185,101 @@ public class Pop3Store extends Store {
         }
     }
 
-    // TODO figure out what is special about this and merge it into MailTransport
-    class Pop3ResponseInputStream extends InputStream {
+    /**
+     * Reads a multi-line POP3 response, undoing the dot-stuffing and stopping at the terminating
+     * ".CRLF" line, which it consumes.  Bulk reads are done a line at a time, so nothing past the
+     * end of the response is ever read from the underlying stream.
+     */
+    @VisibleForTesting
+    static class Pop3ResponseInputStream extends InputStream {
         private final InputStream mIn;
+        private final BufferedLineInputStream mLineIn;
+        /** The current (partial) line, after unstuffing */
+        private final byte[] mLine = new byte[4096];
+        private int mLinePos;
+        private int mLineCount;
         private boolean mStartOfLine = true;
         private boolean mFinished;
 
         public Pop3ResponseInputStream(InputStream in) {
             mIn = in;
+            mLineIn = (in instanceof BufferedLineInputStream) ? (BufferedLineInputStream) in : null;
+        }
+
+        /**
+         * Read the next line (or as much of it as fits) into {@link #mLine}, and unstuff it.
+         * @return false if the response is finished.
+         */
+        private boolean fillLine() throws IOException {
+            while (mLinePos >= mLineCount) {
+                if (mFinished) {
+                    return false;
+                }
+                int n = (mLineIn != null)
+                        ? mLineIn.readLineBytes(mLine, 0, mLine.length)
+                        : readLineBytes(mIn, mLine);
+                if (n <= 0) {
+                    mFinished = true;
+                    return false;
+                }
+                mLinePos = 0;
+                mLineCount = n;
+                if (mStartOfLine && mLine[0] == '.') {
+                    if (n >= 2 && mLine[1] == '\r') {
+                        mFinished = true;
+                        return false;
+                    }
+                    // Un-stuff in place by skipping the leading dot
+                    mLinePos = 1;
+                }
+                mStartOfLine = (mLine[n - 1] == '\n');
+            }
+            return true;
+        }
+
+        /**
+         * Fallback for streams other than {@link BufferedLineInputStream}, e.g. when logging.
+         */
+        private static int readLineBytes(InputStream in, byte[] b) throws IOException {
+            int n = 0;
+            while (n < b.length) {
+                int d = in.read();
+                if (d == -1) {
+                    break;
+                }
+                b[n++] = (byte) d;
+                if (d == '\n') {
+                    break;
+                }
+            }
+            return n;
         }
 
         @Override
         public int read() throws IOException {
-            if (mFinished) {
+            if (!fillLine()) {
                 return -1;
             }
-            int d = mIn.read();
-            if (mStartOfLine && d == '.') {
-                d = mIn.read();
-                if (d == '\r') {
-                    mFinished = true;
-                    mIn.read();
-                    return -1;
+            return mLine[mLinePos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int total = 0;
+            while (total < len && fillLine()) {
+                int n = Math.min(len - total, mLineCount - mLinePos);
+                System.arraycopy(mLine, mLinePos, b, off + total, n);
+                mLinePos += n;
+                total += n;
+                if (mLineIn == null || mLineIn.available() == 0) {
+                    // Don't block for more once we have something to return
+                    break;
                 }
             }
-
-            mStartOfLine = (d == '\n');
-
-            return d;
+            return (total == 0) ? -1 : total;
         }
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * The UIDL listing of a POP3 maildrop as seen at the end of the last session, persisted per
+ * account so that the next session doesn't need to download the full listing again.
+ *
+ * <p>The message number of a uid is its position in the list (1-based).  Because POP3 servers
+ * only append to the maildrop, the listing stays valid until a message is removed, which
+ * {@link Pop3Store.Pop3Folder} detects by probing the tail of the list with "UIDL n".
+ *
+ * <p>On disk, consecutive uids are prefix-compressed (most servers produce uids that share a
+ * long common prefix), which keeps a 50k-message listing to a few hundred kilobytes.
+ */
+public class Pop3UidlIndex {
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_PREFIX = "pop3_uidl_";
+    /** The longest common prefix we record; it has to fit in an unsigned byte. */
+    private static final int MAX_PREFIX_LENGTH = 255;
+
+    private final String[] mUids;
+    /** uid to message number, built lazily by {@link #getMessageNumber} */
+    private HashMap<String, Integer> mUidToMsgNum;
+
+    /**
+     * @param uids the uids, where {@code uids[n - 1]} is the uid of message number n.
+     */
+    public Pop3UidlIndex(String[] uids) {
+        mUids = uids;
+    }
+
+    /** @return the number of messages in the index */
+    public int size() {
+        return mUids.length;
+    }
+
+    /**
+     * @return the uid of the given message number, or null if it's outside of the index.
+     */
+    public String getUid(int msgNum) {
+        if (msgNum < 1 || msgNum > mUids.length) {
+            return null;
+        }
+        return mUids[msgNum - 1];
+    }
+
+    /**
+     * @return the message number for the given uid, or -1 if it's not in the index.
+     */
+    public synchronized int getMessageNumber(String uid) {
+        if (mUidToMsgNum == null) {
+            mUidToMsgNum = new HashMap<String, Integer>(mUids.length * 4 / 3 + 1);
+            for (int i = 0; i < mUids.length; i++) {
+                mUidToMsgNum.put(mUids[i], i + 1);
+            }
+        }
+        Integer msgNum = mUidToMsgNum.get(uid);
+        return (msgNum == null) ? -1 : msgNum;
+    }
+
+    @VisibleForTesting
+    static File getIndexFile(Context context, long accountId) {
+        return context.getFileStreamPath(FILE_PREFIX + accountId);
+    }
+
+    /**
+     * Restore the index saved for an account.
+     *
+     * @return the saved index, or null if there's none or it can't be read.
+     */
+    public static Pop3UidlIndex restore(Context context, long accountId) {
+        File file = getIndexFile(context, accountId);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return readFrom(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to read POP3 uid index; discarding it", e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the index for an account, replacing any previously saved one.  The file is written
+     * to a temporary name first, so a crash never leaves a truncated index behind.
+     */
+    public void save(Context context, long accountId) {
+        File file = getIndexFile(context, accountId);
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            writeTo(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to save POP3 uid index", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the index saved for an account, if any.
+     */
+    public static void delete(Context context, long accountId) {
+        getIndexFile(context, accountId).delete();
+    }
+
+    @VisibleForTesting
+    void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(mUids.length);
+        String previous = "";
+        for (String uid : mUids) {
+            int prefix = commonPrefixLength(previous, uid);
+            out.writeByte(prefix);
+            out.writeUTF(uid.substring(prefix));
+            previous = uid;
+        }
+        out.flush();
+    }
+
+    @VisibleForTesting
+    static Pop3UidlIndex readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != FILE_VERSION) {
+            throw new IOException("Unknown POP3 uid index version");
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt POP3 uid index");
+        }
+        String[] uids = new String[count];
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int prefix = in.readUnsignedByte();
+            if (prefix > previous.length()) {
+                throw new IOException("Corrupt POP3 uid index");
+            }
+            String uid = previous.substring(0, prefix) + in.readUTF();
+            uids[i] = uid;
+            previous = uid;
+        }
+        return new Pop3UidlIndex(uids);
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int max = Math.min(MAX_PREFIX_LENGTH, Math.min(a.length(), b.length()));
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -17,15 +17,13 @@
 package com.android.email.mail.store.imap;
 
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.internet.Rfc5322DateParser;
 
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 
 /**
  * Class represents an IMAP "element" that is not a list.
@@ -56,12 +54,6 @@ public abstract class ImapString extends ImapElement {
         }
     };
 
-    // This is used only for parsing IMAP's FETCH ENVELOPE command, in which
-    // en_US-like date format is used like "01-Jan-2009 11:20:39 -0800", so this should be
-    // handled by Locale.US
-    private final static SimpleDateFormat DATE_TIME_FORMAT =
-            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
-
     private boolean mIsInteger;
     private int mParsedInteger;
     private Date mParsedDate;
@@ -119,7 +111,8 @@ public abstract class ImapString extends ImapElement {
     }
 
     /**
-     * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
+     * @return whether it can be parsed as a date, e.g. an INTERNALDATE like
+     * "01-Jan-2009 11:20:39 -0800".  See {@link Rfc5322DateParser}.
      */
     public final boolean isDate() {
         if (mParsedDate != null) {
@@ -128,13 +121,12 @@ public abstract class ImapString extends ImapElement {
         if (isEmpty()) {
             return false;
         }
-        try {
-            mParsedDate = DATE_TIME_FORMAT.parse(getString());
-            return true;
-        } catch (ParseException e) {
+        mParsedDate = Rfc5322DateParser.parseDate(getString());
+        if (mParsedDate == null) {
             Log.w(Logging.LOG_TAG, getString() + " can't be parsed as a date.");
             return false;
         }
+        return true;
     }
 
     /**
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered input stream which can also read lines straight out of its buffer, so that
+ * line-oriented protocol responses don't have to be read one byte at a time.
+ *
+ * <p>Line reads and regular reads share the same buffer, so callers can freely mix
+ * {@link #readLine()} with reading (e.g. a literal or a message body) from the stream itself.
+ * Neither ever consumes bytes beyond what it returns.
+ */
+public class BufferedLineInputStream extends InputStream {
+    private final InputStream mIn;
+    private final byte[] mBuffer;
+    private int mPos;
+    private int mCount;
+
+    /** Reused by {@link #readLine()} to build the result */
+    private char[] mLineChars = new char[128];
+    /** True if the last {@link #readLine()} ran into the end of the stream */
+    private boolean mLineHitEndOfStream;
+
+    public BufferedLineInputStream(InputStream in, int size) {
+        mIn = in;
+        mBuffer = new byte[size];
+    }
+
+    /**
+     * Refill the buffer, if empty.
+     * @return false if the end of the stream was reached.
+     */
+    private boolean fill() throws IOException {
+        if (mPos < mCount) {
+            return true;
+        }
+        int n = mIn.read(mBuffer, 0, mBuffer.length);
+        if (n <= 0) {
+            mPos = mCount = 0;
+            return false;
+        }
+        mPos = 0;
+        mCount = n;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int buffered = mCount - mPos;
+        if (buffered <= 0) {
+            // Large reads skip the copy through our buffer
+            if (len >= mBuffer.length) {
+                return mIn.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            buffered = mCount - mPos;
+        }
+        int n = Math.min(buffered, len);
+        System.arraycopy(mBuffer, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int buffered = mCount - mPos;
+        if (buffered <= 0) {
+            return mIn.skip(n);
+        }
+        int skipped = (int) Math.min(buffered, n);
+        mPos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mCount - mPos) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Reads bytes up to and including the next LF, but no more than {@code len} bytes.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.  The last byte read is
+     * LF unless the line was longer than {@code len} or the stream ended.
+     */
+    public int readLineBytes(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            if (!fill()) {
+                return (total == 0) ? -1 : total;
+            }
+            int end = Math.min(mCount, mPos + (len - total));
+            int start = mPos;
+            int i = start;
+            while (i < end && mBuffer[i] != '\n') {
+                i++;
+            }
+            boolean foundLf = (i < end);
+            if (foundLf) {
+                i++;
+            }
+            int n = i - start;
+            System.arraycopy(mBuffer, start, b, off + total, n);
+            total += n;
+            mPos = i;
+            if (foundLf) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Reads a single line, using either \r\n or \n as the delimiter.  Like the byte-at-a-time
+     * reader it replaces, all CR characters are dropped and bytes are mapped to chars 1:1.
+     *
+     * @return the line, without delimiters.  Returns an empty string at the end of the stream.
+     */
+    public String readLine() throws IOException {
+        char[] chars = mLineChars;
+        int length = 0;
+        mLineHitEndOfStream = false;
+        while (fill()) {
+            byte[] buffer = mBuffer;
+            int i = mPos;
+            int count = mCount;
+            if (chars.length - length < count - i) {
+                chars = growLineChars(length + count - i);
+            }
+            while (i < count) {
+                byte b = buffer[i++];
+                if (b == '\n') {
+                    mPos = i;
+                    return new String(chars, 0, length);
+                } else if (b != '\r') {
+                    chars[length++] = (char) (b & 0xff);
+                }
+            }
+            mPos = i;
+        }
+        mLineHitEndOfStream = true;
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * @return true if the last {@link #readLine()} reached the end of the stream before a LF.
+     */
+    public boolean lineHitEndOfStream() {
+        return mLineHitEndOfStream;
+    }
+
+    private char[] growLineChars(int minLength) {
+        int newLength = Math.max(mLineChars.length * 2, minLength);
+        char[] chars = new char[newLength];
+        System.arraycopy(mLineChars, 0, chars, 0, mLineChars.length);
+        mLineChars = chars;
+        return chars;
+    }
+}
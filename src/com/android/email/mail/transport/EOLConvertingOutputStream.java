@@ -38,6 +38,30 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
         lastChar = oneByte;
     }
 
+    /**
+     * Writes runs of bytes between line breaks in bulk, rather than a byte at a time.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        final int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                int previous = (i > off) ? b[i - 1] : lastChar;
+                if (previous != '\r') {
+                    out.write(b, start, i - start);
+                    out.write('\r');
+                    start = i;
+                }
+            }
+        }
+        out.write(b, start, end - start);
+        lastChar = b[end - 1];
+    }
+
     @Override
     public void flush() throws IOException {
         if (lastChar == '\r') {
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.util.HashMap;
+
+/**
+ * Counts the TLS handshakes made by {@link MailTransport} with each server (host and port), how
+ * long they took and how many of them resumed a cached session.  Accounts can be mapped to their
+ * servers with their host auths.
+ */
+public class HandshakeStats {
+    private static final HashMap<String, HandshakeStats> sStats =
+            new HashMap<String, HandshakeStats>();
+
+    private int mHandshakes;
+    private int mResumed;
+    private long mTotalTime;
+
+    private static String getKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * Records a completed handshake.
+     * @param time how long the handshake took, in milliseconds
+     * @param resumed whether a cached session was resumed
+     */
+    public static void record(String host, int port, long time, boolean resumed) {
+        String key = getKey(host, port);
+        synchronized (sStats) {
+            HandshakeStats stats = sStats.get(key);
+            if (stats == null) {
+                stats = new HandshakeStats();
+                sStats.put(key, stats);
+            }
+            stats.mHandshakes++;
+            stats.mTotalTime += time;
+            if (resumed) {
+                stats.mResumed++;
+            }
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the handshakes with the given server, or {@code null} if
+     * there were none.
+     */
+    public static String getSummary(String host, int port) {
+        synchronized (sStats) {
+            HandshakeStats stats = sStats.get(getKey(host, port));
+            if (stats == null) {
+                return null;
+            }
+            return stats.mHandshakes + " handshakes, " + stats.mResumed + " resumed ("
+                    + (stats.mResumed * 100 / stats.mHandshakes) + "%), average "
+                    + (stats.mTotalTime / stats.mHandshakes) + "ms";
+        }
+    }
+
+    /**
+     * Clears all of the counts.
+     */
+    public static void reset() {
+        synchronized (sStats) {
+            sStats.clear();
+        }
+    }
+}
@@ -25,8 +25,6 @@ import com.android.emailcommon.utility.SSLUtils;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -53,6 +51,13 @@ public class MailTransport implements Transport {
     /*protected*/ public static final int SOCKET_CONNECT_TIMEOUT = 10000;
     /*protected*/ public static final int SOCKET_READ_TIMEOUT = 60000;
 
+    /**
+     * Default stream buffer sizes.  Literals and message bodies are read and written in chunks
+     * the size of a full TLS record, rather than in many small system calls and records.
+     */
+    public static final int DEFAULT_INPUT_BUFFER_SIZE = TransportOutputStream.TLS_RECORD_SIZE;
+    public static final int DEFAULT_OUTPUT_BUFFER_SIZE = TransportOutputStream.TLS_RECORD_SIZE;
+
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
@@ -73,9 +78,12 @@ public class MailTransport implements Transport {
      */
     private boolean mTrustCertificates;
 
+    private int mInputBufferSize = DEFAULT_INPUT_BUFFER_SIZE;
+    private int mOutputBufferSize = DEFAULT_OUTPUT_BUFFER_SIZE;
+
     private Socket mSocket;
-    private InputStream mIn;
-    private OutputStream mOut;
+    private BufferedLineInputStream mIn;
+    private TransportOutputStream mOut;
 
     /**
      * Simple constructor for starting from scratch.  Call setUri() and setSecurity() to
@@ -104,9 +112,20 @@ public class MailTransport implements Transport {
         }
         newObject.mConnectionSecurity = mConnectionSecurity;
         newObject.mTrustCertificates = mTrustCertificates;
+        newObject.mInputBufferSize = mInputBufferSize;
+        newObject.mOutputBufferSize = mOutputBufferSize;
         return newObject;
     }
 
+    /**
+     * Sets the sizes of the buffers used for the socket streams; takes effect the next time
+     * the transport is opened.
+     */
+    public void setBufferSizes(int inputBufferSize, int outputBufferSize) {
+        mInputBufferSize = inputBufferSize;
+        mOutputBufferSize = outputBufferSize;
+    }
+
     @Override
     public void setHost(String host) {
         mHost = host;
@@ -172,12 +191,15 @@ public class MailTransport implements Transport {
                 mSocket = new Socket();
             }
             mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
+            if (canTrySslSecurity()) {
+                startHandshake((SSLSocket) mSocket, System.currentTimeMillis());
+            }
             // After the socket connects to an SSL server, confirm that the hostname is as expected
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new BufferedLineInputStream(mSocket.getInputStream(), mInputBufferSize);
+            mOut = new TransportOutputStream(mSocket.getOutputStream(), mOutputBufferSize);
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -203,11 +225,14 @@ public class MailTransport implements Transport {
     @Override
     public void reopenTls() throws MessagingException {
         try {
+            // The handshake may already happen in createSocket(), to verify the hostname
+            long startTime = System.currentTimeMillis();
             mSocket = SSLUtils.getSSLSocketFactory(canTrustAllCertificates())
                     .createSocket(mSocket, getHost(), getPort(), true);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            startHandshake((SSLSocket) mSocket, startTime);
+            mIn = new BufferedLineInputStream(mSocket.getInputStream(), mInputBufferSize);
+            mOut = new TransportOutputStream(mSocket.getOutputStream(), mOutputBufferSize);
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -222,6 +247,44 @@ public class MailTransport implements Transport {
         }
     }
 
+    /**
+     * Completes the TLS handshake, if it hasn't been done yet, and records how long it took and
+     * whether a cached session was resumed; see {@link HandshakeStats}.
+     * @param startTime when the handshake was started, in milliseconds
+     */
+    private void startHandshake(SSLSocket socket, long startTime) throws IOException {
+        socket.startHandshake();
+        long time = System.currentTimeMillis() - startTime;
+        // A resumed session keeps the creation time of the handshake which established it
+        SSLSession session = socket.getSession();
+        boolean resumed = (session != null) && (session.getCreationTime() < startTime);
+        HandshakeStats.record(getHost(), getPort(), time, resumed);
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "*** " + mDebugLabel + " TLS handshake " + time + "ms"
+                    + (resumed ? " (resumed)" : ""));
+        }
+    }
+
+    /**
+     * Prepares for connecting to the given server, so that a sync started right after doesn't
+     * pay for it on its first connection: resolves the server's address and, if TLS will be
+     * used, sets up the socket factory (which loads the trusted certificates and the session
+     * cache).  Best effort; problems will show up again when actually connecting.
+     * @param useTls whether SSL or STARTTLS will be used
+     */
+    public static void warmUp(String host, boolean useTls, boolean trustAllCertificates) {
+        try {
+            InetAddress.getByName(host);
+            if (useTls) {
+                SSLUtils.getSSLSocketFactory(trustAllCertificates).getDefaultCipherSuites();
+            }
+        } catch (IOException e) {
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, "Unable to warm up connection to " + host + ": " + e);
+            }
+        }
+    }
+
     /**
      * Lightweight version of SSLCertificateSocketFactory.verifyHostname, which provides this
      * service but is not in the public API.
@@ -281,6 +344,11 @@ public class MailTransport implements Transport {
      */
     @Override
     public void close() {
+        if (mOut != null && Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "*** " + mDebugLabel + " wrote " + mOut.getByteCount()
+                    + " bytes in " + mOut.getWriteCount() + " writes, "
+                    + mOut.getRecordCount() + " records");
+        }
         try {
             mIn.close();
         } catch (Exception e) {
@@ -324,11 +392,7 @@ public class MailTransport implements Transport {
             }
         }
 
-        OutputStream out = getOutputStream();
-        out.write(s.getBytes());
-        out.write('\r');
-        out.write('\n');
-        out.flush();
+        mOut.writeLine(s);
     }
 
     /**
@@ -337,22 +401,10 @@ public class MailTransport implements Transport {
      */
     @Override
     public String readLine() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        InputStream in = getInputStream();
-        int d;
-        while ((d = in.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
-            }
-        }
-        if (d == -1 && Email.DEBUG) {
+        String ret = mIn.readLine();
+        if (mIn.lineHitEndOfStream() && Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "End of stream reached while trying to read line.");
         }
-        String ret = sb.toString();
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "<<< " + ret);
         }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered output stream for the socket of a {@link MailTransport}.  Command lines are encoded
+ * straight into the buffer and sent with a single write, and the buffer is sized so that bulk
+ * data (literals, message bodies) goes out in full TLS records.
+ *
+ * <p>Counts the writes made to the underlying stream, so the number of writes (each of which is
+ * at least one system call, and at least one TLS record) per KB sent can be checked.
+ */
+public class TransportOutputStream extends OutputStream {
+    /** The largest amount of data a single TLS record can carry */
+    public static final int TLS_RECORD_SIZE = 16384;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private int mCount;
+
+    private int mWrites;
+    private int mRecords;
+    private long mBytes;
+
+    public TransportOutputStream(OutputStream out, int size) {
+        mOut = out;
+        mBuffer = new byte[size];
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        mOut.write(b, off, len);
+        mWrites++;
+        mRecords += (len + TLS_RECORD_SIZE - 1) / TLS_RECORD_SIZE;
+        mBytes += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            writeOut(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (mCount == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) oneByte;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > mBuffer.length - mCount) {
+            flushBuffer();
+            // Large writes skip the copy through our buffer
+            if (len >= mBuffer.length) {
+                writeOut(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Writes a line terminated by \r\n, and flushes.  The line is encoded with the default
+     * charset, like {@link String#getBytes()}; ASCII (which is all that commands normally
+     * contain) is copied straight into the buffer.
+     */
+    public void writeLine(String s) throws IOException {
+        final int length = s.length();
+        int i = 0;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            if (mCount == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mCount++] = (byte) c;
+        }
+        if (i < length) {
+            byte[] rest = s.substring(i).getBytes();
+            write(rest, 0, rest.length);
+        }
+        if (mBuffer.length - mCount < 2) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = '\r';
+        mBuffer[mCount++] = '\n';
+        flush();
+    }
+
+    /** @return the number of writes made to the underlying stream */
+    public int getWriteCount() {
+        return mWrites;
+    }
+
+    /** @return the least number of TLS records the writes so far could have been sent in */
+    public int getRecordCount() {
+        return mRecords;
+    }
+
+    /** @return the number of bytes written to the underlying stream */
+    public long getByteCount() {
+        return mBytes;
+    }
+}
@@ -21,6 +21,7 @@ import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.AttachmentUtilities.Columns;
 
@@ -36,11 +37,11 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -57,11 +58,11 @@ import java.util.List;
  * The on-disk (storage) schema is as follows.
  *
  * Attachments are stored at:  <database-path>/account#.db_att/item#
- * Thumbnails are stored at:   <cache-path>/thmb_account#_item#
+ * Thumbnails are stored at:   <cache-path>/thmb_account#_item#_width#xheight#_version
  *
  * Using the standard application context, account #10 and attachment # 20, this would be:
  *      /data/data/com.android.email/databases/10.db_att/20
- *      /data/data/com.android.email/cache/thmb_10_20
+ *      /data/data/com.android.email/cache/thmb_10_20_62x62_<modified>_<length>
  */
 public class AttachmentProvider extends ContentProvider {
 
@@ -73,16 +74,19 @@ public class AttachmentProvider extends ContentProvider {
     private static final String[] PROJECTION_QUERY = new String[] { AttachmentColumns.FILENAME,
             AttachmentColumns.SIZE, AttachmentColumns.CONTENT_URI };
 
+    private ThumbnailCache mThumbnailCache;
+
     @Override
     public boolean onCreate() {
         /*
          * We use the cache dir as a temporary directory (since Android doesn't give us one) so
-         * on startup we'll clean up any .tmp files from the last run.
+         * on startup we'll clean up any .tmp files from the last run.  Thumbnails are kept, see
+         * ThumbnailCache.
          */
         File[] files = getContext().getCacheDir().listFiles();
         for (File file : files) {
             String filename = file.getName();
-            if (filename.endsWith(".tmp") || filename.startsWith("thmb_")) {
+            if (filename.endsWith(".tmp")) {
                 file.delete();
             }
         }
@@ -129,7 +133,8 @@ public class AttachmentProvider extends ContentProvider {
      * Open an attachment file.  There are two "formats" - "raw", which returns an actual file,
      * and "thumbnail", which attempts to generate a thumbnail image.
      *
-     * Thumbnails are cached for easy space recovery and cleanup.
+     * Thumbnails are kept in a {@link ThumbnailCache}, so each one is only made once for each
+     * version of the attachment.
      *
      * TODO:  The thumbnail format returns null for its failure cases, instead of throwing
      * FileNotFoundException, and should be fixed for consistency.
@@ -155,9 +160,13 @@ public class AttachmentProvider extends ContentProvider {
                 saveIn.mkdirs();
             }
             File newFile = new File(saveIn, id);
-            return ParcelFileDescriptor.open(
+            ParcelFileDescriptor fd = ParcelFileDescriptor.open(
                     newFile, ParcelFileDescriptor.MODE_READ_WRITE |
                         ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+            // The file is empty now; its final size is recorded when the download finishes
+            AttachmentStorageLedger.onFileWritten(context, Long.parseLong(accountId),
+                    Long.parseLong(id), false);
+            return fd;
         }
         long callingId = Binder.clearCallingIdentity();
         try {
@@ -168,10 +177,12 @@ public class AttachmentProvider extends ContentProvider {
             if (AttachmentUtilities.FORMAT_THUMBNAIL.equals(format)) {
                 int width = Integer.parseInt(segments.get(3));
                 int height = Integer.parseInt(segments.get(4));
-                String filename = "thmb_" + accountId + "_" + id;
-                File dir = getContext().getCacheDir();
-                File file = new File(dir, filename);
-                if (!file.exists()) {
+                File attachmentFile = AttachmentUtilities.getAttachmentFilename(getContext(),
+                        Long.parseLong(accountId), Long.parseLong(id));
+                String key = ThumbnailCache.getKey(Long.parseLong(accountId), Long.parseLong(id),
+                        width, height, attachmentFile);
+                File file = getThumbnailCache().get(key);
+                if (file == null) {
                     Uri attachmentUri = AttachmentUtilities.
                         getAttachmentUri(Long.parseLong(accountId), Long.parseLong(id));
                     Cursor c = query(attachmentUri,
@@ -189,17 +200,12 @@ public class AttachmentProvider extends ContentProvider {
                     }
                     String type = getContext().getContentResolver().getType(attachmentUri);
                     try {
-                        InputStream in =
-                            getContext().getContentResolver().openInputStream(attachmentUri);
-                        Bitmap thumbnail = createThumbnail(type, in);
+                        Bitmap thumbnail = createThumbnail(type, attachmentUri, width, height);
                         if (thumbnail == null) {
                             return null;
                         }
                         thumbnail = Bitmap.createScaledBitmap(thumbnail, width, height, true);
-                        FileOutputStream out = new FileOutputStream(file);
-                        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
-                        out.close();
-                        in.close();
+                        file = getThumbnailCache().put(key, thumbnail);
                     } catch (IOException ioe) {
                         Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
                                 ioe.getMessage());
@@ -213,9 +219,12 @@ public class AttachmentProvider extends ContentProvider {
                 return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
             }
             else {
-                return ParcelFileDescriptor.open(
+                ParcelFileDescriptor fd = ParcelFileDescriptor.open(
                         new File(getContext().getDatabasePath(accountId + ".db_att"), id),
                         ParcelFileDescriptor.MODE_READ_ONLY);
+                AttachmentStorageLedger.onFileOpened(Long.parseLong(accountId),
+                        Long.parseLong(id));
+                return fd;
             }
         } finally {
             Binder.restoreCallingIdentity(callingId);
@@ -304,24 +313,75 @@ public class AttachmentProvider extends ContentProvider {
         return 0;
     }
 
-    private Bitmap createThumbnail(String type, InputStream data) {
+    private Bitmap createThumbnail(String type, Uri uri, int width, int height) {
         if(MimeUtility.mimeTypeMatches(type, "image/*")) {
-            return createImageThumbnail(data);
+            return createImageThumbnail(uri, width, height);
         }
         return null;
     }
 
-    private Bitmap createImageThumbnail(InputStream data) {
+    /**
+     * Decode an image for a thumbnail of the given size.  The image is subsampled as it's
+     * decoded, by as much as it can be while still being at least as large as the thumbnail, so
+     * a large image is never decoded in full only to be scaled down.
+     */
+    private Bitmap createImageThumbnail(Uri uri, int width, int height) {
+        long startTime = SystemClock.elapsedRealtime();
         try {
-            Bitmap bitmap = BitmapFactory.decodeStream(data);
-            return bitmap;
+            // First find the size of the image, without decoding it
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            InputStream in = getContext().getContentResolver().openInputStream(uri);
+            try {
+                BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize =
+                getSampleSize(options.outWidth, options.outHeight, width, height);
+            in = getContext().getContentResolver().openInputStream(uri);
+            try {
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
         } catch (OutOfMemoryError oome) {
             Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + oome.getMessage());
             return null;
         } catch (Exception e) {
             Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + e.getMessage());
             return null;
+        } finally {
+            ThumbnailCache.recordDecode(SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Returns the largest power of two an image can be subsampled by while still being at least
+     * as large as a thumbnail in both dimensions.
+     */
+    /*package*/ static int getSampleSize(int imageWidth, int imageHeight, int width,
+            int height) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width
+                && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private synchronized ThumbnailCache getThumbnailCache() {
+        if (mThumbnailCache == null) {
+            mThumbnailCache =
+                new ThumbnailCache(getContext().getCacheDir(), ThumbnailCache.MAX_SIZE);
         }
+        return mThumbnailCache;
     }
 
     /**
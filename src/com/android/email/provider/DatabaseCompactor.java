@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+
+/**
+ * Gives the free pages of the {@link EmailProvider} databases (left by deleting messages and
+ * accounts) back to the file system, a little at a time, when the databases are fragmented
+ * enough for it to be worthwhile.
+ *
+ * A database in incremental auto-vacuum mode has its free pages released a chunk at a time,
+ * until the slice of time given to {@link #run} is up.  Any other database needs a full VACUUM,
+ * which can't be split up; it's only done if it's expected to fit in both
+ * {@link #FULL_VACUUM_MAX_MS} and the budget given to {@link #run} (and there's room for the copy
+ * VACUUM makes), and it puts the database in incremental mode, so it's only needed once.  VACUUM
+ * rebuilds every index, so there's no separate reindexing.
+ *
+ * The database file sizes, free pages and the time to scan the database's largest table are
+ * recorded before and after compacting each database, along with the size of its write-ahead log
+ * afterwards (which a VACUUM fills with the whole database, and which only shrinks when it's next
+ * reset); see {@link #getSummary()}.
+ */
+public final class DatabaseCompactor {
+    /** A database is compacted if at least this share of its pages are free... */
+    @VisibleForTesting
+    static final int MIN_FREE_PERCENT = 10;
+    /** ...and at least this many */
+    @VisibleForTesting
+    static final int MIN_FREE_PAGES = 64;
+    /** The number of pages released by one step of an incremental vacuum */
+    @VisibleForTesting
+    static final int INCREMENTAL_PAGES = 256;
+    /** The longest a full VACUUM is expected to take, in milliseconds, for it to be done */
+    @VisibleForTesting
+    static final long FULL_VACUUM_MAX_MS = 10 * 1000;
+    /** The rate full VACUUMs are assumed to copy at, before one is timed, in bytes per ms */
+    private static final long INITIAL_VACUUM_BYTES_PER_MS = 4 * 1024;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static long sVacuumBytesPerMs = INITIAL_VACUUM_BYTES_PER_MS;
+    private static int sIncrementalSteps;
+    private static int sFullVacuums;
+    private static int sSkippedVacuums;
+    private static long sBytesReclaimed;
+    private static String sLastResult;
+
+    /** A database to compact, and how much of it has been */
+    private static final class Target {
+        final SQLiteDatabase mDb;
+        final String mName;
+        final String mScanTable;
+        boolean mStarted;
+        boolean mDone;
+        long mSizeBefore;
+        long mFreePagesBefore;
+        long mScanMsBefore;
+
+        Target(SQLiteDatabase db, String name, String scanTable) {
+            mDb = db;
+            mName = name;
+            mScanTable = scanTable;
+        }
+    }
+
+    private final Target[] mTargets;
+
+    /**
+     * @param db the provider's database
+     * @param bodyDb the body database, or null
+     */
+    public DatabaseCompactor(SQLiteDatabase db, SQLiteDatabase bodyDb) {
+        Target main = new Target(db, EmailProvider.DATABASE_NAME, Message.TABLE_NAME);
+        if (bodyDb == null) {
+            mTargets = new Target[] {main};
+        } else {
+            mTargets = new Target[] {main,
+                    new Target(bodyDb, EmailProvider.BODY_DATABASE_NAME, Body.TABLE_NAME)};
+        }
+    }
+
+    /**
+     * Returns whether a database with the given numbers of pages and free pages is fragmented
+     * enough to compact.
+     */
+    @VisibleForTesting
+    static boolean isFragmented(long pageCount, long freePages) {
+        return freePages >= MIN_FREE_PAGES && freePages * 100 >= pageCount * MIN_FREE_PERCENT;
+    }
+
+    private static long pragmaForLong(SQLiteDatabase db, String pragma) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + pragma, null);
+    }
+
+    /**
+     * Runs a PRAGMA statement to the end.  Some (e.g. incremental_vacuum) do their work a row at
+     * a time, so they have to be run as queries whose rows are all read.
+     */
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long getFileSize(SQLiteDatabase db) {
+        return new File(db.getPath()).length();
+    }
+
+    private static long getLogSize(SQLiteDatabase db) {
+        return new File(db.getPath() + "-wal").length();
+    }
+
+    /**
+     * Returns how long it takes to count the rows of a table (which reads all of its pages, or
+     * those of its smallest index), in milliseconds.
+     */
+    private static long timeScan(SQLiteDatabase db, String table) {
+        long start = SystemClock.elapsedRealtime();
+        DatabaseUtils.longForQuery(db, "select count(*) from " + table, null);
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Continues compacting for about the given slice of time; however short it is, at least one
+     * step is taken if any database needs compacting.  A full VACUUM, which can't be stopped
+     * once it's started, is only started if it's expected to be done within the budget; one that
+     * isn't is skipped until a later run with a larger budget.
+     *
+     * @param sliceMillis how long to compact for
+     * @param budgetMillis how long the caller can wait, at most
+     * @return true if there's nothing more to compact
+     */
+    public synchronized boolean run(long sliceMillis, long budgetMillis) {
+        long now = SystemClock.elapsedRealtime();
+        long end = now + Math.min(sliceMillis, budgetMillis);
+        long deadline = now + budgetMillis;
+        for (Target target : mTargets) {
+            if (target.mDone) continue;
+            try {
+                if (!compact(target, end, deadline)) {
+                    return false;
+                }
+            } catch (SQLiteException e) {
+                // e.g. the database was busy; it's tried again the next time
+                Log.w(Logging.LOG_TAG, "Can't compact " + target.mName + ": " + e);
+                return false;
+            } catch (IllegalStateException e) {
+                // The database was closed, to be replaced
+                Log.w(Logging.LOG_TAG, "Can't compact " + target.mName + ": " + e);
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compacts a database until it's done, or the time is up.
+     * @param end when to stop taking incremental steps
+     * @param deadline when a full VACUUM must be done by
+     * @return true if the database is done
+     */
+    private boolean compact(Target target, long end, long deadline) {
+        SQLiteDatabase db = target.mDb;
+        long pageCount = pragmaForLong(db, "page_count");
+        long freePages = pragmaForLong(db, "freelist_count");
+        if (!target.mStarted) {
+            if (!isFragmented(pageCount, freePages)) {
+                target.mDone = true;
+                return true;
+            }
+            target.mStarted = true;
+            target.mSizeBefore = getFileSize(db);
+            target.mFreePagesBefore = freePages;
+            target.mScanMsBefore = timeScan(db, target.mScanTable);
+        }
+
+        if (pragmaForLong(db, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            do {
+                runPragma(db, "incremental_vacuum(" + INCREMENTAL_PAGES + ")");
+                recordIncrementalStep();
+                freePages = pragmaForLong(db, "freelist_count");
+            } while (freePages > 0 && SystemClock.elapsedRealtime() < end);
+            if (freePages > 0) {
+                return false;
+            }
+        } else {
+            long size = getFileSize(db);
+            long usable = new File(db.getPath()).getParentFile().getUsableSpace();
+            long expectedMs = size / getVacuumRate();
+            long remainingMs = deadline - SystemClock.elapsedRealtime();
+            // VACUUM copies the database, and the copy goes through the log
+            if (expectedMs > Math.min(FULL_VACUUM_MAX_MS, remainingMs) || usable < 2 * size) {
+                Log.d(Logging.LOG_TAG, "Not vacuuming " + target.mName + " (" + size
+                        + " bytes, expected to take " + expectedMs + " of " + remainingMs
+                        + " ms, " + usable + " bytes free)");
+                recordSkippedVacuum();
+                target.mDone = true;
+                return true;
+            }
+            long start = SystemClock.elapsedRealtime();
+            // Later compactions can then be done a step at a time
+            runPragma(db, "auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM");
+            recordFullVacuum(size, SystemClock.elapsedRealtime() - start);
+        }
+
+        // A database in write-ahead logging mode only shrinks when the log is checkpointed; the
+        // log itself keeps its size until it's next reset, so it's reported on its own
+        runPragma(db, "wal_checkpoint");
+        long sizeAfter = getFileSize(db);
+        recordResult(target.mName + ": " + target.mSizeBefore + " to " + sizeAfter
+                + " bytes (log " + getLogSize(db) + " bytes), " + target.mFreePagesBefore + " to "
+                + pragmaForLong(db, "freelist_count") + " free pages, scan "
+                + target.mScanMsBefore + " to " + timeScan(db, target.mScanTable) + " ms",
+                target.mSizeBefore - sizeAfter);
+        target.mDone = true;
+        return true;
+    }
+
+    private static synchronized long getVacuumRate() {
+        return sVacuumBytesPerMs;
+    }
+
+    private static synchronized void recordIncrementalStep() {
+        sIncrementalSteps++;
+    }
+
+    private static synchronized void recordSkippedVacuum() {
+        sSkippedVacuums++;
+    }
+
+    private static synchronized void recordFullVacuum(long bytes, long ms) {
+        sFullVacuums++;
+        if (ms > 0) {
+            sVacuumBytesPerMs = Math.max(1, bytes / ms);
+        }
+    }
+
+    private static synchronized void recordResult(String result, long reclaimed) {
+        sLastResult = result;
+        sBytesReclaimed += reclaimed;
+        Log.d(Logging.LOG_TAG, "Compacted " + result);
+    }
+
+    /** @return the bytes the databases' files have shrunk by */
+    @VisibleForTesting
+    static synchronized long getBytesReclaimed() {
+        return sBytesReclaimed;
+    }
+
+    /**
+     * Returns a one-line summary of the compactions done, and the last one's results.
+     */
+    public static synchronized String getSummary() {
+        return sFullVacuums + " full vacuums (" + sSkippedVacuums + " skipped), "
+                + sIncrementalSteps + " incremental steps, " + sBytesReclaimed
+                + " bytes reclaimed; last " + ((sLastResult != null) ? sLastResult : "none");
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public static synchronized void resetStats() {
+        sVacuumBytesPerMs = INITIAL_VACUUM_BYTES_PER_MS;
+        sIncrementalSteps = 0;
+        sFullVacuums = 0;
+        sSkippedVacuums = 0;
+        sBytesReclaimed = 0;
+        sLastResult = null;
+    }
+}
@@ -23,7 +23,6 @@ import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.Intent;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
@@ -35,6 +34,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
 import android.util.Log;
@@ -65,6 +66,8 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
 import com.android.emailcommon.service.LegacyPolicySet;
+import com.android.emailcommon.utility.AttachmentFileReaper;
+import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
@@ -74,6 +77,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class EmailProvider extends ContentProvider {
 
@@ -94,6 +98,17 @@ public class EmailProvider extends ContentProvider {
      */
     public static final String ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED =
             "com.android.email.MESSAGE_LIST_DATASET_CHANGED";
+    /**
+     * The ids of the accounts whose messages changed (a long[]), in a
+     * {@link #ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED} broadcast.  Missing if any of the
+     * changes can't be tied to an account, in which case all message lists should be updated.
+     */
+    public static final String EXTRA_ACCOUNT_IDS = "com.android.email.extra.ACCOUNT_IDS";
+    /**
+     * The ids of the mailboxes whose messages changed (a long[]); present along with
+     * {@link #EXTRA_ACCOUNT_IDS}.
+     */
+    public static final String EXTRA_MAILBOX_IDS = "com.android.email.extra.MAILBOX_IDS";
 
     public static final String EMAIL_MESSAGE_MIME_TYPE =
         "vnd.android.cursor.item/email-message";
@@ -102,8 +117,27 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri INTEGRITY_CHECK_URI =
         Uri.parse("content://" + EmailContent.AUTHORITY + "/integrityCheck");
+    /**
+     * Update this to run a slice of the incremental integrity check (see {@link IntegrityChecker});
+     * the update returns 1 while the current pass has more to check, and 0 once it's complete.
+     */
+    public static final Uri INCREMENTAL_INTEGRITY_CHECK_URI =
+        Uri.parse("content://" + EmailContent.AUTHORITY + "/integrityCheck/incremental");
+    /**
+     * Update this to compact the databases for a while (see {@link DatabaseCompactor}); the
+     * update returns 1 while there's more to compact, and 0 once the databases are compact.
+     * A full VACUUM is only started if it fits in the update's budget (see
+     * {@link #getCompactUri}), which is {@link #COMPACTION_SLICE_MS} unless it's given.
+     */
+    public static final Uri COMPACT_URI =
+        Uri.parse("content://" + EmailContent.AUTHORITY + "/compact");
+    /** The parameter of {@link #COMPACT_URI} giving the update's budget, in milliseconds */
+    private static final String COMPACT_URI_PARAMETER_BUDGET = "budget";
     public static final Uri ACCOUNT_BACKUP_URI =
         Uri.parse("content://" + EmailContent.AUTHORITY + "/accountBackup");
+    /** Query this for the provider's statistics, see {@link ProviderStats#getCursor()} */
+    public static final Uri STATS_URI =
+        Uri.parse("content://" + EmailContent.AUTHORITY + "/debug/stats");
 
     /** Appended to the notification URI for delete operations */
     public static final String NOTIFICATION_OP_DELETE = "delete";
@@ -112,14 +146,6 @@ public class EmailProvider extends ContentProvider {
     /** Appended to the notification URI for update operations */
     public static final String NOTIFICATION_OP_UPDATE = "update";
 
-    // Definitions for our queries looking for orphaned messages
-    private static final String[] ORPHANS_PROJECTION
-        = new String[] {MessageColumns.ID, MessageColumns.MAILBOX_KEY};
-    private static final int ORPHANS_ID = 0;
-    private static final int ORPHANS_MAILBOX_KEY = 1;
-
-    private static final String WHERE_ID = EmailContent.RECORD_ID + "=?";
-
     // This is not a hard limit on accounts, per se, but beyond this, we can't guarantee that all
     // critical mailboxes, host auth's, accounts, and policies are cached
     private static final int MAX_CACHED_ACCOUNTS = 16;
@@ -169,8 +195,9 @@ public class EmailProvider extends ContentProvider {
     // Version 26: Update IMAP accounts to add FLAG_SUPPORTS_SEARCH flag
     // Version 27: Add protocolSearchInfo to Message table
     // Version 28: Add notifiedMessageId and notifiedMessageCount to Account
+    // Version 29: Add favoriteCount to Mailbox, and the MailboxSummary table
 
-    public static final int DATABASE_VERSION = 28;
+    public static final int DATABASE_VERSION = 29;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -193,11 +220,13 @@ public class EmailProvider extends ContentProvider {
     private static final int MAILBOX_ID = MAILBOX_BASE + 1;
     private static final int MAILBOX_ID_FROM_ACCOUNT_AND_TYPE = MAILBOX_BASE + 2;
     private static final int MAILBOX_ID_ADD_TO_FIELD = MAILBOX_BASE + 2;
+    private static final int MAILBOX_SUMMARY = MAILBOX_BASE + 3;
 
     private static final int MESSAGE_BASE = 0x2000;
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int SYNCED_MESSAGE = MESSAGE_BASE + 3;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -264,6 +293,42 @@ public class EmailProvider extends ContentProvider {
         null  // Body
     };
 
+    // Results of queries with a selection on the tables that are looked up that way most often;
+    // the sizes are best estimates of the number of distinct lookups in use
+    private final SelectionCache mSelectionCacheAccount = new SelectionCache(16);
+    private final SelectionCache mSelectionCacheMailbox = new SelectionCache(32);
+    private final SelectionCache mSelectionCacheHostAuth = new SelectionCache(8);
+    private final SelectionCache mSelectionCachePolicy = new SelectionCache(8);
+
+    // SELECTION_CACHES MUST remain in the order of the BASE constants above
+    private final SelectionCache[] mSelectionCaches = {
+        mSelectionCacheAccount,
+        mSelectionCacheMailbox,
+        null, // Message
+        null, // Attachment
+        mSelectionCacheHostAuth,
+        null, // Updated message
+        null, // Deleted message
+        mSelectionCachePolicy,
+        null, // Quick response
+        null  // Body
+    };
+
+    // Created in onCreate()
+    private NotificationCoalescer mNotificationCoalescer;
+
+    /** How long each slice of the incremental integrity check runs for, in milliseconds */
+    @VisibleForTesting
+    static final long INTEGRITY_CHECK_SLICE_MS = 50;
+    // Checks mDatabase; created on the first slice of the check, and dropped with the database
+    private IntegrityChecker mIntegrityChecker;
+    /** How long each update of {@link #COMPACT_URI} compacts for, in milliseconds */
+    @VisibleForTesting
+    static final long COMPACTION_SLICE_MS = 200;
+    // Compacts the databases; created by the first update of COMPACT_URI, and dropped when the
+    // databases are compact (so that the next compaction measures them again), or with them
+    private DatabaseCompactor mCompactor;
+
     // CACHE_PROJECTIONS MUST remain in the order of the BASE constants above
     private static final String[][] CACHE_PROJECTIONS = {
         Account.CONTENT_PROJECTION,
@@ -288,17 +353,40 @@ public class EmailProvider extends ContentProvider {
      * Let's only generate these SQL strings once, as they are used frequently
      * Note that this isn't relevant for table creation strings, since they are used only once
      */
-    private static final String UPDATED_MESSAGE_INSERT = "insert or ignore into " +
-        Message.UPDATED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
+    private static final String UPDATED_MESSAGE_INSERT_WHERE = "insert or ignore into " +
+        Message.UPDATED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where ";
+
+    private static final String UPDATED_MESSAGE_INSERT = UPDATED_MESSAGE_INSERT_WHERE +
         EmailContent.RECORD_ID + '=';
 
     private static final String UPDATED_MESSAGE_DELETE = "delete from " +
         Message.UPDATED_TABLE_NAME + " where " + EmailContent.RECORD_ID + '=';
 
-    private static final String DELETED_MESSAGE_INSERT = "insert or replace into " +
-        Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
+    private static final String DELETED_MESSAGE_INSERT_WHERE = "insert or replace into " +
+        Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where ";
+
+    private static final String DELETED_MESSAGE_INSERT = DELETED_MESSAGE_INSERT_WHERE +
         EmailContent.RECORD_ID + '=';
 
+    // The messages matching a selection; for the set-based versions of the statements above
+    private static final String SELECTED_MESSAGE_IDS = EmailContent.RECORD_ID + " in (select " +
+        EmailContent.RECORD_ID + " from " + Message.TABLE_NAME + " where ";
+
+    private static final String UPDATED_MESSAGE_DELETE_WHERE = "delete from " +
+        Message.UPDATED_TABLE_NAME + " where " + SELECTED_MESSAGE_IDS;
+
+    private static final String DELETE_BODIES_WHERE = "delete from " + Body.TABLE_NAME +
+        " where " + BodyColumns.MESSAGE_KEY + " in (select " + EmailContent.RECORD_ID +
+        " from " + Message.TABLE_NAME + " where ";
+
+    // The ids of the attachments of the selected messages, and the messages' accounts
+    private static final String MESSAGE_ATTACHMENTS_WHERE = "select " + EmailContent.RECORD_ID
+        + ", (select " + MessageColumns.ACCOUNT_KEY + " from " + Message.TABLE_NAME + " where "
+        + Message.TABLE_NAME + "." + EmailContent.RECORD_ID + "=" + Attachment.TABLE_NAME + "."
+        + AttachmentColumns.MESSAGE_KEY + ") from " + Attachment.TABLE_NAME + " where "
+        + AttachmentColumns.MESSAGE_KEY + " in (select " + EmailContent.RECORD_ID + " from "
+        + Message.TABLE_NAME + " where ";
+
     private static final String DELETE_ORPHAN_BODIES = "delete from " + Body.TABLE_NAME +
         " where " + BodyColumns.MESSAGE_KEY + " in " + "(select " + BodyColumns.MESSAGE_KEY +
         " from " + Body.TABLE_NAME + " except select " + EmailContent.RECORD_ID + " from " +
@@ -309,6 +397,9 @@ public class EmailProvider extends ContentProvider {
 
     private static final String ID_EQUALS = EmailContent.RECORD_ID + "=?";
 
+    // The temporary table recalculateCount() counts messages into
+    private static final String MESSAGE_COUNT_TABLE = "temp.message_count";
+
     private static final String TRIGGER_MAILBOX_DELETE =
         "create trigger mailbox_delete before delete on " + Mailbox.TABLE_NAME +
         " begin" +
@@ -318,6 +409,8 @@ public class EmailProvider extends ContentProvider {
         "  where " + MessageColumns.MAILBOX_KEY + "=old." + EmailContent.RECORD_ID +
         "; delete from " + Message.DELETED_TABLE_NAME +
         "  where " + MessageColumns.MAILBOX_KEY + "=old." + EmailContent.RECORD_ID +
+        // Whatever the messages' deletion left in the mailbox's counts comes out of the summary
+        "; " + updateMailboxSummary("-", "old", true) +
         "; end";
 
     private static final String TRIGGER_ACCOUNT_DELETE =
@@ -362,6 +455,8 @@ public class EmailProvider extends ContentProvider {
         matcher.addURI(EmailContent.AUTHORITY, "mailbox/#", MAILBOX_ID);
         matcher.addURI(EmailContent.AUTHORITY, "mailboxIdFromAccountAndType/#/#",
                 MAILBOX_ID_FROM_ACCOUNT_AND_TYPE);
+        // The message counts of each type of mailbox of each account (read only)
+        matcher.addURI(EmailContent.AUTHORITY, "mailboxSummary", MAILBOX_SUMMARY);
         // All messages
         matcher.addURI(EmailContent.AUTHORITY, "message", MESSAGE);
         // A specific message
@@ -398,6 +493,8 @@ public class EmailProvider extends ContentProvider {
          * TO A SERVER VIA A SYNC ADAPTER
          */
         matcher.addURI(EmailContent.AUTHORITY, "syncedMessage/#", SYNCED_MESSAGE_ID);
+        // The same, for all of the messages matching a selection, in a single transaction
+        matcher.addURI(EmailContent.AUTHORITY, "syncedMessage", SYNCED_MESSAGE);
 
         /**
          * THE URIs BELOW THIS POINT ARE INTENDED TO BE USED BY SYNC ADAPTERS ONLY
@@ -590,6 +687,56 @@ public class EmailProvider extends ContentProvider {
                 '=' + MailboxColumns.MESSAGE_COUNT + "+1" +
                 " where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
                 "; end");
+
+        createFavoriteCountTriggers(db);
+    }
+
+    /**
+     * Returns an expression that's 1 if a message counts as a favorite (i.e. it's starred, and
+     * at least partly loaded, as in {@link Message#ALL_FAVORITE_SELECTION}), or 0 otherwise.
+     * @param row the message's row in a trigger, i.e. "NEW" or "OLD"
+     */
+    private static String isFavorite(String row) {
+        return "(case when " + row + "." + MessageColumns.FLAG_FAVORITE + "=1 and " + row + "."
+                + MessageColumns.FLAG_LOADED + " in (" + Message.FLAG_LOADED_COMPLETE + ","
+                + Message.FLAG_LOADED_PARTIAL + ") then 1 else 0 end)";
+    }
+
+    /**
+     * Creates the triggers that keep the favorite count of each mailbox.
+     */
+    static void createFavoriteCountTriggers(SQLiteDatabase db) {
+        // Insert a favorite message
+        db.execSQL("create trigger if not exists favorite_message_insert after insert on " +
+                Message.TABLE_NAME + " when " + isFavorite("NEW") + "=1" +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "+1" +
+                "  where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Delete a favorite message
+        db.execSQL("create trigger if not exists favorite_message_delete after delete on " +
+                Message.TABLE_NAME + " when " + isFavorite("OLD") + "=1" +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "-1" +
+                "  where " + EmailContent.RECORD_ID + "=OLD." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Star, unstar, load or move a message; it's taken out of its old mailbox's count (if
+        // it was a favorite), and added to its new mailbox's (if it is one)
+        db.execSQL("create trigger if not exists favorite_message_update after update of " +
+                MessageColumns.MAILBOX_KEY + ", " + MessageColumns.FLAG_FAVORITE + ", " +
+                MessageColumns.FLAG_LOADED + " on " + Message.TABLE_NAME +
+                " when (" + isFavorite("OLD") + "=1 or " + isFavorite("NEW") + "=1) and (OLD." +
+                MessageColumns.MAILBOX_KEY + " is not NEW." + MessageColumns.MAILBOX_KEY +
+                " or " + isFavorite("OLD") + "!=" + isFavorite("NEW") + ")" +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "-" + isFavorite("OLD") +
+                "  where " + EmailContent.RECORD_ID + "=OLD." + MessageColumns.MAILBOX_KEY +
+                "; update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "+" + isFavorite("NEW") +
+                " where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                "; end");
     }
 
     static void resetMessageTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -708,7 +855,8 @@ public class EmailProvider extends ContentProvider {
             + MailboxColumns.SYNC_STATUS + " text, "
             + MailboxColumns.MESSAGE_COUNT + " integer not null default 0, "
             + MailboxColumns.LAST_SEEN_MESSAGE_KEY + " integer, "
-            + MailboxColumns.LAST_TOUCHED_TIME + " integer default 0"
+            + MailboxColumns.LAST_TOUCHED_TIME + " integer default 0, "
+            + MailboxColumns.FAVORITE_COUNT + " integer not null default 0"
             + ");";
         db.execSQL("create table " + Mailbox.TABLE_NAME + s);
         db.execSQL("create index mailbox_" + MailboxColumns.SERVER_ID
@@ -717,11 +865,107 @@ public class EmailProvider extends ContentProvider {
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.ACCOUNT_KEY + ")");
         // Deleting a Mailbox deletes associated Messages in all three tables
         db.execSQL(TRIGGER_MAILBOX_DELETE);
+        createMailboxSummaryTable(db);
+    }
+
+    /**
+     * Returns a statement, for a trigger on the mailbox table, that adds a mailbox's counts to
+     * (or subtracts them from) the summary row for its account and type.
+     *
+     * @param sign "+" or "-"
+     * @param row the mailbox's row in the trigger, i.e. "NEW" or "OLD"
+     * @param current if true, the counts are read from the mailbox as it is when the statement
+     *     runs (e.g. after other statements of the trigger changed them), not from the row
+     */
+    private static String updateMailboxSummary(String sign, String row, boolean current) {
+        StringBuilder sb = new StringBuilder("update " + Mailbox.SUMMARY_TABLE_NAME + " set ");
+        String[] columns = new String[] {
+            MailboxColumns.MESSAGE_COUNT, MailboxColumns.UNREAD_COUNT,
+            MailboxColumns.FAVORITE_COUNT
+        };
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            String value = current
+                    ? "(select " + column + " from " + Mailbox.TABLE_NAME + " where "
+                            + EmailContent.RECORD_ID + "=" + row + "." + EmailContent.RECORD_ID
+                            + ")"
+                    : row + "." + column;
+            sb.append(i > 0 ? ", " : "").append(column).append('=').append(column).append(sign)
+                    .append("ifnull(").append(value).append(",0)");
+        }
+        sb.append(" where " + MailboxColumns.ACCOUNT_KEY + "=" + row + "."
+                + MailboxColumns.ACCOUNT_KEY + " and " + MailboxColumns.TYPE + "=" + row + "."
+                + MailboxColumns.TYPE);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a statement, for a trigger on the mailbox table, that adds an empty summary row for
+     * a mailbox's account and type if there isn't one.
+     */
+    private static String insertMailboxSummary(String row) {
+        return "insert or ignore into " + Mailbox.SUMMARY_TABLE_NAME + " ("
+                + MailboxColumns.ACCOUNT_KEY + ", " + MailboxColumns.TYPE + ") values (" + row
+                + "." + MailboxColumns.ACCOUNT_KEY + ", " + row + "." + MailboxColumns.TYPE + ")";
+    }
+
+    /**
+     * Creates the summary table (see {@link Mailbox#SUMMARY_TABLE_NAME}), and the triggers on
+     * the mailbox table that keep it; the mailbox_delete trigger takes deleted mailboxes out of
+     * it.
+     */
+    static void createMailboxSummaryTable(SQLiteDatabase db) {
+        db.execSQL("create table if not exists " + Mailbox.SUMMARY_TABLE_NAME + " ("
+                + MailboxColumns.ACCOUNT_KEY + " integer, "
+                + MailboxColumns.TYPE + " integer, "
+                + MailboxColumns.MESSAGE_COUNT + " integer not null default 0, "
+                + MailboxColumns.UNREAD_COUNT + " integer not null default 0, "
+                + MailboxColumns.FAVORITE_COUNT + " integer not null default 0, "
+                + "primary key (" + MailboxColumns.ACCOUNT_KEY + ", " + MailboxColumns.TYPE + "))");
+
+        // Add a mailbox
+        db.execSQL("create trigger if not exists mailbox_summary_insert after insert on "
+                + Mailbox.TABLE_NAME + " begin " + insertMailboxSummary("NEW") + "; "
+                + updateMailboxSummary("+", "NEW", false) + "; end");
+
+        // Change a mailbox's counts (e.g. by the triggers on the message table), or move it to
+        // another account or type
+        StringBuilder changed = new StringBuilder();
+        for (String column : new String[] {MailboxColumns.MESSAGE_COUNT,
+                MailboxColumns.UNREAD_COUNT, MailboxColumns.FAVORITE_COUNT,
+                MailboxColumns.ACCOUNT_KEY, MailboxColumns.TYPE}) {
+            changed.append(changed.length() > 0 ? " or " : "").append("OLD.").append(column)
+                    .append(" is not NEW.").append(column);
+        }
+        db.execSQL("create trigger if not exists mailbox_summary_update after update of "
+                + MailboxColumns.MESSAGE_COUNT + ", " + MailboxColumns.UNREAD_COUNT + ", "
+                + MailboxColumns.FAVORITE_COUNT + ", " + MailboxColumns.ACCOUNT_KEY + ", "
+                + MailboxColumns.TYPE + " on " + Mailbox.TABLE_NAME + " when " + changed
+                + " begin " + updateMailboxSummary("-", "OLD", false) + "; "
+                + insertMailboxSummary("NEW") + "; " + updateMailboxSummary("+", "NEW", false)
+                + "; end");
+    }
+
+    /**
+     * Rebuilds the summary table from the counts of the mailboxes.
+     */
+    @VisibleForTesting
+    static void rebuildMailboxSummary(SQLiteDatabase db) {
+        db.execSQL("delete from " + Mailbox.SUMMARY_TABLE_NAME);
+        db.execSQL("insert into " + Mailbox.SUMMARY_TABLE_NAME + " (" + MailboxColumns.ACCOUNT_KEY
+                + ", " + MailboxColumns.TYPE + ", " + MailboxColumns.MESSAGE_COUNT + ", "
+                + MailboxColumns.UNREAD_COUNT + ", " + MailboxColumns.FAVORITE_COUNT
+                + ") select " + MailboxColumns.ACCOUNT_KEY + ", " + MailboxColumns.TYPE
+                + ", sum(ifnull(" + MailboxColumns.MESSAGE_COUNT + ",0)), sum(ifnull("
+                + MailboxColumns.UNREAD_COUNT + ",0)), sum(ifnull(" + MailboxColumns.FAVORITE_COUNT
+                + ",0)) from " + Mailbox.TABLE_NAME + " group by " + MailboxColumns.ACCOUNT_KEY
+                + ", " + MailboxColumns.TYPE);
     }
 
     static void resetMailboxTable(SQLiteDatabase db, int oldVersion, int newVersion) {
         try {
             db.execSQL("drop table " + Mailbox.TABLE_NAME);
+            db.execSQL("drop table if exists " + Mailbox.SUMMARY_TABLE_NAME);
         } catch (SQLException e) {
         }
         createMailboxTable(db);
@@ -797,6 +1041,22 @@ public class EmailProvider extends ContentProvider {
 
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
+    // Connections used only for queries (see getQueryDatabase()); null if there are none
+    private volatile SQLiteDatabase[] mReaders;
+    private final AtomicInteger mNextReader = new AtomicInteger();
+
+    /** The number of connections used only for queries */
+    @VisibleForTesting
+    static final int READER_CONNECTIONS = 2;
+
+    /**
+     * The number of pages written to the write-ahead log before it's checkpointed into the
+     * database.  This is twice SQLite's default, so a sync's writes to hot pages (e.g. the
+     * mailbox and account rows) are more often combined into a single write to the database.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+    /** The size the write-ahead log is truncated to after a checkpoint, in bytes */
+    private static final int WAL_SIZE_LIMIT = 1024 * 1024;
 
     /**
      * Orphan record deletion utility.  Generates a sqlite statement like:
@@ -833,12 +1093,22 @@ public class EmailProvider extends ContentProvider {
         mDatabase.setLockingEnabled(true);
         BodyDatabaseHelper bodyHelper = new BodyDatabaseHelper(context, BODY_DATABASE_NAME);
         mBodyDatabase = bodyHelper.getWritableDatabase();
+        String bodyFileName = null;
         if (mBodyDatabase != null) {
             mBodyDatabase.setLockingEnabled(true);
-            String bodyFileName = mBodyDatabase.getPath();
+            bodyFileName = mBodyDatabase.getPath();
             mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
         }
 
+        // Nothing cached from databases we had before can be trusted
+        invalidateAllSelectionCaches();
+
+        // Queries only get their own connections if they can read while the databases are being
+        // written, i.e. in write-ahead logging mode
+        if (enableWriteAheadLogging(mDatabase, bodyFileName != null)) {
+            mReaders = openReaders(mDatabase.getPath(), bodyFileName);
+        }
+
         // Restore accounts if the database is corrupted...
         restoreIfNeeded(context, mDatabase);
 
@@ -991,6 +1261,10 @@ public class EmailProvider extends ContentProvider {
     /** {@inheritDoc} */
     @Override
     public void shutdown() {
+        closeReaders(mReaders);
+        mReaders = null;
+        mIntegrityChecker = null;
+        mCompactor = null;
         if (mDatabase != null) {
             mDatabase.close();
             mDatabase = null;
@@ -1001,52 +1275,257 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
-    /*package*/ static void deleteMessageOrphans(SQLiteDatabase database, String tableName) {
-        if (database != null) {
-            // We'll look at all of the items in the table; there won't be many typically
-            Cursor c = database.query(tableName, ORPHANS_PROJECTION, null, null, null, null, null);
-            // Usually, there will be nothing in these tables, so make a quick check
-            try {
-                if (c.getCount() == 0) return;
-                ArrayList<Long> foundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> notFoundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> deleteList = new ArrayList<Long>();
-                String[] bindArray = new String[1];
-                while (c.moveToNext()) {
-                    // Get the mailbox key and see if we've already found this mailbox
-                    // If so, we're fine
-                    long mailboxId = c.getLong(ORPHANS_MAILBOX_KEY);
-                    // If we already know this mailbox doesn't exist, mark the message for deletion
-                    if (notFoundMailboxes.contains(mailboxId)) {
-                        deleteList.add(c.getLong(ORPHANS_ID));
-                    // If we don't know about this mailbox, we'll try to find it
-                    } else if (!foundMailboxes.contains(mailboxId)) {
-                        bindArray[0] = Long.toString(mailboxId);
-                        Cursor boxCursor = database.query(Mailbox.TABLE_NAME,
-                                Mailbox.ID_PROJECTION, WHERE_ID, bindArray, null, null, null);
-                        try {
-                            // If it exists, we'll add it to the "found" mailboxes
-                            if (boxCursor.moveToFirst()) {
-                                foundMailboxes.add(mailboxId);
-                            // Otherwise, we'll add to "not found" and mark the message for deletion
-                            } else {
-                                notFoundMailboxes.add(mailboxId);
-                                deleteList.add(c.getLong(ORPHANS_ID));
-                            }
-                        } finally {
-                            boxCursor.close();
-                        }
-                    }
+    /**
+     * Puts the database, and the attached body database, in write-ahead logging mode, in which
+     * readers (on other connections) don't wait for writers, or writers for readers.
+     *
+     * SQLiteDatabase.enableWriteAheadLogging() won't do this for a database with attached
+     * databases, since the connections it pools for queries wouldn't have them attached; we set
+     * the journal mode ourselves, and attach the body database to our own query connections.
+     * Note that in this mode a transaction is atomic in each database, but not across both; the
+     * only things that span them are bodies, which are cleaned up as orphans if need be.
+     *
+     * @return whether write-ahead logging is in use
+     */
+    private static boolean enableWriteAheadLogging(SQLiteDatabase db, boolean hasBodyDatabase) {
+        String[] schemas = hasBodyDatabase
+                ? new String[] {"main", "BodyDatabase"} : new String[] {"main"};
+        boolean enabled = true;
+        for (String schema : schemas) {
+            String mode = pragma(db, schema + ".journal_mode=WAL");
+            if (!"wal".equalsIgnoreCase(mode)) {
+                Log.w(TAG, "Couldn't use write-ahead logging for " + schema + ": " + mode);
+                enabled = false;
+                continue;
+            }
+            // Only sync the log when it's checkpointed, rather than on every commit; a crash can
+            // lose the last transactions, but can't corrupt the database
+            pragma(db, schema + ".synchronous=NORMAL");
+            pragma(db, schema + ".journal_size_limit=" + WAL_SIZE_LIMIT);
+        }
+        pragma(db, "wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        return enabled;
+    }
+
+    /**
+     * Runs a PRAGMA statement, returning its result (or null if it has none).
+     */
+    private static String pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Opens the connections used for queries, or returns null if they can't be opened.  They are
+     * opened read-only, which also keeps SQLiteDatabase from changing the journal mode.
+     */
+    private static SQLiteDatabase[] openReaders(String fileName, String bodyFileName) {
+        SQLiteDatabase[] readers = new SQLiteDatabase[READER_CONNECTIONS];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = SQLiteDatabase.openDatabase(fileName, null,
+                        SQLiteDatabase.OPEN_READONLY);
+                readers[i].setLockingEnabled(true);
+                if (bodyFileName != null) {
+                    readers[i].execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
+                }
+            }
+            return readers;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Couldn't open query connections", e);
+            closeReaders(readers);
+            return null;
+        }
+    }
+
+    private static void closeReaders(SQLiteDatabase[] readers) {
+        if (readers == null) return;
+        for (SQLiteDatabase reader : readers) {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the connection to run a query on.  Queries normally run on one of the query
+     * connections, so they needn't wait for a transaction to finish.  They run on the writing
+     * connection when they're made within a transaction (which must see its own changes), or
+     * when their results may be cached; a query connection can read the data from before a
+     * transaction that's still in progress, which mustn't be cached.
+     *
+     * @param db the writing connection, i.e. {@link #getDatabase}
+     * @param cacheable whether the query's result may be cached
+     */
+    private SQLiteDatabase getQueryDatabase(SQLiteDatabase db, boolean cacheable) {
+        SQLiteDatabase[] readers = mReaders;
+        if (readers == null || cacheable || db.inTransaction()) {
+            return db;
+        }
+        int next = mNextReader.getAndIncrement() & Integer.MAX_VALUE;
+        return readers[next % readers.length];
+    }
+
+    /**
+     * Invalidates the selection caches that a change to a table can affect; this must be called
+     * after the change is made.
+     */
+    private void invalidateSelectionCaches(int table) {
+        switch (table) {
+            case MESSAGE_BASE >> BASE_SHIFT:
+                // Triggers keep the mailboxes' message counts
+                mSelectionCacheMailbox.invalidate();
+                break;
+            case ATTACHMENT_BASE >> BASE_SHIFT:
+            case UPDATED_MESSAGE_BASE >> BASE_SHIFT:
+            case DELETED_MESSAGE_BASE >> BASE_SHIFT:
+            case QUICK_RESPONSE_BASE >> BASE_SHIFT:
+            case BODY_BASE >> BASE_SHIFT:
+                break;
+            default:
+                // Changes to the other tables can cascade (by trigger or otherwise) to any table
+                invalidateAllSelectionCaches();
+                break;
+        }
+    }
+
+    private void invalidateAllSelectionCaches() {
+        for (SelectionCache cache : mSelectionCaches) {
+            if (cache != null) {
+                cache.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Deletes a database file, along with its journal and write-ahead log (which must never be
+     * applied to a new database of the same name).
+     */
+    private static void deleteDatabaseFile(File file) {
+        file.delete();
+        for (String suffix : new String[] {"-journal", "-wal", "-shm"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    /**
+     * Runs a slice of the incremental integrity check of the database, and drops whatever it may
+     * have made out of date from the caches.
+     *
+     * @return true if the slice completed a pass of the check
+     */
+    private synchronized boolean runIntegrityCheck(long maxMillis) {
+        SQLiteDatabase db = getDatabase(getContext());
+        if (mIntegrityChecker == null) {
+            mIntegrityChecker = new IntegrityChecker(getContext(), db);
+        }
+        int changeCount = mIntegrityChecker.getChangeCount();
+        boolean done = mIntegrityChecker.run(maxMillis);
+        if (mIntegrityChecker.getChangeCount() != changeCount) {
+            mCacheMailbox.invalidate();
+            mCacheMessage.invalidate();
+            invalidateAllSelectionCaches();
+            getNotificationCoalescer().notifyChange(EmailContent.CONTENT_URI);
+        }
+        return done;
+    }
+
+    /**
+     * Compacts the databases for about the given time.
+     * @return true if the databases are compact
+     */
+    private boolean runCompaction(long sliceMillis, long budgetMillis) {
+        // Only finding the compactor needs the provider's lock; compacting (a VACUUM can take
+        // seconds) mustn't keep out the provider's other callers
+        DatabaseCompactor compactor;
+        synchronized (this) {
+            SQLiteDatabase db = getDatabase(getContext());
+            if (mCompactor == null) {
+                mCompactor = new DatabaseCompactor(db, mBodyDatabase);
+            }
+            compactor = mCompactor;
+        }
+        long time = System.nanoTime();
+        boolean done = compactor.run(sliceMillis, budgetMillis);
+        ProviderStats.recordTransaction("compact", System.nanoTime() - time);
+        if (done) {
+            synchronized (this) {
+                if (mCompactor == compactor) {
+                    mCompactor = null;
                 }
-                // Now, delete the orphan messages
-                for (long messageId: deleteList) {
-                    bindArray[0] = Long.toString(messageId);
-                    database.delete(tableName, WHERE_ID, bindArray);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Returns the URI to update to compact the databases (see {@link #COMPACT_URI}) for no more
+     * than the given time, in milliseconds.
+     */
+    public static Uri getCompactUri(long budgetMillis) {
+        return COMPACT_URI.buildUpon().appendQueryParameter(COMPACT_URI_PARAMETER_BUDGET,
+                Long.toString(budgetMillis)).build();
+    }
+
+    /**
+     * Returns the selection of the rows of a message table (i.e. the message, updated message or
+     * deleted message table) whose mailbox no longer exists.
+     */
+    /*package*/ static String getMessageOrphanSelection(String tableName) {
+        return "not exists (select 1 from " + Mailbox.TABLE_NAME + " where "
+                + Mailbox.TABLE_NAME + "." + EmailContent.RECORD_ID + "=" + tableName + "."
+                + MessageColumns.MAILBOX_KEY + ")";
+    }
+
+    /**
+     * Deletes the rows of a message table whose mailbox no longer exists, in one statement.
+     * @return the number of rows deleted
+     */
+    /*package*/ static int deleteMessageOrphans(SQLiteDatabase database, String tableName) {
+        if (database == null) {
+            return 0;
+        }
+        int count = database.delete(tableName, getMessageOrphanSelection(tableName), null);
+        if (count > 0) {
+            Log.w(TAG, "Found " + count + " orphaned row(s) in " + tableName);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the messages matching a selection, along with what deleting them through the
+     * provider would clean up: their bodies, which the message_delete trigger can't reach in the
+     * body database, and their attachments' files, whose deletion is queued with
+     * {@link AttachmentFileReaper} (the trigger only deletes the attachments' rows).
+     * @return the number of messages deleted
+     */
+    /*package*/ static int deleteMessagesWhere(Context context, SQLiteDatabase db,
+            String selection, String[] selectionArgs) {
+        // The files have to be found while the attachments' rows still exist
+        HashMap<Long, ArrayList<Long>> attachmentIds = new HashMap<Long, ArrayList<Long>>();
+        Cursor c = db.rawQuery(MESSAGE_ATTACHMENTS_WHERE + selection + ')', selectionArgs);
+        try {
+            while (c.moveToNext()) {
+                ArrayList<Long> ids = attachmentIds.get(c.getLong(1));
+                if (ids == null) {
+                    ids = new ArrayList<Long>();
+                    attachmentIds.put(c.getLong(1), ids);
                 }
-            } finally {
-                c.close();
+                ids.add(c.getLong(0));
             }
+        } finally {
+            c.close();
+        }
+        for (Map.Entry<Long, ArrayList<Long>> entry : attachmentIds.entrySet()) {
+            AttachmentFileReaper.deleteAttachmentFiles(context, entry.getKey(),
+                    Utility.toPrimitiveLongArray(entry.getValue()));
         }
+        execSQL(db, DELETE_BODIES_WHERE + selection + ')', selectionArgs);
+        return db.delete(Message.TABLE_NAME, selection, selectionArgs);
     }
 
     private class BodyDatabaseHelper extends SQLiteOpenHelper {
@@ -1354,6 +1833,10 @@ public class EmailProvider extends ContentProvider {
                 }
                 oldVersion = 28;
             }
+            if (oldVersion == 28) {
+                upgradeFromVersion28ToVersion29(db);
+                oldVersion = 29;
+            }
         }
 
         @Override
@@ -1363,6 +1846,7 @@ public class EmailProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long time = System.nanoTime();
         final int match = findMatch(uri, "delete");
         Context context = getContext();
         // Pick the correct database for this operation
@@ -1373,7 +1857,7 @@ public class EmailProvider extends ContentProvider {
         int table = match >> BASE_SHIFT;
         String id = "0";
         boolean messageDeletion = false;
-        ContentResolver resolver = context.getContentResolver();
+        long transactionStart = 0;
 
         ContentCache cache = mContentCaches[table];
         String tableName = TABLE_NAMES[table];
@@ -1389,6 +1873,7 @@ public class EmailProvider extends ContentProvider {
                 case ACCOUNT:
                 case MESSAGE:
                 case SYNCED_MESSAGE_ID:
+                case SYNCED_MESSAGE:
                 case MESSAGE_ID:
                     // Handle lost Body records here, since this cannot be done in a trigger
                     // The process is:
@@ -1399,6 +1884,7 @@ public class EmailProvider extends ContentProvider {
                     // Bodies are auto-deleted here;  Attachments are auto-deleted via trigger
                     messageDeletion = true;
                     db.beginTransaction();
+                    transactionStart = System.nanoTime();
                     break;
             }
             switch (match) {
@@ -1414,6 +1900,9 @@ public class EmailProvider extends ContentProvider {
                 case POLICY_ID:
                 case QUICK_RESPONSE_ID:
                     id = uri.getPathSegments().get(1);
+                    if (match == SYNCED_MESSAGE_ID || match == MESSAGE_ID) {
+                        messageListChanged(db, ID_EQUALS, new String[] {id}, null);
+                    }
                     if (match == SYNCED_MESSAGE_ID) {
                         // For synced messages, first copy the old message to the deleted table and
                         // delete it from the updated table (in case it was updated first)
@@ -1463,6 +1952,16 @@ public class EmailProvider extends ContentProvider {
                     result = db.delete(tableName,
                             whereWith(Attachment.MESSAGE_KEY + "=" + id, selection), selectionArgs);
                     break;
+                case SYNCED_MESSAGE:
+                    // As for SYNCED_MESSAGE_ID, but for all of the selected messages at once; the
+                    // shadow tables and bodies are updated while the messages can still be found
+                    checkSelection(uri, selection);
+                    messageListChanged(db, selection, selectionArgs, null);
+                    execSQL(db, DELETED_MESSAGE_INSERT_WHERE + selection, selectionArgs);
+                    execSQL(db, UPDATED_MESSAGE_DELETE_WHERE + selection + ')', selectionArgs);
+                    execSQL(db, DELETE_BODIES_WHERE + selection + ')', selectionArgs);
+                    result = db.delete(tableName, selection, selectionArgs);
+                    break;
 
                 case BODY:
                 case MESSAGE:
@@ -1489,6 +1988,9 @@ public class EmailProvider extends ContentProvider {
                             cache.invalidate("Delete", uri, selection);
                             break;
                     }
+                    if (match == MESSAGE) {
+                        getNotificationCoalescer().messageListChanged(-1, -1);
+                    }
                     result = db.delete(tableName, selection, selectionArgs);
                     switch(match) {
                         case ACCOUNT:
@@ -1508,7 +2010,7 @@ public class EmailProvider extends ContentProvider {
                 if (match == MESSAGE_ID) {
                     // Delete the Body record associated with the deleted message
                     db.execSQL(DELETE_BODY + id);
-                } else {
+                } else if (match != SYNCED_MESSAGE) {
                     // Delete any orphaned Body records
                     db.execSQL(DELETE_ORPHAN_BODIES);
                 }
@@ -1520,14 +2022,23 @@ public class EmailProvider extends ContentProvider {
         } finally {
             if (messageDeletion) {
                 db.endTransaction();
+                ProviderStats.recordTransaction("deleteMessages",
+                        System.nanoTime() - transactionStart);
             }
         }
+        if (match == SYNCED_MESSAGE) {
+            // Only now that the deletion is committed can no stale message be cached
+            mCacheMessage.invalidate("Delete", uri, selection);
+        }
+        invalidateSelectionCaches(table);
+        ProviderStats.recordChange(ProviderStats.DELETE, match, uri, System.nanoTime() - time,
+                result);
 
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
 
         // Notify all email content cursors
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        getNotificationCoalescer().notifyChange(EmailContent.CONTENT_URI);
         return result;
     }
 
@@ -1580,9 +2091,9 @@ public class EmailProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long time = System.nanoTime();
         int match = findMatch(uri, "insert");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
 
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
@@ -1590,11 +2101,12 @@ public class EmailProvider extends ContentProvider {
         String id = "0";
         long longId;
 
-        // We do NOT allow setting of unreadCount/messageCount via the provider
+        // We do NOT allow setting of unreadCount/messageCount/favoriteCount via the provider
         // These columns are maintained via triggers
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.put(MailboxColumns.UNREAD_COUNT, 0);
             values.put(MailboxColumns.MESSAGE_COUNT, 0);
+            values.put(MailboxColumns.FAVORITE_COUNT, 0);
         }
 
         Uri resultUri = null;
@@ -1649,6 +2161,13 @@ public class EmailProvider extends ContentProvider {
                     if (match == UPDATED_MESSAGE || match == DELETED_MESSAGE) {
                         throw new IllegalArgumentException("Unknown URL " + uri);
                     }
+                    if (match == MESSAGE) {
+                        Long accountId = values.getAsLong(MessageColumns.ACCOUNT_KEY);
+                        Long mailboxId = values.getAsLong(MessageColumns.MAILBOX_KEY);
+                        getNotificationCoalescer().messageListChanged(
+                                accountId != null ? accountId : -1,
+                                mailboxId != null ? mailboxId : -1);
+                    }
                     if (match == ATTACHMENT) {
                         int flags = 0;
                         if (values.containsKey(Attachment.FLAGS)) {
@@ -1687,21 +2206,29 @@ public class EmailProvider extends ContentProvider {
             checkDatabases();
             throw e;
         }
+        invalidateSelectionCaches(table);
+        ProviderStats.recordChange(ProviderStats.INSERT, match, uri, System.nanoTime() - time, 1);
 
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
 
         // Notify all existing cursors.
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        getNotificationCoalescer().notifyChange(EmailContent.CONTENT_URI);
         return resultUri;
     }
 
     @Override
     public boolean onCreate() {
         checkDatabases();
+        mNotificationCoalescer = new NotificationCoalescer(getContext(),
+                new Handler(Looper.getMainLooper()));
         return false;
     }
 
+    /*package*/ NotificationCoalescer getNotificationCoalescer() {
+        return mNotificationCoalescer;
+    }
+
     /**
      * The idea here is that the two databases (EmailProvider.db and EmailProviderBody.db must
      * always be in sync (i.e. there are two database or NO databases).  This code will delete
@@ -1709,35 +2236,58 @@ public class EmailProvider extends ContentProvider {
      * will exist after either of the individual databases is deleted due to data corruption.
      */
     public void checkDatabases() {
-        // Uncache the databases
+        // Look for orphans, and delete as necessary; these must always be in sync
+        File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
+        File bodyFile = getContext().getDatabasePath(BODY_DATABASE_NAME);
+        boolean orphaned = databaseFile.exists() != bodyFile.exists();
+
+        // Uncache the databases.  If they are to be deleted, close them first; the last
+        // connection to a database deletes its write-ahead log on closing, which must happen
+        // before a new database (and log) of the same name is created.  Otherwise the query
+        // connections are left open, as other threads may still be querying them (or filling
+        // the windows of their cursors), and closing a connection doesn't wait for them; they're
+        // closed by their finalizers once nothing refers to them.
+        SQLiteDatabase[] readers = mReaders;
+        mReaders = null;
+        mIntegrityChecker = null;
+        mCompactor = null;
+        if (orphaned) {
+            closeReaders(readers);
+            if (mDatabase != null) {
+                mDatabase.close();
+            }
+            if (mBodyDatabase != null) {
+                mBodyDatabase.close();
+            }
+        }
         if (mDatabase != null) {
             mDatabase = null;
         }
         if (mBodyDatabase != null) {
             mBodyDatabase = null;
         }
-        // Look for orphans, and delete as necessary; these must always be in sync
-        File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
-        File bodyFile = getContext().getDatabasePath(BODY_DATABASE_NAME);
 
         // TODO Make sure attachments are deleted
         if (databaseFile.exists() && !bodyFile.exists()) {
             Log.w(TAG, "Deleting orphaned EmailProvider database...");
-            databaseFile.delete();
+            deleteDatabaseFile(databaseFile);
+            deleteDatabaseFile(bodyFile);
         } else if (bodyFile.exists() && !databaseFile.exists()) {
             Log.w(TAG, "Deleting orphaned EmailProviderBody database...");
-            bodyFile.delete();
+            deleteDatabaseFile(bodyFile);
+            deleteDatabaseFile(databaseFile);
         }
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        long time = 0L;
-        if (Email.DEBUG) {
-            time = System.nanoTime();
+        if (STATS_URI.equals(uri)) {
+            return ProviderStats.getCursor();
         }
+        long time = System.nanoTime();
         Cursor c = null;
+        int cacheResult = ProviderStats.NOT_CACHEABLE;
         int match;
         try {
             match = findMatch(uri, "query");
@@ -1829,6 +2379,7 @@ public class EmailProvider extends ContentProvider {
                 case DELETED_MESSAGE:
                 case ATTACHMENT:
                 case MAILBOX:
+                case MAILBOX_SUMMARY:
                 case ACCOUNT:
                 case HOSTAUTH:
                 case POLICY:
@@ -1845,8 +2396,32 @@ public class EmailProvider extends ContentProvider {
                             break;
                         }
                     }
-                    c = db.query(tableName, projection,
-                            selection, selectionArgs, null, null, sortOrder, limit);
+                    SelectionCache selectionCache = mSelectionCaches[table];
+                    String key = null;
+                    int generation = 0;
+                    if (selectionCache != null && !db.inTransaction()) {
+                        key = SelectionCache.getKey(uri, projection, selection, selectionArgs,
+                                sortOrder);
+                        c = selectionCache.get(key);
+                        if (c != null) {
+                            cacheResult = ProviderStats.CACHE_HIT;
+                            break;
+                        }
+                        cacheResult = ProviderStats.CACHE_MISS;
+                        generation = selectionCache.getGeneration();
+                        // While another thread is writing, we might read the data from before
+                        // its changes (and its invalidation of the cache), which mustn't be cached
+                        if (db.isDbLockedByOtherThreads()) {
+                            key = null;
+                        }
+                    }
+                    // The summary table changes only with the mailboxes, so it shares their cache
+                    c = getQueryDatabase(db, false).query(
+                            (match == MAILBOX_SUMMARY) ? Mailbox.SUMMARY_TABLE_NAME : tableName,
+                            projection, selection, selectionArgs, null, null, sortOrder, limit);
+                    if (key != null) {
+                        c = selectionCache.put(key, c, generation);
+                    }
                     break;
                 case BODY_ID:
                 case MESSAGE_ID:
@@ -1861,14 +2436,17 @@ public class EmailProvider extends ContentProvider {
                     id = uri.getPathSegments().get(1);
                     if (cache != null) {
                         c = cache.getCachedCursor(id, projection);
+                        cacheResult = (c != null)
+                                ? ProviderStats.CACHE_HIT : ProviderStats.CACHE_MISS;
                     }
                     if (c == null) {
                         CacheToken token = null;
                         if (cache != null) {
                             token = cache.getCacheToken(id);
                         }
-                        c = db.query(tableName, projection, whereWithId(id, selection),
-                                selectionArgs, null, null, sortOrder, limit);
+                        c = getQueryDatabase(db, cache != null).query(tableName, projection,
+                                whereWithId(id, selection), selectionArgs, null, null, sortOrder,
+                                limit);
                         if (cache != null) {
                             c = cache.putCursor(c, id, projection, token);
                         }
@@ -1877,14 +2455,14 @@ public class EmailProvider extends ContentProvider {
                 case ATTACHMENTS_MESSAGE_ID:
                     // All attachments for the given message
                     id = uri.getPathSegments().get(2);
-                    c = db.query(Attachment.TABLE_NAME, projection,
+                    c = getQueryDatabase(db, false).query(Attachment.TABLE_NAME, projection,
                             whereWith(Attachment.MESSAGE_KEY + "=" + id, selection),
                             selectionArgs, null, null, sortOrder, limit);
                     break;
                 case QUICK_RESPONSE_ACCOUNT_ID:
                     // All quick responses for the given account
                     id = uri.getPathSegments().get(2);
-                    c = db.query(QuickResponse.TABLE_NAME, projection,
+                    c = getQueryDatabase(db, false).query(QuickResponse.TABLE_NAME, projection,
                             whereWith(QuickResponse.ACCOUNT_KEY + "=" + id, selection),
                             selectionArgs, null, null, sortOrder);
                     break;
@@ -1911,6 +2489,7 @@ public class EmailProvider extends ContentProvider {
         if ((c != null) && !isTemporary()) {
             c.setNotificationUri(getContext().getContentResolver(), uri);
         }
+        ProviderStats.recordQuery(match, uri, System.nanoTime() - time, c, cacheResult);
         return c;
     }
 
@@ -2100,26 +2679,33 @@ public class EmailProvider extends ContentProvider {
         if (uri == INTEGRITY_CHECK_URI) {
             checkDatabases();
             return 0;
+        } else if (INCREMENTAL_INTEGRITY_CHECK_URI.equals(uri)) {
+            return runIntegrityCheck(INTEGRITY_CHECK_SLICE_MS) ? 0 : 1;
+        } else if (COMPACT_URI.getPath().equals(uri.getPath())) {
+            String budget = uri.getQueryParameter(COMPACT_URI_PARAMETER_BUDGET);
+            return runCompaction(COMPACTION_SLICE_MS,
+                    (budget != null) ? Long.parseLong(budget) : COMPACTION_SLICE_MS) ? 0 : 1;
         } else if (uri == ACCOUNT_BACKUP_URI) {
             return backupAccounts(getContext(), getDatabase(getContext()));
         }
 
+        long time = System.nanoTime();
         // Notify all existing cursors, except for ACCOUNT_RESET_NEW_COUNT(_ID)
         Uri notificationUri = EmailContent.CONTENT_URI;
 
         int match = findMatch(uri, "update");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
         int table = match >> BASE_SHIFT;
         int result;
 
-        // We do NOT allow setting of unreadCount/messageCount via the provider
+        // We do NOT allow setting of unreadCount/messageCount/favoriteCount via the provider
         // These columns are maintained via triggers
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.remove(MailboxColumns.UNREAD_COUNT);
             values.remove(MailboxColumns.MESSAGE_COUNT);
+            values.remove(MailboxColumns.FAVORITE_COUNT);
         }
 
         ContentCache cache = mContentCaches[table];
@@ -2185,6 +2771,9 @@ outer:
                         cache.lock(id);
                     }
                     try {
+                        if (match == SYNCED_MESSAGE_ID || match == MESSAGE_ID) {
+                            messageListChanged(db, ID_EQUALS, new String[] {id}, values);
+                        }
                         if (match == SYNCED_MESSAGE_ID) {
                             // For synced messages, first copy the old message to the updated table
                             // Note the insert or ignore semantics, guaranteeing that only the first
@@ -2213,6 +2802,23 @@ outer:
                         }
                     }
                     break;
+                case SYNCED_MESSAGE:
+                    // As for SYNCED_MESSAGE_ID, but for all of the selected messages at once
+                    checkSelection(uri, selection);
+                    messageListChanged(db, selection, selectionArgs, values);
+                    db.beginTransaction();
+                    long transactionStart = System.nanoTime();
+                    try {
+                        execSQL(db, UPDATED_MESSAGE_INSERT_WHERE + selection, selectionArgs);
+                        result = db.update(tableName, values, selection, selectionArgs);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        ProviderStats.recordTransaction("updateSyncedMessages",
+                                System.nanoTime() - transactionStart);
+                    }
+                    mCacheMessage.invalidate("Update", uri, selection);
+                    break;
                 case BODY:
                 case MESSAGE:
                 case UPDATED_MESSAGE:
@@ -2230,6 +2836,8 @@ outer:
                         case POLICY:
                             Cursor c = db.query(tableName, EmailContent.ID_PROJECTION,
                                     selection, selectionArgs, null, null, null);
+                            // Send the notifications for all of the rows together
+                            getNotificationCoalescer().beginBatch();
                             db.beginTransaction();
                             result = 0;
                             try {
@@ -2243,6 +2851,7 @@ outer:
                             } finally {
                                 db.endTransaction();
                                 c.close();
+                                getNotificationCoalescer().endBatch();
                             }
                             break outer;
                         // Any cached table other than those above should be invalidated here
@@ -2250,6 +2859,7 @@ outer:
                             // If we're doing some generic update, the whole cache needs to be
                             // invalidated.  This case should be quite rare
                             cache.invalidate("Update", uri, selection);
+                            getNotificationCoalescer().messageListChanged(-1, -1);
                             //$FALL-THROUGH$
                         default:
                             result = db.update(tableName, values, selection, selectionArgs);
@@ -2292,11 +2902,14 @@ outer:
             checkDatabases();
             throw e;
         }
+        invalidateSelectionCaches(table);
+        ProviderStats.recordChange(ProviderStats.UPDATE, match, uri, System.nanoTime() - time,
+                result);
 
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
 
-        resolver.notifyChange(notificationUri, null);
+        getNotificationCoalescer().notifyChange(notificationUri);
         return result;
     }
 
@@ -2311,6 +2924,7 @@ outer:
             case MESSAGE:
             case MESSAGE_ID:
             case SYNCED_MESSAGE_ID:
+            case SYNCED_MESSAGE:
                 baseUri = Message.NOTIFIER_URI;
                 break;
             case ACCOUNT:
@@ -2330,6 +2944,9 @@ outer:
      * If this is necessary, it can be added. However, due to the implementation of
      * {@link ContentObserver}, observers of <<baseURI>> will receive multiple notifications.
      *
+     * Notifications are sent through the {@link NotificationCoalescer}, so they may be delayed
+     * briefly and merged with others.
+     *
      * @param baseUri The base URI to send notifications to. Must be able to take appended IDs.
      * @param op Optional operation to be appended to the URI.
      * @param id If a positive value, the ID to append to the base URI. Otherwise, no ID will be
@@ -2338,8 +2955,6 @@ outer:
     private void sendNotifierChange(Uri baseUri, String op, String id) {
         if (baseUri == null) return;
 
-        final ContentResolver resolver = getContext().getContentResolver();
-
         // Append the operation, if specified
         if (op != null) {
             baseUri = baseUri.buildUpon().appendEncodedPath(op).build();
@@ -2350,24 +2965,59 @@ outer:
             longId = Long.valueOf(id);
         } catch (NumberFormatException ignore) {}
         if (longId > 0) {
-            resolver.notifyChange(ContentUris.withAppendedId(baseUri, longId), null);
+            getNotificationCoalescer().notifyChange(ContentUris.withAppendedId(baseUri, longId));
         } else {
-            resolver.notifyChange(baseUri, null);
+            getNotificationCoalescer().notifyChange(baseUri);
         }
+    }
 
-        // We want to send the message list changed notification if baseUri is Message.NOTIFIER_URI.
-        if (baseUri.equals(Message.NOTIFIER_URI)) {
-            sendMessageListDataChangedNotification();
+    private static final String[] MESSAGE_KEYS_PROJECTION = new String[] {
+        MessageColumns.ACCOUNT_KEY, MessageColumns.MAILBOX_KEY
+    };
+
+    /**
+     * Records the accounts and mailboxes of the messages that are about to be changed or deleted,
+     * so the next message list broadcast covers them.  If the messages are being moved, the
+     * mailbox they're being moved to is recorded too.
+     *
+     * @param values the values the messages are being updated with, or null if they're being
+     * deleted
+     */
+    private void messageListChanged(SQLiteDatabase db, String selection, String[] selectionArgs,
+            ContentValues values) {
+        NotificationCoalescer coalescer = getNotificationCoalescer();
+        Long newMailboxId = (values != null) ? values.getAsLong(MessageColumns.MAILBOX_KEY) : null;
+        Cursor c = db.query(true, Message.TABLE_NAME, MESSAGE_KEYS_PROJECTION, selection,
+                selectionArgs, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long accountId = c.getLong(0);
+                coalescer.messageListChanged(accountId, c.getLong(1));
+                if (newMailboxId != null) {
+                    coalescer.messageListChanged(accountId, newMailboxId);
+                }
+            }
+        } finally {
+            c.close();
         }
     }
 
-    private void sendMessageListDataChangedNotification() {
-        final Context context = getContext();
-        final Intent intent = new Intent(ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
-        // Ideally this intent would contain information about which account changed, to limit the
-        // updates to that particular account.  Unfortunately, that information is not available in
-        // sendNotifierChange().
-        context.sendBroadcast(intent);
+    /**
+     * Set-based operations must have a selection; one that matched every message by accident
+     * would be disastrous.
+     */
+    private static void checkSelection(Uri uri, String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            throw new IllegalArgumentException("No selection for " + uri);
+        }
+    }
+
+    private static void execSQL(SQLiteDatabase db, String sql, String[] bindArgs) {
+        if (bindArgs == null) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql, bindArgs);
+        }
     }
 
     @Override
@@ -2375,23 +3025,60 @@ outer:
             throws OperationApplicationException {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
-        db.beginTransaction();
+        // Send the notifications for the whole batch together, once it's committed
+        getNotificationCoalescer().beginBatch();
         try {
-            ContentProviderResult[] results = super.applyBatch(operations);
-            db.setTransactionSuccessful();
-            return results;
+            db.beginTransaction();
+            long time = System.nanoTime();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+                return results;
+            } finally {
+                db.endTransaction();
+                ProviderStats.recordTransaction("applyBatch", System.nanoTime() - time);
+            }
         } finally {
-            db.endTransaction();
+            getNotificationCoalescer().endBatch();
         }
     }
 
     /** Counts the number of messages in each mailbox, and updates the message count column. */
     @VisibleForTesting
     static void recalculateMessageCount(SQLiteDatabase db) {
-        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
-                "= (select count(*) from " + Message.TABLE_NAME +
-                " where " + Message.MAILBOX_KEY + " = " +
-                    Mailbox.TABLE_NAME + "." + EmailContent.RECORD_ID + ")");
+        recalculateCount(db, MailboxColumns.MESSAGE_COUNT, null);
+    }
+
+    /** Counts the favorite messages in each mailbox, and updates the favorite count column. */
+    @VisibleForTesting
+    static void recalculateFavoriteCount(SQLiteDatabase db) {
+        recalculateCount(db, MailboxColumns.FAVORITE_COUNT, MessageColumns.FLAG_FAVORITE
+                + "=1 and " + Message.FLAG_LOADED_SELECTION);
+    }
+
+    /**
+     * Counts the messages matching a selection in each mailbox, and updates a count column of
+     * the mailboxes.  The messages are counted in one pass over the mailbox key index, rather
+     * than with a query per mailbox.
+     */
+    private static void recalculateCount(SQLiteDatabase db, String column, String selection) {
+        db.beginTransaction();
+        try {
+            db.execSQL("create temp table " + MESSAGE_COUNT_TABLE
+                    + " (mailbox integer primary key, messages integer)");
+            db.execSQL("insert into " + MESSAGE_COUNT_TABLE + " select "
+                    + MessageColumns.MAILBOX_KEY + ", count(*) from " + Message.TABLE_NAME
+                    + " where " + MessageColumns.MAILBOX_KEY + " not null"
+                    + (selection != null ? " and " + selection : "") + " group by "
+                    + MessageColumns.MAILBOX_KEY);
+            db.execSQL("update " + Mailbox.TABLE_NAME + " set " + column
+                    + "=ifnull((select messages from " + MESSAGE_COUNT_TABLE + " where mailbox="
+                    + Mailbox.TABLE_NAME + "." + EmailContent.RECORD_ID + "), 0)");
+            db.execSQL("drop table " + MESSAGE_COUNT_TABLE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @VisibleForTesting
@@ -2626,6 +3313,25 @@ outer:
         }
     }
 
+    /** Upgrades the database from v28 to v29 */
+    @VisibleForTesting
+    static void upgradeFromVersion28ToVersion29(SQLiteDatabase db) {
+        try {
+            db.execSQL("alter table " + Mailbox.TABLE_NAME + " add column "
+                    + MailboxColumns.FAVORITE_COUNT + " integer not null default 0;");
+        } catch (SQLException e) {
+            // Shouldn't be needed unless we're debugging and interrupt the process
+            Log.w(TAG, "Exception upgrading EmailProvider.db from 28 to 29 " + e);
+        }
+        createFavoriteCountTriggers(db);
+        recalculateFavoriteCount(db);
+        // Use the mailbox_delete trigger that updates the summary table
+        db.execSQL("drop trigger if exists mailbox_delete;");
+        db.execSQL(TRIGGER_MAILBOX_DELETE);
+        createMailboxSummaryTable(db);
+        rebuildMailboxSummary(db);
+    }
+
         /**
      * For testing purposes, check whether a given row is cached
      * @param baseUri the base uri of the EmailContent
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+
+/**
+ * Checks (and repairs) the consistency of the {@link EmailProvider} database a little at a time,
+ * so that checking a large database never holds the write lock for long.
+ *
+ * A pass of the check:
+ * - deletes the rows of the updated and deleted message tables whose mailbox no longer exists;
+ * - deletes the messages whose mailbox no longer exists, with their bodies and attachment files
+ *   (a message's account isn't checked, since the attachment viewer's messages have none);
+ * - fixes the message, unread and favorite counts of mailboxes that don't match their messages
+ *   (which the triggers on the mailbox table carry over to the summary table).
+ * Each of these is done in chunks of rows (by id), a chunk per transaction.  {@link #run} does
+ * chunks until its time is up, and the next call carries on where it left off; rows added
+ * behind it are looked at in the next pass.
+ *
+ * Passes, and what they found, are counted for the whole process, see {@link #getSummary()}.
+ */
+public final class IntegrityChecker {
+    /** The number of rows of a message table looked at in one chunk */
+    @VisibleForTesting
+    static final int MESSAGE_CHUNK = 1000;
+    /** The number of mailboxes whose counts are checked in one chunk */
+    @VisibleForTesting
+    static final int MAILBOX_CHUNK = 16;
+
+    private static final int STEP_UPDATED_MESSAGES = 0;
+    private static final int STEP_DELETED_MESSAGES = 1;
+    private static final int STEP_MESSAGES = 2;
+    private static final int STEP_COUNTS = 3;
+    private static final int STEPS = 4;
+
+    private static final String ID_RANGE = EmailContent.RECORD_ID + ">? and "
+            + EmailContent.RECORD_ID + "<=?";
+    private static final String COUNT_MESSAGES = "select " + MessageColumns.MAILBOX_KEY
+            + ", count(*), sum(" + MessageColumns.FLAG_READ + "=0), sum("
+            + MessageColumns.FLAG_FAVORITE + "=1 and " + Message.FLAG_LOADED_SELECTION
+            + ") from " + Message.TABLE_NAME + " where " + MessageColumns.MAILBOX_KEY + ">? and "
+            + MessageColumns.MAILBOX_KEY + "<=? group by " + MessageColumns.MAILBOX_KEY;
+    private static final String[] COUNTS_COLUMNS = new String[] {
+        MailboxColumns.MESSAGE_COUNT, MailboxColumns.UNREAD_COUNT, MailboxColumns.FAVORITE_COUNT
+    };
+    private static final String[] COUNTS_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, MailboxColumns.MESSAGE_COUNT, MailboxColumns.UNREAD_COUNT,
+        MailboxColumns.FAVORITE_COUNT
+    };
+
+    private static int sPasses;
+    private static int sSlices;
+    private static int sRowsDeleted;
+    private static int sCountsFixed;
+
+    private final Context mContext;
+    private final SQLiteDatabase mDb;
+    private int mStep = STEP_UPDATED_MESSAGES;
+    // The last id of the current step's table that's been checked
+    private long mLastId;
+    private int mChangeCount;
+
+    public IntegrityChecker(Context context, SQLiteDatabase db) {
+        mContext = context;
+        mDb = db;
+    }
+
+    /**
+     * Continues the check for about the given time; however short it is, at least one chunk of
+     * rows is checked.
+     *
+     * @return true if this completed a pass; the next call starts another one
+     */
+    public boolean run(long maxMillis) {
+        long end = SystemClock.elapsedRealtime() + maxMillis;
+        recordSlice();
+        do {
+            if (!checkChunk()) {
+                mLastId = 0;
+                if (++mStep == STEPS) {
+                    mStep = STEP_UPDATED_MESSAGES;
+                    recordPass();
+                    return true;
+                }
+            }
+        } while (SystemClock.elapsedRealtime() < end);
+        return false;
+    }
+
+    /**
+     * Returns the number of rows this checker has deleted or fixed, so that callers can tell
+     * whether anything they've cached may be out of date.
+     */
+    public int getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * Checks the next chunk of rows of the current step.
+     * @return false if the step has no more rows to check
+     */
+    private boolean checkChunk() {
+        switch (mStep) {
+            case STEP_UPDATED_MESSAGES:
+                return deleteChunk(Message.UPDATED_TABLE_NAME,
+                        EmailProvider.getMessageOrphanSelection(Message.UPDATED_TABLE_NAME));
+            case STEP_DELETED_MESSAGES:
+                return deleteChunk(Message.DELETED_TABLE_NAME,
+                        EmailProvider.getMessageOrphanSelection(Message.DELETED_TABLE_NAME));
+            case STEP_MESSAGES:
+                return deleteChunk(Message.TABLE_NAME,
+                        EmailProvider.getMessageOrphanSelection(Message.TABLE_NAME));
+            default:
+                return fixCounts();
+        }
+    }
+
+    /**
+     * Returns the last id of the next chunk of a table, or a value no greater than the last id
+     * checked if there are no more rows.
+     */
+    private long getChunkEnd(String table, int size) {
+        return DatabaseUtils.longForQuery(mDb, "select max(" + EmailContent.RECORD_ID
+                + ") from (select " + EmailContent.RECORD_ID + " from " + table + " where "
+                + EmailContent.RECORD_ID + ">? order by " + EmailContent.RECORD_ID + " limit "
+                + size + ")", new String[] {Long.toString(mLastId)});
+    }
+
+    private boolean deleteChunk(String table, String selection) {
+        mDb.beginTransaction();
+        try {
+            long end = getChunkEnd(table, MESSAGE_CHUNK);
+            if (end <= mLastId) {
+                return false;
+            }
+            String[] args = new String[] {Long.toString(mLastId), Long.toString(end)};
+            int count;
+            if (Message.TABLE_NAME.equals(table)) {
+                count = EmailProvider.deleteMessagesWhere(mContext, mDb,
+                        ID_RANGE + " and " + selection, args);
+            } else {
+                count = mDb.delete(table, ID_RANGE + " and " + selection, args);
+            }
+            mDb.setTransactionSuccessful();
+            mLastId = end;
+            mChangeCount += count;
+            recordChanges(count, 0);
+            return true;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Counts the messages (and unread and favorite messages) of the next chunk of mailboxes with
+     * a single grouped query, and fixes the mailboxes whose counts are wrong.
+     */
+    private boolean fixCounts() {
+        mDb.beginTransaction();
+        try {
+            long end = getChunkEnd(Mailbox.TABLE_NAME, MAILBOX_CHUNK);
+            if (end <= mLastId) {
+                return false;
+            }
+            String[] args = new String[] {Long.toString(mLastId), Long.toString(end)};
+            HashMap<Long, int[]> counts = new HashMap<Long, int[]>();
+            Cursor c = mDb.rawQuery(COUNT_MESSAGES, args);
+            try {
+                while (c.moveToNext()) {
+                    counts.put(c.getLong(0), new int[] {c.getInt(1), c.getInt(2), c.getInt(3)});
+                }
+            } finally {
+                c.close();
+            }
+            int fixed = 0;
+            ContentValues values = new ContentValues();
+            c = mDb.query(Mailbox.TABLE_NAME, COUNTS_PROJECTION, ID_RANGE, args, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    int[] count = counts.get(c.getLong(0));
+                    boolean wrong = false;
+                    for (int i = 0; i < COUNTS_COLUMNS.length; i++) {
+                        int actual = (count != null) ? count[i] : 0;
+                        wrong |= (c.getInt(i + 1) != actual);
+                        values.put(COUNTS_COLUMNS[i], actual);
+                    }
+                    if (wrong) {
+                        mDb.update(Mailbox.TABLE_NAME, values, EmailContent.RECORD_ID + "=?",
+                                new String[] {c.getString(0)});
+                        fixed++;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            mDb.setTransactionSuccessful();
+            mLastId = end;
+            mChangeCount += fixed;
+            recordChanges(0, fixed);
+            return true;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private static synchronized void recordSlice() {
+        sSlices++;
+    }
+
+    private static synchronized void recordPass() {
+        sPasses++;
+    }
+
+    private static synchronized void recordChanges(int deleted, int fixed) {
+        sRowsDeleted += deleted;
+        sCountsFixed += fixed;
+    }
+
+    /**
+     * Returns a one-line summary of the checks made, and what they found.
+     */
+    public static synchronized String getSummary() {
+        return sPasses + " passes in " + sSlices + " slices, " + sRowsDeleted
+                + " orphaned rows deleted, " + sCountsFixed + " mailbox counts fixed";
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public static synchronized void resetStats() {
+        sPasses = 0;
+        sSlices = 0;
+        sRowsDeleted = 0;
+        sCountsFixed = 0;
+    }
+}
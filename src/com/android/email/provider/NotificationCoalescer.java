@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Coalesces the change notifications sent by {@link EmailProvider}, so that a burst of changes
+ * (e.g. a sync, or an operation on many messages) wakes up each observer once rather than once
+ * per row.
+ *
+ * Notifications are held while a batch is open (see {@link #beginBatch()}), and otherwise sent
+ * at most once per {@link #WINDOW_MS}: the first change after a quiet period is sent right away,
+ * and changes made during the window that follows are sent together when it ends.  Pending URIs
+ * are sent once each, and URIs for more than one row of the same kind (i.e. with the same path
+ * apart from the row id) are replaced by their parent URI, which observers of the rows are also
+ * notified of.
+ *
+ * Changes to message lists are sent as a single
+ * {@link EmailProvider#ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED} broadcast, with the ids of the
+ * accounts and mailboxes that changed when they are all known.
+ *
+ * The number of notifications asked for and actually sent are counted for the whole process,
+ * see {@link #getSummary()}.
+ */
+public class NotificationCoalescer {
+    /** The shortest time between two sends, in milliseconds */
+    @VisibleForTesting
+    static final long WINDOW_MS = 200;
+
+    private static int sRequested;
+    private static int sSent;
+    private static int sBroadcastsRequested;
+    private static int sBroadcastsSent;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final LinkedHashSet<Uri> mPendingUris = new LinkedHashSet<Uri>();
+    private final HashSet<Long> mAccountIds = new HashSet<Long>();
+    private final HashSet<Long> mMailboxIds = new HashSet<Long>();
+    private boolean mMessageListChanged;
+    // Whether some message list change was for an unknown account or mailbox
+    private boolean mUnknownMessageListChanged;
+    private int mBatchDepth;
+    private boolean mFlushScheduled;
+    // Notifications aren't sent again until this time (in elapsed realtime)
+    private long mWindowEnd;
+
+    public NotificationCoalescer(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    /**
+     * Ask for a change notification to be sent for a URI.
+     */
+    public void notifyChange(Uri uri) {
+        boolean flushNow;
+        synchronized (this) {
+            requested(1, 0);
+            mPendingUris.add(uri);
+            flushNow = scheduleFlush();
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Record that a message list changed, so that a message list broadcast is sent along with
+     * the next notifications.  This doesn't send anything by itself.
+     *
+     * @param accountId the account whose messages changed, or -1 if it isn't known
+     * @param mailboxId the mailbox whose messages changed, or -1 if it isn't known
+     */
+    public synchronized void messageListChanged(long accountId, long mailboxId) {
+        requested(0, 1);
+        mMessageListChanged = true;
+        if (accountId < 0 || mailboxId < 0) {
+            mUnknownMessageListChanged = true;
+        } else {
+            mAccountIds.add(accountId);
+            mMailboxIds.add(mailboxId);
+        }
+    }
+
+    /**
+     * Hold notifications until the matching {@link #endBatch()}.  Batches can be nested.
+     */
+    public synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch started by {@link #beginBatch()}; if it's the outermost one, the notifications
+     * that were held are sent (subject to the usual window).
+     */
+    public void endBatch() {
+        boolean flushNow;
+        synchronized (this) {
+            if (mBatchDepth == 0) {
+                throw new IllegalStateException("endBatch without beginBatch");
+            }
+            mBatchDepth--;
+            flushNow = scheduleFlush();
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Schedules the pending notifications to be sent at the end of the current window, if they
+     * can't be sent right away.
+     *
+     * @return true if they should be sent right away
+     */
+    private boolean scheduleFlush() {
+        if (mBatchDepth > 0 || mFlushScheduled || mPendingUris.isEmpty()) {
+            return false;
+        }
+        long now = now();
+        if (now >= mWindowEnd) {
+            return true;
+        }
+        mFlushScheduled = true;
+        postFlush(mWindowEnd - now);
+        return false;
+    }
+
+    /**
+     * Sends the pending notifications now.
+     */
+    @VisibleForTesting
+    void flush() {
+        List<Uri> uris;
+        Intent intent = null;
+        synchronized (this) {
+            if (mFlushScheduled) {
+                cancelFlush();
+                mFlushScheduled = false;
+            }
+            if (mPendingUris.isEmpty()) {
+                return;
+            }
+            uris = collapse(mPendingUris);
+            mPendingUris.clear();
+            if (mMessageListChanged) {
+                intent = new Intent(EmailProvider.ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
+                if (!mUnknownMessageListChanged) {
+                    intent.putExtra(EmailProvider.EXTRA_ACCOUNT_IDS, toArray(mAccountIds));
+                    intent.putExtra(EmailProvider.EXTRA_MAILBOX_IDS, toArray(mMailboxIds));
+                }
+                mMessageListChanged = false;
+                mUnknownMessageListChanged = false;
+                mAccountIds.clear();
+                mMailboxIds.clear();
+            }
+            mWindowEnd = now() + WINDOW_MS;
+            sent(uris.size(), intent != null ? 1 : 0);
+        }
+        // Send without holding our lock, as observers in this process can make changes in turn
+        for (Uri uri : uris) {
+            sendChange(uri);
+        }
+        if (intent != null) {
+            sendBroadcast(intent);
+        }
+    }
+
+    /**
+     * Returns the URIs to send for the given ones, replacing URIs for two or more rows of the
+     * same kind by their parent.
+     */
+    @VisibleForTesting
+    static List<Uri> collapse(LinkedHashSet<Uri> uris) {
+        HashMap<Uri, Integer> rowCounts = new HashMap<Uri, Integer>();
+        for (Uri uri : uris) {
+            Uri parent = getParentOfRow(uri);
+            if (parent != null) {
+                Integer count = rowCounts.get(parent);
+                rowCounts.put(parent, count == null ? 1 : count + 1);
+            }
+        }
+        LinkedHashSet<Uri> result = new LinkedHashSet<Uri>();
+        for (Uri uri : uris) {
+            Uri parent = getParentOfRow(uri);
+            if (parent != null && rowCounts.get(parent) > 1) {
+                result.add(parent);
+            } else {
+                result.add(uri);
+            }
+        }
+        // A parent that's also pending in its own right makes its rows redundant
+        ArrayList<Uri> list = new ArrayList<Uri>(result.size());
+        for (Uri uri : result) {
+            Uri parent = getParentOfRow(uri);
+            if (parent == null || !result.contains(parent)) {
+                list.add(uri);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the URI a row URI (one ending with a row id) was made from, or null if the URI
+     * isn't for a row.
+     */
+    private static Uri getParentOfRow(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        int size = segments.size();
+        if (size < 2) {
+            return null;
+        }
+        String last = segments.get(size - 1);
+        for (int i = 0; i < last.length(); i++) {
+            if (!Character.isDigit(last.charAt(i))) {
+                return null;
+            }
+        }
+        Uri.Builder builder = uri.buildUpon().path(null);
+        for (int i = 0; i < size - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    private static long[] toArray(HashSet<Long> set) {
+        long[] array = new long[set.size()];
+        int i = 0;
+        for (long id : set) {
+            array[i++] = id;
+        }
+        return array;
+    }
+
+    /**
+     * Arranges for {@link #flush()} to be called after the given delay, in milliseconds.
+     */
+    @VisibleForTesting
+    protected void postFlush(long delayMillis) {
+        mHandler.postDelayed(mFlushRunnable, delayMillis);
+    }
+
+    /**
+     * Cancels the call to {@link #flush()} arranged by {@link #postFlush}.
+     */
+    @VisibleForTesting
+    protected void cancelFlush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+    }
+
+    @VisibleForTesting
+    protected void sendChange(Uri uri) {
+        mContext.getContentResolver().notifyChange(uri, null);
+    }
+
+    @VisibleForTesting
+    protected void sendBroadcast(Intent intent) {
+        mContext.sendBroadcast(intent);
+    }
+
+    @VisibleForTesting
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static synchronized void requested(int notifications, int broadcasts) {
+        sRequested += notifications;
+        sBroadcastsRequested += broadcasts;
+    }
+
+    private static synchronized void sent(int notifications, int broadcasts) {
+        sSent += notifications;
+        sBroadcastsSent += broadcasts;
+    }
+
+    /**
+     * Returns a one-line summary of the notifications and broadcasts sent and suppressed.
+     */
+    public static synchronized String getSummary() {
+        return sSent + " notifications sent, " + (sRequested - sSent) + " suppressed; "
+                + sBroadcastsSent + " message list broadcasts sent, "
+                + (sBroadcastsRequested - sBroadcastsSent) + " suppressed";
+    }
+
+    /** @return the number of notifications sent */
+    public static synchronized int getSentCount() {
+        return sSent;
+    }
+
+    /** @return the number of notifications asked for but not sent (i.e. coalesced) */
+    public static synchronized int getSuppressedCount() {
+        return sRequested - sSent;
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public static synchronized void resetStats() {
+        sRequested = 0;
+        sSent = 0;
+        sBroadcastsRequested = 0;
+        sBroadcastsSent = 0;
+    }
+}
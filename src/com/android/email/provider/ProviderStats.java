@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Counts and times the operations of {@link EmailProvider}, so that slow URIs (and regressions)
+ * can be found from a bug report.
+ *
+ * For each operation on each kind of URI (i.e. URI match), we keep the number of operations, the
+ * rows they returned or changed, how many queries were answered from a cache (and how many could
+ * not have been), and a histogram of their latency.  Transactions the provider makes are timed
+ * the same way, since they hold the write lock for their whole length.  Recording takes a few
+ * counter updates under a lock, so it's always on.
+ *
+ * The numbers are for the whole process; see {@link #dump} and {@link #getCursor}.
+ */
+public final class ProviderStats {
+    public static final String QUERY = "query";
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    public static final String TRANSACTION = "transaction";
+
+    /** The result of a query's cache lookup */
+    public static final int CACHE_HIT = 0;
+    public static final int CACHE_MISS = 1;
+    public static final int NOT_CACHEABLE = 2;
+
+    /**
+     * The upper bound of the first latency bucket, in microseconds; each bucket's bound is twice
+     * the previous one's, and the last bucket has none.
+     */
+    @VisibleForTesting
+    static final long FIRST_BUCKET_MICROS = 125;
+    @VisibleForTesting
+    static final int BUCKETS = 16;
+
+    /** The columns of {@link #getCursor()} */
+    public static final String[] COLUMNS = new String[] {
+        "operation", "uri", "count", "rows", "cacheHits", "notCacheable", "totalMs", "maxMs",
+        "p50Ms", "p90Ms", "p99Ms"
+    };
+
+    private static final class Stats {
+        final String mOperation;
+        final String mName;
+        int mCount;
+        long mRows;
+        int mCacheHits;
+        int mNotCacheable;
+        long mTotalMicros;
+        long mMaxMicros;
+        final int[] mBuckets = new int[BUCKETS];
+
+        Stats(String operation, String name) {
+            mOperation = operation;
+            mName = name;
+        }
+
+        void add(long micros, long rows) {
+            mCount++;
+            mRows += rows;
+            mTotalMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+            mBuckets[getBucket(micros)]++;
+        }
+
+        /**
+         * Returns an estimate of a percentile of the latency, in milliseconds: the upper bound
+         * of the bucket it falls in, or the maximum for the last bucket.
+         */
+        double getPercentile(int percent) {
+            int target = (mCount * percent + 99) / 100;
+            int seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    return Math.min(FIRST_BUCKET_MICROS << i, mMaxMicros) / 1000.0;
+                }
+            }
+            return mMaxMicros / 1000.0;
+        }
+    }
+
+    // Keyed by operation and URI match (or transaction name), in the order they were first seen
+    private static final LinkedHashMap<String, Stats> sStats =
+        new LinkedHashMap<String, Stats>();
+
+    private ProviderStats() {
+    }
+
+    @VisibleForTesting
+    static int getBucket(long micros) {
+        int bucket = 0;
+        long bound = FIRST_BUCKET_MICROS;
+        while (micros >= bound && bucket < BUCKETS - 1) {
+            bound <<= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the name of the kind of URI a URI is, i.e. its path with ids replaced by "#".
+     */
+    @VisibleForTesting
+    static String getUriName(Uri uri) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : uri.getPathSegments()) {
+            sb.append('/');
+            boolean id = segment.length() > 0;
+            for (int i = 0; i < segment.length() && id; i++) {
+                char c = segment.charAt(i);
+                id = Character.isDigit(c) || (i == 0 && c == '-');
+            }
+            sb.append(id ? "#" : segment);
+        }
+        return sb.toString();
+    }
+
+    private static Stats getStats(String operation, int match, Uri uri) {
+        String key = operation + match;
+        Stats stats = sStats.get(key);
+        if (stats == null) {
+            stats = new Stats(operation, getUriName(uri));
+            sStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Record a query.
+     * @param nanos how long the query took, in nanoseconds
+     * @param c the query's result, or null
+     * @param cacheResult {@link #CACHE_HIT}, {@link #CACHE_MISS} or {@link #NOT_CACHEABLE}
+     */
+    public static void recordQuery(int match, Uri uri, long nanos, Cursor c, int cacheResult) {
+        int rows = (c != null) ? c.getCount() : 0;
+        synchronized (ProviderStats.class) {
+            Stats stats = getStats(QUERY, match, uri);
+            stats.add(nanos / 1000, rows);
+            if (cacheResult == CACHE_HIT) {
+                stats.mCacheHits++;
+            } else if (cacheResult == NOT_CACHEABLE) {
+                stats.mNotCacheable++;
+            }
+        }
+    }
+
+    /**
+     * Record an insert, update or delete.
+     * @param operation {@link #INSERT}, {@link #UPDATE} or {@link #DELETE}
+     * @param nanos how long the operation took, in nanoseconds
+     * @param rows the number of rows inserted, updated or deleted
+     */
+    public static synchronized void recordChange(String operation, int match, Uri uri,
+            long nanos, int rows) {
+        getStats(operation, match, uri).add(nanos / 1000, rows);
+    }
+
+    /**
+     * Record a transaction.
+     * @param name what the transaction was for
+     * @param nanos how long it was open, in nanoseconds
+     */
+    public static synchronized void recordTransaction(String name, long nanos) {
+        String key = TRANSACTION + name;
+        Stats stats = sStats.get(key);
+        if (stats == null) {
+            stats = new Stats(TRANSACTION, name);
+            sStats.put(key, stats);
+        }
+        stats.add(nanos / 1000, 0);
+    }
+
+    private static synchronized List<Object[]> getRows() {
+        ArrayList<Object[]> rows = new ArrayList<Object[]>(sStats.size());
+        for (Stats stats : sStats.values()) {
+            rows.add(new Object[] {
+                stats.mOperation, stats.mName, stats.mCount, stats.mRows, stats.mCacheHits,
+                stats.mNotCacheable, stats.mTotalMicros / 1000.0, stats.mMaxMicros / 1000.0,
+                stats.getPercentile(50), stats.getPercentile(90), stats.getPercentile(99)
+            });
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the statistics as a cursor, with a row for each operation on each kind of URI,
+     * and for each kind of transaction; the columns are {@link #COLUMNS}.
+     */
+    public static Cursor getCursor() {
+        List<Object[]> rows = getRows();
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, rows.size());
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Prints the statistics, a line for each operation on each kind of URI.
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("Provider operations (count, rows, cache hits/not cacheable, total ms, max ms,"
+                + " p50/p90/p99 ms):");
+        for (Object[] row : getRows()) {
+            pw.println("  " + row[0] + " " + row[1] + ": " + row[2] + ", " + row[3] + ", "
+                    + row[4] + "/" + row[5] + ", " + row[6] + ", " + row[7] + ", " + row[8] + "/"
+                    + row[9] + "/" + row[10]);
+        }
+    }
+
+    /**
+     * Clears the statistics.
+     */
+    public static synchronized void resetStats() {
+        sStats.clear();
+    }
+}
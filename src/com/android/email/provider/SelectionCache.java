@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * A small cache of the results of queries on a table, for the lookups with a selection (e.g. a
+ * mailbox by path, or the unread count of a type of mailbox) that {@link ContentCache}, which
+ * caches rows by id, can't answer.
+ *
+ * Results are keyed by everything that determines them (uri, projection, selection, selection
+ * arguments and sort order), and only results of a few rows are cached.  Any change to the
+ * table must {@link #invalidate()} the whole cache, after the change is made.  A result is only
+ * cached if there was no invalidation between {@link #getGeneration()} being called before the
+ * query and {@link #put} after it, so a result read before a change is never cached after it.
+ *
+ * Hits, misses and invalidations are counted for the whole process, see {@link #getSummary()}.
+ */
+public final class SelectionCache {
+    /** The largest result that's cached, in rows */
+    @VisibleForTesting
+    static final int MAX_ROWS = 4;
+
+    private static int sHits;
+    private static int sMisses;
+    private static int sInvalidations;
+
+    /** A cached result */
+    private static final class Result {
+        final String[] mColumns;
+        final Object[][] mRows;
+
+        Result(String[] columns, Object[][] rows) {
+            mColumns = columns;
+            mRows = rows;
+        }
+    }
+
+    private final LruCache<String, Result> mResults;
+    private int mGeneration;
+
+    public SelectionCache(int maxSize) {
+        mResults = new LruCache<String, Result>(maxSize);
+    }
+
+    /**
+     * Returns the key of a query's result.
+     */
+    public static String getKey(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        StringBuilder sb = new StringBuilder(uri.toString());
+        sb.append('\u0000').append(Arrays.toString(projection));
+        sb.append('\u0000').append(selection);
+        sb.append('\u0000').append(Arrays.toString(selectionArgs));
+        sb.append('\u0000').append(sortOrder);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a new cursor on a cached result, or null if the result isn't cached.
+     */
+    public synchronized Cursor get(String key) {
+        Result result = mResults.get(key);
+        recordLookup(result != null);
+        if (result == null) {
+            return null;
+        }
+        MatrixCursor cursor = new MatrixCursor(result.mColumns, result.mRows.length);
+        for (Object[] row : result.mRows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the current generation of the cache, which is to be passed to {@link #put}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the result of a query, if it's small enough and the cache hasn't been invalidated
+     * since the query was made.
+     *
+     * @param key the key of the result, see {@link #getKey}
+     * @param c the result; it's closed if a copy of it is returned instead
+     * @param generation the generation of the cache before the query was made
+     * @return the cursor to return from the query
+     */
+    public Cursor put(String key, Cursor c, int generation) {
+        if (c.getCount() > MAX_ROWS) {
+            return c;
+        }
+        String[] columns = c.getColumnNames();
+        Object[][] rows = new Object[c.getCount()][];
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = c.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = c.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = c.getBlob(i);
+                        break;
+                    default:
+                        row[i] = c.getString(i);
+                        break;
+                }
+            }
+            rows[c.getPosition()] = row;
+        }
+        c.close();
+        Result result = new Result(columns, rows);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Removes all cached results, and keeps results of queries that are in progress from being
+     * cached.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        if (mResults.size() > 0) {
+            mResults.evictAll();
+            recordInvalidation();
+        }
+    }
+
+    /** @return the number of cached results */
+    public synchronized int size() {
+        return mResults.size();
+    }
+
+    private static synchronized void recordLookup(boolean hit) {
+        if (hit) {
+            sHits++;
+        } else {
+            sMisses++;
+        }
+    }
+
+    private static synchronized void recordInvalidation() {
+        sInvalidations++;
+    }
+
+    /**
+     * Returns a one-line summary of the hit rate of all selection caches.
+     */
+    public static synchronized String getSummary() {
+        int lookups = sHits + sMisses;
+        return sHits + " hits, " + sMisses + " misses ("
+                + (lookups > 0 ? sHits * 100 / lookups : 0) + "% hit rate), " + sInvalidations
+                + " invalidations";
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public static synchronized void resetStats() {
+        sHits = 0;
+        sMisses = 0;
+        sInvalidations = 0;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of attachment thumbnails, kept as PNG files in a directory (normally the
+ * cache directory) so that they outlive the process.
+ *
+ * Thumbnails are keyed by account, attachment and the requested dimensions, along with the
+ * modification time and length of the attachment file; a thumbnail is never found for an
+ * attachment file that has changed since it was made, and is replaced when a new one is made.
+ * When the cache grows over its maximum size, the least recently used thumbnails are deleted.
+ *
+ * The hit rate and the time spent decoding images for thumbnails are counted for the whole
+ * process, see {@link #getSummary()}.
+ */
+public class ThumbnailCache {
+    /** Maximum size of the thumbnail files, in bytes */
+    public static final long MAX_SIZE = 2 * 1024 * 1024;
+
+    /*package*/ static final String PREFIX = "thmb_";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static int sHits;
+    private static int sMisses;
+    private static int sDecodes;
+    private static long sDecodeTime;
+
+    private final File mDir;
+    private final long mMaxSize;
+    // File name to size, in least recently used order; loaded when first needed
+    private LinkedHashMap<String, Long> mFiles;
+    private long mSize;
+
+    public ThumbnailCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the key of a thumbnail of the given size for an attachment, whose file is given.
+     * The file needn't exist (e.g. for attachments that are kept elsewhere).
+     */
+    public static String getKey(long accountId, long attachmentId, int width, int height,
+            File attachmentFile) {
+        return getAttachmentPrefix(accountId, attachmentId) + width + "x" + height + "_"
+                + Long.toHexString(attachmentFile.lastModified()) + "_"
+                + Long.toHexString(attachmentFile.length());
+    }
+
+    private static String getAttachmentPrefix(long accountId, long attachmentId) {
+        return PREFIX + accountId + "_" + attachmentId + "_";
+    }
+
+    /** Returns the part of a key that's the same for all of an attachment's thumbnails */
+    private static String getAttachmentPrefix(String key) {
+        int accountEnd = key.indexOf('_', PREFIX.length());
+        return key.substring(0, key.indexOf('_', accountEnd + 1) + 1);
+    }
+
+    /** Returns the part of a key that changes with the attachment file */
+    private static String getVersion(String key) {
+        int end = key.lastIndexOf('_');
+        return key.substring(key.lastIndexOf('_', end - 1));
+    }
+
+    private void loadIfNeeded() {
+        if (mFiles != null) return;
+        mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mSize = 0;
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && !name.endsWith(TEMP_SUFFIX)) {
+                long size = file.length();
+                mFiles.put(name, size);
+                mSize += size;
+            }
+        }
+    }
+
+    /**
+     * Returns the thumbnail file with the given key, or null if it isn't cached.
+     */
+    public synchronized File get(String key) {
+        loadIfNeeded();
+        File file = new File(mDir, key);
+        // Also check the file, which can be deleted from under us when storage is low
+        if (mFiles.get(key) != null && file.exists()) {
+            // Keep the order for the next time the cache is loaded
+            file.setLastModified(System.currentTimeMillis());
+            recordLookup(true);
+            return file;
+        }
+        remove(key);
+        recordLookup(false);
+        return null;
+    }
+
+    /**
+     * Saves a thumbnail in the cache, replacing any thumbnails of earlier versions of the same
+     * attachment, and deleting the least recently used thumbnails if the cache is full.
+     *
+     * @return the thumbnail file
+     */
+    public File put(String key, Bitmap thumbnail) throws IOException {
+        // Write to a temporary file, so a thumbnail that's being read is never half written
+        File tempFile = File.createTempFile(key, TEMP_SUFFIX, mDir);
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+            return put(key, tempFile);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @VisibleForTesting
+    synchronized File put(String key, File tempFile) throws IOException {
+        loadIfNeeded();
+        File file = new File(mDir, key);
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't save thumbnail " + key);
+        }
+        remove(key);
+        String prefix = getAttachmentPrefix(key);
+        String version = getVersion(key);
+        Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String name = entry.getKey();
+            if (name.startsWith(prefix) && !getVersion(name).equals(version)) {
+                new File(mDir, name).delete();
+                mSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+        long size = file.length();
+        mFiles.put(key, size);
+        mSize += size;
+        iterator = mFiles.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            // Never delete the thumbnail we were just asked for
+            if (entry.getKey().equals(key)) break;
+            new File(mDir, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+        return file;
+    }
+
+    private void remove(String key) {
+        Long size = mFiles.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+    }
+
+    /** @return the size of the cached thumbnails, in bytes */
+    public synchronized long getSize() {
+        loadIfNeeded();
+        return mSize;
+    }
+
+    private static synchronized void recordLookup(boolean hit) {
+        if (hit) {
+            sHits++;
+        } else {
+            sMisses++;
+        }
+    }
+
+    /**
+     * Records the decoding of an image for a thumbnail.
+     * @param time how long decoding took, in milliseconds
+     */
+    public static synchronized void recordDecode(long time) {
+        sDecodes++;
+        sDecodeTime += time;
+        if (Logging.DEBUG_LIFECYCLE) {
+            Log.d(Logging.LOG_TAG, "Thumbnail decoded in " + time + "ms");
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the thumbnail cache's hit rate and decode times.
+     */
+    public static synchronized String getSummary() {
+        int lookups = sHits + sMisses;
+        return sHits + " hits, " + sMisses + " misses ("
+                + (lookups > 0 ? sHits * 100 / lookups : 0) + "% hit rate), " + sDecodes
+                + " decodes, average " + (sDecodes > 0 ? sDecodeTime / sDecodes : 0) + "ms";
+    }
+
+    /**
+     * Clears the counts.
+     */
+    public static synchronized void resetStats() {
+        sHits = 0;
+        sMisses = 0;
+        sDecodes = 0;
+        sDecodeTime = 0;
+    }
+}
@@ -84,7 +84,8 @@ public class WidgetProvider extends AppWidgetProvider {
             final int[] widgetIds = appWidgetManager.getAppWidgetIds(component);
 
             // Ideally, this would only call notify AppWidgetViewDataChanged for the widgets, where
-            // the account had the change, but the current intent doesn't include this information.
+            // the account had the change.  The intent can carry the accounts that changed (see
+            // EmailProvider.EXTRA_ACCOUNT_IDS), but the widgets' accounts aren't known here.
 
             // Calling notifyAppWidgetViewDataChanged will cause onDataSetChanged() to be called
             // on the RemoteViewsService.RemoteViewsFactory, starting the service if necessary.
@@ -37,22 +37,27 @@ import com.android.email.Controller.ControllerService;
 import com.android.email.Email;
 import com.android.email.EmailConnectivityManager;
 import com.android.email.NotificationController;
+import com.android.email.provider.ThumbnailCache;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.Utility;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -68,8 +73,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Try to download an attachment in the background this many times before giving up
     private static final int MAX_DOWNLOAD_RETRIES = 5;
     private static final int PRIORITY_NONE = -1;
-    @SuppressWarnings("unused")
-    // Low priority will be used for opportunistic downloads
+    // Low priority is used for opportunistic downloads
     private static final int PRIORITY_BACKGROUND = 0;
     // Normal priority is for forwarded downloads in outgoing mail
     private static final int PRIORITY_SEND_MAIL = 1;
@@ -80,12 +84,19 @@ public class AttachmentDownloadService extends Service implements Runnable {
     private static final float PREFETCH_MINIMUM_STORAGE_AVAILABLE = 0.25F;
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
-
-    // We can try various values here; I think 2 is completely reasonable as a first pass
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
-    // Limit on the number of simultaneous downloads per account
-    // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
+    // When an account reaches its maximum, unopened prefetched attachments are evicted until
+    // it's this far (as a fraction of the maximum) below it
+    private static final float PREFETCH_EVICTION_HEADROOM = 0.1F;
+
+    // Limit on the number of simultaneous downloads, for all accounts
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 4;
+    // Limit on the number of simultaneous downloads per account.  Each account starts with one,
+    // and is allowed more (up to this limit) while the extra downloads don't slow the others down.
+    // Note that a limit of 1 is enforced by Controller (through MessagingController, which runs
+    // one command at a time) so only Exchange accounts can have more than one
+    /*package*/ static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 3;
+    // Downloads smaller than this are too quick to tell us anything about throughput
+    /*package*/ static final long MIN_THROUGHPUT_SAMPLE_SIZE = 32 * 1024;
     // Limit on the number of attachments we'll check for background download
     private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
 
@@ -102,11 +113,6 @@ public class AttachmentDownloadService extends Service implements Runnable {
     /*package*/ final DownloadSet mDownloadSet = new DownloadSet(new DownloadComparator());
 
     private final HashMap<Long, Intent> mAccountServiceMap = new HashMap<Long, Intent>();
-    // A map of attachment storage used per account
-    // NOTE: This map is not kept current in terms of deletions (i.e. it stores the last calculated
-    // amount plus the size of any new attachments laoded).  If and when we reach the per-account
-    // limit, we recalculate the actual usage
-    /*package*/ final HashMap<Long, Long> mAttachmentStorageMap = new HashMap<Long, Long>();
     // A map of attachment ids to the number of failed attempts to download the attachment
     // NOTE: We do not want to persist this. This allows us to retry background downloading
     // if any transient network errors are fixed & and the app is restarted
@@ -175,8 +181,15 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long startTime;
 
         private DownloadRequest(Context context, Attachment attachment) {
+            this(attachment, Message.restoreMessageWithId(context, attachment.mMessageKey));
+        }
+
+        /**
+         * Create a request for an attachment whose message has already been restored
+         * @param msg the attachment's message, or null if it doesn't exist
+         */
+        private DownloadRequest(Attachment attachment, Message msg) {
             attachmentId = attachment.mId;
-            Message msg = Message.restoreMessageWithId(context, attachment.mMessageKey);
             if (msg != null) {
                 accountId = msg.mAccountKey;
                 messageId = msg.mId;
@@ -187,6 +200,18 @@ public class AttachmentDownloadService extends Service implements Runnable {
             time = System.currentTimeMillis();
         }
 
+        /**
+         * Create a request to prefetch an attachment whose account is already known (from the
+         * attachment row), without looking up its message
+         */
+        private DownloadRequest(Attachment attachment, long accountId) {
+            attachmentId = attachment.mId;
+            messageId = attachment.mMessageKey;
+            this.accountId = accountId;
+            priority = PRIORITY_BACKGROUND;
+            time = System.currentTimeMillis();
+        }
+
         @Override
         public int hashCode() {
             return (int)attachmentId;
@@ -203,9 +228,72 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
     }
 
+    /**
+     * Download statistics for an account, which set how many downloads the account can run at
+     * once.  The limit grows by one when a download at the limit finishes without having been
+     * slowed down (compared to the average per-download throughput), is halved when downloads
+     * are much slower than average, and goes back to one after a failure.
+     */
+    /*package*/ static class AccountStats {
+        final int mMaxConcurrency;
+        int mConcurrency = 1;
+        // Average (exponentially weighted) throughput of one download, in bytes/sec
+        long mThroughput;
+        int mDownloads;
+        int mFailures;
+        long mBytes;
+        long mTime;
+
+        /*package*/ AccountStats(int maxConcurrency) {
+            mMaxConcurrency = maxConcurrency;
+        }
+
+        /**
+         * Record a successful download
+         * @param bytes the size of the attachment
+         * @param time how long the download took, in milliseconds
+         * @param running the number of downloads the account was running (including this one)
+         */
+        /*package*/ void onDownloadSucceeded(long bytes, long time, int running) {
+            mDownloads++;
+            mBytes += bytes;
+            mTime += time;
+            if (bytes < MIN_THROUGHPUT_SAMPLE_SIZE || time <= 0) {
+                return;
+            }
+            long throughput = bytes * 1000 / time;
+            if (mThroughput == 0) {
+                mThroughput = throughput;
+            } else {
+                if (throughput < mThroughput / 2) {
+                    mConcurrency = Math.max(1, mConcurrency / 2);
+                } else if (throughput >= mThroughput * 4 / 5 && running >= mConcurrency) {
+                    mConcurrency = Math.min(mMaxConcurrency, mConcurrency + 1);
+                }
+                mThroughput = (mThroughput * 3 + throughput) / 4;
+            }
+        }
+
+        /**
+         * Record a failed (or timed out) download
+         */
+        /*package*/ void onDownloadFailed() {
+            mFailures++;
+            mConcurrency = 1;
+        }
+
+        /**
+         * @return the overall throughput of the account's downloads, in bytes/sec
+         */
+        /*package*/ long getOverallThroughput() {
+            return (mTime > 0) ? mBytes * 1000 / mTime : 0;
+        }
+    }
+
     /**
      * Comparator class for the download set; we first compare by priority.  Requests with equal
-     * priority are compared by the time the request was created (older requests come first)
+     * priority are compared by the time the request was created (older requests come first), and
+     * then by attachment id, so that no two requests compare as equal.
      */
     /*protected*/ static class DownloadComparator implements Comparator<DownloadRequest> {
         @Override
@@ -215,7 +303,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 res = (req1.priority < req2.priority) ? -1 : 1;
             } else {
                 if (req1.time == req2.time) {
-                    res = 0;
+                    if (req1.attachmentId == req2.attachmentId) {
+                        res = 0;
+                    } else {
+                        res = (req1.attachmentId > req2.attachmentId) ? -1 : 1;
+                    }
                 } else {
                     res = (req1.time > req2.time) ? -1 : 1;
                 }
@@ -246,6 +338,46 @@ public class AttachmentDownloadService extends Service implements Runnable {
         /*package*/ final ConcurrentHashMap<Long, DownloadRequest> mDownloadsInProgress =
             new ConcurrentHashMap<Long, DownloadRequest>();
 
+        /**
+         * Maps attachment id to queued DownloadRequest, for lookups without walking the set
+         */
+        private final HashMap<Long, DownloadRequest> mQueuedRequests =
+            new HashMap<Long, DownloadRequest>();
+
+        /**
+         * Maps account id to the account's download statistics
+         */
+        private final HashMap<Long, AccountStats> mAccountStats = new HashMap<Long, AccountStats>();
+
+        @Override
+        public synchronized boolean add(DownloadRequest req) {
+            if (!super.add(req)) return false;
+            mQueuedRequests.put(req.attachmentId, req);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean remove(Object object) {
+            if (!super.remove(object)) return false;
+            mQueuedRequests.remove(((DownloadRequest)object).attachmentId);
+            return true;
+        }
+
+        /**
+         * Get the download statistics (and so the download limit) for an account
+         */
+        /*package*/ synchronized AccountStats getAccountStats(long accountId) {
+            AccountStats stats = mAccountStats.get(accountId);
+            if (stats == null) {
+                Intent intent = getServiceIntentForAccount(accountId);
+                boolean parallel = (intent != null)
+                        && EmailServiceProxy.EXCHANGE_INTENT.equals(intent.getAction());
+                stats = new AccountStats(parallel ? MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT : 1);
+                mAccountStats.put(accountId, stats);
+            }
+            return stats;
+        }
+
         /**
          * onChange is called by the AttachmentReceiver upon receipt of a valid notification from
          * EmailProvider that an attachment has been inserted or modified.  It's not strictly
@@ -253,6 +385,16 @@ public class AttachmentDownloadService extends Service implements Runnable {
          * existence of an attachment before acting on it.
          */
         public synchronized void onChange(Context context, Attachment att) {
+            onChange(context, att, null);
+        }
+
+        /**
+         * As {@link #onChange(Context, Attachment)}, with the messages of attachments (by message
+         * id) that have already been restored, so that a new request doesn't need a query of its
+         * own; if messages is null, the attachment's message is restored when it's needed.
+         */
+        /*package*/ synchronized void onChange(Context context, Attachment att,
+                Map<Long, Message> messages) {
             DownloadRequest req = findDownloadRequest(att.mId);
             long priority = getPriority(att);
             if (priority == PRIORITY_NONE) {
@@ -273,7 +415,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 if (mDownloadsInProgress.containsKey(att.mId)) return;
                 // If this is new, add the request to the queue
                 if (req == null) {
-                    req = new DownloadRequest(context, att);
+                    req = (messages != null)
+                            ? new DownloadRequest(att, messages.get(att.mMessageKey))
+                            : new DownloadRequest(context, att);
                     add(req);
                 }
                 // If the request already existed, we'll update the priority (so that the time is
@@ -293,14 +437,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
          * @return the DownloadRequest for that attachment (or null, if none)
          */
         /*package*/ synchronized DownloadRequest findDownloadRequest(long id) {
-            Iterator<DownloadRequest> iterator = iterator();
-            while(iterator.hasNext()) {
-                DownloadRequest req = iterator.next();
-                if (req.attachmentId == id) {
-                    return req;
-                }
-            }
-            return null;
+            return mQueuedRequests.get(id);
         }
 
         @Override
@@ -323,7 +460,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
                     (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
                 DownloadRequest req = iterator.next();
                  // Enforce per-account limit here
-                if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
+                if (downloadsForAccount(req.accountId) >=
+                        getAccountStats(req.accountId).mConcurrency) {
                     if (Email.DEBUG) {
                         Log.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
                                 req.accountId);
@@ -347,46 +485,78 @@ public class AttachmentDownloadService extends Service implements Runnable {
             // Then, try opportunistic download of appropriate attachments
             int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
             // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
-                // We'll load up the newest 25 attachments that aren't loaded or queued
-                Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
-                        MAX_ATTACHMENTS_TO_CHECK);
-                Cursor c = mContext.getContentResolver().query(lookupUri, AttachmentInfo.PROJECTION,
-                        EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
-                        null, Attachment.RECORD_ID + " DESC");
-                File cacheDir = mContext.getCacheDir();
-                try {
-                    while (c.moveToNext()) {
-                        long accountKey = c.getLong(AttachmentInfo.COLUMN_ACCOUNT_KEY);
-                        long id = c.getLong(AttachmentInfo.COLUMN_ID);
-                        Account account = Account.restoreAccountWithId(mContext, accountKey);
-                        if (account == null) {
-                            // Clean up this orphaned attachment; there's no point in keeping it
-                            // around; then try to find another one
-                            EmailContent.delete(mContext, Attachment.CONTENT_URI, id);
-                        } else if (canPrefetchForAccount(account, cacheDir)) {
-                            // Check that the attachment meets system requirements for download
-                            AttachmentInfo info = new AttachmentInfo(mContext, c);
-                            if (info.isEligibleForDownload()) {
-                                Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
-                                if (att != null) {
-                                    Integer tryCount;
-                                    tryCount = mAttachmentFailureMap.get(att.mId);
-                                    if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
-                                        // move onto the next attachment
-                                        continue;
-                                    }
-                                    // Start this download and we're done
-                                    DownloadRequest req = new DownloadRequest(mContext, att);
-                                    mDownloadSet.tryStartDownload(req);
-                                    break;
-                                }
-                            }
+            if (backgroundDownloads > 1) {
+                startPrefetch();
+            }
+        }
+
+        /**
+         * Start an opportunistic download of the newest attachment that is eligible for one.
+         * Accounts are checked (for their prefetch setting, storage and download limits) first,
+         * so that one query can find the candidates from just those accounts, with everything
+         * needed to start the download.
+         */
+        private void startPrefetch() {
+            File cacheDir = mContext.getCacheDir();
+            StringBuilder accountIds = new StringBuilder();
+            Cursor c = mContext.getContentResolver().query(Account.CONTENT_URI,
+                    Account.CONTENT_PROJECTION, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    Account account = new Account();
+                    account.restore(c);
+                    if (downloadsForAccount(account.mId) <
+                            getAccountStats(account.mId).mConcurrency &&
+                            canPrefetchForAccount(account, cacheDir)) {
+                        if (accountIds.length() > 0) {
+                            accountIds.append(',');
                         }
+                        accountIds.append(account.mId);
                     }
-                } finally {
-                    c.close();
                 }
+            } finally {
+                c.close();
+            }
+            if (accountIds.length() == 0) return;
+
+            // Skip the attachments being downloaded, and those that failed too often
+            StringBuilder skipIds = new StringBuilder();
+            for (Long id : mDownloadsInProgress.keySet()) {
+                skipIds.append(skipIds.length() > 0 ? "," : "").append(id);
+            }
+            for (Map.Entry<Long, Integer> entry : mAttachmentFailureMap.entrySet()) {
+                if (entry.getValue() > MAX_DOWNLOAD_RETRIES) {
+                    skipIds.append(skipIds.length() > 0 ? "," : "").append(entry.getKey());
+                }
+            }
+            StringBuilder selection = new StringBuilder(Attachment.PRECACHE_INBOX_SELECTION);
+            selection.append(" AND ").append(AttachmentColumns.ACCOUNT_KEY).append(" IN (")
+                    .append(accountIds).append(')');
+            if (skipIds.length() > 0) {
+                selection.append(" AND ").append(Attachment.RECORD_ID).append(" NOT IN (")
+                        .append(skipIds).append(')');
+            }
+
+            // We'll load up the newest 25 attachments that aren't loaded or queued
+            Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
+                    MAX_ATTACHMENTS_TO_CHECK);
+            c = mContext.getContentResolver().query(lookupUri, Attachment.CONTENT_PROJECTION,
+                    selection.toString(), null, Attachment.RECORD_ID + " DESC");
+            try {
+                while (c.moveToNext()) {
+                    Attachment att = new Attachment();
+                    att.restore(c);
+                    // Check that the attachment meets system requirements for download
+                    AttachmentInfo info = new AttachmentInfo(mContext, att);
+                    if (info.isEligibleForDownload()) {
+                        // Start this download and we're done
+                        DownloadRequest req = new DownloadRequest(att, att.mAccountKey);
+                        mDownloadSet.tryStartDownload(req);
+                        break;
+                    }
+                }
+            } finally {
+                c.close();
             }
         }
 
@@ -508,6 +678,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
         private void cancelDownload(DownloadRequest req) {
             mDownloadsInProgress.remove(req.attachmentId);
             req.inProgress = false;
+            getAccountStats(req.accountId).onDownloadFailed();
         }
 
         /**
@@ -517,7 +688,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            DownloadRequest inProgressReq = mDownloadsInProgress.remove(attachmentId);
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -545,6 +716,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 if (req != null) {
                     req.inProgress = false;
                 }
+                if (inProgressReq != null) {
+                    getAccountStats(inProgressReq.accountId).onDownloadFailed();
+                }
                 kick();
                 return;
             }
@@ -566,13 +740,14 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
             Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
             if (attachment != null) {
-                long accountId = attachment.mAccountKey;
-                // Update our attachment storage for this account
-                Long currentStorage = mAttachmentStorageMap.get(accountId);
-                if (currentStorage == null) {
-                    currentStorage = 0L;
+                if (inProgressReq != null && statusCode == EmailServiceStatus.SUCCESS) {
+                    // Update our attachment storage for this account
+                    AttachmentStorageLedger.onFileWritten(mContext, inProgressReq.accountId,
+                            attachmentId, inProgressReq.priority == PRIORITY_BACKGROUND);
+                    getAccountStats(inProgressReq.accountId).onDownloadSucceeded(attachment.mSize,
+                            System.currentTimeMillis() - inProgressReq.startTime,
+                            downloadsForAccount(inProgressReq.accountId) + 1);
                 }
-                mAttachmentStorageMap.put(accountId, currentStorage + attachment.mSize);
                 boolean deleted = false;
                 if ((attachment.mFlags & Attachment.FLAG_DOWNLOAD_FORWARD) != 0) {
                     if (statusCode == EmailServiceStatus.ATTACHMENT_NOT_FOUND) {
@@ -838,21 +1013,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long perAccountMaxStorage =
             (long)(totalStorage * PREFETCH_MAXIMUM_ATTACHMENT_STORAGE / numberOfAccounts);
 
-        // Retrieve our idea of currently used attachment storage; since we don't track deletions,
-        // this number is the "worst case".  If the number is greater than what's allowed per
-        // account, we walk the directory to determine the actual number
-        Long accountStorage = mAttachmentStorageMap.get(account.mId);
-        if (accountStorage == null || (accountStorage > perAccountMaxStorage)) {
-            // Calculate the exact figure for attachment storage for this account
-            accountStorage = 0L;
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    accountStorage += file.length();
-                }
-            }
-            // Cache the value
-            mAttachmentStorageMap.put(account.mId, accountStorage);
+        // Retrieve the attachment storage used by this account; if it's over the limit, try to
+        // make room by evicting attachments that we prefetched but were never opened
+        long accountStorage = AttachmentStorageLedger.getUsage(mContext, account.mId);
+        if (accountStorage >= perAccountMaxStorage) {
+            long headroom = (long)(perAccountMaxStorage * PREFETCH_EVICTION_HEADROOM);
+            accountStorage -= AttachmentStorageLedger.evictUnopened(mContext, account.mId,
+                    accountStorage - perAccountMaxStorage + headroom);
         }
 
         // Return true if we're using less than the maximum per account
@@ -874,19 +1041,18 @@ public class AttachmentDownloadService extends Service implements Runnable {
         mAccountManagerStub = new AccountManagerStub(this);
 
         // Run through all attachments in the database that require download and add them to
-        // the queue
+        // the queue; the attachments come from one query, and their messages from a batch
         int mask = Attachment.FLAG_DOWNLOAD_FORWARD | Attachment.FLAG_DOWNLOAD_USER_REQUEST;
+        ArrayList<Attachment> attachments = new ArrayList<Attachment>();
         Cursor c = getContentResolver().query(Attachment.CONTENT_URI,
-                EmailContent.ID_PROJECTION, "(" + Attachment.FLAGS + " & ?) != 0",
+                Attachment.CONTENT_PROJECTION, "(" + Attachment.FLAGS + " & ?) != 0",
                 new String[] {Integer.toString(mask)}, null);
         try {
             Log.d(TAG, "Count: " + c.getCount());
             while (c.moveToNext()) {
-                Attachment attachment = Attachment.restoreAttachmentWithId(
-                        this, c.getLong(EmailContent.ID_PROJECTION_COLUMN));
-                if (attachment != null) {
-                    mDownloadSet.onChange(this, attachment);
-                }
+                Attachment attachment = new Attachment();
+                attachment.restore(c);
+                attachments.add(attachment);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -894,6 +1060,17 @@ public class AttachmentDownloadService extends Service implements Runnable {
         finally {
             c.close();
         }
+        if (!attachments.isEmpty()) {
+            long[] messageIds = new long[attachments.size()];
+            for (int i = 0; i < messageIds.length; i++) {
+                messageIds[i] = attachments.get(i).mMessageKey;
+            }
+            HashMap<Long, Message> messages = EmailContent.restoreContentWithIds(this,
+                    Message.class, Message.CONTENT_URI, Message.CONTENT_PROJECTION, messageIds);
+            for (Attachment attachment : attachments) {
+                mDownloadSet.onChange(this, attachment, messages);
+            }
+        }
 
         // Loop until stopped, with a 30 minute wait loop
         while (!mStop) {
@@ -961,15 +1138,47 @@ public class AttachmentDownloadService extends Service implements Runnable {
         pw.println("AttachmentDownloadService");
         long time = System.currentTimeMillis();
         synchronized(mDownloadSet) {
-            pw.println("  Queue, " + mDownloadSet.size() + " entries");
+            pw.println("  Queue, " + mDownloadSet.size() + " entries, " +
+                    mDownloadSet.mDownloadsInProgress.size() + " downloads in progress");
+            long totalBytes = 0;
+            long totalTime = 0;
+            for (Map.Entry<Long, AccountStats> entry : mDownloadSet.mAccountStats.entrySet()) {
+                AccountStats stats = entry.getValue();
+                String storage = AttachmentStorageLedger.getSummary(entry.getKey());
+                pw.println("    Account: " + entry.getKey() + ", Downloads: " +
+                        mDownloadSet.downloadsForAccount(entry.getKey()) + " (limit " +
+                        stats.mConcurrency + "/" + stats.mMaxConcurrency + ")");
+                pw.println("      Completed: " + stats.mDownloads + ", Failed: " +
+                        stats.mFailures + ", " + stats.mBytes + " bytes, " +
+                        stats.getOverallThroughput() + " bytes/sec (per download " +
+                        stats.mThroughput + " bytes/sec)" +
+                        (storage != null ? "\n      Storage: " + storage : ""));
+                totalBytes += stats.mBytes;
+                totalTime += stats.mTime;
+            }
+            if (totalTime > 0) {
+                pw.println("  Total: " + totalBytes + " bytes, " + (totalBytes * 1000 / totalTime)
+                        + " bytes/sec");
+            }
+            pw.println("  Thumbnails: " + ThumbnailCache.getSummary());
+            // The queued attachments are restored together, rather than one query apiece
+            long[] attachmentIds = new long[mDownloadSet.size()];
+            int count = 0;
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
+            while (iterator.hasNext() && count < attachmentIds.length) {
+                attachmentIds[count++] = iterator.next().attachmentId;
+            }
+            HashMap<Long, Attachment> attachments = EmailContent.restoreContentWithIds(this,
+                    Attachment.class, Attachment.CONTENT_URI, Attachment.CONTENT_PROJECTION,
+                    attachmentIds);
+            iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
             while (iterator.hasNext()) {
                 DownloadRequest req = iterator.next();
                 pw.println("    Account: " + req.accountId + ", Attachment: " + req.attachmentId);
                 pw.println("      Priority: " + req.priority + ", Time: " + req.time +
                         (req.inProgress ? " [In progress]" : ""));
-                Attachment att = Attachment.restoreAttachmentWithId(this, req.attachmentId);
+                Attachment att = attachments.get(req.attachmentId);
                 if (att == null) {
                     pw.println("      Attachment not in database?");
                 } else if (att.mFileName != null) {
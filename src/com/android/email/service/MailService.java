@@ -25,11 +25,14 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SyncStatusObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,16 +41,27 @@ import com.android.email.Controller;
 import com.android.email.Email;
 import com.android.email.Preferences;
 import com.android.email.SingleRunningTask;
+import com.android.email.mail.transport.HandshakeStats;
+import com.android.email.mail.transport.MailTransport;
 import com.android.email.provider.AccountReconciler;
+import com.android.email.provider.DatabaseCompactor;
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.IntegrityChecker;
+import com.android.email.provider.NotificationCoalescer;
+import com.android.email.provider.ProviderStats;
+import com.android.email.provider.SelectionCache;
 import com.android.emailcommon.AccountManagerTypes;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentFileReaper;
 import com.android.emailcommon.utility.EmailAsyncTask;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -71,6 +85,8 @@ public class MailService extends Service {
         "com.android.email.intent.action.MAIL_SERVICE_SEND_PENDING";
     private static final String ACTION_DELETE_EXCHANGE_ACCOUNTS =
         "com.android.email.intent.action.MAIL_SERVICE_DELETE_EXCHANGE_ACCOUNTS";
+    private static final String ACTION_MAINTAIN_DATABASE =
+        "com.android.email.intent.action.MAIL_SERVICE_MAINTAIN_DATABASE";
 
     private static final String EXTRA_ACCOUNT = "com.android.email.intent.extra.ACCOUNT";
     private static final String EXTRA_ACCOUNT_INFO = "com.android.email.intent.extra.ACCOUNT_INFO";
@@ -79,6 +95,14 @@ public class MailService extends Service {
     /** Time between watchdog checks; in milliseconds */
     private static final long WATCHDOG_DELAY = 10 * 60 * 1000;   // 10 minutes
 
+    /** Time between database maintenance runs; in milliseconds */
+    private static final long MAINTENANCE_INTERVAL = AlarmManager.INTERVAL_DAY;
+    /** Time until maintenance is tried again, if the device was in use; in milliseconds */
+    private static final long MAINTENANCE_RETRY_DELAY = AlarmManager.INTERVAL_HOUR;
+    /** The longest a maintenance run keeps the database busy; in milliseconds */
+    @VisibleForTesting
+    static final long MAINTENANCE_BUDGET = 10 * 1000;
+
     /** Sentinel value asking to update mSyncReports if it's currently empty */
     @VisibleForTesting
     static final int SYNC_REPORTS_ALL_ACCOUNTS_IF_EMPTY = -1;
@@ -177,17 +201,19 @@ public class MailService extends Service {
                     // Start sync if account is given && auto-sync is allowed
                     boolean syncStarted = false;
                     if (accountId != -1 && ContentResolver.getMasterSyncAutomatically()) {
+                        boolean syncEnabled = false;
                         synchronized(mSyncReports) {
                             for (AccountSyncReport report: mSyncReports.values()) {
                                 if (report.accountId == accountId) {
-                                    if (report.syncEnabled) {
-                                        syncStarted = syncOneAccount(mController, accountId,
-                                                startId);
-                                    }
+                                    syncEnabled = report.syncEnabled;
                                     break;
                                 }
                             }
                         }
+                        if (syncEnabled) {
+                            warmUpConnections(accountId);
+                            syncStarted = syncOneAccount(mController, accountId, startId);
+                        }
                     }
 
                     // Reschedule if we didn't start sync.
@@ -248,6 +274,24 @@ public class MailService extends Service {
             });
             stopSelf(startId);
         }
+        else if (ACTION_MAINTAIN_DATABASE.equals(action)) {
+            if (Email.DEBUG) {
+                Log.d(LOG_TAG, "action: maintain database");
+            }
+            EmailAsyncTask.runAsyncParallel(new Runnable() {
+                @Override
+                public void run() {
+                    // Only while the device isn't being used, since the database is busy
+                    boolean idle = isDeviceIdle();
+                    if (idle) {
+                        maintainDatabase(mContentResolver, MAINTENANCE_BUDGET);
+                    }
+                    setMaintenanceAlarm(alarmManager,
+                            idle ? MAINTENANCE_INTERVAL : MAINTENANCE_RETRY_DELAY);
+                    stopSelf(startId);
+                }
+            });
+        }
         else if (ACTION_RESCHEDULE.equals(action)) {
             if (Email.DEBUG) {
                 Log.d(LOG_TAG, "action: reschedule");
@@ -261,6 +305,10 @@ public class MailService extends Service {
                     refreshSyncReports();
                     // Finally, scan for the next needing update, and set an alarm for it
                     reschedule(alarmManager);
+                    // Make sure database maintenance is scheduled (e.g. after a reboot)
+                    if (createMaintenanceIntent(PendingIntent.FLAG_NO_CREATE) == null) {
+                        setMaintenanceAlarm(alarmManager, MAINTENANCE_INTERVAL);
+                    }
                     stopSelf(startId);
                 }
             });
@@ -390,6 +438,59 @@ public class MailService extends Service {
         alarmMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextCheckTime, pi);
     }
 
+    /**
+     * Returns whether the device is idle, i.e. charging with the screen off.
+     */
+    private boolean isDeviceIdle() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return !powerManager.isScreenOn() && battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Runs the provider's integrity check, and then compacts its databases, for up to the given
+     * time.  The integrity check goes first, so that the rows it deletes are compacted too; each
+     * picks up where it left off the next time.
+     */
+    @VisibleForTesting
+    static void maintainDatabase(ContentResolver resolver, long budget) {
+        long start = SystemClock.elapsedRealtime();
+        long end = start + budget;
+        boolean checked = false;
+        while (!checked && SystemClock.elapsedRealtime() < end) {
+            checked = resolver.update(EmailProvider.INCREMENTAL_INTEGRITY_CHECK_URI, null, null,
+                    null) == 0;
+        }
+        boolean compacted = false;
+        long now;
+        while (checked && !compacted && (now = SystemClock.elapsedRealtime()) < end) {
+            // A full VACUUM, which can't be interrupted, is only started if it fits in the rest
+            compacted = resolver.update(EmailProvider.getCompactUri(end - now), null, null,
+                    null) == 0;
+        }
+        if (Email.DEBUG) {
+            Log.d(LOG_TAG, "Database maintenance took " + (SystemClock.elapsedRealtime() - start)
+                    + " ms");
+        }
+    }
+
+    /**
+     * Returns the pending intent of the database maintenance alarm.
+     * @param flags e.g. {@link PendingIntent#FLAG_NO_CREATE}, to return null if there isn't one
+     */
+    private PendingIntent createMaintenanceIntent(int flags) {
+        Intent i = new Intent();
+        i.setClass(this, MailService.class);
+        i.setAction(ACTION_MAINTAIN_DATABASE);
+        return PendingIntent.getService(this, 0, i, flags);
+    }
+
+    private void setMaintenanceAlarm(AlarmManager alarmMgr, long delay) {
+        alarmMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + delay,
+                createMaintenanceIntent(0));
+    }
+
     /**
      * Return a pending intent for use by this alarm.  Most of the fields must be the same
      * (in order for the intent to be recognized by the alarm manager) but the extras can
@@ -426,6 +527,62 @@ public class MailService extends Service {
         }
     }
 
+    /**
+     * Prepares the connections to the incoming and outgoing servers that a mail check of the
+     * given account is about to make.
+     */
+    private void warmUpConnections(long accountId) {
+        Account account = Account.restoreAccountWithId(this, accountId);
+        if (account == null) return;
+        for (long hostAuthId : new long[] {account.mHostAuthKeyRecv, account.mHostAuthKeySend}) {
+            HostAuth hostAuth = HostAuth.restoreHostAuthWithId(this, hostAuthId);
+            if (hostAuth == null || TextUtils.isEmpty(hostAuth.mAddress)) continue;
+            MailTransport.warmUp(hostAuth.mAddress,
+                    (hostAuth.mFlags & (HostAuth.FLAG_SSL | HostAuth.FLAG_TLS)) != 0,
+                    hostAuth.shouldTrustAllServerCerts());
+        }
+    }
+
+    /**
+     * Dumps the provider's notification counts, selection cache hit rate, operation statistics,
+     * integrity check and compaction results, the batch restore counts, the attachment files
+     * reclaimed, and the TLS handshake counts for the incoming and outgoing server of each
+     * account.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Provider notifications: " + NotificationCoalescer.getSummary());
+        pw.println("Provider selection cache: " + SelectionCache.getSummary());
+        ProviderStats.dump(pw);
+        pw.println("Provider integrity check: " + IntegrityChecker.getSummary());
+        pw.println("Provider compaction: " + DatabaseCompactor.getSummary());
+        pw.println("Batch restores: " + EmailContent.getBatchRestoreSummary());
+        pw.println("Attachment file reaper: " + AttachmentFileReaper.getSummary());
+        pw.println("TLS handshakes:");
+        Cursor c = getContentResolver().query(Account.CONTENT_URI, Account.ID_PROJECTION,
+                null, null, null);
+        if (c == null) return;
+        try {
+            while (c.moveToNext()) {
+                Account account = Account.restoreAccountWithId(this,
+                        c.getLong(Account.ID_PROJECTION_COLUMN));
+                if (account == null) continue;
+                pw.println("  Account " + account.mId + ":");
+                for (long hostAuthId
+                        : new long[] {account.mHostAuthKeyRecv, account.mHostAuthKeySend}) {
+                    HostAuth hostAuth = HostAuth.restoreHostAuthWithId(this, hostAuthId);
+                    if (hostAuth == null) continue;
+                    String summary =
+                            HandshakeStats.getSummary(hostAuth.mAddress, hostAuth.mPort);
+                    pw.println("    " + hostAuth.mProtocol + " " + hostAuth.mAddress + ":"
+                            + hostAuth.mPort + ": " + ((summary != null) ? summary : "none"));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * Note:  Times are relative to SystemClock.elapsedRealtime()
      *
@@ -266,6 +266,62 @@ public class ControllerProviderOpsTests extends ProviderTestCase2<EmailProvider>
         }
     }
 
+    /**
+     * Test deleting many messages at once, in several mailboxes and accounts
+     */
+    public void testDeleteMessages() {
+        Account account1 = ProviderTestUtils.setupAccount("messages-delete1", true,
+                mProviderContext);
+        Account account2 = ProviderTestUtils.setupAccount("messages-delete2", true,
+                mProviderContext);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true,
+                mProviderContext);
+        Mailbox trashBox = ProviderTestUtils.setupMailbox("trash", account1.mId, false,
+                mProviderContext);
+        trashBox.mType = Mailbox.TYPE_TRASH;
+        trashBox.save(mProviderContext);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account2.mId, true,
+                mProviderContext);
+
+        long[] inBox1 = new long[3];
+        for (int i = 0; i < inBox1.length; i++) {
+            inBox1[i] = ProviderTestUtils.setupMessage("message" + i, account1.mId, box1.mId,
+                    true, true, mProviderContext).mId;
+        }
+        long inTrash1 = ProviderTestUtils.setupMessage("trash1", account1.mId, trashBox.mId,
+                true, true, mProviderContext).mId;
+        long inTrash2 = ProviderTestUtils.setupMessage("trash2", account1.mId, trashBox.mId,
+                true, true, mProviderContext).mId;
+        long inBox2 = ProviderTestUtils.setupMessage("box2", account2.mId, box2.mId, true, true,
+                mProviderContext).mId;
+        long notDeleted = ProviderTestUtils.setupMessage("keep", account1.mId, box1.mId, true,
+                true, mProviderContext).mId;
+
+        mTestController.deleteMessagesSync(new long[] {
+                inBox1[0], inBox1[1], inBox1[2], inTrash1, inTrash2, inBox2});
+
+        // Messages in ordinary mailboxes are moved to their account's trash
+        for (long messageId : inBox1) {
+            assertEquals(trashBox.mId,
+                    Message.restoreMessageWithId(mProviderContext, messageId).mMailboxKey);
+        }
+        long trash2Id = Mailbox.findMailboxOfType(mProviderContext, account2.mId,
+                Mailbox.TYPE_TRASH);
+        assertEquals(trash2Id, Message.restoreMessageWithId(mProviderContext, inBox2).mMailboxKey);
+        // ... and those already in the trash are deleted, along with their bodies
+        assertNull(Message.restoreMessageWithId(mProviderContext, inTrash1));
+        assertNull(Message.restoreMessageWithId(mProviderContext, inTrash2));
+        assertNull(Body.restoreBodyWithMessageId(mProviderContext, inTrash1));
+        assertEquals(box1.mId,
+                Message.restoreMessageWithId(mProviderContext, notDeleted).mMailboxKey);
+
+        // The changes are recorded to be synced back to the server
+        assertEquals(2, EmailContent.count(mProviderContext, Message.DELETED_CONTENT_URI,
+                null, null));
+        assertEquals(4, EmailContent.count(mProviderContext, Message.UPDATED_CONTENT_URI,
+                null, null));
+    }
+
     /**
      * Test deleting message when there is no trash mailbox
      */
@@ -359,6 +415,39 @@ public class ControllerProviderOpsTests extends ProviderTestCase2<EmailProvider>
         assertTrue(message1get.mFlagFavorite);
     }
 
+    /**
+     * Test setting the read and favorite flags of many messages at once
+     */
+    public void testSetMessagesReadAndFavorite() {
+        Account account1 = ProviderTestUtils.setupAccount("read-many", true, mProviderContext);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true,
+                mProviderContext);
+        long[] messageIds = new long[4];
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = ProviderTestUtils.setupMessage("message" + i, account1.mId, box1.mId,
+                    false, true, mProviderContext, false, false).mId;
+        }
+        long[] changed = new long[] {messageIds[0], messageIds[2], messageIds[3]};
+
+        mTestController.setMessagesReadSync(changed, true);
+        mTestController.setMessagesFavoriteSync(changed, true);
+        for (long messageId : messageIds) {
+            Message message = Message.restoreMessageWithId(mProviderContext, messageId);
+            boolean expected = messageId != messageIds[1];
+            assertEquals(expected, message.mFlagRead);
+            assertEquals(expected, message.mFlagFavorite);
+        }
+        // The original values are kept to be synced back to the server
+        assertEquals(3, EmailContent.count(mProviderContext, Message.UPDATED_CONTENT_URI,
+                EmailContent.MessageColumns.FLAG_READ + "=0 and "
+                        + EmailContent.MessageColumns.FLAG_FAVORITE + "=0", null));
+
+        mTestController.setMessagesReadSync(changed, false);
+        for (long messageId : changed) {
+            assertFalse(Message.restoreMessageWithId(mProviderContext, messageId).mFlagRead);
+        }
+    }
+
     public void testGetAndDeleteAttachmentMailbox() {
         Mailbox box = mTestController.getAttachmentMailbox();
         assertNotNull(box);
@@ -17,7 +17,15 @@
 package com.android.email.mail.internet;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import android.util.Patterns;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Tests of the Email HTML utils.
@@ -56,4 +64,147 @@ public class EmailHtmlUtilTest extends AndroidTestCase {
                 "ab <br>&nbsp; <br>&nbsp;&nbsp; <br><br>",
                 plainAll);
      }
+
+    public void testPlainTextToHtml() {
+        assertEquals("<html><body></body></html>", EmailHtmlUtil.plainTextToHtml(null));
+
+        // Escaping is the same as escapeCharacterToDisplay
+        String textAll = textTags + "\n" + textSpaces + "\n" + textNewlines + "a\rb\r\r\nc";
+        assertEquals("<html><body>" + EmailHtmlUtil.escapeCharacterToDisplay(textAll)
+                + "</body></html>", EmailHtmlUtil.plainTextToHtml(textAll));
+
+        assertEquals("<html><body>see <a href=\"http://www.google.com\">www.google.com</a>"
+                + "<br><a href=\"https://Example.com/a?b=1&amp;c=2\">"
+                + "Https://Example.com/a?b=1&amp;c=2</a><br>user@example.com</body></html>",
+                EmailHtmlUtil.plainTextToHtml(
+                        "see www.google.com\nHttps://Example.com/a?b=1&c=2\nuser@example.com"));
+    }
+
+    private static final Pattern WEB_URL_PROTOCOL = Pattern.compile("(?i)http|https://");
+
+    /**
+     * Convert plain text to html the way MessageViewFragmentBase used to.
+     */
+    private static String plainTextToHtmlOld(String text) {
+        StringBuffer sb = new StringBuffer("<html><body>");
+        text = EmailHtmlUtil.escapeCharacterToDisplay(text);
+        Matcher m = Patterns.WEB_URL.matcher(text);
+        while (m.find()) {
+            int start = m.start();
+            if (start == 0 || text.charAt(start - 1) != '@') {
+                String url = m.group();
+                Matcher proto = WEB_URL_PROTOCOL.matcher(url);
+                String link;
+                if (proto.find()) {
+                    link = proto.group().toLowerCase() + url.substring(proto.end());
+                } else {
+                    link = "http://" + url;
+                }
+                m.appendReplacement(sb, String.format("<a href=\"%s\">%s</a>", link, url));
+            } else {
+                m.appendReplacement(sb, "$0");
+            }
+        }
+        m.appendTail(sb);
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+
+    /**
+     * Benchmark converting a long plain text thread (with quoted replies and links) against the
+     * escape-then-linkify conversion.
+     */
+    @LargeTest
+    public void testPlainTextToHtmlBenchmark() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 256 * 1024; i++) {
+            sb.append("> > On Mon, someone <someone@example.com> wrote:\r\n")
+                    .append(">   Reply ").append(i).append(" & see http://www.example.com/page")
+                    .append(i).append(" for details.\r\n\r\n");
+        }
+        String text = sb.toString();
+        final int iterations = 10;
+
+        String expected = plainTextToHtmlOld(text);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            plainTextToHtmlOld(text);
+        }
+        long oldUs = (System.nanoTime() - start) / 1000 / iterations;
+
+        String actual = EmailHtmlUtil.plainTextToHtml(text);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            EmailHtmlUtil.plainTextToHtml(text);
+        }
+        long newUs = (System.nanoTime() - start) / 1000 / iterations;
+
+        assertEquals(expected, actual);
+        Log.d("EmailHtmlUtilTest", "convert " + text.length() / 1024 + "KB of plain text: "
+                + "escape then linkify " + oldUs + "us, one pass " + newUs + "us");
+    }
+
+    public void testReplaceInlineImages() {
+        HashMap<String, String> uris = new HashMap<String, String>();
+        assertEquals("no map", "<img src=\"cid:a\">",
+                EmailHtmlUtil.replaceInlineImages("<img src=\"cid:a\">", uris));
+        assertNull(EmailHtmlUtil.replaceInlineImages(null, uris));
+
+        uris.put("a@b", "content://a");
+        uris.put("c", "content://c");
+        String html = "<img alt=\"x\"  \n SRC=\"Cid:a@b\"><img\tsrc=\"cid:c\" src=\"cid:A@B\">";
+        assertEquals("<img alt=\"x\" src=\"content://a\"><img src=\"content://c\""
+                + " src=\"cid:A@B\">", EmailHtmlUtil.replaceInlineImages(html, uris));
+
+        // No whitespace before src, unknown id, unterminated attribute
+        html = "<img xsrc=\"cid:c\"><img src=\"cid:d\"><img src=\"cid:c";
+        assertSame(html, EmailHtmlUtil.replaceInlineImages(html, uris));
+    }
+
+    /**
+     * Replace the inline images one at a time, the way MessageViewFragmentBase used to.
+     */
+    private static String replaceInlineImagesOld(String html, Map<String, String> uris) {
+        for (Map.Entry<String, String> entry : uris.entrySet()) {
+            String contentIdRe = "\\s+(?i)src=\"cid(?-i):\\Q" + entry.getKey() + "\\E\"";
+            html = html.replaceAll(contentIdRe, " src=\"" + entry.getValue() + "\"");
+        }
+        return html;
+    }
+
+    /**
+     * Benchmark a newsletter-like 2MB body with 60 inline images against the per-image regexp.
+     */
+    @LargeTest
+    public void testReplaceInlineImagesBenchmark() {
+        final int images = 60;
+        HashMap<String, String> uris = new HashMap<String, String>();
+        StringBuilder sb = new StringBuilder("<html><body>");
+        for (int i = 0; sb.length() < 2 * 1024 * 1024; i++) {
+            sb.append("<table><tr><td style=\"font-size: 12px\">Paragraph ").append(i)
+                    .append(" of text which is long enough to look like a newsletter</td>");
+            if (i < images) {
+                String contentId = "image" + i + "@example.com";
+                uris.put(contentId, "content://com.android.email.attachmentprovider/1/" + i
+                        + "/RAW");
+                sb.append("<td><img width=\"100\" src=\"cid:").append(contentId)
+                        .append("\"></td>");
+            }
+            sb.append("</tr></table>\n");
+        }
+        String html = sb.toString();
+
+        long start = System.nanoTime();
+        String expected = replaceInlineImagesOld(html, uris);
+        long oldUs = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        String actual = EmailHtmlUtil.replaceInlineImages(html, uris);
+        long newUs = (System.nanoTime() - start) / 1000;
+
+        assertEquals(expected, actual);
+        Log.d("EmailHtmlUtilTest", "replace " + images + " inline images in "
+                + html.length() / 1024 + "KB: per-image regexp " + oldUs + "us, one pass "
+                + newUs + "us");
+    }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class PlainTextHtmlCacheTests extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        PlainTextHtmlCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PlainTextHtmlCache.clear();
+        super.tearDown();
+    }
+
+    public void testGetHtml() {
+        String html = PlainTextHtmlCache.getHtml(1, "body <1>");
+        assertEquals(EmailHtmlUtil.plainTextToHtml("body <1>"), html);
+        // Same text (even as another string) comes from the cache
+        assertSame(html, PlainTextHtmlCache.getHtml(1, new String("body <1>")));
+        // Other messages have their own entries
+        assertNotSame(html, PlainTextHtmlCache.getHtml(2, "body <1>"));
+        assertSame(html, PlainTextHtmlCache.getHtml(1, "body <1>"));
+    }
+
+    public void testBodyChanged() {
+        String html = PlainTextHtmlCache.getHtml(1, "partial");
+        String changed = PlainTextHtmlCache.getHtml(1, "partial, now complete");
+        assertEquals(EmailHtmlUtil.plainTextToHtml("partial, now complete"), changed);
+        assertSame(changed, PlainTextHtmlCache.getHtml(1, "partial, now complete"));
+        assertNotSame(html, PlainTextHtmlCache.getHtml(1, "partial"));
+    }
+
+    public void testNotCached() {
+        assertEquals(EmailHtmlUtil.plainTextToHtml(null), PlainTextHtmlCache.getHtml(1, null));
+        String html = PlainTextHtmlCache.getHtml(-1, "unsaved");
+        assertNotSame(html, PlainTextHtmlCache.getHtml(-1, "unsaved"));
+    }
+
+    public void testLargeBody() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < PlainTextHtmlCache.MAX_SIZE) {
+            sb.append("a line of text\n");
+        }
+        String text = sb.toString();
+        String html = PlainTextHtmlCache.getHtml(1, text);
+        assertEquals(EmailHtmlUtil.plainTextToHtml(text), html);
+        // Too large to cache
+        assertNotSame(html, PlainTextHtmlCache.getHtml(1, text));
+    }
+}
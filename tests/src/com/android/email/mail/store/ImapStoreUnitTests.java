@@ -24,7 +24,9 @@ import android.os.Build;
 import android.os.Bundle;
 import android.test.InstrumentationTestCase;
 import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.email.DBTestHelper;
 import com.android.email.MockSharedPreferences;
@@ -35,6 +37,7 @@ import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
+import com.android.email.provider.ProviderTestUtils;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeMultipart;
@@ -53,6 +56,7 @@ import com.android.emailcommon.mail.Message.RecipientType;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.utility.Utility;
@@ -60,6 +64,7 @@ import com.android.emailcommon.utility.Utility;
 import org.apache.commons.io.IOUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
@@ -98,6 +103,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
     /** The tag for the current IMAP command; used for mock transport responses */
     private int mTag;
+    /** Capabilities to add to the mock server's CAPABILITY response */
+    private String mExtraCapabilities = "";
     // Fields specific to the CopyMessages tests
     private MockTransport mCopyMock;
     private Folder mCopyToFolder;
@@ -667,6 +674,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         String capabilityList = "* cAPABILITY iMAP4rev1 sTARTTLS aUTH=gSSAPI lOGINDISABLED";
         capabilityList += withId ? " iD" : "";
         capabilityList += withUidPlus ? " UiDPlUs" : "";
+        capabilityList += mExtraCapabilities;
 
         mockTransport.expect(getNextTag(false) + " CAPABILITY", new String[] {
             capabilityList,
@@ -2372,4 +2380,159 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(-1L, folders[8].mMailbox.mParentKey);
         assertEquals(0xAAAAAAA8, folders[8].mMailbox.mFlags);
     }
+
+    /**
+     * Tests that updateFolders() adds new mailboxes (hooking up parents that are new as well),
+     * updates existing ones and removes the ones that are gone from the server.
+     */
+    public void testUpdateFoldersReconcile() throws Exception {
+        // The test account is never saved
+        final long accountId = EmailContent.NOT_SAVED;
+        Mailbox stale = ProviderTestUtils.setupMailbox("stale", accountId, true, mTestContext);
+        Mailbox trash = ProviderTestUtils.setupMailbox("old trash", accountId, true, mTestContext,
+                Mailbox.TYPE_TRASH);
+        Mailbox a = ProviderTestUtils.setupMailbox("a", accountId, true, mTestContext);
+
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        expectNoop(mock, true);
+        mock.expect(getNextTag(false) + " LIST \"\" \"\\*\"",
+                new String[] {
+                "* LIST () \"/\" \"a\"",
+                "* LIST () \"/\" \"a/b\"",
+                "* LIST () \"/\" \"c/d\"",
+                "* LIST (\\Noselect) \"/\" \"c\"",
+                getNextTag(true) + " OK SUCCESS"
+                });
+        mStore.updateFolders();
+
+        // Removed, except for special mailboxes
+        assertNull(Mailbox.restoreMailboxWithId(mTestContext, stale.mId));
+        assertNotNull(Mailbox.restoreMailboxWithId(mTestContext, trash.mId));
+
+        // Existing mailbox is updated in place
+        Mailbox newA = Mailbox.restoreMailboxForPath(mTestContext, accountId, "a");
+        assertEquals(a.mId, newA.mId);
+        assertEquals(Mailbox.NO_MAILBOX, newA.mParentKey);
+        assertTrue((newA.mFlags & Mailbox.FLAG_HAS_CHILDREN) != 0);
+
+        // New mailboxes, with existing and new parents
+        Mailbox b = Mailbox.restoreMailboxForPath(mTestContext, accountId, "a/b");
+        assertEquals(a.mId, b.mParentKey);
+        Mailbox c = Mailbox.restoreMailboxForPath(mTestContext, accountId, "c");
+        Mailbox d = Mailbox.restoreMailboxForPath(mTestContext, accountId, "c/d");
+        assertEquals(c.mId, d.mParentKey);
+        assertNotNull(Mailbox.restoreMailboxForPath(mTestContext, accountId, "INBOX"));
+
+        // An unchanged folder list doesn't create duplicates
+        expectNoop(mock, true);
+        expectNoop(mock, true);
+        mock.expect(getNextTag(false) + " LIST \"\" \"\\*\"",
+                new String[] {
+                "* LIST () \"/\" \"a\"",
+                "* LIST () \"/\" \"a/b\"",
+                "* LIST () \"/\" \"c/d\"",
+                "* LIST (\\Noselect) \"/\" \"c\"",
+                getNextTag(true) + " OK SUCCESS"
+                });
+        Folder[] folders = mStore.updateFolders();
+        assertEquals(5, folders.length);
+        for (Folder folder : folders) {
+            Mailbox mailbox = ((ImapFolder) folder).mMailbox;
+            assertEquals(mailbox.mId,
+                    Mailbox.restoreMailboxForPath(mTestContext, accountId, folder.getName()).mId);
+        }
+        assertEquals(c.mId, Mailbox.restoreMailboxForPath(mTestContext, accountId, "c").mId);
+    }
+
+    /**
+     * Benchmark updateFolders() for large folder lists; both the initial load and a refresh of
+     * an unchanged list.
+     */
+    @LargeTest
+    public void testUpdateFoldersBenchmark() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        boolean pooled = false;
+        for (int count : new int[] {1000, 5000}) {
+            String[] response = new String[count + 1];
+            for (int i = 0; i < count; i++) {
+                response[i] = "* LIST () \"/\" \"folder" + count + "/" + i + "\"";
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                if (pooled) {
+                    expectNoop(mock, true);
+                }
+                pooled = true;
+                expectNoop(mock, true);
+                String command = getNextTag(false) + " LIST \"\" \"\\*\"";
+                response[count] = getNextTag(true) + " OK SUCCESS";
+                mock.expect(command, response.clone());
+                long start = System.nanoTime();
+                Folder[] folders = mStore.updateFolders();
+                long ms = (System.nanoTime() - start) / 1000000;
+                // The folders from the previous round are removed
+                assertEquals(count + 1, folders.length);
+                Log.d("ImapStoreUnitTests", "updateFolders " + count + " folders, "
+                        + ((pass == 0) ? "initial" : "unchanged") + ": " + ms + "ms");
+            }
+        }
+    }
+
+    public void testGetFolderStatusListStatus() throws Exception {
+        mExtraCapabilities = " LIST-STATUS";
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        mock.expect(getNextTag(false) + " LIST \"\" \"\\*\" RETURN \\(STATUS \\(MESSAGES UNSEEN"
+                + " UIDNEXT UIDVALIDITY\\)\\)",
+                new String[] {
+                "* LIST () \"/\" \"INBOX\"",
+                "* STATUS \"INBOX\" (MESSAGES 17 UNSEEN 16 UIDNEXT 44 UIDVALIDITY 1)",
+                "* LIST () \"/\" \"&ZeVnLIqe-\"", // Japanese folder name
+                "* STATUS \"&ZeVnLIqe-\" (MESSAGES 2 UNSEEN 0 UIDNEXT 3 UIDVALIDITY 4000000000)",
+                "* LIST () \"/\" \"other\"",
+                "* STATUS \"other\" (MESSAGES 0 UNSEEN 0 UIDNEXT 1 UIDVALIDITY 7)",
+                "* LIST (\\Noselect) \"/\" \"noselect\"",
+                getNextTag(true) + " OK SUCCESS"
+                });
+        HashMap<String, String> status = mStore.getFolderStatus(Arrays.asList(
+                "INBOX", "\u65E5\u672C\u8A9E", "noselect", "gone"));
+        assertEquals(2, status.size());
+        assertEquals("1/44/17/16", status.get("INBOX"));
+        assertEquals("4000000000/3/2/0", status.get("\u65E5\u672C\u8A9E"));
+    }
+
+    public void testGetFolderStatusPipelined() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        // All of the commands are sent before any of the responses are read
+        String inboxTag = getNextTag(false);
+        String inboxDone = getNextTag(true);
+        String goneTag = getNextTag(false);
+        String goneDone = getNextTag(true);
+        String otherTag = getNextTag(false);
+        String otherDone = getNextTag(true);
+        mock.expect(inboxTag + " STATUS \"INBOX\" \\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY\\)",
+                new String[] {
+                "* STATUS \"INBOX\" (MESSAGES 17 UNSEEN 16 UIDNEXT 44 UIDVALIDITY 1)",
+                inboxDone + " OK STATUS completed",
+                });
+        mock.expect(goneTag + " STATUS \"gone\" \\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY\\)",
+                new String[] {
+                goneDone + " NO no such mailbox",
+                });
+        mock.expect(otherTag + " STATUS \"other\" \\(MESSAGES UNSEEN UIDNEXT UIDVALIDITY\\)",
+                new String[] {
+                "* STATUS \"other\" (MESSAGES 0 UNSEEN 0 UIDNEXT 1 UIDVALIDITY 7)",
+                otherDone + " OK STATUS completed",
+                });
+        ArrayList<String> paths = new ArrayList<String>();
+        paths.add("INBOX");
+        paths.add("gone");
+        paths.add("other");
+        HashMap<String, String> status = mStore.getFolderStatus(paths);
+        assertEquals(2, status.size());
+        assertEquals("1/44/17/16", status.get("INBOX"));
+        assertEquals("7/1/0/0", status.get("other"));
+    }
 }
@@ -18,11 +18,14 @@ package com.android.email.mail.store;
 
 import android.content.Context;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.email.Controller;
 import com.android.email.DBTestHelper;
 import com.android.email.mail.Transport;
+import com.android.email.mail.transport.BufferedLineInputStream;
 import com.android.email.mail.transport.MockTransport;
 import com.android.email.provider.ProviderTestUtils;
 import com.android.emailcommon.TempDirectory;
@@ -39,6 +42,12 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * This is a series of unit tests for the POP3 Store class.  These tests must be locally
  * complete - no server(s) required.
@@ -79,6 +88,7 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         testAccount.save(mMockContext);
         mStore = (Pop3Store) Pop3Store.newInstance(testAccount, mMockContext);
         mFolder = (Pop3Store.Pop3Folder) mStore.getFolder("INBOX");
+        Pop3UidlIndex.delete(mMockContext, testAccount.mId);
     }
 
     /**
@@ -867,6 +877,174 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         checkFetchedMessage(singleMessage[0], 2, false);
     }
 
+    /**
+     * Test that the UIDL listing of a large maildrop is saved, and that the next session only
+     * probes the tail of the maildrop unless the mapping has shifted.
+     */
+    public void testSavedUidlIndex() throws MessagingException {
+        final int count = 1000;
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        // First session: no saved index, so we read the full listing
+        setupOpenFolder(mockTransport, count, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, count);
+        Message[] messages = mFolder.getMessages(count - 9, count, null);
+        assertEquals(10, messages.length);
+        assertEquals(getSingleMessageUID(count), messages[9].getUid());
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        // Second session: two new messages; probe the last known one and read the new ones
+        setupOpenFolder(mockTransport, count + 2, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupSingleUidl(mockTransport, count, getSingleMessageUID(count));
+        setupSingleUidl(mockTransport, count + 1, getSingleMessageUID(count + 1));
+        setupSingleUidl(mockTransport, count + 2, getSingleMessageUID(count + 2));
+        messages = mFolder.getMessages(count - 7, count + 2, null);
+        assertEquals(10, messages.length);
+        assertEquals(getSingleMessageUID(count - 7), messages[0].getUid());
+        assertEquals(getSingleMessageUID(count + 2), messages[9].getUid());
+        // uid lookups are answered from the index as well
+        assertNotNull(mFolder.getMessage(getSingleMessageUID(1)));
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        // Third session: a message was deleted and another arrived, so the count is the same
+        // but the probe of the last known message fails, and we read the full listing
+        setupOpenFolder(mockTransport, count + 2, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupSingleUidl(mockTransport, count + 2, getSingleMessageUID(count + 3));
+        mockTransport.expect("UIDL", "+OK sending UIDL list");
+        for (int msgNum = 1; msgNum <= count + 2; ++msgNum) {
+            mockTransport.expect(null, Integer.toString(msgNum) + " "
+                    + getSingleMessageUID(msgNum + 1));
+        }
+        mockTransport.expect(null, ".");
+        messages = mFolder.getMessages(count + 2, count + 2, null);
+        assertEquals(getSingleMessageUID(count + 3), messages[0].getUid());
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        // Fourth session: another message was deleted, so the maildrop is smaller than the
+        // saved index; we read the full listing without probing
+        setupOpenFolder(mockTransport, count + 1, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        mockTransport.expect("UIDL", "+OK sending UIDL list");
+        for (int msgNum = 1; msgNum <= count + 1; ++msgNum) {
+            mockTransport.expect(null, Integer.toString(msgNum) + " "
+                    + getSingleMessageUID(msgNum + 2));
+        }
+        mockTransport.expect(null, ".");
+        messages = mFolder.getMessages(count + 1, count + 1, null);
+        assertEquals(getSingleMessageUID(count + 3), messages[0].getUid());
+    }
+
+    /**
+     * Benchmark indexing the tail of a synthetic 50k-message maildrop, with and without the
+     * saved UIDL index.
+     */
+    @LargeTest
+    public void testSavedUidlIndexBenchmark() throws MessagingException {
+        final int count = 50000;
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        setupOpenFolder(mockTransport, count, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, count);
+        long start = System.nanoTime();
+        mFolder.getMessages(count - 24, count, null);
+        long fullListingUs = (System.nanoTime() - start) / 1000;
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        setupOpenFolder(mockTransport, count + 5, null);
+        mFolder.open(OpenMode.READ_WRITE);
+        for (int msgNum = count; msgNum <= count + 5; ++msgNum) {
+            setupSingleUidl(mockTransport, msgNum, getSingleMessageUID(msgNum));
+        }
+        start = System.nanoTime();
+        Message[] messages = mFolder.getMessages(count - 19, count + 5, null);
+        long savedIndexUs = (System.nanoTime() - start) / 1000;
+        assertEquals(getSingleMessageUID(count + 5), messages[24].getUid());
+
+        Log.d("Pop3StoreUnitTests", "Indexing " + count + " messages: full listing "
+                + fullListingUs + "us (" + (count + 2) + " lines), saved index "
+                + savedIndexUs + "us (6 lines)");
+    }
+
+    /**
+     * Test dot-unstuffing and termination of multi-line responses, with both the bulk reader
+     * over a {@link BufferedLineInputStream} and the fallback for other streams.
+     */
+    public void testPop3ResponseInputStream() throws IOException {
+        final String response = "Subject: test\r\n\r\n..leading dot\r\n.\r\n"
+                + "+OK next response\r\n";
+        final String expected = "Subject: test\r\n\r\n.leading dot\r\n";
+
+        BufferedLineInputStream lineIn = new BufferedLineInputStream(
+                new ByteArrayInputStream(response.getBytes()), 8);
+        assertEquals(expected, readFully(new Pop3Store.Pop3ResponseInputStream(lineIn)));
+        assertEquals("+OK next response", lineIn.readLine());
+
+        InputStream in = new ByteArrayInputStream(response.getBytes());
+        InputStream pop3In = new Pop3Store.Pop3ResponseInputStream(in);
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = pop3In.read()) != -1) {
+            sb.append((char) b);
+        }
+        assertEquals(expected, sb.toString());
+        assertEquals('+', in.read());
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray());
+    }
+
+    /**
+     * Benchmark replaying a recorded 1MB RETR response through the bulk reader, compared to
+     * reading it a byte at a time.
+     */
+    @LargeTest
+    public void testPop3ResponseInputStreamThroughput() throws IOException {
+        StringBuilder sb = new StringBuilder("Subject: large\r\n\r\n");
+        while (sb.length() < 1024 * 1024) {
+            sb.append("..The quick brown fox jumps over the lazy dog, 0123456789 times.\r\n");
+        }
+        sb.append(".\r\n");
+        byte[] retr = sb.toString().getBytes();
+        byte[] buffer = new byte[4096];
+        final int iterations = 10;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = new Pop3Store.Pop3ResponseInputStream(
+                    new BufferedInputStream(new ByteArrayInputStream(retr), 1024));
+            while (in.read() != -1) {
+            }
+        }
+        long byteUs = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = new Pop3Store.Pop3ResponseInputStream(
+                    new BufferedLineInputStream(new ByteArrayInputStream(retr), 1024));
+            while (in.read(buffer) != -1) {
+            }
+        }
+        long bulkUs = (System.nanoTime() - start) / 1000;
+
+        Log.d("Pop3StoreUnitTests", "RETR " + (retr.length * iterations / 1024) + "KB: "
+                + "byte-at-a-time " + byteUs + "us, bulk " + bulkUs + "us");
+    }
+
     /**
      * Set up a basic MockTransport. open it, and inject it into mStore
      */
@@ -975,6 +1153,16 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         transport.expect(null, ".");
     }
 
+    /**
+     * Setup expects for a single-message UIDL.
+     * @param transport The mock transport to preload
+     * @param msgNum The message number to expect
+     * @param uid The uid to return
+     */
+    private static void setupSingleUidl(MockTransport transport, int msgNum, String uid) {
+        transport.expect("UIDL " + msgNum, "+OK " + msgNum + " " + uid);
+    }
+
     /**
      * Setup expects for a LIST on a mailbox with 0 or more messages in it.
      * @param transport The mock transport to preload
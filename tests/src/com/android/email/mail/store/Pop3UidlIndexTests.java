@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class Pop3UidlIndexTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 12345;
+
+    @Override
+    protected void tearDown() throws Exception {
+        Pop3UidlIndex.delete(getContext(), ACCOUNT_ID);
+        super.tearDown();
+    }
+
+    public void testLookups() {
+        Pop3UidlIndex index = new Pop3UidlIndex(new String[] {"a", "b", "c"});
+        assertEquals(3, index.size());
+        assertEquals("a", index.getUid(1));
+        assertEquals("c", index.getUid(3));
+        assertNull(index.getUid(0));
+        assertNull(index.getUid(4));
+        assertEquals(2, index.getMessageNumber("b"));
+        assertEquals(-1, index.getMessageNumber("d"));
+    }
+
+    public void testWriteAndRead() throws IOException {
+        String[] uids = new String[] {
+                "", "UID-0001", "UID-0002", "UID-0010", "X", "UID-0010-\u00e9", "UID"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Pop3UidlIndex(uids).writeTo(out);
+
+        Pop3UidlIndex index = Pop3UidlIndex.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(uids.length, index.size());
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(uids[i], index.getUid(i + 1));
+        }
+    }
+
+    public void testReadCorrupt() {
+        byte[] bytes = new byte[] {0, 0, 0, 1, 0, 0, 0, 1, 5, 0, 0};
+        try {
+            Pop3UidlIndex.readFrom(new ByteArrayInputStream(bytes));
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSaveRestoreDelete() {
+        assertNull(Pop3UidlIndex.restore(getContext(), ACCOUNT_ID));
+
+        new Pop3UidlIndex(new String[] {"one", "two"}).save(getContext(), ACCOUNT_ID);
+        Pop3UidlIndex index = Pop3UidlIndex.restore(getContext(), ACCOUNT_ID);
+        assertNotNull(index);
+        assertEquals(2, index.size());
+        assertEquals("two", index.getUid(2));
+
+        Pop3UidlIndex.delete(getContext(), ACCOUNT_ID);
+        assertNull(Pop3UidlIndex.restore(getContext(), ACCOUNT_ID));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+@SmallTest
+public class BufferedLineInputStreamTests extends AndroidTestCase {
+    private static BufferedLineInputStream open(String s, int bufferSize) {
+        return new BufferedLineInputStream(new ByteArrayInputStream(s.getBytes()), bufferSize);
+    }
+
+    public void testReadLine() throws IOException {
+        BufferedLineInputStream in = open("abc\r\ndef\nghi\r\n\r\nj\rk\nlast", 4);
+        assertEquals("abc", in.readLine());
+        assertEquals("def", in.readLine());
+        assertEquals("ghi", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals("jk", in.readLine());
+        assertFalse(in.lineHitEndOfStream());
+        assertEquals("last", in.readLine());
+        assertTrue(in.lineHitEndOfStream());
+        assertEquals("", in.readLine());
+        assertTrue(in.lineHitEndOfStream());
+    }
+
+    public void testReadLongLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        String line = sb.toString();
+        BufferedLineInputStream in = open(line + "\r\n" + line + "\r\n", 16);
+        assertEquals(line, in.readLine());
+        assertEquals(line, in.readLine());
+    }
+
+    /**
+     * Line reads must not consume anything beyond the line, so the caller can read a literal
+     * (or message body) from the stream itself.
+     */
+    public void testMixedReads() throws IOException {
+        BufferedLineInputStream in = open("* 1 FETCH {5}\r\nhello)\r\nA1 OK\r\n", 8);
+        assertEquals("* 1 FETCH {5}", in.readLine());
+        byte[] literal = new byte[5];
+        int n = 0;
+        while (n < 5) {
+            n += in.read(literal, n, 5 - n);
+        }
+        assertEquals("hello", new String(literal));
+        assertEquals(')', in.read());
+        assertEquals("", in.readLine());
+        assertEquals("A1 OK", in.readLine());
+        assertEquals(-1, in.read());
+    }
+
+    public void testReadLineBytes() throws IOException {
+        BufferedLineInputStream in = open("ab\r\ncdefgh\r\nij", 4);
+        byte[] b = new byte[6];
+        assertEquals(4, in.readLineBytes(b, 0, 6));
+        assertEquals("ab\r\n", new String(b, 0, 4));
+        // line longer than the space given
+        assertEquals(6, in.readLineBytes(b, 0, 6));
+        assertEquals("cdefgh", new String(b, 0, 6));
+        assertEquals(2, in.readLineBytes(b, 0, 6));
+        assertEquals("\r\n", new String(b, 0, 2));
+        // stream ends without LF
+        assertEquals(2, in.readLineBytes(b, 0, 6));
+        assertEquals("ij", new String(b, 0, 2));
+        assertEquals(-1, in.readLineBytes(b, 0, 6));
+    }
+
+    /**
+     * The byte-at-a-time line reader MailTransport used to have, for comparison.
+     */
+    private static String readLineOld(InputStream in) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int d;
+        while ((d = in.read()) != -1) {
+            if (((char)d) == '\r') {
+                continue;
+            } else if (((char)d) == '\n') {
+                break;
+            } else {
+                sb.append((char)d);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Benchmark replaying a recorded SMTP conversation (server side) through the old and new
+     * line readers.
+     */
+    @LargeTest
+    public void testReadLineThroughput() throws IOException {
+        final String[] smtpResponses = new String[] {
+                "220 mx.example.com ESMTP ready",
+                "250-mx.example.com at your service, [192.0.2.1]",
+                "250-SIZE 35882577",
+                "250-8BITMIME",
+                "250-STARTTLS",
+                "250-ENHANCEDSTATUSCODES",
+                "250 PIPELINING",
+                "250 2.1.0 OK",
+                "250 2.1.5 OK",
+                "354  Go ahead",
+                "250 2.0.0 OK 1318915200 queued as 4F2A1",
+                "221 2.0.0 closing connection",
+        };
+        StringBuilder sb = new StringBuilder();
+        for (String response : smtpResponses) {
+            sb.append(response).append("\r\n");
+        }
+        byte[] conversation = sb.toString().getBytes();
+        final int iterations = 20000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            InputStream in = new BufferedInputStream(new ByteArrayInputStream(conversation), 1024);
+            for (int j = 0; j < smtpResponses.length; j++) {
+                readLineOld(in);
+            }
+        }
+        long oldUs = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            BufferedLineInputStream in =
+                    new BufferedLineInputStream(new ByteArrayInputStream(conversation), 1024);
+            for (int j = 0; j < smtpResponses.length; j++) {
+                assertEquals(smtpResponses[j], in.readLine());
+            }
+        }
+        long newUs = (System.nanoTime() - start) / 1000;
+
+        long kb = (long) conversation.length * iterations / 1024;
+        Log.d("BufferedLineInputStreamTests", "SMTP readLine " + kb + "KB: byte-at-a-time "
+                + oldUs + "us, buffered " + newUs + "us");
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class HandshakeStatsTests extends TestCase {
+    @Override
+    protected void tearDown() throws Exception {
+        HandshakeStats.reset();
+        super.tearDown();
+    }
+
+    public void testRecord() {
+        HandshakeStats.reset();
+        assertNull(HandshakeStats.getSummary("imap.example.com", 993));
+
+        HandshakeStats.record("imap.example.com", 993, 300, false);
+        HandshakeStats.record("imap.example.com", 993, 100, true);
+        HandshakeStats.record("imap.example.com", 993, 50, true);
+        HandshakeStats.record("imap.example.com", 143, 10, true);
+        assertEquals("3 handshakes, 2 resumed (66%), average 150ms",
+                HandshakeStats.getSummary("imap.example.com", 993));
+        assertEquals("1 handshakes, 1 resumed (100%), average 10ms",
+                HandshakeStats.getSummary("imap.example.com", 143));
+        assertNull(HandshakeStats.getSummary("smtp.example.com", 465));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+@SmallTest
+public class TransportOutputStreamTests extends AndroidTestCase {
+    /**
+     * Stands in for a socket stream; counts the writes made to it.
+     */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int mWrites;
+
+        @Override
+        public synchronized void write(int oneByte) {
+            mWrites++;
+            super.write(oneByte);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            mWrites++;
+            super.write(b, off, len);
+        }
+    }
+
+    public void testWriteLine() throws IOException {
+        CountingOutputStream socket = new CountingOutputStream();
+        TransportOutputStream out = new TransportOutputStream(socket, 64);
+        out.writeLine("1 NOOP");
+        assertEquals("1 NOOP\r\n", socket.toString());
+        assertEquals(1, socket.mWrites);
+
+        // Non-ASCII is encoded with the default charset, like String.getBytes()
+        socket.reset();
+        String line = "2 LOGIN user \u00e9t\u00e9";
+        out.writeLine(line);
+        assertEquals(line + "\r\n", new String(socket.toByteArray()));
+
+        // Longer than the buffer
+        socket.reset();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        out.writeLine(sb.toString());
+        assertEquals(sb.toString() + "\r\n", socket.toString());
+
+        assertEquals(6, socket.mWrites);
+        assertEquals(6, out.getWriteCount());
+    }
+
+    public void testWrite() throws IOException {
+        CountingOutputStream socket = new CountingOutputStream();
+        TransportOutputStream out = new TransportOutputStream(socket, 8);
+        out.write('a');
+        out.write("bcd".getBytes());
+        assertEquals(0, socket.mWrites);
+        // Doesn't fit; buffer is flushed and the data goes straight through
+        out.write("0123456789".getBytes());
+        assertEquals(2, socket.mWrites);
+        out.write("xyz".getBytes());
+        out.flush();
+        assertEquals("abcd0123456789xyz", socket.toString());
+        assertEquals(3, socket.mWrites);
+        assertEquals(3, out.getWriteCount());
+        assertEquals(3, out.getRecordCount());
+        assertEquals(17, out.getByteCount());
+    }
+
+    public void testRecordCount() throws IOException {
+        TransportOutputStream out = new TransportOutputStream(new ByteArrayOutputStream(),
+                TransportOutputStream.TLS_RECORD_SIZE);
+        out.write(new byte[TransportOutputStream.TLS_RECORD_SIZE * 2 + 1]);
+        assertEquals(1, out.getWriteCount());
+        assertEquals(3, out.getRecordCount());
+    }
+
+    public void testEOLConvertingOutputStream() throws IOException {
+        String[] inputs = new String[] {
+                "", "abc", "a\nb\r\nc\n", "\n\n", "\r\n\r\n", "a\r", "\nb"
+        };
+        for (String input : inputs) {
+            // Byte at a time
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            EOLConvertingOutputStream out = new EOLConvertingOutputStream(expected);
+            for (byte b : input.getBytes()) {
+                out.write(b);
+            }
+            out.flush();
+
+            // In bulk, also split across calls
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            out = new EOLConvertingOutputStream(actual);
+            byte[] bytes = input.getBytes();
+            int split = bytes.length / 2;
+            out.write(bytes, 0, split);
+            out.write(bytes, split, bytes.length - split);
+            out.flush();
+            assertEquals(input, expected.toString(), actual.toString());
+        }
+    }
+
+    /**
+     * Compare writes/KB for an SMTP conversation with the old 512-byte BufferedOutputStream
+     * (line + CR + LF, then flush) and with TransportOutputStream.
+     */
+    @LargeTest
+    public void testWritesPerKb() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append("This is line ").append(i).append(" of a rather long message body.\n");
+        }
+        byte[] bodyBytes = body.toString().getBytes();
+        final String[] commands = new String[] {
+                "EHLO localhost", "MAIL FROM: <a@example.com>", "RCPT TO: <b@example.com>", "DATA"
+        };
+
+        CountingOutputStream oldSocket = new CountingOutputStream();
+        OutputStream oldOut = new BufferedOutputStream(oldSocket, 512);
+        for (String command : commands) {
+            oldOut.write(command.getBytes());
+            oldOut.write('\r');
+            oldOut.write('\n');
+            oldOut.flush();
+        }
+        EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(oldOut);
+        for (byte b : bodyBytes) {
+            eolOut.write(b);
+        }
+        oldOut.write("\r\n.\r\n".getBytes());
+        oldOut.flush();
+
+        CountingOutputStream newSocket = new CountingOutputStream();
+        TransportOutputStream newOut =
+                new TransportOutputStream(newSocket, TransportOutputStream.TLS_RECORD_SIZE);
+        for (String command : commands) {
+            newOut.writeLine(command);
+        }
+        new EOLConvertingOutputStream(newOut).write(bodyBytes);
+        newOut.writeLine("\r\n.");
+
+        assertEquals(oldSocket.toString(), newSocket.toString());
+        long kb = oldSocket.size() / 1024;
+        Log.d("TransportOutputStreamTests", kb + "KB: " + oldSocket.mWrites + " writes before, "
+                + newSocket.mWrites + " writes (" + newOut.getRecordCount() + " records) after");
+        assertTrue(newSocket.mWrites < oldSocket.mWrites);
+    }
+}
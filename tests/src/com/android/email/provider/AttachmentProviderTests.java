@@ -448,10 +448,28 @@ public class AttachmentProviderTests extends ProviderTestCase2<AttachmentProvide
         assertEquals("Broken test:  Unexpected id assignment", 2, attachment2Id);
 
         // Test with an attached database, attachment entry found - returns a thumbnail
+        ThumbnailCache.resetStats();
         afd = mMockResolver.openAssetFileDescriptor(thumb2Uri, "r");
         assertNotNull(afd);
         // TODO: Confirm it's the "right" file?
         afd.close();
+
+        // The second time, the thumbnail comes from the cache
+        afd = mMockResolver.openAssetFileDescriptor(thumb2Uri, "r");
+        assertNotNull(afd);
+        afd.close();
+        assertTrue(ThumbnailCache.getSummary().startsWith("1 hits, 1 misses"));
+    }
+
+    public void testGetSampleSize() {
+        assertEquals(1, AttachmentProvider.getSampleSize(62, 62, 62, 62));
+        assertEquals(1, AttachmentProvider.getSampleSize(123, 200, 62, 62));
+        assertEquals(2, AttachmentProvider.getSampleSize(124, 200, 62, 62));
+        assertEquals(64, AttachmentProvider.getSampleSize(4000, 4000, 62, 62));
+        // The smaller dimension decides
+        assertEquals(4, AttachmentProvider.getSampleSize(4000, 300, 62, 62));
+        // Images smaller than the thumbnail aren't subsampled
+        assertEquals(1, AttachmentProvider.getSampleSize(10, 10, 62, 62));
     }
 
     private Uri createAttachment(Account account, long messageId, String contentUriStr) {
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Tests of {@link NotificationCoalescer}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.NotificationCoalescerTests email
+ */
+@SmallTest
+public class NotificationCoalescerTests extends AndroidTestCase {
+    private static final Uri MESSAGE_URI = Uri.parse("content://test/message/update");
+    private static final Uri CONTENT_URI = Uri.parse("content://test");
+
+    /**
+     * Records what it sends rather than sending it, and has a clock we can set.  Flushes are only
+     * recorded when they're scheduled, so that they happen when the test calls flush().
+     */
+    private static class TestCoalescer extends NotificationCoalescer {
+        final ArrayList<Uri> mSentUris = new ArrayList<Uri>();
+        final ArrayList<Intent> mSentIntents = new ArrayList<Intent>();
+        long mNow = 1000;
+        // The delay of the scheduled flush, or -1 if none is scheduled
+        long mFlushDelay = -1;
+
+        TestCoalescer() {
+            super(null, null);
+        }
+
+        @Override
+        protected synchronized void postFlush(long delayMillis) {
+            mFlushDelay = delayMillis;
+        }
+
+        @Override
+        protected synchronized void cancelFlush() {
+            mFlushDelay = -1;
+        }
+
+        @Override
+        protected synchronized void sendChange(Uri uri) {
+            mSentUris.add(uri);
+        }
+
+        @Override
+        protected synchronized void sendBroadcast(Intent intent) {
+            mSentIntents.add(intent);
+        }
+
+        @Override
+        protected long now() {
+            return mNow;
+        }
+    }
+
+    private TestCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCoalescer = new TestCoalescer();
+        NotificationCoalescer.resetStats();
+    }
+
+    private static Uri row(long id) {
+        return Uri.withAppendedPath(MESSAGE_URI, Long.toString(id));
+    }
+
+    public void testFirstChangeIsSentAtOnce() {
+        mCoalescer.notifyChange(row(1));
+        assertEquals(Arrays.asList(row(1)), mCoalescer.mSentUris);
+    }
+
+    public void testChangesInWindowAreHeld() {
+        mCoalescer.notifyChange(CONTENT_URI);
+        mCoalescer.mSentUris.clear();
+
+        // Changes during the window are held, and duplicates are sent once
+        mCoalescer.mNow += NotificationCoalescer.WINDOW_MS / 2;
+        mCoalescer.notifyChange(row(1));
+        mCoalescer.notifyChange(CONTENT_URI);
+        mCoalescer.notifyChange(row(1));
+        mCoalescer.notifyChange(CONTENT_URI);
+        assertTrue(mCoalescer.mSentUris.isEmpty());
+        // They're sent when the window ends
+        assertEquals(NotificationCoalescer.WINDOW_MS / 2, mCoalescer.mFlushDelay);
+
+        mCoalescer.flush();
+        assertEquals(-1, mCoalescer.mFlushDelay);
+        assertEquals(Arrays.asList(row(1), CONTENT_URI), mCoalescer.mSentUris);
+        assertEquals(3, NotificationCoalescer.getSentCount());
+        assertEquals(2, NotificationCoalescer.getSuppressedCount());
+
+        // Once the window is over, a change is sent at once again
+        mCoalescer.mSentUris.clear();
+        mCoalescer.mNow += NotificationCoalescer.WINDOW_MS;
+        mCoalescer.notifyChange(row(2));
+        assertEquals(Arrays.asList(row(2)), mCoalescer.mSentUris);
+    }
+
+    public void testBatch() {
+        mCoalescer.beginBatch();
+        mCoalescer.beginBatch();
+        mCoalescer.notifyChange(row(1));
+        mCoalescer.endBatch();
+        mCoalescer.notifyChange(row(2));
+        assertTrue(mCoalescer.mSentUris.isEmpty());
+
+        // The outermost batch sends the changes; changes to several rows are sent as one
+        mCoalescer.endBatch();
+        assertEquals(Arrays.asList(MESSAGE_URI), mCoalescer.mSentUris);
+
+        try {
+            mCoalescer.endBatch();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testCollapse() {
+        Uri account = Uri.parse("content://test/account/update/5");
+        LinkedHashSet<Uri> uris = new LinkedHashSet<Uri>();
+        uris.add(row(1));
+        uris.add(account);
+        uris.add(row(2));
+        uris.add(row(3));
+        assertEquals(Arrays.asList(MESSAGE_URI, account), NotificationCoalescer.collapse(uris));
+
+        // A single row is sent as is
+        uris.clear();
+        uris.add(row(1));
+        uris.add(CONTENT_URI);
+        assertEquals(Arrays.asList(row(1), CONTENT_URI), NotificationCoalescer.collapse(uris));
+
+        // A parent that's pending makes its rows redundant
+        uris.clear();
+        uris.add(row(1));
+        uris.add(MESSAGE_URI);
+        assertEquals(Arrays.asList(MESSAGE_URI), NotificationCoalescer.collapse(uris));
+    }
+
+    public void testMessageListBroadcast() {
+        // Nothing is broadcast until a notification is sent
+        mCoalescer.messageListChanged(1, 10);
+        assertTrue(mCoalescer.mSentIntents.isEmpty());
+        mCoalescer.beginBatch();
+        mCoalescer.notifyChange(row(1));
+        mCoalescer.messageListChanged(1, 11);
+        mCoalescer.messageListChanged(2, 20);
+        mCoalescer.messageListChanged(1, 10);
+        mCoalescer.notifyChange(row(2));
+        mCoalescer.endBatch();
+
+        List<Intent> intents = mCoalescer.mSentIntents;
+        assertEquals(1, intents.size());
+        Intent intent = intents.get(0);
+        assertEquals(EmailProvider.ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED, intent.getAction());
+        long[] accountIds = intent.getLongArrayExtra(EmailProvider.EXTRA_ACCOUNT_IDS);
+        Arrays.sort(accountIds);
+        assertTrue(Arrays.equals(new long[] {1, 2}, accountIds));
+        long[] mailboxIds = intent.getLongArrayExtra(EmailProvider.EXTRA_MAILBOX_IDS);
+        Arrays.sort(mailboxIds);
+        assertTrue(Arrays.equals(new long[] {10, 11, 20}, mailboxIds));
+        assertTrue(NotificationCoalescer.getSummary().contains(
+                "1 message list broadcasts sent, 3 suppressed"));
+
+        // If any change is for an unknown mailbox, no ids are sent
+        intents.clear();
+        mCoalescer.mNow += NotificationCoalescer.WINDOW_MS;
+        mCoalescer.messageListChanged(1, 10);
+        mCoalescer.messageListChanged(-1, -1);
+        mCoalescer.notifyChange(MESSAGE_URI);
+        assertEquals(1, intents.size());
+        assertFalse(intents.get(0).hasExtra(EmailProvider.EXTRA_ACCOUNT_IDS));
+        assertFalse(intents.get(0).hasExtra(EmailProvider.EXTRA_MAILBOX_IDS));
+    }
+}
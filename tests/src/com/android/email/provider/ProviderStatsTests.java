@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests of {@link ProviderStats}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ProviderStatsTests email
+ */
+@SmallTest
+public class ProviderStatsTests extends AndroidTestCase {
+    private static final Uri MESSAGE_URI = Uri.parse("content://test/message/5");
+    private static final long MS = 1000L * 1000L;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ProviderStats.resetStats();
+    }
+
+    public void testGetBucket() {
+        assertEquals(0, ProviderStats.getBucket(0));
+        assertEquals(0, ProviderStats.getBucket(ProviderStats.FIRST_BUCKET_MICROS - 1));
+        assertEquals(1, ProviderStats.getBucket(ProviderStats.FIRST_BUCKET_MICROS));
+        assertEquals(3, ProviderStats.getBucket(ProviderStats.FIRST_BUCKET_MICROS * 4));
+        assertEquals(ProviderStats.BUCKETS - 1, ProviderStats.getBucket(Long.MAX_VALUE));
+    }
+
+    public void testGetUriName() {
+        assertEquals("/message/#", ProviderStats.getUriName(MESSAGE_URI));
+        assertEquals("/mailboxIdFromAccount/#", ProviderStats.getUriName(
+                Uri.parse("content://test/mailboxIdFromAccount/-1")));
+        assertEquals("/account", ProviderStats.getUriName(Uri.parse("content://test/account")));
+    }
+
+    private static Cursor getRow(String operation, String uri) {
+        Cursor c = ProviderStats.getCursor();
+        while (c.moveToNext()) {
+            if (operation.equals(c.getString(0)) && uri.equals(c.getString(1))) {
+                return c;
+            }
+        }
+        c.close();
+        return null;
+    }
+
+    public void testRecordQuery() {
+        MatrixCursor result = new MatrixCursor(new String[] {"_id"});
+        result.addRow(new Object[] {1});
+        result.addRow(new Object[] {2});
+        for (int i = 0; i < 98; i++) {
+            ProviderStats.recordQuery(1, MESSAGE_URI, MS / 10, result, ProviderStats.CACHE_HIT);
+        }
+        ProviderStats.recordQuery(1, MESSAGE_URI, 50 * MS, null, ProviderStats.CACHE_MISS);
+        ProviderStats.recordQuery(1, MESSAGE_URI, 100 * MS, null, ProviderStats.NOT_CACHEABLE);
+
+        Cursor c = getRow(ProviderStats.QUERY, "/message/#");
+        assertNotNull(c);
+        try {
+            assertEquals(100, c.getInt(2));
+            assertEquals(196, c.getLong(3));
+            assertEquals(98, c.getInt(4));
+            assertEquals(1, c.getInt(5));
+            assertEquals(159.8, c.getDouble(6), 0.001);
+            assertEquals(100.0, c.getDouble(7), 0.001);
+            // The percentiles are the bounds of the buckets they fall in
+            assertEquals(0.125, c.getDouble(8), 0.001);
+            assertEquals(0.125, c.getDouble(9), 0.001);
+            assertTrue(c.getDouble(10) >= 50.0);
+            assertTrue(c.getDouble(10) <= 100.0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRecordChangeAndTransaction() {
+        ProviderStats.recordChange(ProviderStats.UPDATE, 1, MESSAGE_URI, MS, 1);
+        ProviderStats.recordChange(ProviderStats.UPDATE, 1, MESSAGE_URI, 3 * MS, 4);
+        ProviderStats.recordChange(ProviderStats.DELETE, 1, MESSAGE_URI, MS, 0);
+        ProviderStats.recordTransaction("applyBatch", 20 * MS);
+
+        Cursor c = getRow(ProviderStats.UPDATE, "/message/#");
+        assertNotNull(c);
+        assertEquals(2, c.getInt(2));
+        assertEquals(5, c.getLong(3));
+        assertEquals(3.0, c.getDouble(7), 0.001);
+        c.close();
+        c = getRow(ProviderStats.TRANSACTION, "applyBatch");
+        assertNotNull(c);
+        assertEquals(1, c.getInt(2));
+        assertEquals(20.0, c.getDouble(6), 0.001);
+        c.close();
+
+        StringWriter sw = new StringWriter();
+        ProviderStats.dump(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("delete /message/#: 1, 0, "));
+
+        ProviderStats.resetStats();
+        c = ProviderStats.getCursor();
+        assertEquals(0, c.getCount());
+        c.close();
+    }
+}
@@ -19,22 +19,28 @@ package com.android.email.provider;
 import android.accounts.AccountManager;
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.IsolatedContext;
 import android.test.MoreAsserts;
 import android.test.ProviderTestCase2;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.email.provider.EmailProvider.AttachmentService;
 import com.android.emailcommon.AccountManagerTypes;
@@ -58,6 +64,12 @@ import com.android.emailcommon.utility.Utility;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests of the Email provider.
@@ -1130,6 +1142,60 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(1, numMessages);
     }
 
+    /**
+     * Test updating and deleting the messages matching a selection through the synced message
+     * URI, which keeps the original messages for the server like the per-message URI.
+     */
+    public void testSyncedMessageSelection() {
+        Account account1 = ProviderTestUtils.setupAccount("synced-selection", true, mMockContext);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true, mMockContext);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account1.mId, true, mMockContext);
+        long[] ids = new long[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ProviderTestUtils.setupMessage("message" + i, account1.mId, box1.mId, true,
+                    true, mMockContext, false, false).mId;
+        }
+        ContentResolver resolver = mMockContext.getContentResolver();
+        String selection = EmailContent.RECORD_ID + " in (" + ids[0] + "," + ids[1] + ")";
+
+        // Move two of the messages; their original mailbox is kept for the sync adapter
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.MAILBOX_KEY, box2.mId);
+        assertEquals(2, resolver.update(Message.SYNCED_CONTENT_URI, cv, selection, null));
+        assertEquals(box2.mId, Message.restoreMessageWithId(mMockContext, ids[0]).mMailboxKey);
+        assertEquals(box1.mId, Message.restoreMessageWithId(mMockContext, ids[2]).mMailboxKey);
+        String inBox1 = MessageColumns.MAILBOX_KEY + "=" + box1.mId;
+        assertEquals(2, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI, inBox1,
+                null));
+
+        // A second update doesn't replace the originals
+        cv.clear();
+        cv.put(MessageColumns.FLAG_READ, 1);
+        assertEquals(2, resolver.update(Message.SYNCED_CONTENT_URI, cv, selection, null));
+        assertTrue(Message.restoreMessageWithId(mMockContext, ids[1]).mFlagRead);
+        assertEquals(2, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI,
+                inBox1 + " and " + MessageColumns.FLAG_READ + "=0", null));
+
+        // Deleting them moves them from the updated table to the deleted table
+        assertEquals(2, resolver.delete(Message.SYNCED_CONTENT_URI, selection, null));
+        assertNull(Message.restoreMessageWithId(mMockContext, ids[0]));
+        assertNull(Body.restoreBodyWithMessageId(mMockContext, ids[1]));
+        assertNotNull(Body.restoreBodyWithMessageId(mMockContext, ids[2]));
+        assertEquals(0, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI, null,
+                null));
+        assertEquals(2, EmailContent.count(mMockContext, Message.DELETED_CONTENT_URI, null,
+                null));
+
+        // Without a selection, nothing is changed
+        try {
+            resolver.delete(Message.SYNCED_CONTENT_URI, null, null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertNotNull(Message.restoreMessageWithId(mMockContext, ids[2]));
+    }
+
     /**
      * Test message update
      * TODO: body
@@ -1217,6 +1283,52 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(1, numMessages);
     }
 
+    /**
+     * Test that the changes made by a batch are announced by a single message list broadcast,
+     * which carries the accounts and mailboxes that changed.
+     */
+    public void testApplyBatchMessageListBroadcast() throws Exception {
+        Account account = ProviderTestUtils.setupAccount("batch-broadcast", true, mMockContext);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account.mId, true, mMockContext);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account.mId, true, mMockContext);
+        Message message = ProviderTestUtils.setupMessage("message", account.mId, box1.mId, false,
+                true, mMockContext);
+        IsolatedContext context = (IsolatedContext) getMockContext();
+        NotificationCoalescer coalescer = mProvider.getNotificationCoalescer();
+        coalescer.flush();
+        context.getAndClearBroadcastIntents();
+
+        // Move the message, and add another one
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Message.CONTENT_URI, message.mId))
+                .withValue(MessageColumns.MAILBOX_KEY, box2.mId).build());
+        ops.add(ContentProviderOperation.newInsert(Message.CONTENT_URI)
+                .withValue(MessageColumns.ACCOUNT_KEY, account.mId)
+                .withValue(MessageColumns.MAILBOX_KEY, box1.mId).build());
+        mProvider.applyBatch(ops);
+        coalescer.flush();
+
+        List<Intent> intents = context.getAndClearBroadcastIntents();
+        assertEquals(1, intents.size());
+        Intent intent = intents.get(0);
+        assertEquals(EmailProvider.ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED, intent.getAction());
+        assertTrue(Arrays.equals(new long[] {account.mId},
+                intent.getLongArrayExtra(EmailProvider.EXTRA_ACCOUNT_IDS)));
+        long[] mailboxIds = intent.getLongArrayExtra(EmailProvider.EXTRA_MAILBOX_IDS);
+        Arrays.sort(mailboxIds);
+        assertTrue(Arrays.equals(new long[] {box1.mId, box2.mId}, mailboxIds));
+
+        // A change that can't be tied to a mailbox is broadcast without ids
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, 1);
+        mMockContext.getContentResolver().update(Message.CONTENT_URI, cv, null, null);
+        coalescer.flush();
+        intents = context.getAndClearBroadcastIntents();
+        assertEquals(1, intents.size());
+        assertNull(intents.get(0).getLongArrayExtra(EmailProvider.EXTRA_ACCOUNT_IDS));
+    }
+
     /**
      * TODO: cascaded delete account
      * TODO: hostauth
@@ -2148,6 +2260,219 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(3, getMessageCount(bt.mId));
     }
 
+    /** Returns a count from the provider's database, without going through its caches. */
+    private static long countInDatabase(SQLiteDatabase db, String sql) {
+        return DatabaseUtils.longForQuery(db, sql, null);
+    }
+
+    /** Returns the number of mailboxes whose message, unread or favorite count is wrong. */
+    private static long countWrongMailboxCounts(SQLiteDatabase db) {
+        String messages = "select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + "=" + Mailbox.TABLE_NAME + "."
+                + EmailContent.RECORD_ID;
+        return countInDatabase(db, "select count(*) from " + Mailbox.TABLE_NAME + " where "
+                + MailboxColumns.MESSAGE_COUNT + "!=(" + messages + ") or "
+                + MailboxColumns.UNREAD_COUNT + "!=(" + messages + " and "
+                + MessageColumns.FLAG_READ + "=0) or " + MailboxColumns.FAVORITE_COUNT + "!=("
+                + messages + " and " + Message.ALL_FAVORITE_SELECTION + ")");
+    }
+
+    /**
+     * Returns the number of differences between the mailbox summary table and the sums of the
+     * mailboxes' counts by account and type.
+     */
+    private static long countWrongSummaryRows(SQLiteDatabase db) {
+        // Rows for accounts and types without mailboxes are left behind, as zeroes
+        String nonZero = MailboxColumns.MESSAGE_COUNT + "!=0 or " + MailboxColumns.UNREAD_COUNT
+                + "!=0 or " + MailboxColumns.FAVORITE_COUNT + "!=0";
+        String sums = "select " + MailboxColumns.ACCOUNT_KEY + ", " + MailboxColumns.TYPE
+                + ", sum(" + MailboxColumns.MESSAGE_COUNT + ") as " + MailboxColumns.MESSAGE_COUNT
+                + ", sum(" + MailboxColumns.UNREAD_COUNT + ") as " + MailboxColumns.UNREAD_COUNT
+                + ", sum(" + MailboxColumns.FAVORITE_COUNT + ") as "
+                + MailboxColumns.FAVORITE_COUNT + " from " + Mailbox.TABLE_NAME + " group by "
+                + MailboxColumns.ACCOUNT_KEY + ", " + MailboxColumns.TYPE + " having " + nonZero;
+        String summary = "select " + MailboxColumns.ACCOUNT_KEY + ", " + MailboxColumns.TYPE
+                + ", " + MailboxColumns.MESSAGE_COUNT + ", " + MailboxColumns.UNREAD_COUNT + ", "
+                + MailboxColumns.FAVORITE_COUNT + " from " + Mailbox.SUMMARY_TABLE_NAME
+                + " where " + nonZero;
+        return countInDatabase(db, "select (select count(*) from (" + sums + " except " + summary
+                + ")) + (select count(*) from (" + summary + " except " + sums + "))");
+    }
+
+    /** Copies messages into a message table, giving every other one a mailbox that's gone. */
+    private static void addOrphans(SQLiteDatabase db, String tableName, int count) {
+        db.execSQL("insert or replace into " + tableName + " (" + EmailContent.RECORD_ID + ", "
+                + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.ACCOUNT_KEY + ") select "
+                + EmailContent.RECORD_ID + ", case when " + EmailContent.RECORD_ID
+                + "%2=0 then " + MessageColumns.MAILBOX_KEY + " else -1 end, "
+                + MessageColumns.ACCOUNT_KEY + " from " + Message.TABLE_NAME + " limit " + count);
+    }
+
+    /**
+     * Test the incremental integrity check, through
+     * {@link EmailProvider#INCREMENTAL_INTEGRITY_CHECK_URI}
+     */
+    public void testIncrementalIntegrityCheck() {
+        final Context c = mMockContext;
+        final ContentResolver resolver = c.getContentResolver();
+        Account a1 = ProviderTestUtils.setupAccount("check-1", true, c);
+        Mailbox b1 = ProviderTestUtils.setupMailbox("box1", a1.mId, true, c);
+        Mailbox b2 = ProviderTestUtils.setupMailbox("box2", a1.mId, true, c);
+        createMessage(c, b1, false, false);
+        createMessage(c, b1, false, true);
+        createMessage(c, b2, true, false);
+        // Like the attachment viewer's mailbox and messages, which have no account
+        Mailbox global = ProviderTestUtils.setupMailbox("global", 0, true, c);
+        createMessage(c, global, false, true);
+
+        // Break the counts, and add orphans, behind the provider's back
+        SQLiteDatabase db = getProvider().getDatabase(c);
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT
+                + "=7, " + MailboxColumns.UNREAD_COUNT + "=-1");
+        addOrphans(db, Message.UPDATED_TABLE_NAME, 3);
+        addOrphans(db, Message.DELETED_TABLE_NAME, 3);
+        db.execSQL("insert into " + Message.TABLE_NAME + " (" + MessageColumns.MAILBOX_KEY + ", "
+                + MessageColumns.ACCOUNT_KEY + ", " + MessageColumns.FLAG_READ + ") values ("
+                + (b2.mId + 100) + ", " + a1.mId + ", 0)");
+        long orphanId = countInDatabase(db, "select max(" + EmailContent.RECORD_ID + ") from "
+                + Message.TABLE_NAME);
+        db.execSQL("insert into " + Body.TABLE_NAME + " (" + BodyColumns.MESSAGE_KEY
+                + ") values (" + orphanId + ")");
+        db.execSQL("insert into " + Attachment.TABLE_NAME + " (" + AttachmentColumns.MESSAGE_KEY
+                + ", " + AttachmentColumns.ACCOUNT_KEY + ") values (" + orphanId + ", " + a1.mId
+                + ")");
+        assertEquals(3, countWrongMailboxCounts(db));
+
+        IntegrityChecker.resetStats();
+        int slices = 0;
+        while (resolver.update(EmailProvider.INCREMENTAL_INTEGRITY_CHECK_URI, null, null, null)
+                != 0) {
+            assertTrue(++slices < 100);
+        }
+
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(1, countInDatabase(db, "select count(*) from " + Message.UPDATED_TABLE_NAME));
+        assertEquals(1, countInDatabase(db, "select count(*) from " + Message.DELETED_TABLE_NAME));
+        // The message without a mailbox is gone, with its body and attachment
+        assertEquals(4, countInDatabase(db, "select count(*) from " + Message.TABLE_NAME));
+        assertEquals(0, countInDatabase(db, "select count(*) from " + Body.TABLE_NAME + " where "
+                + BodyColumns.MESSAGE_KEY + "=" + orphanId));
+        assertEquals(0, countInDatabase(db, "select count(*) from " + Attachment.TABLE_NAME
+                + " where " + AttachmentColumns.MESSAGE_KEY + "=" + orphanId));
+        assertTrue(IntegrityChecker.getSummary().contains(
+                "5 orphaned rows deleted, 3 mailbox counts fixed"));
+
+        // The provider's caches were updated
+        assertEquals(2, getMessageCount(b1.mId));
+        assertEquals(1, Utility.getFirstRowInt(c,
+                ContentUris.withAppendedId(Mailbox.CONTENT_URI, b2.mId),
+                new String[] {MailboxColumns.UNREAD_COUNT}, null, null, null, 0).intValue());
+    }
+
+    /**
+     * Test that the integrity check does at least one chunk of rows per slice, and carries on
+     * where it left off
+     */
+    public void testIntegrityCheckSlices() {
+        final Context c = mMockContext;
+        Account a1 = ProviderTestUtils.setupAccount("check-slices", true, c);
+        int boxes = IntegrityChecker.MAILBOX_CHUNK * 2 + 1;
+        for (int i = 0; i < boxes; i++) {
+            ProviderTestUtils.setupMailbox("box" + i, a1.mId, true, c);
+        }
+        SQLiteDatabase db = getProvider().getDatabase(c);
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT + "=1");
+
+        // With no time to run, each slice checks one chunk (or finds a step has no more rows)
+        IntegrityChecker checker = new IntegrityChecker(c, db);
+        int slices = 1;
+        while (!checker.run(0)) {
+            slices++;
+            assertEquals(boxes, checker.getChangeCount() + countWrongMailboxCounts(db));
+        }
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(boxes, checker.getChangeCount());
+        // Three empty steps, and the counts in three chunks (and the check that there are no more)
+        assertEquals(3 + 4, slices);
+
+        // Another pass finds nothing to fix
+        while (!checker.run(EmailProvider.INTEGRITY_CHECK_SLICE_MS)) {
+        }
+        assertEquals(boxes, checker.getChangeCount());
+    }
+
+    /**
+     * Measure the orphan cleanup, message count recalculation and incremental integrity check
+     * on a database of 200,000 messages
+     */
+    public void testIntegrityCheckBenchmark() {
+        final int messages = 200000;
+        final int boxes = 50;
+        final Context c = mMockContext;
+        Account a1 = ProviderTestUtils.setupAccount("check-benchmark", true, c);
+        SQLiteDatabase db = getProvider().getDatabase(c);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < boxes; i++) {
+                Mailbox box = ProviderTestUtils.setupMailbox("box" + i, a1.mId, true, c);
+                db.execSQL("insert into " + Message.TABLE_NAME + " ("
+                        + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.ACCOUNT_KEY + ", "
+                        + MessageColumns.FLAG_READ + ", " + MessageColumns.SUBJECT + ") values ("
+                        + box.mId + ", " + a1.mId + ", 0, 'subject')");
+            }
+            // Double the messages until there are enough
+            for (int count = boxes; count < messages; count = Math.min(count * 2, messages)) {
+                db.execSQL("insert into " + Message.TABLE_NAME + " ("
+                        + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.ACCOUNT_KEY + ", "
+                        + MessageColumns.FLAG_READ + ", " + MessageColumns.SUBJECT + ") select "
+                        + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.ACCOUNT_KEY + ", "
+                        + EmailContent.RECORD_ID + "%2, " + MessageColumns.SUBJECT + " from "
+                        + Message.TABLE_NAME + " limit " + (messages - count));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals(messages, countInDatabase(db, "select count(*) from " + Message.TABLE_NAME));
+
+        addOrphans(db, Message.UPDATED_TABLE_NAME, 2000);
+        addOrphans(db, Message.DELETED_TABLE_NAME, 2000);
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(1000, EmailProvider.deleteMessageOrphans(db, Message.UPDATED_TABLE_NAME));
+        assertEquals(1000, EmailProvider.deleteMessageOrphans(db, Message.DELETED_TABLE_NAME));
+        long orphansTime = SystemClock.elapsedRealtime() - start;
+
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT + "=0");
+        start = SystemClock.elapsedRealtime();
+        EmailProvider.recalculateMessageCount(db);
+        long recalculateTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(0, countWrongMailboxCounts(db));
+
+        addOrphans(db, Message.UPDATED_TABLE_NAME, 2000);
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT
+                + "=0, " + MailboxColumns.UNREAD_COUNT + "=0");
+        IntegrityChecker checker = new IntegrityChecker(c, db);
+        int slices = 0;
+        long longestSlice = 0;
+        start = SystemClock.elapsedRealtime();
+        boolean done = false;
+        while (!done) {
+            long sliceStart = SystemClock.elapsedRealtime();
+            done = checker.run(EmailProvider.INTEGRITY_CHECK_SLICE_MS);
+            longestSlice = Math.max(longestSlice, SystemClock.elapsedRealtime() - sliceStart);
+            slices++;
+        }
+        long checkTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(1000, countInDatabase(db, "select count(*) from "
+                + Message.UPDATED_TABLE_NAME));
+        assertEquals(1000 + boxes, checker.getChangeCount());
+
+        Log.d("ProviderTests", "Integrity check of " + messages + " messages: orphans "
+                + orphansTime + " ms, message counts " + recalculateTime + " ms, incremental check "
+                + checkTime + " ms in " + slices + " slices (longest " + longestSlice + " ms)");
+    }
+
     /** Creates an account */
     private Account createAccount(Context c, String name, HostAuth recvAuth, HostAuth sendAuth) {
         Account account = ProviderTestUtils.setupAccount(name, false, c);
@@ -2564,4 +2889,462 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         a = Account.restoreAccountWithId(mMockContext, a.mId);
         assertNotNull(Policy.restorePolicyWithId(mMockContext, a.mPolicyKey));
     }
+
+    private static String queryString(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testWriteAheadLogging() {
+        SQLiteDatabase db = mProvider.getDatabase(mMockContext);
+        assertEquals("wal", queryString(db, "PRAGMA main.journal_mode").toLowerCase());
+        assertEquals("wal", queryString(db, "PRAGMA BodyDatabase.journal_mode").toLowerCase());
+    }
+
+    /**
+     * Queries shouldn't wait for a transaction on another thread, and shouldn't see its changes
+     * until it's committed.
+     */
+    public void testQueryDuringTransaction() throws InterruptedException {
+        Account account = ProviderTestUtils.setupAccount("wal", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        ProviderTestUtils.setupMessage("message", account.mId, box.mId, false, true,
+                mMockContext);
+        final SQLiteDatabase db = mProvider.getDatabase(mMockContext);
+        final ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.ACCOUNT_KEY, account.mId);
+        cv.put(MessageColumns.MAILBOX_KEY, box.mId);
+        final CountDownLatch inserted = new CountDownLatch(1);
+        final CountDownLatch commit = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    db.insert(Message.TABLE_NAME, null, cv);
+                    inserted.countDown();
+                    commit.await(10, TimeUnit.SECONDS);
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    // Commit now
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        String selection = MessageColumns.MAILBOX_KEY + "=?";
+        String[] selectionArgs = new String[] {Long.toString(box.mId)};
+        try {
+            assertTrue(inserted.await(10, TimeUnit.SECONDS));
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(1, EmailContent.count(mMockContext, Message.CONTENT_URI, selection,
+                    selectionArgs));
+            assertTrue(SystemClock.elapsedRealtime() - start < 5000);
+        } finally {
+            commit.countDown();
+            writer.join();
+        }
+        assertEquals(2, EmailContent.count(mMockContext, Message.CONTENT_URI, selection,
+                selectionArgs));
+    }
+
+    /**
+     * Measures how long message list queries take while messages are being added on another
+     * thread, as they are during a sync.
+     */
+    public void testQueryLatencyDuringIngestBenchmark() throws Exception {
+        final int batches = 40;
+        final int batchSize = 50;
+        Account account = ProviderTestUtils.setupAccount("bench", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+        final ArrayList<ContentValues> messages = new ArrayList<ContentValues>();
+        for (int i = 0; i < batches * batchSize; i++) {
+            Message message = ProviderTestUtils.setupMessage("message " + i, account.mId,
+                    box.mId, false, false, mMockContext);
+            messages.add(message.toContentValues());
+        }
+        final Exception[] failure = new Exception[1];
+        Thread ingest = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < batches; i++) {
+                        ArrayList<ContentProviderOperation> ops =
+                                new ArrayList<ContentProviderOperation>();
+                        for (ContentValues cv : messages.subList(i * batchSize,
+                                (i + 1) * batchSize)) {
+                            ops.add(ContentProviderOperation.newInsert(Message.CONTENT_URI)
+                                    .withValues(cv).build());
+                        }
+                        mProvider.applyBatch(ops);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+
+        ArrayList<Long> latencies = new ArrayList<Long>();
+        String selection = MessageColumns.MAILBOX_KEY + "=?";
+        String[] selectionArgs = new String[] {Long.toString(box.mId)};
+        Uri uri = EmailContent.uriWithLimit(Message.CONTENT_URI, 50);
+        ingest.start();
+        while (ingest.isAlive()) {
+            long start = System.nanoTime();
+            Cursor c = mMockContext.getContentResolver().query(uri, Message.LIST_PROJECTION,
+                    selection, selectionArgs, MessageColumns.TIMESTAMP + " DESC");
+            try {
+                c.getCount();
+            } finally {
+                c.close();
+            }
+            latencies.add((System.nanoTime() - start) / 1000);
+        }
+        ingest.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertEquals(batches * batchSize, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                selection, selectionArgs));
+
+        Collections.sort(latencies);
+        int count = latencies.size();
+        assertTrue(count > 0);
+        Log.d("ProviderTests", "Query latency during ingest (us, " + count + " queries): p50 "
+                + latencies.get(count / 2) + ", p90 " + latencies.get(count * 9 / 10)
+                + ", p99 " + latencies.get(count * 99 / 100) + ", max "
+                + latencies.get(count - 1));
+    }
+
+    public void testRestoreMessagesWithIds() {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message m1 = ProviderTestUtils.setupMessage("m1", account.mId, box.mId, false, true,
+                mMockContext);
+        Message m2 = ProviderTestUtils.setupMessage("m2", account.mId, box.mId, false, true,
+                mMockContext);
+        EmailContent.resetBatchRestoreStats();
+
+        // Messages come back in the order asked for, with null for missing ones
+        Message[] messages = Message.restoreMessagesWithIds(mMockContext,
+                new long[] {m2.mId, 12345, m1.mId});
+        assertEquals(3, messages.length);
+        ProviderTestUtils.assertMessageEqual("testRestoreMessagesWithIds", m2, messages[0]);
+        assertNull(messages[1]);
+        ProviderTestUtils.assertMessageEqual("testRestoreMessagesWithIds", m1, messages[2]);
+        assertEquals(0, Message.restoreMessagesWithIds(mMockContext, new long[0]).length);
+        String summary = EmailContent.getBatchRestoreSummary();
+        assertTrue(summary, summary.startsWith("0 single restores"));
+        assertTrue(summary, summary.contains("1 batch queries of 2 rows"));
+    }
+
+    public void testRestoreMailboxesForAccount() {
+        Account account1 = ProviderTestUtils.setupAccount("batch1", true, mMockContext);
+        Account account2 = ProviderTestUtils.setupAccount("batch2", true, mMockContext);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true, mMockContext);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account1.mId, true, mMockContext);
+        ProviderTestUtils.setupMailbox("box3", account2.mId, true, mMockContext);
+
+        Mailbox[] mailboxes = Mailbox.restoreMailboxesForAccount(mMockContext, account1.mId);
+        assertEquals(2, mailboxes.length);
+        if (mailboxes[0].mId != box1.mId) {
+            mailboxes = new Mailbox[] {mailboxes[1], mailboxes[0]};
+        }
+        ProviderTestUtils.assertMailboxEqual("testRestoreMailboxesForAccount", box1,
+                mailboxes[0]);
+        ProviderTestUtils.assertMailboxEqual("testRestoreMailboxesForAccount", box2,
+                mailboxes[1]);
+        assertEquals(0, Mailbox.restoreMailboxesForAccount(mMockContext, -1).length);
+    }
+
+    public void testRestoreContentWithIds() {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message m1 = ProviderTestUtils.setupMessage("m1", account.mId, box.mId, false, true,
+                mMockContext);
+        Attachment a1 = ProviderTestUtils.setupAttachment(m1.mId, "a1", 100, true, mMockContext);
+        Attachment a2 = ProviderTestUtils.setupAttachment(m1.mId, "a2", 200, true, mMockContext);
+
+        HashMap<Long, Attachment> attachments = EmailContent.restoreContentWithIds(mMockContext,
+                Attachment.class, Attachment.CONTENT_URI, Attachment.CONTENT_PROJECTION,
+                new long[] {a2.mId, 12345, a1.mId});
+        assertEquals(2, attachments.size());
+        ProviderTestUtils.assertAttachmentEqual("testRestoreContentWithIds", a1,
+                attachments.get(a1.mId));
+        ProviderTestUtils.assertAttachmentEqual("testRestoreContentWithIds", a2,
+                attachments.get(a2.mId));
+        assertNull(attachments.get(12345L));
+    }
+
+    /**
+     * Compares restoring messages one by one with restoring them all at once.
+     */
+    public void testRestoreMessagesBenchmark() {
+        final int count = 1000;
+        Account account = ProviderTestUtils.setupAccount("bench", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = ProviderTestUtils.setupMessage("message " + i, account.mId, box.mId, false,
+                    true, mMockContext).mId;
+        }
+        ContentCache.invalidateAllCaches();
+        long start = SystemClock.elapsedRealtime();
+        for (long id : ids) {
+            assertNotNull(Message.restoreMessageWithId(mMockContext, id));
+        }
+        long singleTime = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        EmailContent.resetBatchRestoreStats();
+        start = SystemClock.elapsedRealtime();
+        Message[] messages = Message.restoreMessagesWithIds(mMockContext, ids);
+        long batchTime = Math.max(1, SystemClock.elapsedRealtime() - start);
+        for (Message message : messages) {
+            assertNotNull(message);
+        }
+        Log.d("ProviderTests", "Restoring " + count + " messages: one by one "
+                + (count * 1000L / singleTime) + " messages/sec, in a batch "
+                + (count * 1000L / batchTime) + " messages/sec; "
+                + EmailContent.getBatchRestoreSummary());
+    }
+
+    public void testSelectionCache() {
+        Account account = ProviderTestUtils.setupAccount("selection", true, mMockContext);
+        Mailbox inbox = createTypeMailbox(mMockContext, account.mId, Mailbox.TYPE_INBOX);
+        SelectionCache.resetStats();
+
+        // A lookup with a selection is cached...
+        assertEquals(0, Mailbox.getUnreadCountByMailboxType(mMockContext, Mailbox.TYPE_INBOX));
+        assertEquals(0, Mailbox.getUnreadCountByMailboxType(mMockContext, Mailbox.TYPE_INBOX));
+        assertTrue(SelectionCache.getSummary().startsWith("1 hits, 1 misses"));
+
+        // ...until a change to the messages changes the mailbox counts
+        createMessage(mMockContext, inbox, false, false);
+        assertEquals(1, Mailbox.getUnreadCountByMailboxType(mMockContext, Mailbox.TYPE_INBOX));
+
+        // A change to the mailbox itself
+        assertEquals(inbox.mId, Mailbox.restoreMailboxForPath(mMockContext, account.mId,
+                inbox.mServerId).mId);
+        ContentValues cv = new ContentValues();
+        cv.put(MailboxColumns.SERVER_ID, "moved");
+        inbox.update(mMockContext, cv);
+        assertNull(Mailbox.restoreMailboxForPath(mMockContext, account.mId, inbox.mServerId));
+        assertEquals(inbox.mId,
+                Mailbox.restoreMailboxForPath(mMockContext, account.mId, "moved").mId);
+
+        // Deleting the account deletes its mailboxes
+        EmailContent.delete(mMockContext, Account.CONTENT_URI, account.mId);
+        assertEquals(0, Mailbox.getUnreadCountByMailboxType(mMockContext, Mailbox.TYPE_INBOX));
+        assertNull(Mailbox.restoreMailboxForPath(mMockContext, account.mId, "moved"));
+    }
+
+    /**
+     * Test that the provider's statistics can be read through {@link EmailProvider#STATS_URI}
+     */
+    public void testStatsUri() {
+        ProviderStats.resetStats();
+        Account account = ProviderTestUtils.setupAccount("stats", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Mailbox.restoreMailboxWithId(mMockContext, box.mId);
+        Mailbox.restoreMailboxWithId(mMockContext, box.mId);
+
+        Cursor c = mMockContext.getContentResolver().query(EmailProvider.STATS_URI, null, null,
+                null, null);
+        assertNotNull(c);
+        boolean foundQuery = false;
+        boolean foundInsert = false;
+        try {
+            MoreAsserts.assertEquals(ProviderStats.COLUMNS, c.getColumnNames());
+            while (c.moveToNext()) {
+                String operation = c.getString(0);
+                String uri = c.getString(1);
+                if (ProviderStats.QUERY.equals(operation) && "/mailbox/#".equals(uri)) {
+                    foundQuery = true;
+                    assertEquals(2, c.getInt(2));
+                    assertEquals(2, c.getLong(3));
+                    // The second lookup comes from the mailbox cache
+                    assertTrue(c.getInt(4) >= 1);
+                } else if (ProviderStats.INSERT.equals(operation) && "/mailbox".equals(uri)) {
+                    foundInsert = true;
+                    assertEquals(1, c.getInt(2));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        assertTrue(foundQuery);
+        assertTrue(foundInsert);
+    }
+
+    /**
+     * Test that the favorite counts of mailboxes, and the summary table of counts by account and
+     * mailbox type, are kept by triggers as messages and mailboxes change
+     */
+    public void testMailboxSummary() {
+        final Context c = mMockContext;
+        SQLiteDatabase db = getProvider().getDatabase(c);
+        Account a1 = ProviderTestUtils.setupAccount("summary-1", true, c);
+        Account a2 = ProviderTestUtils.setupAccount("summary-2", true, c);
+        Mailbox inbox1 = createTypeMailbox(c, a1.mId, Mailbox.TYPE_INBOX);
+        Mailbox mail1 = createTypeMailbox(c, a1.mId, Mailbox.TYPE_MAIL);
+        Mailbox trash1 = createTypeMailbox(c, a1.mId, Mailbox.TYPE_TRASH);
+        Mailbox inbox2 = createTypeMailbox(c, a2.mId, Mailbox.TYPE_INBOX);
+
+        Message m1 = createMessage(c, inbox1, true, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, inbox1, true, true, Message.FLAG_LOADED_PARTIAL);
+        // Not loaded, so not counted as a favorite
+        Message m3 = createMessage(c, mail1, true, false, Message.FLAG_LOADED_UNLOADED);
+        createMessage(c, trash1, true, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, inbox2, false, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, inbox2, true, false, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(0, countWrongSummaryRows(db));
+        assertEquals(3, Mailbox.getUnreadCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(4, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(1, Mailbox.getUnreadCountByAccountAndMailboxType(c, a1.mId,
+                Mailbox.TYPE_INBOX));
+        // Favorites in the trash aren't counted
+        assertEquals(3, Message.getFavoriteMessageCount(c));
+        assertEquals(2, Message.getFavoriteMessageCount(c, a1.mId));
+
+        // Star, unstar, load and move messages
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_FAVORITE, 0);
+        m1.update(c, cv);
+        cv.clear();
+        cv.put(MessageColumns.FLAG_LOADED, Message.FLAG_LOADED_COMPLETE);
+        m3.update(c, cv);
+        cv.clear();
+        cv.put(MessageColumns.MAILBOX_KEY, trash1.mId);
+        m3.update(c, cv);
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(0, countWrongSummaryRows(db));
+        assertEquals(2, Message.getFavoriteMessageCount(c));
+        assertEquals(1, Message.getFavoriteMessageCount(c, a1.mId));
+
+        // Change the type of a mailbox
+        cv.clear();
+        cv.put(MailboxColumns.TYPE, Mailbox.TYPE_INBOX);
+        mail1.update(c, cv);
+        assertEquals(0, countWrongSummaryRows(db));
+
+        // Delete a mailbox, and an account (and with it, its mailboxes)
+        EmailContent.delete(c, Mailbox.CONTENT_URI, inbox1.mId);
+        assertEquals(0, countWrongSummaryRows(db));
+        assertEquals(2, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_TRASH));
+        EmailContent.delete(c, Account.CONTENT_URI, a1.mId);
+        assertEquals(0, countWrongSummaryRows(db));
+        assertEquals(2, Mailbox.getMessageCountByMailboxType(c, Mailbox.TYPE_INBOX));
+        assertEquals(1, Message.getFavoriteMessageCount(c));
+
+        // Rebuilding the summary gives the same counts
+        EmailProvider.rebuildMailboxSummary(db);
+        assertEquals(0, countWrongSummaryRows(db));
+    }
+
+    /**
+     * Test that the upgrade to v29 counts the favorites of existing mailboxes, and builds the
+     * summary table from the mailboxes' counts
+     */
+    public void testUpgradeFromVersion28ToVersion29() {
+        final Context c = mMockContext;
+        SQLiteDatabase db = getProvider().getDatabase(c);
+        Account a1 = ProviderTestUtils.setupAccount("upgrade-29", true, c);
+        Mailbox inbox = createTypeMailbox(c, a1.mId, Mailbox.TYPE_INBOX);
+        createMessage(c, inbox, true, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, inbox, true, true, Message.FLAG_LOADED_COMPLETE);
+
+        // Go back to a v28 database, but for the favorite count column
+        db.execSQL("drop trigger mailbox_summary_insert");
+        db.execSQL("drop trigger mailbox_summary_update");
+        db.execSQL("drop table " + Mailbox.SUMMARY_TABLE_NAME);
+        db.execSQL("drop trigger favorite_message_insert");
+        db.execSQL("drop trigger favorite_message_delete");
+        db.execSQL("drop trigger favorite_message_update");
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.FAVORITE_COUNT
+                + "=0");
+
+        EmailProvider.upgradeFromVersion28ToVersion29(db);
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(0, countWrongSummaryRows(db));
+        assertEquals(2, Message.getFavoriteMessageCount(c, a1.mId));
+
+        // The triggers are back
+        createMessage(c, inbox, true, false, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(0, countWrongMailboxCounts(db));
+        assertEquals(0, countWrongSummaryRows(db));
+    }
+
+    /**
+     * Fills a message table (in the given schema) with rows of about 1000 bytes, and deletes
+     * them, leaving the database fragmented.
+     */
+    private static void addFreePages(SQLiteDatabase db, String table, String column, int rows) {
+        db.execSQL("insert into " + table + " (" + column + ") values (hex(randomblob(500)))");
+        for (int count = 1; count < rows; count *= 2) {
+            db.execSQL("insert into " + table + " (" + column + ") select " + column + " from "
+                    + table);
+        }
+        db.execSQL("delete from " + table);
+    }
+
+    /**
+     * Test that the databases are compacted through {@link EmailProvider#COMPACT_URI}: by a full
+     * VACUUM the first time (once there's time for one), and incrementally from then on
+     */
+    public void testCompaction() {
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        String bodyTable = "BodyDatabase." + Body.TABLE_NAME;
+        DatabaseCompactor.resetStats();
+        assertFalse(DatabaseCompactor.isFragmented(1000, DatabaseCompactor.MIN_FREE_PAGES - 1));
+        assertFalse(DatabaseCompactor.isFragmented(DatabaseCompactor.MIN_FREE_PAGES * 100,
+                DatabaseCompactor.MIN_FREE_PAGES));
+        assertTrue(DatabaseCompactor.isFragmented(1000, 100));
+
+        for (int round = 0; round < 2; round++) {
+            addFreePages(db, Message.TABLE_NAME, MessageColumns.SUBJECT, 2048);
+            addFreePages(db, bodyTable, BodyColumns.TEXT_CONTENT, 2048);
+            assertTrue(countInDatabase(db, "pragma freelist_count")
+                    >= DatabaseCompactor.MIN_FREE_PAGES);
+            assertTrue(countInDatabase(db, "pragma BodyDatabase.freelist_count")
+                    >= DatabaseCompactor.MIN_FREE_PAGES);
+
+            if (round == 0) {
+                // A full VACUUM isn't started without the time for it
+                assertEquals(0, resolver.update(EmailProvider.getCompactUri(0), null, null,
+                        null));
+                assertTrue(countInDatabase(db, "pragma freelist_count")
+                        >= DatabaseCompactor.MIN_FREE_PAGES);
+                assertEquals(0, countInDatabase(db, "pragma auto_vacuum"));
+            }
+
+            int slices = 0;
+            Uri compactUri = EmailProvider.getCompactUri(DatabaseCompactor.FULL_VACUUM_MAX_MS);
+            while (resolver.update(compactUri, null, null, null) != 0) {
+                assertTrue(++slices < 100);
+            }
+            assertEquals(0, countInDatabase(db, "pragma freelist_count"));
+            assertEquals(0, countInDatabase(db, "pragma BodyDatabase.freelist_count"));
+            // Both databases are now in incremental mode
+            assertEquals(2, countInDatabase(db, "pragma auto_vacuum"));
+            assertEquals(2, countInDatabase(db, "pragma BodyDatabase.auto_vacuum"));
+        }
+        String summary = DatabaseCompactor.getSummary();
+        assertTrue(summary, summary.startsWith("2 full vacuums (2 skipped)"));
+        // The sizes are of the database files, without their logs
+        assertTrue(summary, DatabaseCompactor.getBytesReclaimed() > 0);
+        assertFalse(summary, summary.contains(" 0 incremental steps"));
+        Log.d("ProviderTests", "Compaction: " + summary);
+
+        // With nothing to compact, there's nothing to do
+        assertEquals(0, resolver.update(EmailProvider.COMPACT_URI, null, null, null));
+    }
 }
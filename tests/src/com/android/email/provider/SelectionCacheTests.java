@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of {@link SelectionCache}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.SelectionCacheTests email
+ */
+@SmallTest
+public class SelectionCacheTests extends AndroidTestCase {
+    private static final Uri URI = Uri.parse("content://test/mailbox");
+    private static final String[] PROJECTION = new String[] {"_id", "name", "data"};
+
+    private SelectionCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new SelectionCache(4);
+        SelectionCache.resetStats();
+    }
+
+    private static String key(String arg) {
+        return SelectionCache.getKey(URI, PROJECTION, "name=?", new String[] {arg}, null);
+    }
+
+    private static Cursor result(int rows) {
+        MatrixCursor c = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < rows; i++) {
+            c.addRow(new Object[] {i, "name " + i, null});
+        }
+        return c;
+    }
+
+    public void testGetKey() {
+        assertFalse(key("a").equals(key("b")));
+        assertFalse(key("a").equals(
+                SelectionCache.getKey(URI, PROJECTION, "name=?", new String[] {"a"}, "_id")));
+        assertFalse(key("a").equals(SelectionCache.getKey(URI, new String[] {"_id"}, "name=?",
+                new String[] {"a"}, null)));
+        assertEquals(key("a"), key("a"));
+    }
+
+    public void testPutAndGet() {
+        assertNull(mCache.get(key("a")));
+        Cursor c = mCache.put(key("a"), result(2), mCache.getGeneration());
+        assertEquals(2, c.getCount());
+        c.close();
+
+        c = mCache.get(key("a"));
+        assertNotNull(c);
+        assertEquals(2, c.getCount());
+        assertTrue(c.moveToLast());
+        assertEquals(1, c.getLong(0));
+        assertEquals("name 1", c.getString(1));
+        assertTrue(c.isNull(2));
+        c.close();
+        assertTrue(SelectionCache.getSummary().startsWith("1 hits, 1 misses"));
+    }
+
+    public void testLargeResultsArentCached() {
+        Cursor c = mCache.put(key("a"), result(SelectionCache.MAX_ROWS + 1),
+                mCache.getGeneration());
+        assertEquals(SelectionCache.MAX_ROWS + 1, c.getCount());
+        c.close();
+        assertEquals(0, mCache.size());
+    }
+
+    public void testInvalidate() {
+        mCache.put(key("a"), result(1), mCache.getGeneration()).close();
+        mCache.invalidate();
+        assertNull(mCache.get(key("a")));
+
+        // A result read before an invalidation isn't cached, but is still returned
+        int generation = mCache.getGeneration();
+        mCache.invalidate();
+        Cursor c = mCache.put(key("a"), result(1), generation);
+        assertEquals(1, c.getCount());
+        c.close();
+        assertEquals(0, mCache.size());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of {@link ThumbnailCache}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ThumbnailCacheTests email
+ */
+@SmallTest
+public class ThumbnailCacheTests extends AndroidTestCase {
+    private File mDir;
+    private File mAttachmentFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "ThumbnailCacheTests");
+        deleteDir();
+        mDir.mkdirs();
+        mAttachmentFile = new File(mDir, "attachment");
+        writeFile(mAttachmentFile, 1000);
+        ThumbnailCache.resetStats();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static void writeFile(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+    }
+
+    /**
+     * Put a "thumbnail" of the given size in the cache
+     */
+    private File put(ThumbnailCache cache, String key, int length) throws IOException {
+        File tempFile = new File(mDir, "thumbnail.tmp");
+        writeFile(tempFile, length);
+        return cache.put(key, tempFile);
+    }
+
+    public void testGetKey() {
+        String key = ThumbnailCache.getKey(10, 20, 62, 48, mAttachmentFile);
+        assertTrue(key.startsWith(ThumbnailCache.PREFIX + "10_20_62x48_"));
+        assertTrue(key.endsWith("_3e8"));
+        assertFalse(key.equals(ThumbnailCache.getKey(10, 20, 48, 62, mAttachmentFile)));
+        assertFalse(key.equals(ThumbnailCache.getKey(1, 20, 62, 48, mAttachmentFile)));
+    }
+
+    public void testGetPut() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1000);
+        String key = ThumbnailCache.getKey(1, 2, 62, 62, mAttachmentFile);
+        assertNull(cache.get(key));
+        File file = put(cache, key, 100);
+        assertTrue(file.exists());
+        assertEquals(file, cache.get(key));
+        assertEquals(file, cache.get(key));
+        assertEquals(100, cache.getSize());
+        assertTrue(ThumbnailCache.getSummary(),
+                ThumbnailCache.getSummary().startsWith("2 hits, 1 misses (66% hit rate)"));
+
+        // A new cache finds the thumbnails that are already there
+        cache = new ThumbnailCache(mDir, 1000);
+        assertEquals(100, cache.getSize());
+        assertEquals(file, cache.get(key));
+
+        // If the file goes away, so does the thumbnail
+        file.delete();
+        assertNull(cache.get(key));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testAttachmentChanged() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1000);
+        String key = ThumbnailCache.getKey(1, 2, 62, 62, mAttachmentFile);
+        String otherSizeKey = ThumbnailCache.getKey(1, 2, 100, 100, mAttachmentFile);
+        String otherAttachmentKey = ThumbnailCache.getKey(1, 3, 62, 62, mAttachmentFile);
+        File file = put(cache, key, 100);
+        File otherSizeFile = put(cache, otherSizeKey, 100);
+        File otherAttachmentFile = put(cache, otherAttachmentKey, 100);
+
+        // The attachment changes, so there's a new key; its old thumbnails are replaced
+        writeFile(mAttachmentFile, 2000);
+        String newKey = ThumbnailCache.getKey(1, 2, 62, 62, mAttachmentFile);
+        assertFalse(key.equals(newKey));
+        assertNull(cache.get(newKey));
+        File newFile = put(cache, newKey, 50);
+        assertFalse(file.exists());
+        assertFalse(otherSizeFile.exists());
+        assertTrue(otherAttachmentFile.exists());
+        assertTrue(newFile.exists());
+        assertEquals(150, cache.getSize());
+    }
+
+    public void testSizeLimit() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 250);
+        String key1 = ThumbnailCache.getKey(1, 1, 62, 62, mAttachmentFile);
+        String key2 = ThumbnailCache.getKey(1, 2, 62, 62, mAttachmentFile);
+        String key3 = ThumbnailCache.getKey(1, 3, 62, 62, mAttachmentFile);
+        File file1 = put(cache, key1, 100);
+        File file2 = put(cache, key2, 100);
+        // Use the first one, so the second is the least recently used
+        assertNotNull(cache.get(key1));
+        File file3 = put(cache, key3, 100);
+        assertTrue(file1.exists());
+        assertFalse(file2.exists());
+        assertTrue(file3.exists());
+        assertEquals(200, cache.getSize());
+        assertNull(cache.get(key2));
+
+        // A thumbnail that's larger than the cache is still kept until the next one
+        String key4 = ThumbnailCache.getKey(1, 4, 62, 62, mAttachmentFile);
+        File file4 = put(cache, key4, 300);
+        assertTrue(file4.exists());
+        assertEquals(300, cache.getSize());
+        assertEquals(file4, cache.get(key4));
+    }
+}
@@ -22,6 +22,8 @@ import android.content.Intent;
 import com.android.email.AccountTestCase;
 import com.android.email.EmailConnectivityManager;
 import com.android.email.provider.ProviderTestUtils;
+import com.android.email.service.AttachmentDownloadService.AccountStats;
+import com.android.email.service.AttachmentDownloadService.DownloadComparator;
 import com.android.email.service.AttachmentDownloadService.DownloadRequest;
 import com.android.email.service.AttachmentDownloadService.DownloadSet;
 import com.android.email.service.EmailServiceUtils.NullEmailService;
@@ -30,8 +32,12 @@ import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
+import com.android.emailcommon.utility.AttachmentUtilities;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Iterator;
 
 /**
@@ -78,10 +84,13 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         mDownloadSet = mService.mDownloadSet;
         mMockDirectory =
             new MockDirectory(mService.mContext.getCacheDir().getAbsolutePath());
+        // Forget the attachment storage of any earlier account with the same id
+        AttachmentStorageLedger.onAccountDeleted(mAccountId);
     }
 
     @Override
     public void tearDown() throws Exception {
+        AttachmentUtilities.deleteAllAccountAttachmentFiles(mMockContext, mAccountId);
         super.tearDown();
     }
 
@@ -161,21 +170,15 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
     }
 
     /**
-     * A mock file directory containing a single (Mock)File.  The total space, usable space, and
-     * length of the single file can be set
+     * A mock file directory.  The total space and usable space can be set
      */
     private static class MockDirectory extends File {
         private static final long serialVersionUID = 1L;
         private long mTotalSpace;
         private long mUsableSpace;
-        private MockFile[] mFiles;
-        private final MockFile mMockFile = new MockFile();
-
 
         public MockDirectory(String path) {
             super(path);
-            mFiles = new MockFile[1];
-            mFiles[0] = mMockFile;
         }
 
         private void setTotalAndUsableSpace(long total, long usable) {
@@ -190,30 +193,6 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         public long getUsableSpace() {
             return mUsableSpace;
         }
-
-        public void setFileLength(long length) {
-            mMockFile.mLength = length;
-        }
-
-        public File[] listFiles() {
-            return mFiles;
-        }
-    }
-
-    /**
-     * A mock file that reports back a pre-set length
-     */
-    private static class MockFile extends File {
-        private static final long serialVersionUID = 1L;
-        private long mLength = 0;
-
-        public MockFile() {
-            super("_mock");
-        }
-
-        public long length() {
-            return mLength;
-        }
     }
 
     private static class MockConnectivityManager extends EmailConnectivityManager {
@@ -231,7 +210,7 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         }
     }
 
-    public void testCanPrefetchForAccount() {
+    public void testCanPrefetchForAccount() throws IOException {
         // First, test our "global" limits (based on free storage)
         // Mock storage @ 100 total and 26 available
         // Note that all file lengths in this test are in arbitrary units
@@ -248,16 +227,47 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         // Now, test per-account storage
         // Mock storage @ 100 total and 50 available
         mMockDirectory.setTotalAndUsableSpace(100L, 50L);
-        // Mock a file of length 12, but need to uncache previous amount first
-        mService.mAttachmentStorageMap.remove(mAccountId);
-        mMockDirectory.setFileLength(11);
-        // We can prefetch since 11 < 50/4
+        // Load an attachment of length 11
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 11, false,
+                mMockContext);
+        att.mAccountKey = mAccountId;
+        att.save(mMockContext);
+        writeAttachmentFile(att.mId, 11);
+        // We can prefetch since 11 < 100/4/2
         assertTrue(mService.canPrefetchForAccount(mAccount, mMockDirectory));
-        // Mock a file of length 13, but need to uncache previous amount first
-        mService.mAttachmentStorageMap.remove(mAccountId);
-        mMockDirectory.setFileLength(13);
-        // We can't prefetch since 13 > 50/4
+        // Attachments that aren't loaded don't count
+        Attachment notLoaded = ProviderTestUtils.setupAttachment(message.mId, "filename2", 100,
+                false, mMockContext);
+        notLoaded.mAccountKey = mAccountId;
+        notLoaded.mContentUri = null;
+        notLoaded.save(mMockContext);
+        assertTrue(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+        // Grow the attachment file to length 13
+        writeAttachmentFile(att.mId, 13);
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, att.mId, false);
+        // We can't prefetch since 13 > 100/4/2, and the attachment was requested, not prefetched
         assertFalse(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+        assertEquals(13, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+
+        // If it had been prefetched (and never opened), it's evicted to make room
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, att.mId, true);
+        assertTrue(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+        assertEquals(0, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        assertFalse(AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId,
+                att.mId).exists());
+        Attachment evicted = Attachment.restoreAttachmentWithId(mMockContext, att.mId);
+        assertNull(evicted.mContentUri);
+        assertTrue((evicted.mFlags & Attachment.FLAG_DOWNLOAD_EVICTED) != 0);
+    }
+
+    private void writeAttachmentFile(long attachmentId, int length) throws IOException {
+        AttachmentUtilities.getAttachmentDirectory(mMockContext, mAccountId).mkdirs();
+        FileOutputStream out = new FileOutputStream(
+                AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId, attachmentId));
+        out.write(new byte[length]);
+        out.close();
     }
 
     public void testCanPrefetchForAccountNoBackgroundDownload() {
@@ -276,4 +286,81 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         // *but* bg download is disabled on the account.
         assertFalse(mService.canPrefetchForAccount(account, mMockDirectory));
     }
+
+    /**
+     * Requests made at the same time must not replace each other in the queue.
+     */
+    public void testDownloadSetSameTime() {
+        DownloadComparator comparator = new DownloadComparator();
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att1 = ProviderTestUtils.setupAttachment(message.mId, "filename1", 1000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        Attachment att2 = ProviderTestUtils.setupAttachment(message.mId, "filename2", 1000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        mDownloadSet.onChange(mMockContext, att1);
+        mDownloadSet.onChange(mMockContext, att2);
+        DownloadRequest req1 = mDownloadSet.findDownloadRequest(att1.mId);
+        DownloadRequest req2 = mDownloadSet.findDownloadRequest(att2.mId);
+        assertNotNull(req1);
+        assertNotNull(req2);
+        assertTrue(comparator.compare(req1, req2) != 0);
+        assertEquals(0, comparator.compare(req1, req1));
+        assertEquals(2, mDownloadSet.size());
+        assertTrue(mService.dequeue(att1.mId));
+        assertNull(mDownloadSet.findDownloadRequest(att1.mId));
+        assertEquals(req2, mDownloadSet.findDownloadRequest(att2.mId));
+    }
+
+    /**
+     * Accounts not using Exchange can only run one download at a time.
+     */
+    public void testAccountStatsLimit() {
+        AccountStats stats = mDownloadSet.getAccountStats(mAccountId);
+        assertEquals(1, stats.mMaxConcurrency);
+        assertEquals(1, stats.mConcurrency);
+        stats.onDownloadSucceeded(1024 * 1024, 1000, 1);
+        stats.onDownloadSucceeded(1024 * 1024, 1000, 1);
+        assertEquals(1, stats.mConcurrency);
+    }
+
+    public void testAccountStatsConcurrency() {
+        final long size = AttachmentDownloadService.MIN_THROUGHPUT_SAMPLE_SIZE * 4;
+        AccountStats stats = new AccountStats(3);
+        assertEquals(1, stats.mConcurrency);
+
+        // The first sample just sets the throughput
+        stats.onDownloadSucceeded(size, 1000, 1);
+        assertEquals(size, stats.mThroughput);
+        assertEquals(1, stats.mConcurrency);
+        // Small downloads don't tell us anything
+        stats.onDownloadSucceeded(1, 1000, 1);
+        assertEquals(size, stats.mThroughput);
+        // Downloads at the limit which aren't slower raise the limit, up to the maximum
+        stats.onDownloadSucceeded(size, 1000, 1);
+        assertEquals(2, stats.mConcurrency);
+        // ...but not if the account wasn't using its limit
+        stats.onDownloadSucceeded(size, 1000, 1);
+        assertEquals(2, stats.mConcurrency);
+        stats.onDownloadSucceeded(size, 1000, 2);
+        stats.onDownloadSucceeded(size, 1000, 3);
+        stats.onDownloadSucceeded(size, 1000, 3);
+        assertEquals(3, stats.mConcurrency);
+        // Somewhat slower downloads leave it alone
+        stats.onDownloadSucceeded(size, 1500, 3);
+        assertEquals(3, stats.mConcurrency);
+        // Much slower downloads halve it
+        stats.onDownloadSucceeded(size, 4000, 3);
+        assertEquals(1, stats.mConcurrency);
+        // Failures reset it
+        stats.onDownloadSucceeded(size, 500, 1);
+        assertEquals(2, stats.mConcurrency);
+        stats.onDownloadFailed();
+        assertEquals(1, stats.mConcurrency);
+
+        assertEquals(10, stats.mDownloads);
+        assertEquals(1, stats.mFailures);
+        assertEquals(size * 9 + 1, stats.mBytes);
+        assertEquals((size * 9 + 1) * 1000 / stats.mTime, stats.getOverallThroughput());
+    }
 }
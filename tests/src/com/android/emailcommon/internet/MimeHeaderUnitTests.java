@@ -60,4 +60,57 @@ public class MimeHeaderUnitTests extends TestCase {
                 "Header1: value1\r\n"
                 + "Header2: value2\r\n");
     }
+
+    /**
+     * Test case-insensitive lookups, including multiple fields of the same name
+     */
+    public void testGetHeader() throws Exception {
+        MimeHeader header = new MimeHeader();
+        assertNull(header.getFirstHeader("To"));
+        assertNull(header.getHeader("To"));
+
+        header.addHeader("To", "a@example.com");
+        header.addHeader("Subject", "subject");
+        header.addHeader("TO", "b@example.com");
+        assertEquals("a@example.com", header.getFirstHeader("to"));
+        String[] to = header.getHeader("tO");
+        assertEquals(2, to.length);
+        assertEquals("a@example.com", to[0]);
+        assertEquals("b@example.com", to[1]);
+
+        // adding after the index has been built
+        header.addHeader("to", "c@example.com");
+        assertEquals(3, header.getHeader("To").length);
+        assertEquals("c@example.com", header.getHeader("To")[2]);
+
+        header.removeHeader("To");
+        assertNull(header.getHeader("To"));
+        assertEquals("subject", header.getFirstHeader("Subject"));
+        assertEquals("Subject: subject\r\n", header.writeToString());
+
+        header.setHeader("Subject", "new subject");
+        assertEquals("new subject", header.getFirstHeader("SUBJECT"));
+
+        header.clear();
+        assertNull(header.getFirstHeader("Subject"));
+    }
+
+    /**
+     * Test fields added in their unparsed form
+     */
+    public void testAddRawHeader() throws Exception {
+        MimeHeader header = new MimeHeader();
+        header.addRawHeader("Subject:   padded value  ");
+        header.addRawHeader("No colon here");
+        header.addRawHeader("X-Empty:");
+        header.addRawHeader("Content-Type: text/plain; a=\"b:c\"");
+
+        assertEquals("padded value", header.getFirstHeader("subject"));
+        assertEquals("", header.getFirstHeader("X-Empty"));
+        assertEquals("text/plain; a=\"b:c\"", header.getFirstHeader("content-type"));
+        assertEquals("Subject: padded value\r\n"
+                + "X-Empty: \r\n"
+                + "Content-Type: text/plain; a=\"b:c\"\r\n",
+                header.writeToString());
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests of {@link QuotedPrintableOutputStream}.
+ */
+@SmallTest
+public class QuotedPrintableOutputStreamTests extends AndroidTestCase {
+
+    private static String encode(String text) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        QuotedPrintableOutputStream out = new QuotedPrintableOutputStream(byteStream);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return byteStream.toString("US-ASCII");
+    }
+
+    private static String decode(String encoded) throws IOException {
+        InputStream in = new QuotedPrintableInputStream(
+                new ByteArrayInputStream(encoded.getBytes("US-ASCII")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        return out.toString("UTF-8");
+    }
+
+    public void testEncode() throws IOException {
+        assertEquals("", encode(""));
+        assertEquals("plain text", encode("plain text"));
+        assertEquals("a=3Db", encode("a=b"));
+        assertEquals("caf=C3=A9", encode("caf\u00e9"));
+        // Line breaks, and trailing whitespace
+        assertEquals("one\r\ntwo\r\n", encode("one\ntwo\r\n"));
+        assertEquals("one =20\r\ntwo=09", encode("one  \ntwo\t"));
+        // Bare CR
+        assertEquals("a=0Db=0D", encode("a\rb\r"));
+        // A '.' is only encoded at the start of a line
+        assertEquals("=2E\r\na.b", encode(".\na.b"));
+    }
+
+    public void testLongLines() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("x");
+        }
+        sb.append("\n");
+        for (int i = 0; i < 100; i++) {
+            sb.append("\u00e9");
+        }
+        String text = sb.toString();
+        String encoded = encode(text);
+        for (String line : encoded.split("\r\n")) {
+            assertTrue(line, line.length() <= 76);
+        }
+        assertEquals(text.replace("\n", "\r\n"), decode(encoded));
+
+        // A soft line break before a '.' leaves it at the start of a line
+        sb = new StringBuilder();
+        for (int i = 0; i < 75; i++) {
+            sb.append("x");
+        }
+        encoded = encode(sb.append(".").toString());
+        assertTrue(encoded, encoded.endsWith("=\r\n=2E"));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import org.apache.james.mime4j.field.DateTimeField;
+import org.apache.james.mime4j.field.Field;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Conformance tests for {@link Rfc5322DateParser}.
+ */
+@SmallTest
+public class Rfc5322DateParserTests extends AndroidTestCase {
+
+    /**
+     * Pairs of input and expected UTC time, for dates in the standard (and obsolete) syntax.
+     */
+    private static final String[][] RFC_5322_CORPUS = new String[][] {
+        // RFC 5322 section 3.3 and appendix A
+        {"Fri, 21 Nov 1997 09:55:06 -0600", "1997-11-21 15:55:06"},
+        {"Tue, 1 Jul 2003 10:52:37 +0200", "2003-07-01 08:52:37"},
+        {"Thu, 13 Feb 1969 23:32:54 -0330", "1969-02-14 03:02:54"},
+        {"21 Nov 1997 09:55:06 -0600", "1997-11-21 15:55:06"},
+        {"Fri, 21 Nov 1997 09:55 -0600", "1997-11-21 15:55:00"},
+        {"Sat, 31 Dec 1999 23:59:60 +0000", "2000-01-01 00:00:00"},
+        // obsolete syntax (RFC 5322 section 4.3)
+        {"Thu,\r\n      13\r\n        Feb\r\n          1969\r\n      23:32\r\n"
+                + "               -0330 (Newfoundland Time)", "1969-02-14 03:02:00"},
+        {"Fri, 21 Nov 97 09:55:06 GMT", "1997-11-21 09:55:06"},
+        {"Fri, 21 Nov 03 09:55:06 UT", "2003-11-21 09:55:06"},
+        {"Fri, 21 Nov 103 09:55:06 GMT", "2003-11-21 09:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 EST", "1997-11-21 14:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 EDT", "1997-11-21 13:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 CST", "1997-11-21 15:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 CDT", "1997-11-21 14:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 MST", "1997-11-21 16:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 MDT", "1997-11-21 15:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 PST", "1997-11-21 17:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 Z", "1997-11-21 09:55:06"},
+        {"Fri, 21 Nov 1997 09:55:06 A", "1997-11-21 09:55:06"},
+        {"Fri (comment), 21 (another (nested) one) Nov 1997 09 : 55 : 06 -0600",
+                "1997-11-21 15:55:06"},
+    };
+
+    /**
+     * Pairs of input and expected UTC time (or null if the input must be rejected), for
+     * everything else.
+     */
+    private static final String[][] OTHER_CORPUS = new String[][] {
+        // IMAP INTERNALDATE
+        {"01-Jan-2009 11:34:56 -0100", "2009-01-01 12:34:56"},
+        {" 1-Jan-2009 11:34:56 +0900", "2009-01-01 02:34:56"},
+        // malformed variants seen in the wild
+        {"Thu, 10 Dec 09 15:08:08 GMT-0700", "2009-12-10 22:08:08"},
+        {"Thu, 10 Dec 2009 15:08:08 UTC+01:00", "2009-12-10 14:08:08"},
+        {"Thu, 10 Dec 2009 15:08:08 +05:30", "2009-12-10 09:38:08"},
+        {"Thu, 10 Dec 2009 15:08:08 +530", "2009-12-10 09:38:08"},
+        {"Thu, 10 Dec 2009 15:08:08 -07", "2009-12-10 22:08:08"},
+        {"Thu, 10 Dec 2009 15:08:08", "2009-12-10 15:08:08"},
+        {"Thu, 10 Dec 2009 15:08:08 CEST", "2009-12-10 15:08:08"},
+        {"Thu, 10 Dec 2009 15:08:08 pdt", "2009-12-10 22:08:08"},
+        {"Thu, 10 Dec 2009 15:08:08 +0100 (CET) extra garbage", "2009-12-10 14:08:08"},
+        {"Thu 10 Dec 2009 15:08:08 +0000", "2009-12-10 15:08:08"},
+        {"Thursday, 10 December 2009 15:08:08 +0000", "2009-12-10 15:08:08"},
+        {"Thu, 10 Dec 2009 5:08:08 +0000", "2009-12-10 05:08:08"},
+        {"Thu, 10 Dec 2009 15.08.08 +0000", "2009-12-10 15:08:08"},
+        {"Thu, 10-Dec-2009 15:08:08 +0000", "2009-12-10 15:08:08"},
+        {"Thu Dec 10 15:08:08 2009", "2009-12-10 15:08:08"},
+        {"Thu Dec  1 15:08:08 PST 2009", "2009-12-01 23:08:08"},
+        {"Thu, 31 Nov 2009 15:08:08 +0000", "2009-12-01 15:08:08"},
+        {"Mon, 29 Feb 2016 00:00:00 +0000", "2016-02-29 00:00:00"},
+        // rejected
+        {null, null},
+        {"", null},
+        {"1234", null},
+        {"AbcD", null},
+        {"Thu, 10 Foo 2009 15:08:08 +0000", null},
+        {"Thu, 0 Dec 2009 15:08:08 +0000", null},
+        {"Thu, 32 Dec 2009 15:08:08 +0000", null},
+        {"Thu, 10 Dec 2009 15:61:08 +0000", null},
+        {"Thu, 10 Dec 2009 25:08:08 +0000", null},
+        {"Thu, 10 Dec 2009 15:08:08 +2500", null},
+        {"Thu, 10 Dec 2009", null},
+        {"Thu, 10 Dec 2009 15", null},
+        {"Thu, 100 Dec 2009 15:08:08 +0000", null},
+        {"Thu, 10 Dec 20091 15:08:08 +0000", null},
+    };
+
+    private static SimpleDateFormat utcFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    public void testCorpus() {
+        checkCorpus(RFC_5322_CORPUS);
+        checkCorpus(OTHER_CORPUS);
+    }
+
+    private static void checkCorpus(String[][] corpus) {
+        SimpleDateFormat format = utcFormat();
+        for (String[] entry : corpus) {
+            Date actual = Rfc5322DateParser.parseDate(entry[0]);
+            if (entry[1] == null) {
+                assertNull(entry[0], actual);
+            } else {
+                assertNotNull(entry[0], actual);
+                assertEquals(entry[0], entry[1], format.format(actual));
+            }
+        }
+    }
+
+    public void testInvalidValue() {
+        assertEquals(Rfc5322DateParser.INVALID, Rfc5322DateParser.parse("not a date"));
+    }
+
+    /**
+     * Standard dates must parse to the same value as with the old mime4j parser.
+     */
+    public void testMatchesMime4j() {
+        for (String[] entry : RFC_5322_CORPUS) {
+            assertEquals(entry[0], parseWithMime4j(entry[0]),
+                    Rfc5322DateParser.parseDate(entry[0]));
+        }
+    }
+
+    private static Date parseWithMime4j(String value) {
+        try {
+            DateTimeField field = (DateTimeField) Field.parse("Date: "
+                    + MimeUtility.unfoldAndDecode(value));
+            return field.getDate();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Benchmark parses/sec against the mime4j parser (headers) and SimpleDateFormat (IMAP).
+     */
+    @LargeTest
+    public void testBenchmark() throws ParseException {
+        final String header = "Fri, 21 Nov 1997 09:55:06 -0600 (CST)";
+        final String internalDate = "01-Jan-2009 11:34:56 -0100";
+        final int iterations = 20000;
+        SimpleDateFormat imapFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parseWithMime4j(header);
+        }
+        long mime4jNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            imapFormat.parse(internalDate);
+        }
+        long simpleDateFormatNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Rfc5322DateParser.parse(header);
+        }
+        long headerNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Rfc5322DateParser.parse(internalDate);
+        }
+        long internalDateNs = System.nanoTime() - start;
+
+        Log.d("Rfc5322DateParserTests", "parses/sec: header mime4j " + perSec(iterations, mime4jNs)
+                + " vs " + perSec(iterations, headerNs) + ", INTERNALDATE SimpleDateFormat "
+                + perSec(iterations, simpleDateFormatNs) + " vs "
+                + perSec(iterations, internalDateNs));
+    }
+
+    private static long perSec(int count, long ns) {
+        return count * 1000000000L / Math.max(1, ns);
+    }
+}
@@ -30,13 +30,21 @@ import org.apache.james.mime4j.message.BodyPart;
 import org.apache.james.mime4j.message.Entity;
 import org.apache.james.mime4j.message.Header;
 import org.apache.james.mime4j.message.Multipart;
+import org.apache.james.mime4j.message.TextBody;
 
 import android.content.Context;
+import android.net.Uri;
 import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -326,6 +334,173 @@ public class Rfc822OutputTests extends ProviderTestCase2<EmailProvider> {
         assertNotNull(header.getField("content-disposition"));
     }
 
+    /**
+     * Test for appendQuotedText(), which must match the regular expressions it replaced.
+     */
+    public void testAppendQuotedText() {
+        String[] texts = new String[] {
+            "", "a", "a\nb", "a\r\nb\r\n", "\n\n", "a\rb", "a\r\r\nb", "a\u2028b\u0085",
+        };
+        for (String text : texts) {
+            String fixed = text.replaceAll("\r\n", "\n");
+            StringBuilder sb = new StringBuilder("x");
+            Rfc822Output.appendQuotedText(sb, text, true);
+            assertEquals(text, "x" + fixed.replaceAll("(?m)^", ">"), sb.toString());
+            sb = new StringBuilder("x");
+            Rfc822Output.appendQuotedText(sb, text, false);
+            assertEquals(text, "x" + fixed, sb.toString());
+        }
+    }
+
+    public void testGetTextEncoding() {
+        assertEquals(Rfc822Output.ENCODING_7BIT, Rfc822Output.getTextEncoding(""));
+        assertEquals(Rfc822Output.ENCODING_7BIT, Rfc822Output.getTextEncoding(TEXT));
+        assertEquals(Rfc822Output.ENCODING_7BIT,
+                Rfc822Output.getTextEncoding("dos\r\nunix\n. not at start\n\ttab = equals"));
+        // Lines starting with '.', bare CRs and long lines can't be sent as 7bit
+        assertEquals(Rfc822Output.ENCODING_QUOTED_PRINTABLE,
+                Rfc822Output.getTextEncoding("line\n.line"));
+        assertEquals(Rfc822Output.ENCODING_QUOTED_PRINTABLE,
+                Rfc822Output.getTextEncoding("mac\rline"));
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append('x');
+        }
+        assertEquals(Rfc822Output.ENCODING_QUOTED_PRINTABLE,
+                Rfc822Output.getTextEncoding(longLine.toString()));
+        // Mostly ASCII is quoted-printable, mostly not is base64
+        assertEquals(Rfc822Output.ENCODING_QUOTED_PRINTABLE,
+                Rfc822Output.getTextEncoding("Caf\u00e9 au lait, s'il vous pla\u00eet"));
+        assertEquals(Rfc822Output.ENCODING_BASE64,
+                Rfc822Output.getTextEncoding("\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8"));
+    }
+
+    /**
+     * Write a message with the given text, and check that it's sent with the given encoding and
+     * decodes to the same text (with line breaks as CR-LF).
+     */
+    private void checkWriteToText(String text, String encoding)
+            throws IOException, MessagingException {
+        Message msg = new Message();
+        msg.mText = text;
+        msg.mFrom = SENDER;
+        msg.save(mMockContext);
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        Rfc822Output.writeTo(mMockContext, msg.mId, byteStream, true, false);
+        String output = byteStream.toString("US-ASCII");
+        assertTrue(output, output.contains("Content-Transfer-Encoding: " + encoding + "\r\n"));
+
+        org.apache.james.mime4j.message.Message mimeMessage =
+            new org.apache.james.mime4j.message.Message(
+                    new ByteArrayInputStream(byteStream.toByteArray()));
+        Reader reader = ((TextBody) mimeMessage.getBody()).getReader();
+        StringBuilder decoded = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            decoded.append((char) c);
+        }
+        assertEquals(text.replaceAll("\r?\n", "\r\n"), decoded.toString());
+    }
+
+    public void testWriteToTextEncodings() throws IOException, MessagingException {
+        checkWriteToText("Simple text\nwith two lines", Rfc822Output.ENCODING_7BIT);
+        checkWriteToText("Line one\n.\nThe line above would end the message over SMTP  \n",
+                Rfc822Output.ENCODING_QUOTED_PRINTABLE);
+        checkWriteToText("Caf\u00e9 au lait, s'il vous pla\u00eet",
+                Rfc822Output.ENCODING_QUOTED_PRINTABLE);
+        checkWriteToText("\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8",
+                Rfc822Output.ENCODING_BASE64);
+    }
+
+    /**
+     * An output stream that discards what's written to it, keeping track of how much was written
+     * and of the most heap in use while it was being written.
+     */
+    private static class HeapSamplingOutputStream extends OutputStream {
+        long mBytes;
+        long mPeakHeap;
+
+        private void sample() {
+            Runtime runtime = Runtime.getRuntime();
+            mPeakHeap = Math.max(mPeakHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        @Override
+        public void write(int oneByte) {
+            mBytes++;
+            if ((mBytes & 0xffff) == 0) {
+                sample();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mBytes += len;
+            sample();
+        }
+    }
+
+    /**
+     * Benchmark writing a message with a large body and 20MB of attachments, measuring the peak
+     * heap used and MB/s.
+     */
+    @LargeTest
+    public void testWriteToBenchmark() throws IOException, MessagingException {
+        final int attachmentCount = 4;
+        final int attachmentSize = 5 * 1024 * 1024;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 2 * 1024 * 1024) {
+            text.append("A line of text in a rather long message, caf\u00e9 = coffee.\n");
+        }
+        Message msg = new Message();
+        msg.mText = text.toString();
+        msg.mFrom = SENDER;
+        msg.mAttachments = new ArrayList<Attachment>();
+        File dir = getContext().getCacheDir();
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < attachmentCount; i++) {
+            File file = new File(dir, "Rfc822OutputTests" + i);
+            FileOutputStream out = new FileOutputStream(file);
+            for (int written = 0; written < attachmentSize; written += data.length) {
+                out.write(data);
+            }
+            out.close();
+            files.add(file);
+            Attachment att = new Attachment();
+            att.mContentUri = Uri.fromFile(file).toString();
+            att.mMimeType = "application/octet-stream";
+            att.mFileName = "file" + i;
+            att.mSize = attachmentSize;
+            msg.mAttachments.add(att);
+        }
+        msg.save(mMockContext);
+        msg.mText = null;
+        text = null;
+
+        try {
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long baseHeap = runtime.totalMemory() - runtime.freeMemory();
+            HeapSamplingOutputStream out = new HeapSamplingOutputStream();
+            long start = System.nanoTime();
+            Rfc822Output.writeTo(mMockContext, msg.mId, out, true, false);
+            long time = Math.max(1, System.nanoTime() - start);
+            Log.d("Rfc822OutputTests", "Wrote " + out.mBytes + " bytes, "
+                    + (out.mBytes * 1000000000L / time / (1024 * 1024)) + " MB/s, peak heap "
+                    + ((out.mPeakHeap - baseHeap) / 1024) + "KB over " + (baseHeap / 1024) + "KB");
+            assertTrue(out.mBytes > attachmentCount * attachmentSize);
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
     /**
      * Tests various types of HTML reply text -- with full <html/> tags,
      * with just the <body/> tags and without any surrounding tags.
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.Context;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tests of {@link AttachmentFileReaper}.
+ *
+ * Deletions are reaped in the background as well as by the tests' calls to
+ * {@link AttachmentFileReaper#reap}; either way, everything queued before a call is reaped by the
+ * time it returns.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.utility.AttachmentFileReaperTests email
+ */
+@MediumTest
+public class AttachmentFileReaperTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private long mAccountId;
+    private Mailbox mMailbox;
+
+    public AttachmentFileReaperTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        AttachmentFileReaper.reap(mMockContext);
+        AttachmentFileReaper.clear();
+        Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        mAccountId = account.mId;
+        mMailbox = ProviderTestUtils.setupMailbox("inbox", mAccountId, true, mMockContext);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        AttachmentFileReaper.reap(mMockContext);
+        AttachmentFileReaper.clear();
+        AttachmentUtilities.deleteAllAccountAttachmentFiles(mMockContext, mAccountId);
+        super.tearDown();
+    }
+
+    private Message createMessage(String name) {
+        return ProviderTestUtils.setupMessage(name, mAccountId, mMailbox.mId, false, true,
+                mMockContext);
+    }
+
+    /**
+     * Create an attachment, with a file of the given size
+     */
+    private File createAttachment(Message message, int size) throws IOException {
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "file", size, true,
+                mMockContext);
+        File dir = AttachmentUtilities.getAttachmentDirectory(mMockContext, mAccountId);
+        dir.mkdirs();
+        File file = AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId, att.mId);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[size]);
+        out.close();
+        return file;
+    }
+
+    private File getTombstoneFile() {
+        return mMockContext.getDatabasePath(AttachmentFileReaper.TOMBSTONE_FILE_NAME);
+    }
+
+    public void testDeleteMessageFiles() throws IOException {
+        Message message1 = createMessage("message1");
+        Message message2 = createMessage("message2");
+        Message message3 = createMessage("message3");
+        File file1a = createAttachment(message1, 100);
+        File file1b = createAttachment(message1, 200);
+        File file2 = createAttachment(message2, 300);
+        File file3 = createAttachment(message3, 400);
+
+        AttachmentFileReaper.deleteMessageFiles(mMockContext, mAccountId,
+                new long[] {message1.mId, message3.mId});
+        // The messages can go right away
+        EmailContent.delete(mMockContext, Message.CONTENT_URI, message1.mId);
+        EmailContent.delete(mMockContext, Message.CONTENT_URI, message3.mId);
+        AttachmentFileReaper.reap(mMockContext);
+
+        assertFalse(file1a.exists());
+        assertFalse(file1b.exists());
+        assertTrue(file2.exists());
+        assertFalse(file3.exists());
+        assertTrue(AttachmentFileReaper.getSummary().startsWith("3 files (700 bytes) reclaimed"));
+        assertTrue(AttachmentFileReaper.getSummary().endsWith("0 pending"));
+        assertFalse(getTombstoneFile().exists());
+    }
+
+    /**
+     * Test that a file written after its attachment's tombstone (e.g. downloaded again, for a
+     * message moved to the trash) is kept
+     */
+    public void testKeepNewerAttachmentFile() throws IOException {
+        Message message = createMessage("message");
+        File file1 = createAttachment(message, 100);
+        File file2 = createAttachment(message, 200);
+        assertTrue(file2.setLastModified(System.currentTimeMillis() + 60 * 1000));
+
+        AttachmentFileReaper.deleteMessageFiles(mMockContext, mAccountId,
+                new long[] {message.mId});
+        AttachmentFileReaper.reap(mMockContext);
+        assertFalse(file1.exists());
+        assertTrue(file2.exists());
+        assertTrue(AttachmentFileReaper.getSummary().startsWith("1 files (100 bytes) reclaimed"));
+    }
+
+    public void testDeleteMailboxFiles() throws IOException {
+        Mailbox other = ProviderTestUtils.setupMailbox("other", mAccountId, true, mMockContext);
+        File file1 = createAttachment(createMessage("message1"), 100);
+        File file2 = createAttachment(ProviderTestUtils.setupMessage("message2", mAccountId,
+                other.mId, false, true, mMockContext), 100);
+
+        AttachmentFileReaper.deleteMailboxFiles(mMockContext, mAccountId, mMailbox.mId);
+        AttachmentFileReaper.reap(mMockContext);
+        assertFalse(file1.exists());
+        assertTrue(file2.exists());
+    }
+
+    public void testDeleteAccountFiles() throws IOException {
+        File file1 = createAttachment(createMessage("message1"), 100);
+        // A file written after the account was wiped (here, by its time) is kept
+        File file2 = createAttachment(createMessage("message2"), 100);
+        assertTrue(file2.setLastModified(System.currentTimeMillis() + 60 * 1000));
+
+        AttachmentFileReaper.deleteAccountFiles(mMockContext, mAccountId);
+        AttachmentFileReaper.reap(mMockContext);
+        assertFalse(file1.exists());
+        assertTrue(file2.exists());
+        assertTrue(AttachmentFileReaper.getSummary().startsWith("1 files (100 bytes) reclaimed"));
+    }
+
+    /**
+     * Test that the tombstones a process leaves behind (e.g. if it dies) are reaped by the next
+     */
+    public void testRecoverTombstones() throws IOException {
+        Message message = createMessage("message");
+        File file1 = createAttachment(message, 100);
+        File file2 = createAttachment(message, 200);
+        long attachmentId1 = Long.parseLong(file1.getName());
+        long attachmentId2 = Long.parseLong(file2.getName());
+        long now = System.currentTimeMillis();
+
+        FileWriter writer = new FileWriter(getTombstoneFile());
+        writer.write(mAccountId + " " + attachmentId1 + " " + now + "\n");
+        writer.write(mAccountId + " " + attachmentId2 + " " + now + "\n");
+        // A line cut short
+        writer.write(mAccountId + " ");
+        writer.close();
+
+        AttachmentFileReaper.reap(mMockContext);
+        assertFalse(file1.exists());
+        assertFalse(file2.exists());
+        assertTrue(AttachmentFileReaper.getSummary().contains("2 tombstones recovered"));
+        assertFalse(getTombstoneFile().exists());
+    }
+}
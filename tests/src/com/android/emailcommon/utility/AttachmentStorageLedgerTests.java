@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.Context;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of {@link AttachmentStorageLedger}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.utility.AttachmentStorageLedgerTests email
+ */
+@MediumTest
+public class AttachmentStorageLedgerTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+    private long mAccountId;
+    private Message mMessage;
+
+    public AttachmentStorageLedgerTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        AttachmentStorageLedger.clear();
+        Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        mAccountId = account.mId;
+        Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", mAccountId, true, mMockContext);
+        mMessage = ProviderTestUtils.setupMessage("message", mAccountId, mailbox.mId, false, true,
+                mMockContext);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        AttachmentUtilities.deleteAllAccountAttachmentFiles(mMockContext, mAccountId);
+        AttachmentStorageLedger.clear();
+        super.tearDown();
+    }
+
+    /**
+     * Create a loaded attachment, with a file of the given size
+     */
+    private Attachment createAttachment(String name, int size) throws IOException {
+        Attachment att = ProviderTestUtils.setupAttachment(mMessage.mId, name, size, false,
+                mMockContext);
+        att.mAccountKey = mAccountId;
+        att.save(mMockContext);
+        writeFile(att.mId, size);
+        return att;
+    }
+
+    private void writeFile(long attachmentId, int size) throws IOException {
+        File dir = AttachmentUtilities.getAttachmentDirectory(mMockContext, mAccountId);
+        dir.mkdirs();
+        FileOutputStream out = new FileOutputStream(
+                AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId, attachmentId));
+        out.write(new byte[size]);
+        out.close();
+    }
+
+    public void testUsage() throws IOException {
+        assertEquals(0, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        // Files written before the ledger is loaded are found when it is
+        Attachment att1 = createAttachment("file1", 100);
+        AttachmentStorageLedger.clear();
+        assertEquals(100, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+
+        // ...and after that it's kept up to date as files are written and deleted
+        Attachment att2 = createAttachment("file2", 50);
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, att2.mId, false);
+        assertEquals(150, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        writeFile(att2.mId, 20);
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, att2.mId, false);
+        assertEquals(120, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        AttachmentUtilities.deleteAllAttachmentFiles(mMockContext, mAccountId, mMessage.mId);
+        assertEquals(0, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        assertFalse(AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId,
+                att1.mId).exists());
+
+        AttachmentUtilities.deleteAllAccountAttachmentFiles(mMockContext, mAccountId);
+        assertNull(AttachmentStorageLedger.getSummary(mAccountId));
+    }
+
+    public void testReconcile() throws IOException {
+        Attachment att = createAttachment("file", 100);
+        assertEquals(100, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        // A change the ledger isn't told about is only picked up by reconciliation
+        writeFile(att.mId, 300);
+        assertEquals(100, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        AttachmentStorageLedger.expire(mAccountId);
+        assertEquals(300, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        assertTrue(AttachmentStorageLedger.getSummary(mAccountId).contains("drift 200 bytes"));
+    }
+
+    public void testEvictUnopened() throws IOException {
+        Attachment requested = createAttachment("requested", 100);
+        Attachment opened = createAttachment("opened", 100);
+        Attachment prefetched1 = createAttachment("prefetched1", 100);
+        Attachment prefetched2 = createAttachment("prefetched2", 100);
+        assertEquals(400, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, requested.mId, false);
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, opened.mId, true);
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, prefetched1.mId, true);
+        AttachmentStorageLedger.onFileWritten(mMockContext, mAccountId, prefetched2.mId, true);
+        AttachmentStorageLedger.onFileOpened(mAccountId, opened.mId);
+
+        // Least recently used first
+        assertEquals(100, AttachmentStorageLedger.evictUnopened(mMockContext, mAccountId, 50));
+        assertEquals(300, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        assertFalse(AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId,
+                prefetched1.mId).exists());
+        Attachment evicted = Attachment.restoreAttachmentWithId(mMockContext, prefetched1.mId);
+        assertNull(evicted.mContentUri);
+        assertTrue((evicted.mFlags & Attachment.FLAG_DOWNLOAD_EVICTED) != 0);
+
+        // Only prefetched attachments that weren't opened are evicted
+        assertEquals(100, AttachmentStorageLedger.evictUnopened(mMockContext, mAccountId, 1000));
+        assertEquals(200, AttachmentStorageLedger.getUsage(mMockContext, mAccountId));
+        assertTrue(AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId,
+                requested.mId).exists());
+        assertTrue(AttachmentUtilities.getAttachmentFilename(mMockContext, mAccountId,
+                opened.mId).exists());
+        assertNotNull(Attachment.restoreAttachmentWithId(mMockContext, opened.mId).mContentUri);
+        assertEquals(0, AttachmentStorageLedger.evictUnopened(mMockContext, mAccountId, 1000));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.util;
+
+import org.apache.james.mime4j.decoder.DecoderUtil;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * Tests of {@link CharsetUtil}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c org.apache.james.mime4j.util.CharsetUtilTests email
+ */
+@SmallTest
+public class CharsetUtilTests extends AndroidTestCase {
+
+    public void testToJavaCharset() {
+        assertEquals("ISO8859_1", CharsetUtil.toJavaCharset("latin1"));
+        assertEquals("ISO8859_1", CharsetUtil.toJavaCharset("ISO-8859-1"));
+        assertEquals("UTF8", CharsetUtil.toJavaCharset("utf-8"));
+        assertEquals("ISO2022JP", CharsetUtil.toJavaCharset("iso-2022-jp"));
+        assertNull(CharsetUtil.toJavaCharset("bogus"));
+    }
+
+    public void testToMimeCharset() {
+        assertEquals("ISO-8859-1", CharsetUtil.toMimeCharset("ISO8859_1"));
+        assertEquals("US-ASCII", CharsetUtil.toMimeCharset("ascii7"));
+        assertNull(CharsetUtil.toMimeCharset("bogus"));
+    }
+
+    public void testIsSupported() {
+        assertTrue(CharsetUtil.isDecodingSupported("ISO8859_1"));
+        assertTrue(CharsetUtil.isDecodingSupported("utf8"));
+        assertTrue(CharsetUtil.isEncodingSupported("ISO8859_1"));
+        // The answer is remembered
+        assertTrue(CharsetUtil.isDecodingSupported("ISO8859_1"));
+        assertTrue(CharsetUtil.isEncodingSupported("iso8859_1"));
+        // Only canonical names are accepted
+        assertFalse(CharsetUtil.isDecodingSupported("latin1"));
+        assertFalse(CharsetUtil.isEncodingSupported("latin1"));
+        assertFalse(CharsetUtil.isDecodingSupported("bogus"));
+        assertFalse(CharsetUtil.isEncodingSupported("bogus"));
+    }
+
+    public void testDecodeEncodedWords() {
+        assertEquals("caf\u00e9", DecoderUtil.decodeEncodedWords("=?iso-8859-1?Q?caf=E9?="));
+        assertEquals("caf\u00e9", DecoderUtil.decodeEncodedWords("=?latin1?B?Y2Fm6Q==?="));
+        // A character set that isn't known is left encoded
+        assertEquals("=?bogus?Q?caf=E9?=", DecoderUtil.decodeEncodedWords("=?bogus?Q?caf=E9?="));
+    }
+
+    /**
+     * Compares the cost of the first lookup and the first header decoded with that of trying
+     * every known character set, which used to be done when the class was loaded.  Other tests
+     * in the same process may already have done the first lookup, so the first times are only
+     * meaningful when this test is run on its own.
+     */
+    @LargeTest
+    public void testStartupBenchmark() {
+        long start = System.nanoTime();
+        CharsetUtil.toJavaCharset("us-ascii");
+        long lookupMicros = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        assertEquals("caf\u00e9", DecoderUtil.decodeEncodedWords("=?utf-8?Q?caf=C3=A9?="));
+        long decodeMicros = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        int decodable = CharsetUtil.probeAllCharsets();
+        long probeAllMicros = (System.nanoTime() - start) / 1000;
+        assertTrue(decodable > 0);
+
+        Log.d("CharsetUtilTests", "First lookup " + lookupMicros + " us, first decode "
+                + decodeMicros + " us; trying all character sets " + probeAllMicros + " us ("
+                + decodable + " decodable)");
+    }
+}